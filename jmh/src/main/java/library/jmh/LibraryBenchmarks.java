@@ -0,0 +1,87 @@
+package library.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.LongUnaryOperator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The benchmarks of ExceptionalLibraryBenchmark run by JMH: each benchmark of the suite is one
+ * value of the benchmark parameter, run on a fixture of the given numbers of books and subscribers.
+ * The suite is in the default package, which a class of a package cannot name: it is reached by
+ * reflection once per trial, and its operations are called through standard interfaces.
+ *
+ * For instance: java -jar jmh/target/benchmarks.jar -p benchmark=findBook,searchBooks -p
+ * books=1000000 -t 4
+ *
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1) // a fresh JVM per trial: the card bar codes of the fixtures are issued once per JVM
+@State(Scope.Benchmark)
+public class LibraryBenchmarks {
+  @Param({"findBook", "findBookByTitle", "findBookByAuthor", "findBookByAuthorPage",
+      "findBookByTitleUncached", "findBookByAuthorUncached", "findBookByAuthorPageUncached",
+      "listBooksPage", "findAvailableBooksByAuthor", "findBooksByTitleContaining", "searchBooks",
+      "findSubscriber", "addRemoveBook", "checkoutReturn", "checkoutReturnJournaled",
+      "checkoutReturnJournaled10ms", "holdHandoff", "scriptedSession", "batchSession", "loadBooks",
+      "loadBooksBulk", "saveBooks", "listBooksPrintStream", "listBooksSink",
+      "contendedBorrowReturn"})
+  public String benchmark; // name of the benchmark of the suite
+
+  @Param({"10000", "100000"})
+  public int books; // books of the fixture
+
+  @Param({"1000"})
+  public int subscribers; // subscribers of the fixture
+
+  private IntFunction<LongUnaryOperator> harness; // gives the operation of each thread
+  private final AtomicInteger threads = new AtomicInteger(); // index of the next thread
+
+  @Setup(Level.Trial)
+  @SuppressWarnings("unchecked")
+  public void setUp() throws Exception {
+    harness = (IntFunction<LongUnaryOperator>) Class.forName("ExceptionalLibraryBenchmark")
+        .getMethod("harness", String.class, int.class, int.class)
+        .invoke(null, benchmark, books, subscribers);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    ((AutoCloseable) harness).close();
+  }
+
+  /**
+   * The operation of a thread, and the index of its next call
+   */
+  @State(Scope.Thread)
+  public static class Worker {
+    private LongUnaryOperator operation;
+    private long i;
+
+    @Setup(Level.Trial)
+    public void setUp(LibraryBenchmarks suite) {
+      operation = suite.harness.apply(suite.threads.getAndIncrement());
+    }
+  }
+
+  @Benchmark
+  public long run(Worker worker) {
+    return worker.operation.applyAsLong(worker.i++); // returned to the JMH blackhole
+  }
+}
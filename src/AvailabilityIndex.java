@@ -0,0 +1,221 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class models a bitmap of the books of a library that are on the shelf, keyed by book
+ * identifier: bit id is set if the book id is in the library and available. It answers "is this
+ * book available" without reading the book, and keeps the circulation counters of the library (the
+ * books in the library, on the shelf and checked out, and the checkouts and returns so far) up to
+ * date, so that they are read in constant time.
+ *
+ * A second bitmap, interleaved word by word with the first one, tells the books that are in the
+ * library, so that a book added twice (a batch replayed again for instance) or removed twice is
+ * counted once, and a book removed is never put back on the shelf by a late return.
+ *
+ * The bitmaps are split in chunks of CHUNK_BITS identifiers, allocated when the first book of the
+ * chunk is added. The identifiers are given in increasing order, so the chunks of a library are
+ * few and dense. A bit is only written under the lock of its chunk, after reading the current
+ * availability of its book: the last writer of a bit always sees the last change of the book, even
+ * if the notifications of concurrent changes arrive out of order. A bit is read without locking.
+ *
+ */
+public class AvailabilityIndex implements BookAvailabilityListener {
+  // class/static fields
+  private static final int CHUNK_SHIFT = 16;
+  private static final int CHUNK_BITS = 1 << CHUNK_SHIFT; // identifiers per chunk (16 KB of bits)
+  private static final int ADD = 1; // changes of the books in the library made by update()
+  private static final int KEEP = 0;
+  private static final int REMOVE = -1;
+
+  // Instance fields
+  private volatile AtomicLongArray[] chunks; // chunk i holds the bits of identifiers
+                                             // i * CHUNK_BITS and up, null if it has no book yet
+  private final AtomicInteger books = new AtomicInteger(); // books in the library (bits set)
+  private final AtomicInteger available = new AtomicInteger(); // books on the shelf (bits set)
+  private final LongAdder checkouts = new LongAdder(); // books checked out so far
+  private final LongAdder returns = new LongAdder(); // books returned so far
+
+  /**
+   * Creates a new empty index
+   */
+  public AvailabilityIndex() {
+    chunks = new AtomicLongArray[1];
+  }
+
+  /**
+   * Adds a book to the index, on the shelf or not depending on its current availability
+   *
+   * @param book book added to the library
+   * @return true if the book is added, false if it is already in the index
+   */
+  public boolean add(Book book) {
+    return update(book, true, ADD);
+  }
+
+  /**
+   * Adds a batch of books to the index. The books already in the index are not counted again.
+   *
+   * @param batch books added to the library
+   * @param count number of books added, from batch[0]
+   * @return the number of books added to the index
+   */
+  public int addAll(Book[] batch, int count) {
+    int added = 0;
+    for (int i = 0; i < count; i++)
+      if (update(batch[i], true, ADD))
+        added++;
+    return added;
+  }
+
+  /**
+   * Removes a book withdrawn from the library from the index
+   *
+   * @param book book removed
+   * @return true if the book is removed, false if it was not in the index
+   */
+  public boolean remove(Book book) {
+    return update(book, false, REMOVE);
+  }
+
+  /**
+   * Sets the bit of a book checked out or returned to its current availability, and counts the
+   * change
+   *
+   * @param book       book checked out or returned
+   * @param checkedOut true if the book was checked out, false if it was returned
+   */
+  @Override
+  public void availabilityChanged(Book book, boolean checkedOut) {
+    if (checkedOut)
+      checkouts.increment();
+    else
+      returns.increment();
+    update(book, true, KEEP); // true: reads the availability of the book under the lock
+  }
+
+  /**
+   * Writes the bits of a book under the lock of its chunk
+   *
+   * @param book     book to update
+   * @param readBook true to set the bit to the availability of the book read under the lock,
+   *                 false to clear it
+   * @param change   ADD or REMOVE to add the book to the library or remove it, KEEP otherwise
+   * @return true if the book was added or removed, false if it already was
+   */
+  private boolean update(Book book, boolean readBook, int change) {
+    int id = book.getID();
+    AtomicLongArray chunk = chunk(id);
+    int index = (id & CHUNK_BITS - 1) >>> 6 << 1; // word of the shelf, then word of the library
+    long bit = 1L << id;
+    synchronized (chunk) {
+      long inLibrary = chunk.get(index + 1);
+      boolean wasIn = (inLibrary & bit) != 0;
+      boolean isIn = change == KEEP ? wasIn : change == ADD;
+      if (isIn != wasIn) {
+        chunk.set(index + 1, inLibrary ^ bit);
+        books.addAndGet(isIn ? 1 : -1);
+      }
+      long word = chunk.get(index);
+      boolean wasAvailable = (word & bit) != 0;
+      boolean isAvailable = isIn && readBook && book.isAvailable();
+      if (isAvailable != wasAvailable) {
+        chunk.set(index, word ^ bit);
+        available.addAndGet(isAvailable ? 1 : -1);
+      }
+      return isIn != wasIn;
+    }
+  }
+
+  /**
+   * Returns the chunk of an identifier, allocating it (and growing the chunks) if needed
+   */
+  private AtomicLongArray chunk(int id) {
+    AtomicLongArray[] chunks = this.chunks;
+    int i = id >>> CHUNK_SHIFT;
+    if (i < chunks.length && chunks[i] != null)
+      return chunks[i];
+    synchronized (this) {
+      chunks = this.chunks;
+      if (i >= chunks.length) {
+        AtomicLongArray[] grown = new AtomicLongArray[Math.max(i + 1, 2 * chunks.length)];
+        System.arraycopy(chunks, 0, grown, 0, chunks.length);
+        chunks = grown;
+      }
+      if (chunks[i] == null)
+        chunks[i] = new AtomicLongArray(CHUNK_BITS >>> 5); // two words per 64 identifiers
+      this.chunks = chunks; // publishes the new chunk
+      return chunks[i];
+    }
+  }
+
+  /**
+   * Checks if a book is in the library and available
+   *
+   * @param bookId identifier of the book
+   * @return true if the bit of the book is set
+   */
+  public boolean isAvailable(int bookId) {
+    AtomicLongArray[] chunks = this.chunks;
+    int i = bookId >>> CHUNK_SHIFT;
+    if (bookId < 0 || i >= chunks.length || chunks[i] == null)
+      return false;
+    return (chunks[i].get((bookId & CHUNK_BITS - 1) >>> 6 << 1) & 1L << bookId) != 0;
+  }
+
+  /**
+   * Returns the number of books in the library
+   *
+   * @return the number of books added and not removed
+   */
+  public int getBookCount() {
+    return books.get();
+  }
+
+  /**
+   * Returns the number of books on the shelf
+   *
+   * @return the number of available books
+   */
+  public int getAvailableCount() {
+    return available.get();
+  }
+
+  /**
+   * Returns the number of books out of the library
+   *
+   * @return the number of books checked out and not yet returned
+   */
+  public int getCheckedOutCount() {
+    return Math.max(0, books.get() - available.get());
+  }
+
+  /**
+   * Returns the number of checkouts since the library was created
+   *
+   * @return the number of books checked out
+   */
+  public long getCheckoutCount() {
+    return checkouts.sum();
+  }
+
+  /**
+   * Returns the number of returns since the library was created
+   *
+   * @return the number of books returned
+   */
+  public long getReturnCount() {
+    return returns.sum();
+  }
+
+  /**
+   * Returns the circulation counters
+   *
+   * @return a one line summary
+   */
+  public String getSummary() {
+    return String.format("Circulation: %d books, %d on the shelf, %d checked out "
+        + "(%d checkouts and %d returns so far).", getBookCount(), getAvailableCount(),
+        getCheckedOutCount(), getCheckoutCount(), getReturnCount());
+  }
+}
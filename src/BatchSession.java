@@ -0,0 +1,339 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * This class runs a script of command lines against a library without displaying the menus and the
+ * prompts. A script holds the same lines as an interactive session (login lines, librarian and
+ * subscriber commands, logout lines), one command per line. Blank lines and lines starting with #
+ * are ignored.
+ *
+ * The text displayed by a command is written after the number of its line ("line 12: Error: ...")
+ * so errors can be found in the output of a long script. Consecutive commands of the same kind
+ * are run as a group: the books added by consecutive librarian commands 1 are added to the
+ * catalog and the search index as one batch, and the changes of a group are recorded in the
+ * journal with a single wait for the disk at the end of the group.
+ *
+ * After the script, getSummary() tells the number of commands run and rejected, the throughput
+ * and the latency of the commands.
+ *
+ */
+public class BatchSession {
+  // class/static fields
+  private static final int MAX_GROUP_SIZE = 4096; // commands run as a group at most
+
+  // Instance fields
+  private final ExceptionalLibrary library; // library the commands are run on
+  private final LinePrefixStream prefixed; // destination of the text of the commands
+  private final OutputSink out; // sink of the text of the commands
+
+  private CommandTable table; // commands of the current menu
+  private Subscriber subscriber; // subscriber logged in, null outside the subscriber's space
+  private CommandTable.Command groupKind; // command of the current group, null if none
+  private int groupStart; // index in latencies of the first command of the current group
+  private long groupFirstLine; // line number of the first command of the current group
+  private long groupLastLine; // line number of the last command of the current group
+  private String[] titles = new String[64]; // titles of the books of the current group
+  private String[] authors = new String[64]; // authors of the books of the current group
+  private int bookCount; // number of books in the current group
+
+  private long lines; // number of lines read
+  private int commands; // number of commands run
+  private int rejected; // number of commands rejected: syntax error, invalid argument, failed login
+  private long[] latencies = new long[1024]; // latency of each command in nanoseconds
+  private long elapsedNanos; // duration of the last script
+
+  /**
+   * Creates a new batch session of a library
+   *
+   * @param library library the commands are run on
+   * @param out     destination of the text displayed by the commands
+   */
+  public BatchSession(ExceptionalLibrary library, OutputStream out) {
+    this.library = library;
+    prefixed = new LinePrefixStream(new BufferedOutputStream(out, 1 << 16));
+    this.out = new OutputSink(prefixed, false);
+  }
+
+  /**
+   * Runs a script file
+   *
+   * @param script path of the script, UTF-8 encoded
+   * @throws IOException if the script cannot be read
+   */
+  public void run(Path script) throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(script, StandardCharsets.UTF_8)) {
+      run(reader);
+    }
+  }
+
+  /**
+   * Runs the command lines of a script, from the main menu, until the end of the script or the
+   * exit command of the main menu
+   *
+   * @param script script to read
+   * @throws IOException if the script cannot be read
+   */
+  public void run(Reader script) throws IOException {
+    BufferedReader reader =
+        script instanceof BufferedReader ? (BufferedReader) script : new BufferedReader(script);
+    CommandTokenizer tokenizer = new CommandTokenizer();
+    table = ExceptionalLibrary.MAIN_COMMANDS;
+    subscriber = null;
+    lines = 0;
+    commands = 0;
+    rejected = 0;
+    OutputSink previous = OutputSink.bind(out);
+    library.deferCommits(true);
+    long start = System.nanoTime();
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines++;
+        String[] arguments = tokenizer.tokenize(line);
+        if (arguments[0].isEmpty() || arguments[0].charAt(0) == '#')
+          continue; // blank line or comment
+        if (!runLine(arguments))
+          break; // exit command of the main menu
+      }
+    } finally {
+      endGroup();
+      library.deferCommits(false);
+      elapsedNanos = System.nanoTime() - start;
+      OutputSink.bind(previous);
+      out.flush();
+      prefixed.flushAll();
+    }
+  }
+
+  /**
+   * Runs one command line
+   *
+   * @return false if the command line is the exit command of the main menu, true otherwise
+   */
+  private boolean runLine(String[] arguments) {
+    CommandTable.Command command = table.isExit(arguments) ? null : table.lookup(arguments[0]);
+    if (command != groupKind || command == null || groupSize() == MAX_GROUP_SIZE)
+      endGroup(); // a new kind of command starts a new group
+    long start = System.nanoTime();
+    if (command != null && groupKind == null) {
+      groupKind = command;
+      groupStart = commands;
+      groupFirstLine = lines;
+    }
+    prefixed.setLines(lines, lines);
+    boolean more = true;
+    LibraryMetrics.Metric metric = null; // metric of the command run now, if any
+    int rejectedBefore = rejected;
+    try {
+      if (table.isExit(arguments)) {
+        more = table != ExceptionalLibrary.MAIN_COMMANDS; // logout goes back to the main menu
+        table = ExceptionalLibrary.MAIN_COMMANDS;
+        subscriber = null;
+      } else if (command == null) {
+        out.println("Syntax Error: Please enter a valid command!");
+        rejected++;
+      } else if (table == ExceptionalLibrary.MAIN_COMMANDS) {
+        login(arguments);
+      } else if (table == ExceptionalLibrary.LIBRARIAN_COMMANDS && arguments[0].equals("1")
+          && arguments.length == 3) {
+        addBook(arguments[1], arguments[2]); // added with the other books of the group
+      } else {
+        metric = library.getMetrics().forCommand(table, command, arguments[0]);
+        command.run(library, arguments, null, subscriber);
+      }
+    } catch (ParseException e) { // syntax error or invalid argument
+      out.println(table.getErrorMessage(e).trim()); // one line per error
+      rejected++;
+    } catch (InstantiationException e) { // no more card can be issued
+      out.println(e.getMessage());
+      rejected++;
+    }
+    out.flush(); // the text of the command goes after its line number
+    groupLastLine = lines;
+    long latency = System.nanoTime() - start;
+    addLatency(latency);
+    if (metric != null) // the latency measured for the summary is also the one of the metrics
+      metric.recordLatency(latency, rejected == rejectedBefore);
+    return more;
+  }
+
+  /**
+   * Runs a login command of the main menu
+   */
+  private void login(String[] arguments) throws ParseException {
+    if (arguments[0].equals("1")) {
+      if (library.parseLoginAsLibrarian(arguments))
+        table = ExceptionalLibrary.LIBRARIAN_COMMANDS;
+      else
+        rejected++;
+    } else {
+      subscriber = library.parseLoginAsSubscriber(arguments);
+      if (subscriber != null)
+        table = ExceptionalLibrary.SUBSCRIBER_COMMANDS;
+      else
+        rejected++;
+    }
+  }
+
+  /**
+   * Adds a book to the group of books added at the end of the current group
+   */
+  private void addBook(String title, String author) {
+    if (bookCount == titles.length) {
+      titles = Arrays.copyOf(titles, bookCount * 2);
+      authors = Arrays.copyOf(authors, bookCount * 2);
+    }
+    titles[bookCount] = title;
+    authors[bookCount++] = author;
+  }
+
+  /**
+   * Ends the current group: adds its books to the library and waits until its changes are durable.
+   * The time of the end of the group is shared by the commands of the group.
+   */
+  private void endGroup() {
+    if (groupKind == null)
+      return;
+    long start = System.nanoTime();
+    prefixed.setLines(groupFirstLine, groupLastLine);
+    int added = bookCount;
+    if (bookCount == 1) {
+      library.addBook(titles[0], authors[0]);
+    } else if (bookCount > 1) {
+      library.addBooks(titles, authors, bookCount);
+      out.println(bookCount + " books added to the library.");
+    }
+    Arrays.fill(titles, 0, bookCount, null);
+    Arrays.fill(authors, 0, bookCount, null);
+    bookCount = 0;
+    library.commitDeferred(); // one wait for the journal per group
+    out.flush();
+    long share = (System.nanoTime() - start) / Math.max(1, groupSize());
+    for (int i = groupStart; i < commands; i++)
+      latencies[i] += share;
+    if (added > 0) { // the commands of the books added now are recorded in the metrics now
+      LibraryMetrics.Metric metric = library.getMetrics()
+          .forCommand(ExceptionalLibrary.LIBRARIAN_COMMANDS, groupKind, "1");
+      for (int i = 0; i < added; i++)
+        metric.recordLatency(share, true);
+    }
+    groupKind = null;
+  }
+
+  private int groupSize() {
+    return groupKind == null ? 0 : commands - groupStart;
+  }
+
+  private void addLatency(long nanos) {
+    if (commands == latencies.length)
+      latencies = Arrays.copyOf(latencies, commands * 2);
+    latencies[commands++] = nanos;
+  }
+
+  /**
+   * Returns the number of commands run by the last script
+   *
+   * @return the number of commands, including the rejected ones and the login and logout lines
+   */
+  public int getCommandCount() {
+    return commands;
+  }
+
+  /**
+   * Returns the number of commands rejected by the last script
+   *
+   * @return the number of commands with a syntax error or an invalid argument, and of failed logins
+   */
+  public int getRejectedCount() {
+    return rejected;
+  }
+
+  /**
+   * Returns a summary of the last script: the number of lines and commands, the throughput and the
+   * latency of the commands
+   *
+   * @return a two lines summary
+   */
+  public String getSummary() {
+    double seconds = elapsedNanos / 1e9;
+    long[] sorted = Arrays.copyOf(latencies, commands);
+    Arrays.sort(sorted);
+    long total = 0;
+    for (long latency : sorted)
+      total += latency;
+    return String.format(
+        "Ran %d commands of %d lines (%d rejected) in %.3f s (%.0f commands/s).%n"
+            + "Latency per command: mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us.",
+        commands, lines, rejected, seconds, seconds > 0 ? commands / seconds : 0.0,
+        commands == 0 ? 0.0 : total / 1e3 / commands, percentile(sorted, 0.5) / 1e3,
+        percentile(sorted, 0.99) / 1e3, percentile(sorted, 1.0) / 1e3);
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+    if (sorted.length == 0)
+      return 0;
+    return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+  }
+
+  /**
+   * Output stream writing the line number of the running command before the first bytes that the
+   * command displays. Flushes are kept for flushAll(), so the text of many commands is written in
+   * large blocks.
+   */
+  private static class LinePrefixStream extends OutputStream {
+    private final OutputStream out; // destination
+    private long firstLine; // first line of the running command or group
+    private long lastLine; // last line of the running command or group
+    private boolean pending; // true until the line number of the running command is written
+
+    LinePrefixStream(OutputStream out) {
+      this.out = out;
+    }
+
+    void setLines(long first, long last) {
+      firstLine = first;
+      lastLine = last;
+      pending = true;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      writePrefix();
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return;
+      writePrefix();
+      out.write(b, off, len);
+    }
+
+    private void writePrefix() throws IOException {
+      if (pending) {
+        pending = false; // the line numbers are only built for the commands that display text
+        String prefix = firstLine == lastLine ? "line " + firstLine + ": "
+            : "lines " + firstLine + "-" + lastLine + ": ";
+        out.write(prefix.getBytes(StandardCharsets.US_ASCII));
+      }
+    }
+
+    @Override
+    public void flush() {
+      // written by flushAll()
+    }
+
+    void flushAll() throws IOException {
+      out.flush();
+    }
+  }
+}
@@ -1,20 +1,30 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
- * A class to model a simple book.
+ * A class to model a simple book. The borrower of a book is an int updated with compare-and-set,
+ * so checking out and returning a book are single atomic transitions: two subscribers can never
+ * borrow the same book, even from different threads.
  *
  */
 public class Book {
   // class/static fields
-  private static int nextId = 1; // class variable that represents the identifier of the next
-                                 // book
-  
+  private static final AtomicInteger nextId = new AtomicInteger(1); // class variable that
+                                                                     // represents the identifier
+                                                                     // of the next book
+  static final int AVAILABLE = 0; // borrower of an available book (never a card bar code)
+  static final int WITHDRAWN = -1; // borrower of a book removed from the library
+  private static final AtomicIntegerFieldUpdater<Book> BORROWER =
+      AtomicIntegerFieldUpdater.newUpdater(Book.class, "borrowerCardBarCode");
+
   // Instance fields
   private final int ID; // unique identifier of this book
 
-  private String author; // name of the author of this book
-  private String title; // title of this book
-  private Integer borrowerCardBarCode; // card bar code of the borrower of this book
-                                       // When borrowerCardBarCode == null, the book is available
-                                       // (no one has the book)
+  private final String author; // name of the author of this book
+  private final String title; // title of this book
+  private volatile int borrowerCardBarCode; // card bar code of the borrower of this book
+                                            // When borrowerCardBarCode == AVAILABLE, the book is
+                                            // available (no one has the book)
   /**
    * Construct a new Book object and initialize its instance fields
    * 
@@ -24,9 +34,56 @@ public class Book {
   public Book(String title, String author) {
     this.title = title;
     this.author = author;
-    borrowerCardBarCode = null; // initially, no one has the book
-    this.ID = nextId;
-    nextId++;
+    borrowerCardBarCode = AVAILABLE; // initially, no one has the book
+    this.ID = nextId.getAndIncrement(); // unique even if books are created by several threads
+  }
+
+  /**
+   * Re-creates a book saved in a snapshot of a library, with its identifier and its borrower
+   * 
+   * @param id       identifier of the saved book
+   * @param title    title of the saved book
+   * @param author   author of the saved book
+   * @param borrower raw borrower of the saved book (see getBorrower())
+   */
+  Book(int id, String title, String author, int borrower) {
+    this.title = title;
+    this.author = author;
+    this.borrowerCardBarCode = borrower;
+    this.ID = id;
+    reserveIds(id + 1); // the next new book never reuses this identifier
+  }
+
+  /**
+   * Creates a book without title, author nor borrower of its own, for a subclass that reads them
+   * from another storage (see ColumnarBookCatalog). The identifier is not reserved.
+   * 
+   * @param id identifier of the book, already reserved
+   */
+  Book(int id) {
+    this.title = null;
+    this.author = null;
+    this.ID = id;
+  }
+
+  /**
+   * Returns the identifier of the next book to be created
+   * 
+   * @return the next book identifier
+   */
+  static int getNextId() {
+    return nextId.get();
+  }
+
+  /**
+   * Moves the identifier of the next book to be created forward to at least a given identifier
+   * 
+   * @param next smallest identifier that the next new book may have
+   */
+  static void reserveIds(int next) {
+    for (int current = nextId.get(); current < next; current = nextId.get())
+      if (nextId.compareAndSet(current, next))
+        return;
   }
 
   // Getters and Setters
@@ -55,10 +112,20 @@ public class Book {
    * @return the borrowerCardBarCode
    */
   public Integer getBorrowerCardBarCode() {
-    return borrowerCardBarCode;
+    int borrower = getBorrower();
+    return borrower == AVAILABLE || borrower == WITHDRAWN ? null : borrower;
   }
 
 
+  /**
+   * Returns the raw borrower of this book: a card bar code, AVAILABLE (0) or WITHDRAWN (-1)
+   * 
+   * @return the borrowerCardBarCode field
+   */
+  int getBorrower() {
+    return borrowerCardBarCode;
+  }
+
   /**
    * Returns the ID of this Book object
    * 
@@ -73,18 +140,60 @@ public class Book {
    * available, this method does nothing.
    * 
    * @param borrowerCardBarCode the borrowerCardBarCode to set
+   * @return true if the book is borrowed, false if it was not available
+   */
+  public boolean borrowBook(int borrowerCardBarCode) {
+    return compareAndSetBorrower(AVAILABLE, borrowerCardBarCode);
+  }
+
+  /**
+   * Sets this book to be available if it is borrowed by a given subscriber
+   * 
+   * @param borrowerCardBarCode card bar code of the subscriber returning the book
+   * @return true if the book is returned, false if it was not borrowed by this subscriber
    */
-  public void borrowBook(Integer borrowerCardBarCode) {
-    if (isAvailable())
-      this.borrowerCardBarCode = borrowerCardBarCode;
+  public boolean returnBook(int borrowerCardBarCode) {
+    return compareAndSetBorrower(borrowerCardBarCode, AVAILABLE);
   }
 
   /**
-   * Sets this book to be available. When the borrowerCardBarCode is set to null, no one is
+   * Sets this book to be available. When the borrowerCardBarCode is set to AVAILABLE, no one is
    * borrowing it
    */
   public void returnBook() {
-    this.borrowerCardBarCode = null;
+    int borrower = getBorrower();
+    if (borrower != WITHDRAWN)
+      returnBook(borrower);
+  }
+
+  /**
+   * Marks this book as withdrawn from the library if it is available, so that it cannot be borrowed
+   * anymore
+   * 
+   * @return true if the book is withdrawn, false if it is borrowed or already withdrawn
+   */
+  public boolean withdraw() {
+    return compareAndSetBorrower(AVAILABLE, WITHDRAWN);
+  }
+
+  /**
+   * Changes the raw borrower of this book in a single atomic step if it has an expected value
+   * 
+   * @param expected expected raw borrower
+   * @param borrower new raw borrower
+   * @return true if the borrower is changed, false if it was not the expected one
+   */
+  boolean compareAndSetBorrower(int expected, int borrower) {
+    return BORROWER.compareAndSet(this, expected, borrower);
+  }
+
+  /**
+   * Checks if this book has been withdrawn from the library
+   * 
+   * @return true if this book is withdrawn, false otherwise
+   */
+  public boolean isWithdrawn() {
+    return getBorrower() == WITHDRAWN;
   }
 
   /**
@@ -93,6 +202,23 @@ public class Book {
    * @return true if no one is borrowing this book, false otherwise
    */
   public boolean isAvailable() {
-    return borrowerCardBarCode == null;
+    return getBorrower() == AVAILABLE;
+  }
+
+  /**
+   * Checks if an object is a book with the same identifier as this book. Book identifiers are
+   * unique, so two Book objects with the same identifier are views of the same book.
+   * 
+   * @param o object to compare to this book
+   * @return true if o is a book having the identifier of this book
+   */
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof Book && ((Book) o).ID == ID;
+  }
+
+  @Override
+  public int hashCode() {
+    return ID;
   }
 }
\ No newline at end of file
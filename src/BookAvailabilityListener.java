@@ -0,0 +1,19 @@
+/**
+ * This interface models an object that follows the availability of the books of a library: it is
+ * told about every book checked out or returned through the library.
+ *
+ * The notifications of changes made at the same time by several sessions may arrive in any order,
+ * so a listener must read the current availability of the book (book.isAvailable()) instead of
+ * guessing it from the change. A notification always arrives after the change it tells about, and
+the checkouts and the returns are each notified exactly once.
+ *
+ */
+public interface BookAvailabilityListener {
+  /**
+   * Called after a book was checked out or returned
+   *
+   * @param book       book whose availability changed
+   * @param checkedOut true if the book was checked out, false if it was returned
+   */
+  void availabilityChanged(Book book, boolean checkedOut);
+}
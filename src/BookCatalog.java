@@ -0,0 +1,401 @@
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This class models the catalog of the books of a library. It keeps the books in the order they
+ * were added and indexes them by their identifier so that a book can be found or removed in
+ * constant time without boxing its identifier.
+ *
+ * A catalog can be shared by several threads. Adding and removing books are serialized by a lock,
+ * while get() uses optimistic reads that do not block each other. Iterators are weakly consistent:
+ * they never throw ConcurrentModificationException and may or may not see the books added or
+ * removed while they are used. snapshot() returns a point-in-time view of the catalog that shares
+ * the array of the entries with the catalog until the next removal (copy-on-write).
+ *
+ */
+public class BookCatalog extends AbstractCollection<Book> {
+  // class/static fields
+  private static final int INITIAL_CAPACITY = 16; // initial number of entries of a new catalog
+  private static final long EMPTY = -1L; // marks an unused slot of the index table
+
+  // Instance fields
+  private final StampedLock lock = new StampedLock(); // guards the modifications of this catalog
+
+  private volatile Book[] entries; // books of this catalog in insertion order. A removed book
+                                   // leaves a hole (null) until the entries are compacted
+  private volatile int end; // number of used positions in entries, including the holes
+  private volatile int size; // number of books in this catalog
+
+  private Book[] shared; // entries array shared with a snapshot, copied before a book is removed
+                         // from it. Guarded by the write lock
+  private volatile long[] table; // open addressing index (linear probing). Each used slot holds
+                                 // (book identifier << 32 | position of the book in entries)
+
+  /**
+   * Creates a new empty catalog of books
+   */
+  public BookCatalog() {
+    entries = new Book[INITIAL_CAPACITY];
+    table = newTable(INITIAL_CAPACITY * 2);
+  }
+
+  /**
+   * Returns the book having a given identifier
+   *
+   * @param bookId identifier of the book to find
+   * @return reference to the book if found, null otherwise
+   */
+  public Book get(int bookId) {
+    long stamp = lock.tryOptimisticRead();
+    Book book = lookup(bookId);
+    if (!lock.validate(stamp)) { // a book was added or removed meanwhile, read again under lock
+      stamp = lock.readLock();
+      try {
+        book = lookup(bookId);
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+    return book;
+  }
+
+  /**
+   * Adds a book at the end of this catalog
+   *
+   * @param book book to add
+   * @return true if the book is added, false if a book with the same identifier is already in
+   *         this catalog
+   */
+  @Override
+  public boolean add(Book book) {
+    long stamp = lock.writeLock();
+    try {
+      return insert(book);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Adds a batch of books at the end of this catalog, taking the lock only once. The books added
+   * are moved to the front of the batch, in their order, so that the caller can index them only.
+   *
+   * @param batch books to add
+   * @param count number of books to add, from batch[0]
+   * @return the number of books added, from batch[0] (the books whose identifier is already in
+   *         this catalog are skipped)
+   */
+  public int addAll(Book[] batch, int count) {
+    long stamp = lock.writeLock();
+    try {
+      int added = 0;
+      for (int i = 0; i < count; i++)
+        if (insert(batch[i]))
+          batch[added++] = batch[i];
+      return added;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Removes a book given its identifier from this catalog. The order of the other books is
+   * preserved.
+   *
+   * @param bookId identifier of the book to remove
+   * @return a reference to the removed book, null if it is not in this catalog
+   */
+  public Book remove(int bookId) {
+    long stamp = lock.writeLock();
+    try {
+      long[] table = this.table;
+      int slot = findSlot(table, bookId);
+      if (slot < 0)
+        return null;
+      int position = (int) table[slot];
+      Book[] entries = this.entries;
+      if (entries == shared) // copy-on-write: the snapshots keep the array as it is
+        this.entries = entries = Arrays.copyOf(entries, entries.length);
+      Book book = entries[position];
+      entries[position] = null; // leave a hole instead of shifting the following books
+      deleteSlot(table, slot);
+      size--;
+      if (position == end - 1) { // removed the last book, drop the trailing holes
+        int newEnd = position;
+        while (newEnd > 0 && entries[newEnd - 1] == null)
+          newEnd--;
+        end = newEnd;
+      }
+      return book;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Checks if this catalog contains a book given its identifier
+   *
+   * @param bookId identifier of the book
+   * @return true if a book with this identifier is in this catalog, false otherwise
+   */
+  public boolean containsId(int bookId) {
+    return get(bookId) != null;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return o instanceof Book && get(((Book) o).getID()) == o;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public void clear() {
+    long stamp = lock.writeLock();
+    try {
+      entries = new Book[INITIAL_CAPACITY];
+      table = newTable(INITIAL_CAPACITY * 2);
+      end = 0;
+      size = 0;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Returns a weakly consistent iterator over the books of this catalog in the order they were
+   * added
+   */
+  @Override
+  public Iterator<Book> iterator() {
+    Book[] entries = this.entries; // compacting or growing the catalog never changes the order
+    return iterator(entries, 0, Math.min(this.end, entries.length)); // of the books of this array
+  }
+
+  /**
+   * Returns a weakly consistent iterator over the books added after a given book, in the order
+   * they were added: the cursor of a listing read page after page (see BookPage). If the book was
+   * removed meanwhile, the iterator starts at the first book whose identifier is greater, since
+   * the identifiers are given in the order the books are created.
+   *
+   * @param bookId identifier of the last book already read, BookPage.FIRST to start at the first
+   *               book of this catalog
+   * @return an iterator over the following books
+   */
+  public Iterator<Book> iteratorAfter(int bookId) {
+    Book[] entries;
+    int end;
+    int position = -1; // position of the book bookId
+    long stamp = lock.readLock(); // the index and the entries of the same instant
+    try {
+      entries = this.entries;
+      end = Math.min(this.end, entries.length);
+      int slot = bookId == BookPage.FIRST ? -1 : findSlot(table, bookId);
+      if (slot >= 0)
+        position = (int) table[slot];
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    int from = position + 1;
+    if (position < 0 && bookId != BookPage.FIRST) // removed: a scan, as rare as such a removal
+      while (from < end && (entries[from] == null || entries[from].getID() <= bookId))
+        from++;
+    return iterator(entries, from, end);
+  }
+
+  /**
+   * Returns a point-in-time view of this catalog: the books of the view are the books of this
+   * catalog when this method is called, in the same order, whatever books are added or removed
+   * afterwards. The view is built in constant time, without copying the books: the array of the
+   * entries is shared with the view, and the next removal copies it first. Books added afterwards
+   * are stored after the end of the view.
+   *
+   * @return an unmodifiable collection of the books of this catalog
+   */
+  public Collection<Book> snapshot() {
+    long stamp = lock.writeLock();
+    try {
+      final Book[] entries = this.entries;
+      final int end = this.end;
+      final int size = this.size;
+      shared = entries;
+      return new AbstractCollection<Book>() {
+        @Override
+        public Iterator<Book> iterator() {
+          return BookCatalog.iterator(entries, 0, end);
+        }
+
+        @Override
+        public int size() {
+          return size;
+        }
+      };
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Returns an iterator over the books of entries[from, end), skipping the holes
+   */
+  private static Iterator<Book> iterator(final Book[] entries, final int from, final int end) {
+    return new Iterator<Book>() {
+      private int cursor = from - 1; // position of the last returned book
+      private Book next = advance(); // next book to return
+
+      private Book advance() {
+        for (cursor++; cursor < end; cursor++) {
+          Book book = entries[cursor];
+          if (book != null)
+            return book;
+        }
+        return null;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public Book next() {
+        if (next == null)
+          throw new NoSuchElementException();
+        Book book = next;
+        next = advance();
+        return book;
+      }
+    };
+  }
+
+  /**
+   * Looks up a book without locking. The result is only meaningful if no modification happened
+   * meanwhile, but the lookup never fails nor loops forever.
+   */
+  private Book lookup(int bookId) {
+    long[] table = this.table;
+    Book[] entries = this.entries;
+    int slot = findSlot(table, bookId);
+    if (slot < 0)
+      return null;
+    int position = (int) table[slot];
+    return position >= 0 && position < entries.length ? entries[position] : null;
+  }
+
+  /**
+   * Adds a book to this catalog. The caller holds the write lock.
+   */
+  private boolean insert(Book book) {
+    if (findSlot(table, book.getID()) >= 0) // book already in this catalog
+      return false;
+    if (end == entries.length) // no more room at the end of entries
+      if (size < end / 2)
+        compact(); // more than half of the entries are holes
+      else
+        entries = Arrays.copyOf(entries, entries.length * 2);
+    if ((size + 1) * 2 > table.length) // keep the load factor of the index under 1/2
+      table = index(entries, end, table.length * 2);
+    entries[end] = book;
+    insertKey(table, book.getID(), end);
+    end++;
+    size++;
+    return true;
+  }
+
+  /**
+   * Returns the index table slot of a given book identifier
+   *
+   * @param bookId book identifier to look for
+   * @return the slot of bookId in table, or -1 if bookId is not indexed
+   */
+  private static int findSlot(long[] table, int bookId) {
+    int mask = table.length - 1;
+    int slot = mix(bookId) & mask;
+    for (int probes = 0; probes < table.length; probes++, slot = (slot + 1) & mask) {
+      long entry = table[slot];
+      if (entry == EMPTY)
+        return -1;
+      if ((int) (entry >>> 32) == bookId)
+        return slot;
+    }
+    return -1;
+  }
+
+  /**
+   * Indexes a book identifier that is not yet in the index table
+   */
+  private static void insertKey(long[] table, int bookId, int position) {
+    int mask = table.length - 1;
+    int slot = mix(bookId) & mask;
+    while (table[slot] != EMPTY)
+      slot = (slot + 1) & mask;
+    table[slot] = (long) bookId << 32 | position;
+  }
+
+  /**
+   * Frees a slot of the index table. The following keys of the same probe sequence are shifted
+   * back so that lookups never need tombstones.
+   */
+  private static void deleteSlot(long[] table, int slot) {
+    int mask = table.length - 1;
+    int hole = slot;
+    for (int next = (hole + 1) & mask; table[next] != EMPTY; next = (next + 1) & mask) {
+      int home = mix((int) (table[next] >>> 32)) & mask;
+      // move table[next] into the hole if its home slot is not between the hole and next
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        table[hole] = table[next];
+        hole = next;
+      }
+    }
+    table[hole] = EMPTY;
+  }
+
+  /**
+   * Builds a new index table of the books of entries[0, end)
+   */
+  private static long[] index(Book[] entries, int end, int capacity) {
+    long[] table = newTable(capacity);
+    for (int i = 0; i < end; i++)
+      if (entries[i] != null)
+        insertKey(table, entries[i].getID(), i);
+    return table;
+  }
+
+  /**
+   * Removes the holes left by the removed books. The books are copied into a new array so that
+   * the iterators over the current array are not disturbed.
+   */
+  private void compact() {
+    Book[] compacted = new Book[entries.length];
+    int to = 0;
+    for (int from = 0; from < end; from++)
+      if (entries[from] != null)
+        compacted[to++] = entries[from];
+    long[] newTable = index(compacted, to, table.length);
+    entries = compacted;
+    table = newTable;
+    end = to;
+  }
+
+  private static long[] newTable(int capacity) {
+    long[] table = new long[capacity];
+    Arrays.fill(table, EMPTY);
+    return table;
+  }
+
+  /**
+   * Scrambles the bits of a book identifier. Identifiers are sequential, so this spreads them
+   * over the index table.
+   */
+  private static int mix(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,75 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * This class models a page of the books of a listing or of a search: at most a given number of
+ * books, and a continuation token to get the next page. The token is the identifier of the last
+ * book of the page, so the next page starts right after this book even if books were added or
+ * removed meanwhile, and a page never holds more books than its limit, however many books the
+ * listing has.
+ *
+ */
+public class BookPage {
+  // class/static fields
+  public static final int FIRST = -1; // token of the first page: before any book identifier
+  public static final int NONE = -1; // token of a last page: there is no next page
+
+  // Instance fields
+  private final ArrayList<Book> books; // books of this page, in the order of the listing
+  private final int next; // identifier of the last book of this page, NONE if it is the last page
+
+  /**
+   * Creates a new page
+   *
+   * @param books books of the page
+   * @param next  continuation token of the next page, NONE if this is the last page
+   */
+  public BookPage(ArrayList<Book> books, int next) {
+    this.books = books;
+    this.next = next;
+  }
+
+  /**
+   * Takes the books of a page from a cursor over a listing. At most limit + 1 books are read: the
+   * last one only tells that the listing goes on.
+   *
+   * @param cursor iterator positioned at the first book of the page
+   * @param limit  number of books of the page at most
+   * @return the page
+   */
+  public static BookPage read(Iterator<Book> cursor, int limit) {
+    ArrayList<Book> books = new ArrayList<Book>(Math.min(limit, 1024));
+    while (books.size() < limit && cursor.hasNext())
+      books.add(cursor.next());
+    boolean more = !books.isEmpty() && cursor.hasNext();
+    return new BookPage(books, more ? books.get(books.size() - 1).getID() : NONE);
+  }
+
+  /**
+   * Returns the books of this page
+   *
+   * @return the books, in the order of the listing (possibly none)
+   */
+  public ArrayList<Book> getBooks() {
+    return books;
+  }
+
+  /**
+   * Checks if the listing has books after this page
+   *
+   * @return true if there is a next page
+   */
+  public boolean hasNext() {
+    return next != NONE;
+  }
+
+  /**
+   * Returns the continuation token of the next page
+   *
+   * @return the identifier of the last book of this page, to give to the listing to get the next
+   *         page, NONE if this is the last page
+   */
+  public int getNext() {
+    return next;
+  }
+}
@@ -0,0 +1,274 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class loads a large file of books (title:author lines) into a library. The file is mapped
+ * in memory one window at a time, the lines of a window are parsed in parallel without regular
+ * expressions, and the parsed books are added to the library in batches, in file order, without
+ * displaying a message per book.
+ *
+ */
+public class BulkBookLoader {
+  // class/static fields
+  private static final int WINDOW_SIZE = 64 << 20; // number of bytes mapped at a time
+  private static final int MIN_CHUNK_SIZE = 1 << 20; // a window is not split below this size
+
+  // Instance fields
+  private final ExceptionalLibrary library; // library the books are added to
+  private final int parallelism; // number of chunks parsed in parallel
+  private final int windowSize; // number of bytes mapped at a time
+
+  private long loaded; // number of books added to the library
+  private long skipped; // number of empty lines and ":" lines
+  private long malformed; // number of lines with no ':' or with an empty title or author
+  private long elapsedNanos; // duration of the last load
+
+  /**
+   * Creates a new loader of books for a given library
+   *
+   * @param library library the books are added to
+   */
+  public BulkBookLoader(ExceptionalLibrary library) {
+    this(library, Runtime.getRuntime().availableProcessors(), WINDOW_SIZE);
+  }
+
+  /**
+   * Creates a new loader of books for a given library
+   *
+   * @param library     library the books are added to
+   * @param parallelism number of chunks parsed in parallel
+   * @param windowSize  number of bytes mapped in memory at a time
+   */
+  public BulkBookLoader(ExceptionalLibrary library, int parallelism, int windowSize) {
+    this.library = library;
+    this.parallelism = Math.max(1, parallelism);
+    this.windowSize = windowSize;
+  }
+
+  /**
+   * Loads all the books of a file into the library
+   *
+   * @param file path of the file to load
+   * @throws IOException if the file cannot be read
+   */
+  public void load(Path file) throws IOException {
+    long start = System.nanoTime();
+    loaded = skipped = malformed = 0;
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long fileSize = channel.size();
+      long position = 0;
+      int size = windowSize;
+      while (position < fileSize) {
+        long length = Math.min(size, fileSize - position);
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        int end = (int) length;
+        if (position + length < fileSize) { // the last line of the window may be cut
+          end = lastLineEnd(window, end);
+          if (end == 0) { // a line longer than the window
+            size *= 2;
+            continue;
+          }
+        }
+        addChunks(parseWindow(executor, window, end));
+        position += end;
+        size = windowSize;
+      }
+    } finally {
+      executor.shutdown();
+      elapsedNanos = System.nanoTime() - start;
+    }
+  }
+
+  /**
+   * Returns a one line summary of the last load
+   *
+   * @return the summary of the last load
+   */
+  public String getSummary() {
+    double seconds = elapsedNanos / 1e9;
+    return String.format("Loaded %d books (skipped %d, malformed %d) in %.3f s (%.0f books/s).",
+        loaded, skipped, malformed, seconds, seconds > 0 ? loaded / seconds : 0.0);
+  }
+
+  /**
+   * Returns the number of books added by the last load
+   */
+  public long getLoaded() {
+    return loaded;
+  }
+
+  /**
+   * Returns the number of empty lines skipped by the last load
+   */
+  public long getSkipped() {
+    return skipped;
+  }
+
+  /**
+   * Returns the number of malformed lines of the last load
+   */
+  public long getMalformed() {
+    return malformed;
+  }
+
+  /**
+   * Splits a window into chunks of whole lines and parses them in parallel
+   *
+   * @return the parsed chunks in window order
+   */
+  private List<Future<Chunk>> parseWindow(ExecutorService executor, final MappedByteBuffer window,
+      int end) {
+    int chunkCount = Math.max(1, Math.min(parallelism, end / MIN_CHUNK_SIZE));
+    List<Future<Chunk>> chunks = new ArrayList<Future<Chunk>>(chunkCount);
+    int from = 0;
+    for (int i = 1; i <= chunkCount && from < end; i++) {
+      int to = i == chunkCount ? end : lastLineEnd(window, (int) ((long) end * i / chunkCount));
+      if (to <= from)
+        continue;
+      final int chunkFrom = from;
+      final int chunkTo = to;
+      chunks.add(executor.submit(new Callable<Chunk>() {
+        @Override
+        public Chunk call() {
+          return parseChunk(window, chunkFrom, chunkTo);
+        }
+      }));
+      from = to;
+    }
+    return chunks;
+  }
+
+  /**
+   * Adds the books of parsed chunks to the library
+   */
+  private void addChunks(List<Future<Chunk>> chunks) throws IOException {
+    for (Future<Chunk> future : chunks) {
+      Chunk chunk;
+      try {
+        chunk = future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Load interrupted", e);
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      }
+      library.addBooks(chunk.titles, chunk.authors, chunk.count);
+      loaded += chunk.count;
+      skipped += chunk.skipped;
+      malformed += chunk.malformed;
+    }
+  }
+
+  /**
+   * Parses the lines of window[from, to)
+   */
+  private static Chunk parseChunk(MappedByteBuffer window, int from, int to) {
+    Chunk chunk = new Chunk(Math.max(16, (to - from) / 16));
+    byte[] line = new byte[256]; // scratch copy of the current line
+    int position = from;
+    while (position < to) {
+      int lineEnd = position;
+      while (lineEnd < to && window.get(lineEnd) != '\n')
+        lineEnd++;
+      int length = lineEnd - position;
+      if (length > line.length)
+        line = new byte[Math.max(length, line.length * 2)];
+      for (int i = 0; i < length; i++)
+        line[i] = window.get(position + i);
+      parseLine(line, length, chunk);
+      position = lineEnd + 1;
+    }
+    return chunk;
+  }
+
+  /**
+   * Parses a title:author line and adds the book to a chunk
+   */
+  private static void parseLine(byte[] line, int length, Chunk chunk) {
+    int start = skipBlanks(line, 0, length);
+    int end = trimBlanks(line, start, length);
+    if (start == end || (end - start == 1 && line[start] == ':')) { // empty line or ":"
+      chunk.skipped++;
+      return;
+    }
+    int colon = start;
+    while (colon < end && line[colon] != ':')
+      colon++;
+    if (colon == end) { // no separator
+      chunk.malformed++;
+      return;
+    }
+    int authorEnd = colon + 1; // the author ends at the next ':' if any
+    while (authorEnd < end && line[authorEnd] != ':')
+      authorEnd++;
+    int titleEnd = trimBlanks(line, start, colon);
+    int authorStart = skipBlanks(line, colon + 1, authorEnd);
+    authorEnd = trimBlanks(line, authorStart, authorEnd);
+    if (titleEnd == start || authorEnd == authorStart) { // empty title or author
+      chunk.malformed++;
+      return;
+    }
+    chunk.add(new String(line, start, titleEnd - start, StandardCharsets.UTF_8),
+        new String(line, authorStart, authorEnd - authorStart, StandardCharsets.UTF_8));
+  }
+
+  private static int skipBlanks(byte[] line, int from, int to) {
+    while (from < to && (line[from] & 0xff) <= ' ')
+      from++;
+    return from;
+  }
+
+  private static int trimBlanks(byte[] line, int from, int to) {
+    while (to > from && (line[to - 1] & 0xff) <= ' ')
+      to--;
+    return to;
+  }
+
+  /**
+   * Returns the position following the last '\n' of window[0, end), or 0 if there is none
+   */
+  private static int lastLineEnd(MappedByteBuffer window, int end) {
+    while (end > 0 && window.get(end - 1) != '\n')
+      end--;
+    return end;
+  }
+
+  /**
+   * The books parsed from a chunk of a window
+   */
+  private static class Chunk {
+    private String[] titles;
+    private String[] authors;
+    private int count;
+    private int skipped;
+    private int malformed;
+
+    private Chunk(int capacity) {
+      titles = new String[capacity];
+      authors = new String[capacity];
+    }
+
+    private void add(String title, String author) {
+      if (count == titles.length) {
+        titles = Arrays.copyOf(titles, count * 2);
+        authors = Arrays.copyOf(authors, count * 2);
+      }
+      titles[count] = title;
+      authors[count] = author;
+      count++;
+    }
+  }
+}
@@ -0,0 +1,397 @@
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This class models a catalog that stores its books in columns instead of Book objects, so that
+ * tens of millions of books fit in a reasonable heap. Each book takes one position in four int
+ * columns: its identifier, the dictionary codes of its title and of its author, and its raw
+ * borrower (Book.AVAILABLE, a card bar code or Book.WITHDRAWN). A title or an author shared by
+ * many books is stored once in the dictionary, whatever the number of copies.
+ *
+ * The columns are split in chunks of CHUNK_SIZE positions that never move once allocated, so the
+ * borrower column can be updated with compare-and-set while books are added. The position of a
+ * book is found from its identifier with a direct map, also made of chunks allocated on demand.
+ * A book costs about 20 bytes of heap, against about 60 bytes for a Book object in a BookCatalog
+ * (and its own title and author Strings when the books are loaded from a file).
+ *
+ * get() and the iterators return Book views: small Book objects created on demand that read the
+ * title and the author from the columns and check out, return or withdraw the book with
+ * compare-and-set on the borrower column. Two views of the same book are equal, so they can be
+ * used in the lists of the subscribers. The books given to add() are copied into the columns:
+ * changing their borrower afterwards does not change the catalog.
+ *
+ * The catalog has the same thread-safety and the same iteration and snapshot guarantees as a
+ * BookCatalog. A removed book keeps its columns, so its views stay readable in the histories of
+ * the subscribers; only the bitmap of the removed positions changes, and it is copied on write
+ * when it is shared with a snapshot.
+ *
+ */
+public class ColumnarBookCatalog extends BookCatalog {
+  // class/static fields
+  private static final int CHUNK_BITS = 16;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS; // positions of a chunk of the columns
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  /**
+   * Columns of CHUNK_SIZE consecutive positions of the catalog
+   */
+  private static class Chunk {
+    final int[] ids = new int[CHUNK_SIZE]; // book identifiers
+    final int[] titles = new int[CHUNK_SIZE]; // dictionary codes of the titles, -1 for null
+    final int[] authors = new int[CHUNK_SIZE]; // dictionary codes of the authors, -1 for null
+    final AtomicIntegerArray borrowers = new AtomicIntegerArray(CHUNK_SIZE); // raw borrowers
+  }
+
+  // Instance fields
+  private final StampedLock lock = new StampedLock(); // guards the modifications of this catalog
+
+  private volatile Chunk[] chunks; // columns of the positions [0, end), chunk by chunk
+  private volatile int end; // number of used positions, including the removed books
+  private volatile int size; // number of books in this catalog
+  private volatile long[] removed; // bitmap of the removed positions
+  private long[] shared; // removed bitmap shared with a snapshot, copied before a book is removed.
+                         // Guarded by the write lock
+  private final int[][] positions; // positions[id >>> CHUNK_BITS][id & CHUNK_MASK] is the position
+                                   // of the book id plus one, 0 if it is not in this catalog
+
+  private final HashMap<String, Integer> codes; // dictionary: String -> code. Guarded by the lock
+  private volatile String[] strings; // dictionary: code -> String
+
+  /**
+   * Creates a new empty columnar catalog
+   */
+  public ColumnarBookCatalog() {
+    chunks = new Chunk[0];
+    removed = new long[0];
+    positions = new int[1 << (31 - CHUNK_BITS)][];
+    codes = new HashMap<String, Integer>();
+    strings = new String[64];
+  }
+
+  /**
+   * Returns a view of the book having a given identifier
+   *
+   * @param bookId identifier of the book to find
+   * @return a view of the book if found, null otherwise
+   */
+  @Override
+  public Book get(int bookId) {
+    long stamp = lock.tryOptimisticRead();
+    int position = lookup(bookId);
+    if (!lock.validate(stamp)) { // a book was added or removed meanwhile, read again under lock
+      stamp = lock.readLock();
+      try {
+        position = lookup(bookId);
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+    return position < 0 ? null : new View(chunks[position >>> CHUNK_BITS], position, bookId);
+  }
+
+  /**
+   * Copies a book at the end of this catalog
+   *
+   * @param book book to add
+   * @return true if the book is added, false if a book with the same identifier is already in
+   *         this catalog
+   */
+  @Override
+  public boolean add(Book book) {
+    long stamp = lock.writeLock();
+    try {
+      return insert(book);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Copies a batch of books at the end of this catalog, taking the lock only once. The books added
+   * are moved to the front of the batch, in their order, so that the caller can index them only.
+   *
+   * @param batch books to add
+   * @param count number of books to add, from batch[0]
+   * @return the number of books added, from batch[0] (the books whose identifier is already in
+   *         this catalog are skipped)
+   */
+  @Override
+  public int addAll(Book[] batch, int count) {
+    long stamp = lock.writeLock();
+    try {
+      int added = 0;
+      for (int i = 0; i < count; i++)
+        if (insert(batch[i]))
+          batch[added++] = batch[i];
+      return added;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Removes a book given its identifier from this catalog. The order of the other books is
+   * preserved.
+   *
+   * @param bookId identifier of the book to remove
+   * @return a view of the removed book, null if it is not in this catalog
+   */
+  @Override
+  public Book remove(int bookId) {
+    long stamp = lock.writeLock();
+    try {
+      int position = lookup(bookId);
+      if (position < 0)
+        return null;
+      long[] removed = this.removed;
+      if (removed == shared) // copy-on-write: the snapshots keep the bitmap as it is
+        removed = Arrays.copyOf(removed, removed.length);
+      removed[position >>> 6] |= 1L << position;
+      this.removed = removed;
+      positions[bookId >>> CHUNK_BITS][bookId & CHUNK_MASK] = 0;
+      size--;
+      return new View(chunks[position >>> CHUNK_BITS], position, bookId);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return o instanceof Book && get(((Book) o).getID()) != null;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public void clear() {
+    long stamp = lock.writeLock();
+    try {
+      Arrays.fill(positions, null);
+      chunks = new Chunk[0];
+      removed = new long[0];
+      end = 0;
+      size = 0;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Returns a weakly consistent iterator over the views of the books of this catalog in the order
+   * they were added
+   */
+  @Override
+  public Iterator<Book> iterator() {
+    int end = this.end; // read before the bitmap, which is grown before end moves forward
+    return iterator(chunks, 0, end, removed);
+  }
+
+  /**
+   * Returns a weakly consistent iterator over the views of the books added after a given book, in
+   * the order they were added. If the book was removed meanwhile, the iterator starts at the first
+   * book whose identifier is greater.
+   *
+   * @param bookId identifier of the last book already read, BookPage.FIRST to start at the first
+   *               book of this catalog
+   * @return an iterator over the following books
+   */
+  @Override
+  public Iterator<Book> iteratorAfter(int bookId) {
+    Chunk[] chunks;
+    int end;
+    long[] removed;
+    int position;
+    long stamp = lock.readLock();
+    try {
+      chunks = this.chunks;
+      end = this.end;
+      removed = this.removed;
+      position = bookId == BookPage.FIRST ? -1 : lookup(bookId);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    int from = position + 1;
+    if (position < 0 && bookId != BookPage.FIRST) // removed: its columns are still there
+      while (from < end && chunks[from >>> CHUNK_BITS].ids[from & CHUNK_MASK] <= bookId)
+        from++;
+    return iterator(chunks, from, end, removed);
+  }
+
+  /**
+   * Returns a point-in-time view of this catalog: the books of the view are the books of this
+   * catalog when this method is called, in the same order, whatever books are added or removed
+   * afterwards. The view is built in constant time: the bitmap of the removed books is shared with
+   * the view, and the next removal copies it first.
+   *
+   * @return an unmodifiable collection of the views of the books of this catalog
+   */
+  @Override
+  public Collection<Book> snapshot() {
+    long stamp = lock.writeLock();
+    try {
+      final Chunk[] chunks = this.chunks;
+      final int end = this.end;
+      final int size = this.size;
+      final long[] removed = this.removed;
+      shared = removed;
+      return new AbstractCollection<Book>() {
+        @Override
+        public Iterator<Book> iterator() {
+          return ColumnarBookCatalog.this.iterator(chunks, 0, end, removed);
+        }
+
+        @Override
+        public int size() {
+          return size;
+        }
+      };
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Returns an iterator over the views of the books of the positions [from, end), skipping the
+   * removed ones
+   */
+  private Iterator<Book> iterator(final Chunk[] chunks, final int from, final int end,
+      final long[] removed) {
+    return new Iterator<Book>() {
+      private int next = advance(from); // position of the next book to return
+
+      private int advance(int position) {
+        while (position < end && (removed[position >>> 6] & 1L << position) != 0)
+          position++;
+        return position;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next < end;
+      }
+
+      @Override
+      public Book next() {
+        if (next >= end)
+          throw new NoSuchElementException();
+        Chunk chunk = chunks[next >>> CHUNK_BITS];
+        Book book = new View(chunk, next, chunk.ids[next & CHUNK_MASK]);
+        next = advance(next + 1);
+        return book;
+      }
+    };
+  }
+
+  /**
+   * Returns the position of a book without locking, or -1 if it is not in this catalog. The result
+   * is only meaningful if no modification happened meanwhile, but the lookup never fails.
+   */
+  private int lookup(int bookId) {
+    if (bookId < 0)
+      return -1;
+    int[] chunk = positions[bookId >>> CHUNK_BITS];
+    int position = chunk == null ? -1 : chunk[bookId & CHUNK_MASK] - 1;
+    return position < end ? position : -1;
+  }
+
+  /**
+   * Copies a book into the columns. The caller holds the write lock.
+   */
+  private boolean insert(Book book) {
+    int id = book.getID();
+    if (id < 0 || lookup(id) >= 0) // book already in this catalog
+      return false;
+    int position = end;
+    if (position == Integer.MAX_VALUE)
+      throw new IllegalStateException("the catalog is full");
+    Chunk[] chunks = this.chunks;
+    if (position >>> CHUNK_BITS == chunks.length) { // first position of a new chunk
+      chunks = Arrays.copyOf(chunks, chunks.length + 1);
+      chunks[chunks.length - 1] = new Chunk();
+      this.chunks = chunks;
+    }
+    if (position >>> 6 == removed.length) // grow the bitmap before end covers the position
+      removed = Arrays.copyOf(removed, Math.max(CHUNK_SIZE / 64, removed.length * 2));
+    Chunk chunk = chunks[position >>> CHUNK_BITS];
+    int index = position & CHUNK_MASK;
+    chunk.ids[index] = id;
+    chunk.titles[index] = encode(book.getTitle());
+    chunk.authors[index] = encode(book.getAuthor());
+    chunk.borrowers.set(index, book.getBorrower());
+    int[] map = positions[id >>> CHUNK_BITS];
+    if (map == null)
+      map = positions[id >>> CHUNK_BITS] = new int[CHUNK_SIZE];
+    map[id & CHUNK_MASK] = position + 1;
+    end = position + 1;
+    size++;
+    return true;
+  }
+
+  /**
+   * Returns the dictionary code of a String, adding the String to the dictionary if needed. The
+   * caller holds the write lock.
+   */
+  private int encode(String s) {
+    if (s == null)
+      return -1;
+    Integer code = codes.get(s);
+    if (code == null) {
+      code = codes.size();
+      String[] strings = this.strings;
+      if (code == strings.length)
+        strings = Arrays.copyOf(strings, code * 2);
+      strings[code] = s;
+      this.strings = strings; // published before the code is stored in a column
+      codes.put(s, code);
+    }
+    return code;
+  }
+
+  private String decode(int code) {
+    return code < 0 ? null : strings[code];
+  }
+
+  /**
+   * A book stored in the columns of this catalog
+   */
+  private class View extends Book {
+    private final Chunk chunk; // columns of the book
+    private final int index; // position of the book in its chunk
+
+    View(Chunk chunk, int position, int id) {
+      super(id);
+      this.chunk = chunk;
+      this.index = position & CHUNK_MASK;
+    }
+
+    @Override
+    public String getTitle() {
+      return decode(chunk.titles[index]);
+    }
+
+    @Override
+    public String getAuthor() {
+      return decode(chunk.authors[index]);
+    }
+
+    @Override
+    int getBorrower() {
+      return chunk.borrowers.get(index);
+    }
+
+    @Override
+    boolean compareAndSetBorrower(int expected, int borrower) {
+      return chunk.borrowers.compareAndSet(index, expected, borrower);
+    }
+  }
+}
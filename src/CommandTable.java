@@ -0,0 +1,162 @@
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Scanner;
+
+/**
+ * This class models the commands of one menu of the library (main menu, librarian's space or
+ * subscriber's space): it maps the first argument of a command line (the opcode) to the code that
+ * parses and runs the command. Opcodes are case insensitive. The one character opcodes of the menus
+ * are found with a direct array access, without hashing nor allocating anything.
+ *
+ * The tables are built once and shared by all the sessions.
+ *
+ */
+public class CommandTable {
+  /**
+   * The code that parses and runs a command
+   */
+  public interface Command {
+    /**
+     * Parses and runs a command line
+     *
+     * @param library    library the command is run on
+     * @param commands   arguments of the command line, commands[0] being the opcode
+     * @param scanner    Scanner reading the command lines of the session
+     * @param subscriber subscriber logged in, null outside the subscriber's space
+     * @throws ParseException         if the command line includes a syntax error or an invalid
+     *                                argument
+     * @throws InstantiationException if the command cannot create a new subscriber
+     */
+    void run(ExceptionalLibrary library, String[] commands, Scanner scanner, Subscriber subscriber)
+        throws ParseException, InstantiationException;
+  }
+
+  // Instance fields
+  private final String name; // name of the menu, used to name the metrics of its commands
+  private final String exitOpcode; // opcode that leaves the menu (without arguments)
+  private final Runnable menu; // displays the menu
+  private final boolean explainErrorOffset; // true to tell which argument caused a ParseException
+  private final Command[] singleCharCommands; // commands of the one character ASCII opcodes
+  private final HashMap<String, Command> commands; // commands of the longer opcodes (upper case)
+
+  /**
+   * Creates a new table of commands without any command
+   *
+   * @param name               name of the menu (main, librarian or subscriber)
+   * @param exitOpcode         opcode that leaves the menu when it is given without arguments
+   * @param menu               displays the menu before each command line is read
+   * @param explainErrorOffset true if the error message of a ParseException must tell which
+   *                           argument is invalid
+   */
+  public CommandTable(String name, String exitOpcode, Runnable menu, boolean explainErrorOffset) {
+    this.name = name;
+    this.exitOpcode = exitOpcode;
+    this.menu = menu;
+    this.explainErrorOffset = explainErrorOffset;
+    singleCharCommands = new Command[128];
+    commands = new HashMap<String, Command>();
+  }
+
+  /**
+   * Registers the command of an opcode
+   *
+   * @param opcode  opcode of the command, case insensitive
+   * @param command code that parses and runs the command
+   * @return this table
+   */
+  public CommandTable register(String opcode, Command command) {
+    String key = opcode.toUpperCase(Locale.ROOT);
+    if (key.length() == 1 && key.charAt(0) < 128)
+      singleCharCommands[key.charAt(0)] = command;
+    else
+      commands.put(key, command);
+    return this;
+  }
+
+  /**
+   * Returns the command of an opcode
+   *
+   * @param opcode first argument of a command line
+   * @return the command, null if the opcode is unknown
+   */
+  public Command lookup(String opcode) {
+    if (opcode.length() == 1) {
+      char c = opcode.charAt(0);
+      if (c >= 'a' && c <= 'z')
+        c -= 'a' - 'A';
+      return c < 128 ? singleCharCommands[c] : null;
+    }
+    return commands.isEmpty() ? null : commands.get(opcode.toUpperCase(Locale.ROOT));
+  }
+
+  /**
+   * Runs a command of this table and records its latency and its outcome in the metrics of the
+   * library. The command fails if it throws an exception. The loans that became overdue since the
+   * last command are notified first.
+   *
+   * @param command    command found by lookup()
+   * @param library    library the command is run on
+   * @param commands   arguments of the command line, commands[0] being the opcode
+   * @param scanner    Scanner reading the command lines of the session
+   * @param subscriber subscriber logged in, null outside the subscriber's space
+   * @throws ParseException         if the command line includes a syntax error or an invalid
+   *                                argument
+   * @throws InstantiationException if the command cannot create a new subscriber
+   */
+  public void run(Command command, ExceptionalLibrary library, String[] commands, Scanner scanner,
+      Subscriber subscriber) throws ParseException, InstantiationException {
+    library.checkOverdueLoans(); // a read of the clock unless loans are due
+    LibraryMetrics.Metric metric = library.getMetrics().forCommand(this, command, commands[0]);
+    long start = System.nanoTime();
+    boolean success = false;
+    try {
+      command.run(library, commands, scanner, subscriber);
+      success = true;
+    } finally {
+      metric.record(start, success);
+    }
+  }
+
+  /**
+   * Returns the name of the menu of this table
+   *
+   * @return the name given to the constructor
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Checks if a command line leaves the menu
+   *
+   * @param commands arguments of the command line
+   * @return true if the command line is the exit opcode alone
+   */
+  public boolean isExit(String[] commands) {
+    return commands.length == 1 && commands[0].equalsIgnoreCase(exitOpcode);
+  }
+
+  /**
+   * Displays the menu of this table
+   */
+  public void displayMenu() {
+    menu.run();
+  }
+
+  /**
+   * Returns the message displayed when a command line throws a ParseException
+   *
+   * @param e exception thrown by a command
+   * @return the message of the exception, followed by the invalid argument if this table explains
+   *         them
+   */
+  public String getErrorMessage(ParseException e) {
+    if (!explainErrorOffset)
+      return e.getMessage();
+    if (e.getErrorOffset() == 0)
+      return e.getMessage() + " Arguments count is incorrect.";
+    return e.getMessage() + " Argument number " + e.getErrorOffset()
+        + " within your command line is invalid.";
+  }
+}
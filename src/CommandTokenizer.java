@@ -0,0 +1,83 @@
+import java.util.Arrays;
+
+/**
+ * This class splits command lines into arguments. Arguments are separated by spaces or tabs, and
+ * an argument containing spaces is written between double quotes: 1 "The Old Man and the Sea"
+ * "Ernest Hemingway". Within double quotes, \" stands for a double quote and \\ for a backslash.
+ *
+ * A tokenizer is meant to be reused for all the lines of a session: it reuses its buffers and the
+ * arrays it returns, so splitting a line only allocates the argument Strings. It is not
+ * thread-safe.
+ *
+ */
+public class CommandTokenizer {
+  // class/static fields
+  private static final String[] EMPTY_LINE = {""}; // arguments of a blank line
+
+  // Instance fields
+  private String[] tokens = new String[8]; // arguments of the last line
+  private String[][] results = new String[9][]; // results[n] is the reused array of n arguments
+  private final StringBuilder quoted = new StringBuilder(); // argument with escapes being read
+
+  /**
+   * Splits a command line into arguments
+   *
+   * @param line command line
+   * @return the arguments of the line, or an array holding an empty String if the line is blank.
+   *         The array is reused by the next call to this method.
+   */
+  public String[] tokenize(String line) {
+    int count = 0;
+    int length = line.length();
+    int i = 0;
+    while (true) {
+      while (i < length && isSeparator(line.charAt(i))) // skip the separators
+        i++;
+      if (i == length)
+        break;
+      String token;
+      if (line.charAt(i) == '"') { // quoted argument
+        int start = ++i;
+        while (i < length && line.charAt(i) != '"' && line.charAt(i) != '\\')
+          i++;
+        if (i < length && line.charAt(i) == '\\') { // slow path: escapes
+          quoted.setLength(0);
+          quoted.append(line, start, i);
+          for (; i < length && line.charAt(i) != '"'; i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < length)
+              c = line.charAt(++i);
+            quoted.append(c);
+          }
+          token = quoted.toString();
+        } else {
+          token = line.substring(start, i);
+        }
+        if (i < length) // skip the closing quote (a missing one closes the argument at the end
+          i++; // of the line)
+      } else {
+        int start = i;
+        while (i < length && !isSeparator(line.charAt(i)))
+          i++;
+        token = start == 0 && i == length ? line : line.substring(start, i);
+      }
+      if (count == tokens.length)
+        tokens = Arrays.copyOf(tokens, count * 2);
+      tokens[count++] = token;
+    }
+    if (count == 0)
+      return EMPTY_LINE;
+    if (count >= results.length)
+      results = Arrays.copyOf(results, count + 1);
+    String[] result = results[count];
+    if (result == null)
+      result = results[count] = new String[count];
+    System.arraycopy(tokens, 0, result, 0, count);
+    Arrays.fill(tokens, 0, count, null);
+    return result;
+  }
+
+  private static boolean isSeparator(char c) {
+    return c == ' ' || c == '\t';
+  }
+}
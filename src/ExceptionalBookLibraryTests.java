@@ -1,4 +1,32 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A class that tests methods in ExceptionLibrary
@@ -104,6 +132,43 @@ public class ExceptionalBookLibraryTests {
     return works;
   }
 
+  /**
+   * Tests that the BulkBookLoader loads the books of a file in file order with a window smaller
+   * than some lines, and counts the empty, ":" and malformed lines
+   * 
+   * @return boolean true if the books and counts match the file, false otherwise
+   */
+  public static boolean testBulkBookLoader() {
+    Path file = null;
+    try {
+      file = Files.createTempFile("books", ".txt");
+      String longTitle = "A Title Much Longer Than The Sixty Four Bytes Of The Loader Window";
+      String text = "Emma:Jane Austen\n" // 17 bytes
+          + "\n" + ":\n" + "  :  \r\n" + "\r\n" // skipped
+          + "No separator\n" + ":Anonymous\n" // malformed
+          + "Dune:Frank Herbert\r\n" // CRLF
+          + longTitle + ":Some Author\n" // longer than the window
+          + "Persuasion : Jane Austen"; // no end of line
+      Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+      ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+      BulkBookLoader loader = new BulkBookLoader(library2, 2, 64);
+      loader.load(file);
+      if (loader.getLoaded() != 4 || loader.getSkipped() != 4 || loader.getMalformed() != 2)
+        return false;
+      String[] expected = {"Emma:Jane Austen", "Dune:Frank Herbert", longTitle + ":Some Author",
+          "Persuasion:Jane Austen"};
+      ArrayList<String> books = new ArrayList<String>();
+      for (Book book : library2.getBooks())
+        books.add(book.getTitle() + ":" + book.getAuthor());
+      return books.equals(Arrays.asList(expected));
+    } catch (IOException e) {
+      return false;
+    } finally {
+      if (file != null)
+        file.toFile().delete();
+    }
+  }
+
   /**
    * Tests the parseRunLibrarianSaveBooksCommand() method
    * 
@@ -132,6 +197,1413 @@ public class ExceptionalBookLibraryTests {
     return works;
   }
 
+  /**
+   * Tests that findBook() and removeBook() use the book identifiers index correctly, and that the
+   * order of the remaining books is preserved after removals
+   * 
+   * @return boolean true if the books are found and removed as expected, false otherwise
+   */
+  public static boolean testLibraryFindRemoveBook() {
+    ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+    for (int i = 0; i < 100; i++)
+      library2.addBook("Title" + i, "Author");
+    int firstId = library2.findBookByTitle("Title0").get(0).getID();
+    for (int i = 0; i < 100; i += 2) // removes the books with an even title number
+      if (library2.removeBook(firstId + i) == null)
+        return false;
+    if (library2.findBook(firstId) != null || library2.findBook(firstId + 1) == null)
+      return false;
+    library2.addBook("Title100", "Author"); // new books are added after the remaining ones
+    ArrayList<Book> found = library2.findBookByAuthor("author");
+    if (found.size() != 51 || !found.get(50).getTitle().equals("Title100"))
+      return false;
+    for (int i = 0; i < 50; i++)
+      if (!found.get(i).getTitle().equals("Title" + (2 * i + 1)))
+        return false;
+    return true;
+  }
+
+  /**
+   * Tests that findBookByTitle() and findBookByAuthor() are case insensitive and that the index of
+   * titles and authors is kept up to date by addBook() and removeBook()
+   * 
+   * @return boolean true if the searches return the expected books, false otherwise
+   */
+  public static boolean testLibraryFindBookByTitleAuthor() {
+    ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+    library2.addBook("Calculus", "Stewart");
+    library2.addBook("CALCULUS", "Spivak");
+    library2.addBook("Linear Algebra", "STEWART");
+    ArrayList<Book> found = library2.findBookByTitle("calculus");
+    if (found.size() != 2 || !found.get(1).getAuthor().equals("Spivak"))
+      return false;
+    if (library2.findBookByAuthor("stewart").size() != 2)
+      return false;
+    library2.removeBook(found.get(0).getID());
+    if (library2.findBookByTitle("Calculus").size() != 1
+        || library2.findBookByAuthor("Stewart").size() != 1)
+      return false;
+    return library2.findBookByTitle("Calculu").isEmpty(); // only whole titles match
+  }
+
+  /**
+   * Stress tests Subscriber.checkoutBook() and Subscriber.returnBook() with several threads
+   * checking out and returning the same few books. Each book records how many subscribers hold it
+   * at the same time, which must never exceed one.
+   * 
+   * @return boolean true if no book is ever lent to two subscribers at once, false otherwise
+   */
+  public static boolean testConcurrentCheckoutNoDoubleLending() {
+    final int threadCount = 8;
+    final int operations = 200_000;
+    final Book[] books = new Book[16];
+    for (int i = 0; i < books.length; i++)
+      books[i] = new Book("Title" + i, "Author");
+    final AtomicIntegerArray holders = new AtomicIntegerArray(books.length);
+    final AtomicInteger doubleLendings = new AtomicInteger();
+    final AtomicInteger checkouts = new AtomicInteger();
+    Thread[] threads = new Thread[threadCount];
+    try {
+      for (int t = 0; t < threadCount; t++) {
+        final Subscriber subscriber = new Subscriber("Thread" + t, 1234, "Madison", "6081234567");
+        final Random random = new Random(t);
+        threads[t] = new Thread() {
+          @Override
+          public void run() {
+            OutputSink.bind(OutputSink.discarding());
+            for (int i = 0; i < operations; i++) {
+              int b = random.nextInt(books.length);
+              if (subscriber.checkoutBook(books[b])) {
+                checkouts.incrementAndGet();
+                if (holders.incrementAndGet(b) != 1)
+                  doubleLendings.incrementAndGet();
+                holders.decrementAndGet(b);
+                subscriber.returnBook(books[b]);
+              }
+            }
+          }
+        };
+      }
+      for (Thread thread : threads)
+        thread.start();
+      for (Thread thread : threads)
+        thread.join();
+    } catch (InstantiationException | InterruptedException e) {
+      System.out.println(e.getMessage());
+      return false;
+    }
+    for (Book book : books)
+      if (!book.isAvailable())
+        return false;
+    return doubleLendings.get() == 0 && checkouts.get() > 0;
+  }
+
+  /**
+   * Tests a LibraryServer on localhost: many kiosks connect at the same time, log in as the
+   * librarian and add a book each, and a last kiosk lists the books of the shared library
+   * 
+   * @return boolean true if all the sessions run against the same library, false otherwise
+   */
+  public static boolean testLibraryServerSessions() {
+    final int kioskCount = 50;
+    ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+    LibraryServer server = null;
+    try {
+      server = new LibraryServer(library2, 0);
+      server.start();
+      final int port = server.getPort();
+      Thread[] kiosks = new Thread[kioskCount];
+      final String[] outputs = new String[kioskCount];
+      for (int i = 0; i < kioskCount; i++) {
+        final int kiosk = i;
+        kiosks[i] = new Thread() {
+          @Override
+          public void run() {
+            outputs[kiosk] = runKiosk(port, "1 1234\n1 Kiosk" + kiosk + " Author\n9\n3\n");
+          }
+        };
+        kiosks[i].start();
+      }
+      for (int i = 0; i < kioskCount; i++) {
+        kiosks[i].join();
+        if (!outputs[i].contains("Book with Title Kiosk" + i + " is successfully added"))
+          return false;
+      }
+      String listing = runKiosk(port, "1 1234\n7\n9\n3\n");
+      return library2.findBookByAuthor("Author").size() == kioskCount
+          && listing.contains("<Title>: Kiosk0 ") && listing.contains("Thanks for Using");
+    } catch (IOException | InterruptedException e) {
+      System.out.println(e.getMessage());
+      return false;
+    } finally {
+      if (server != null)
+        server.stop();
+    }
+  }
+
+  /**
+   * Helper method that connects to a library server, sends command lines and returns all the text
+   * displayed by the server until it closes the connection
+   * 
+   * @param port     port of the server on localhost
+   * @param commands command lines to send
+   * @return the text displayed by the server
+   */
+  private static String runKiosk(int port, String commands) {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      OutputStream out = socket.getOutputStream();
+      out.write(commands.getBytes(StandardCharsets.UTF_8));
+      out.flush();
+      InputStream in = socket.getInputStream();
+      ByteArrayOutputStream text = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      for (int n; (n = in.read(buffer)) > 0;)
+        text.write(buffer, 0, n);
+      return new String(text.toByteArray(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      return e.getMessage();
+    }
+  }
+
+  /**
+   * Tests that a library restored from a snapshot has the same books, identifiers, borrowers,
+   * subscribers and histories as the saved library, and that new books get new identifiers
+   * 
+   * @return boolean true if the restored library matches the saved one, false otherwise
+   */
+  public static boolean testLibrarySnapshotSaveRestore() {
+    Path file = null;
+    try {
+      ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+      Book kept = library2.addBook("Calculus", "Stewart");
+      Book lent = library2.addBook("Algebra", "Stewart");
+      Book removed = library2.addBook("Topology", "Munkres");
+      int cardBarCode = Subscriber.getNextCardBarCode();
+      library2.addSubscriber("Randy", 1234, "Madison", "6081234567");
+      Subscriber subscriber = library2.findSubscriber(cardBarCode);
+      subscriber.checkoutBook(removed);
+      subscriber.returnBook(removed);
+      library2.removeBook(removed.getID()); // only in the history of returned books
+      subscriber.checkoutBook(lent);
+      file = Files.createTempFile("library", ".snap");
+      new LibrarySnapshot(library2).save(file); // replaces the existing file
+      String name = file.getFileName().toString();
+      if (file.getParent().toFile().list((d, n) -> n.startsWith(name) && n.endsWith(".tmp"))
+          .length != 0) // the temporary file is moved to the snapshot
+        return false;
+
+      ExceptionalLibrary library3 = new ExceptionalLibrary("Poop", "Barb", "1234");
+      new LibrarySnapshot(library3).restore(file);
+      Book restoredKept = library3.findBook(kept.getID());
+      Book restoredLent = library3.findBook(lent.getID());
+      Subscriber restored = library3.findSubscriber(cardBarCode);
+      if (restoredKept == null || restoredLent == null || restored == null
+          || library3.findBook(removed.getID()) != null)
+        return false;
+      if (!restoredKept.getTitle().equals("Calculus") || !restoredKept.isAvailable()
+          || restoredLent.getBorrowerCardBarCode() != cardBarCode
+          || library3.findBookByAuthor("stewart").size() != 2)
+        return false;
+      if (!restored.getName().equals("Randy") || restored.getPin() != 1234
+          || !restored.isBookInBooksCheckedOut(restoredLent)
+          || restored.getBooksReturned().length != 1
+          || !restored.getBooksReturned()[0].getTitle().equals("Topology"))
+        return false;
+      if (!restored.returnBook(restoredLent) || !restoredLent.isAvailable())
+        return false;
+      return library3.addBook("Analysis", "Rudin").getID() > removed.getID();
+    } catch (IOException | InstantiationException e) {
+      return false;
+    } finally {
+      if (file != null)
+        file.toFile().delete();
+    }
+  }
+
+  /**
+   * Tests that the snapshots saved while other threads check out and return books restore
+   * libraries where the borrower of every book has the book in its list of checked out books, and
+   * the other way around
+   * 
+   * @return boolean true if all the restored libraries are consistent, false otherwise
+   */
+  public static boolean testLibrarySnapshotConcurrentSave() {
+    final ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+    final int[] bookIds = new int[8];
+    for (int i = 0; i < bookIds.length; i++)
+      bookIds[i] = library2.addBook("Title " + i, "Author").getID();
+    final int[] cardBarCodes = new int[4];
+    try {
+      for (int i = 0; i < cardBarCodes.length; i++) {
+        cardBarCodes[i] = Subscriber.getNextCardBarCode();
+        library2.addSubscriber("Randy", 1234, "Madison", "6081234567");
+      }
+    } catch (InstantiationException e) {
+      return false;
+    }
+    final AtomicInteger done = new AtomicInteger();
+    Thread[] clerks = new Thread[2];
+    for (int t = 0; t < clerks.length; t++) {
+      final Random random = new Random(t);
+      clerks[t] = new Thread() {
+        @Override
+        public void run() {
+          OutputSink.bind(OutputSink.discarding());
+          for (int i = 0; i < 20_000 && done.get() == 0; i++) { // short return histories
+            String[] commands = {random.nextBoolean() ? "3" : "4",
+                "" + cardBarCodes[random.nextInt(cardBarCodes.length)],
+                "" + bookIds[random.nextInt(bookIds.length)]};
+            try {
+              if (commands[0].equals("3"))
+                library2.parseRunLibrarianCheckoutBookCommand(commands);
+              else
+                library2.parseRunLibrarianReturnBookCommand(commands);
+            } catch (ParseException e) {
+              done.set(2);
+            }
+          }
+        }
+      };
+      clerks[t].start();
+    }
+    Path file = null;
+    boolean consistent = true;
+    try {
+      file = Files.createTempFile("library", ".snap");
+      for (int run = 0; run < 100 && consistent; run++) {
+        new LibrarySnapshot(library2).save(file);
+        ExceptionalLibrary library3 = new ExceptionalLibrary("Poop", "Barb", "1234");
+        new LibrarySnapshot(library3).restore(file);
+        int loans = 0;
+        for (Subscriber subscriber : library3.getSubscribers().toList())
+          for (Book book : subscriber.getBooksCheckedOut()) {
+            loans++;
+            Integer borrower = book.getBorrowerCardBarCode();
+            consistent &= borrower != null && borrower == subscriber.getCARD_BAR_CODE();
+          }
+        for (Book book : library3.getBooks())
+          if (book.getBorrowerCardBarCode() != null)
+            loans--;
+        consistent &= loans == 0; // no book lent to no one
+      }
+    } catch (IOException e) {
+      consistent = false;
+    } finally {
+      done.compareAndSet(0, 1);
+      for (Thread clerk : clerks)
+        try {
+          clerk.join();
+        } catch (InterruptedException e) {
+          consistent = false;
+        }
+      if (file != null)
+        file.toFile().delete();
+    }
+    return consistent && done.get() == 1;
+  }
+
+  /**
+   * Tests that the changes recorded in a journal are replayed into a new library, and that a record
+   * cut by a crash at the end of the journal is dropped
+   * 
+   * @return boolean true if the replayed library matches the journaled one, false otherwise
+   */
+  public static boolean testLibraryJournalReplay() {
+    Path file = null;
+    try {
+      file = Files.createTempFile("library", ".journal");
+      Files.delete(file); // new journal
+      ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+      LibraryJournal journal = new LibraryJournal(file, 0);
+      library2.setJournal(journal);
+      Book kept = library2.addBook("Calculus", "Stewart");
+      Book removed = library2.addBook("Topology", "Munkres");
+      int cardBarCode = Subscriber.getNextCardBarCode();
+      library2.addSubscriber("Randy", 1234, "Madison", "6081234567");
+      Subscriber subscriber = library2.findSubscriber(cardBarCode);
+      library2.parseRunSubscriberCheckoutBookCommand(new String[] {"1", "" + removed.getID()},
+          subscriber);
+      library2.parseRunSubscriberReturnBookCommand(new String[] {"2", "" + removed.getID()},
+          subscriber);
+      library2.removeBook(removed.getID());
+      library2.parseRunLibrarianCheckoutBookCommand(
+          new String[] {"3", "" + cardBarCode, "" + kept.getID()});
+      library2.parseRunSubscriberUpdateAddressCommand(new String[] {"7", "Chicago"}, subscriber);
+      journal.close();
+      if (journal.getCounts()[1] != 8) // every change is durable
+        return false;
+      long size = Files.size(file);
+      Files.write(file, new byte[] {0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND); // cut record
+
+      ExceptionalLibrary library3 = new ExceptionalLibrary("Poop", "Barb", "1234");
+      journal = new LibraryJournal(file, 0);
+      if (journal.replay(library3) != 8)
+        return false;
+      journal.close();
+      Subscriber restored = library3.findSubscriber(cardBarCode);
+      Book restoredKept = library3.findBook(kept.getID());
+      if (restored == null || restoredKept == null || library3.findBook(removed.getID()) != null)
+        return false;
+      if (!restored.getAddress().equals("Chicago")
+          || !restored.isBookInBooksCheckedOut(restoredKept)
+          || restoredKept.getBorrowerCardBarCode() != cardBarCode
+          || restored.getBooksReturned().length != 1
+          || library3.getAvailabilityIndex().getCheckedOutCount() != 1)
+        return false;
+      return Files.size(file) == size; // the cut record is dropped
+    } catch (IOException | InstantiationException | ParseException e) {
+      return false;
+    } finally {
+      if (file != null)
+        file.toFile().delete();
+    }
+  }
+
+  /**
+   * Tests that the records of a subscriber who has the most books checked out are replayed in the
+   * order of the changes: two threads keep returning a book and checking out another one for the
+   * same subscriber, and the replayed library must lend the same books
+   * 
+   * @return boolean true if the replayed subscriber has the books of the journaled one, false
+   *         otherwise
+   */
+  public static boolean testLibraryJournalSubscriberOrder() {
+    Path file = null;
+    try {
+      file = Files.createTempFile("library", ".journal");
+      Files.delete(file); // new journal
+      final ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+      LibraryJournal journal = new LibraryJournal(file, 10);
+      library2.setJournal(journal);
+      final String[] bookIds = new String[12];
+      for (int i = 0; i < bookIds.length; i++)
+        bookIds[i] = "" + library2.addBook("Title " + i, "Author").getID();
+      final String cardBarCode = "" + Subscriber.getNextCardBarCode();
+      library2.addSubscriber("Randy", 1234, "Madison", "6081234567");
+      OutputSink previous = OutputSink.bind(OutputSink.discarding());
+      try {
+        for (int i = 0; i < 10; i++) // the most books a subscriber can have
+          library2.parseRunLibrarianCheckoutBookCommand(
+              new String[] {"3", cardBarCode, bookIds[i]});
+      } finally {
+        OutputSink.bind(previous);
+      }
+      final AtomicInteger failures = new AtomicInteger();
+      Thread[] clerks = new Thread[2];
+      for (int t = 0; t < clerks.length; t++) {
+        final String[] pair = {bookIds[t], bookIds[10 + t]}; // lent, then on the shelf
+        clerks[t] = new Thread() {
+          @Override
+          public void run() {
+            OutputSink.bind(OutputSink.discarding());
+            try {
+              for (int i = 0; i < 20_000; i++) { // return a book, then check out the other one
+                library2.parseRunLibrarianReturnBookCommand(
+                    new String[] {"4", cardBarCode, pair[i & 1]});
+                library2.parseRunLibrarianCheckoutBookCommand(
+                    new String[] {"3", cardBarCode, pair[~i & 1]});
+              }
+            } catch (ParseException e) {
+              failures.incrementAndGet();
+            }
+          }
+        };
+        clerks[t].start();
+      }
+      for (Thread clerk : clerks)
+        clerk.join();
+      journal.close();
+      List<Book> lent = Arrays.asList(
+          library2.findSubscriber(Integer.parseInt(cardBarCode)).getBooksCheckedOut());
+
+      ExceptionalLibrary library3 = new ExceptionalLibrary("Poop", "Barb", "1234");
+      journal = new LibraryJournal(file, 0);
+      journal.replay(library3);
+      journal.close();
+      List<Book> replayed = Arrays.asList(
+          library3.findSubscriber(Integer.parseInt(cardBarCode)).getBooksCheckedOut());
+      return failures.get() == 0 && lent.size() == 10 && replayed.size() == 10
+          && replayed.containsAll(lent);
+    } catch (IOException | InstantiationException | ParseException | InterruptedException e) {
+      return false;
+    } finally {
+      if (file != null)
+        file.toFile().delete();
+    }
+  }
+
+  /**
+   * Tests that the failures of checkouts and returns are displayed once the library released the
+   * lock of the subscriber and the lock of the book in the journal: a sink blocking on a slow
+   * client must not stall the other clerks
+   * 
+   * @return boolean true if each failure is displayed without these locks, false otherwise
+   */
+  public static boolean testCheckoutFailureDisplayedUnlocked() {
+    Path file = null;
+    try {
+      file = Files.createTempFile("library", ".journal");
+      Files.delete(file); // new journal
+      ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+      final LibraryJournal journal = new LibraryJournal(file, 0);
+      library2.setJournal(journal);
+      final Book[] books = new Book[12];
+      for (int i = 0; i < books.length; i++)
+        books[i] = library2.addBook("Title " + i, "Author");
+      String cardBarCode = "" + Subscriber.getNextCardBarCode();
+      library2.addSubscriber("Randy", 1234, "Madison", "6081234567");
+      String otherCardBarCode = "" + Subscriber.getNextCardBarCode();
+      library2.addSubscriber("Sandy", 4321, "Madison", "6087654321");
+      final Subscriber subscriber = library2.findSubscriber(Integer.parseInt(cardBarCode));
+      final Subscriber other = library2.findSubscriber(Integer.parseInt(otherCardBarCode));
+      final AtomicInteger lockedWrites = new AtomicInteger();
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      OutputStream out = new OutputStream() { // records the writes made under a library lock
+        @Override
+        public void write(int b) {
+          write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+          boolean locked = Thread.holdsLock(subscriber) || Thread.holdsLock(other);
+          for (Book book : books)
+            locked |= Thread.holdsLock(journal.lockFor(book.getID()));
+          if (locked)
+            lockedWrites.incrementAndGet();
+          bytes.write(b, off, len);
+        }
+      };
+      OutputSink previous = OutputSink.bind(new OutputSink(out, true, 16)); // flushed often
+      try {
+        for (int i = 0; i < 11; i++) // the 11th checkout exceeds the limit
+          library2.parseRunLibrarianCheckoutBookCommand(
+              new String[] {"3", cardBarCode, "" + books[i].getID()});
+        library2.parseRunLibrarianCheckoutBookCommand(
+            new String[] {"3", cardBarCode, "" + books[0].getID()}); // already checked out
+        library2.parseRunLibrarianCheckoutBookCommand(
+            new String[] {"3", otherCardBarCode, "" + books[1].getID()}); // lent to the first one
+        library2.parseRunLibrarianReturnBookCommand(
+            new String[] {"4", otherCardBarCode, "" + books[2].getID()}); // not lent to this one
+      } finally {
+        OutputSink.current().flush();
+        OutputSink.bind(previous);
+        journal.close();
+      }
+      String output = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+      return lockedWrites.get() == 0 && subscriber.getBooksCheckedOut().length == 10
+          && output.contains("You cannot check out more than 10books.")
+          && output.contains("You have already checked out Title 0 book.")
+          && output.contains("Sorry, Title 1 is not available.")
+          && output.contains("It is not in your booksCheckedOut list.");
+    } catch (IOException | InstantiationException | ParseException e) {
+      return false;
+    } finally {
+      if (file != null)
+        file.toFile().delete();
+    }
+  }
+
+  /**
+   * Tests that a journal replayed after the snapshot of the library it records only applies the
+   * changes made after the snapshot, and that the new records follow the replayed ones
+   * 
+   * @return boolean true if the library has each change once, false otherwise
+   */
+  public static boolean testLibrarySnapshotJournalReplay() {
+    Path journalFile = null;
+    Path snapshotFile = null;
+    try {
+      journalFile = Files.createTempFile("library", ".journal");
+      Files.delete(journalFile); // new journal
+      snapshotFile = Files.createTempFile("library", ".snap");
+      ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+      LibraryJournal journal = new LibraryJournal(journalFile, 0);
+      library2.setJournal(journal);
+      Book before = library2.addBook("Calculus", "Stewart");
+      int cardBarCode = Subscriber.getNextCardBarCode();
+      library2.addSubscriber("Randy", 1234, "Madison", "6081234567");
+      Subscriber subscriber = library2.findSubscriber(cardBarCode);
+      library2.parseRunSubscriberCheckoutBookCommand(new String[] {"1", "" + before.getID()},
+          subscriber);
+      library2.parseRunSubscriberReturnBookCommand(new String[] {"2", "" + before.getID()},
+          subscriber);
+      new LibrarySnapshot(library2).save(snapshotFile); // after 4 records
+      Book after = library2.addBook("Algebra", "Stewart");
+      library2.parseRunSubscriberCheckoutBookCommand(new String[] {"1", "" + after.getID()},
+          subscriber);
+      journal.close();
+
+      ExceptionalLibrary library3 = new ExceptionalLibrary("Poop", "Barb", "1234");
+      LibrarySnapshot snapshot = new LibrarySnapshot(library3);
+      snapshot.restore(snapshotFile);
+      journal = new LibraryJournal(journalFile, 0);
+      if (snapshot.getJournalSequence() != 4
+          || journal.replay(library3, snapshot.getJournalSequence()) != 2)
+        return false;
+      long sequence = journal.getSequence();
+      library3.setJournal(journal);
+      library3.addBook("Analysis", "Rudin");
+      journal.close();
+      if (sequence != 6 || journal.getSequence() != 7)
+        return false;
+      Subscriber restored = library3.findSubscriber(cardBarCode);
+      Book restoredAfter = library3.findBook(after.getID());
+      return restored != null && restoredAfter != null
+          && library3.findBookByAuthor("stewart").size() == 2
+          && restored.getBooksReturned().length == 1 // the return is not replayed again
+          && restored.isBookInBooksCheckedOut(restoredAfter)
+          && library3.getAvailabilityIndex().getCheckedOutCount() == 1;
+    } catch (IOException | InstantiationException | ParseException e) {
+      return false;
+    } finally {
+      if (journalFile != null)
+        journalFile.toFile().delete();
+      if (snapshotFile != null)
+        snapshotFile.toFile().delete();
+    }
+  }
+
+  /**
+   * Tests that a batch of books holding books already in the library (replayed again for instance)
+   * only adds and indexes the new books, for both catalogs
+   * 
+   * @return boolean true if each book is found once, false otherwise
+   */
+  public static boolean testLibraryAddBooksSkipsDuplicates() {
+    for (BookCatalog catalog : new BookCatalog[] {new BookCatalog(), new ColumnarBookCatalog()}) {
+      ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234", catalog);
+      Book emma = library2.addBook("Emma", "Jane Austen");
+      Book dune = new Book("Dune", "Frank Herbert");
+      Book[] batch = {emma, dune, emma, dune};
+      library2.addBooks(batch, batch.length);
+      if (batch[0] != dune) // the book added is moved to the front
+        return false;
+      library2.addBooks(new Book[] {emma, dune}, 2);
+      if (library2.findBookByAuthor("jane austen").size() != 1
+          || library2.findBookByTitle("dune").size() != 1
+          || library2.findBooksByTitleContaining("mm", 10).size() != 1
+          || library2.searchBooks("dune herbert", 10).size() != 1
+          || library2.getBooks().size() != 2)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Tests that a background save writes the books of the library as they were when the command was
+   * run, even if books are added and removed while the file is written
+   * 
+   * @return boolean true if the saved file lists the books of the point-in-time view, false
+   *         otherwise
+   */
+  public static boolean testLibrarySaveBooksBackground() {
+    Path file = null;
+    try {
+      file = Files.createTempFile("books", ".txt");
+      ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+      Book removed = library2.addBook("Calculus", "Stewart");
+      library2.addBook("Topology", "Munkres");
+      library2.parseRunLibrarianSaveBooksCommand(new String[] {"S", file.toString(), "BACKGROUND"});
+      library2.removeBook(removed.getID()); // after the view is captured
+      library2.addBook("Analysis", "Rudin");
+      library2.awaitBackgroundSaves();
+      List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+      if (lines.size() != 2 || !lines.get(0).equals("Calculus:Stewart")
+          || !lines.get(1).equals("Topology:Munkres"))
+        return false;
+      library2.parseRunLibrarianSaveBooksCommand(new String[] {"S", file.toString()});
+      lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+      return lines.size() == 2 && lines.get(1).equals("Analysis:Rudin");
+    } catch (IOException | ParseException | InterruptedException e) {
+      return false;
+    } finally {
+      if (file != null)
+        file.toFile().delete();
+    }
+  }
+
+  /**
+   * Tests that the CommandTokenizer splits command lines on spaces and keeps quoted arguments
+   * together, and that the librarian's space accepts quoted titles and authors
+   * 
+   * @return boolean true if the lines are split as expected, false otherwise
+   */
+  public static boolean testCommandTokenizer() {
+    CommandTokenizer tokenizer = new CommandTokenizer();
+    String[] commands = tokenizer.tokenize("  1 \"The Old Man\"   Hemingway ");
+    if (commands.length != 3 || !commands[0].equals("1") || !commands[1].equals("The Old Man")
+        || !commands[2].equals("Hemingway"))
+      return false;
+    commands = tokenizer.tokenize("7 \"12 \\\"Main\\\" St\" \"\"");
+    if (commands.length != 3 || !commands[1].equals("12 \"Main\" St") || !commands[2].isEmpty())
+      return false;
+    commands = tokenizer.tokenize("   ");
+    if (commands.length != 1 || !commands[0].isEmpty())
+      return false;
+    commands = tokenizer.tokenize("1 \"abc"); // the missing quote closes at the end of the line
+    if (commands.length != 2 || !commands[1].equals("abc"))
+      return false;
+    commands = tokenizer.tokenize("1 \"a\\\"b");
+    if (commands.length != 2 || !commands[1].equals("a\"b"))
+      return false;
+    commands = tokenizer.tokenize("1 \"");
+    if (commands.length != 2 || !commands[1].isEmpty())
+      return false;
+
+    ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+    Scanner scanner = new Scanner("1 \"The Old Man and the Sea\" \"Ernest Hemingway\"\n9\n");
+    OutputSink previous = OutputSink.bind(OutputSink.discarding());
+    try {
+      library2.readProcessLibrarianCommand(scanner);
+    } finally {
+      OutputSink.bind(previous);
+    }
+    ArrayList<Book> found = library2.findBookByTitle("the old man and the sea");
+    return found.size() == 1 && found.get(0).getAuthor().equals("Ernest Hemingway");
+  }
+
+  /**
+   * Tests that a BatchSession runs a script without menus, adds a group of books, and reports the
+   * rejected lines with their line numbers
+   * 
+   * @return boolean true if the script runs as expected, false otherwise
+   */
+  public static boolean testBatchSession() {
+    ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+    String script = "# librarian\n1 1234\n1 Dune \"Frank Herbert\"\n1 Emma \"Jane Austen\"\n"
+        + "1 OnlyTitle\n\n8 notANumber\n9\n3\n1 1234\n";
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BatchSession session = new BatchSession(library2, bytes);
+    try {
+      session.run(new StringReader(script));
+    } catch (IOException e) {
+      return false;
+    }
+    String output = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    if (output.contains("Welcome") || output.contains("ENTER COMMAND")
+        || !output.contains("line 5: ") || !output.contains("line 7: ")
+        || !output.contains("lines 3-5: 2 books added"))
+      return false;
+    return session.getCommandCount() == 7 && session.getRejectedCount() == 2
+        && library2.findBookByTitle("emma").size() == 1
+        && library2.findBookByAuthor("frank herbert").size() == 1;
+  }
+
+  /**
+   * Tests that a ReturnHistory keeps the order of the returns and their membership once the oldest
+   * ones are spilled to the disk
+   * 
+   * @return boolean true if the history is read back as it was written, false otherwise
+   */
+  public static boolean testReturnHistorySpill() {
+    ReturnHistory history = new ReturnHistory();
+    Book[] books = new Book[500];
+    for (int i = 0; i < books.length; i++) {
+      books[i] = new Book("Title " + i, "Author " + (i % 7));
+      history.add(books[i]);
+    }
+    history.add(books[3]); // returned twice
+    if (history.size() != books.length + 1 || !history.contains(books[0].getID())
+        || !history.contains(books[499].getID()) || history.contains(0)
+        || history.contains(books[499].getID() + 1))
+      return false;
+    int i = 0;
+    for (Book book : history) {
+      Book expected = books[i == books.length ? 3 : i];
+      if (book.getID() != expected.getID() || !book.getTitle().equals(expected.getTitle())
+          || !book.getAuthor().equals(expected.getAuthor()))
+        return false;
+      i++;
+    }
+    return i == books.length + 1;
+  }
+
+  /**
+   * Tests that a library storing its books in a ColumnarBookCatalog finds, checks out, returns and
+   * removes books through the Book views of the catalog
+   * 
+   * @return boolean true if the columnar library behaves like the default one, false otherwise
+   */
+  public static boolean testColumnarBookCatalog() {
+    ExceptionalLibrary library2 =
+        new ExceptionalLibrary("Poop", "Barb", "1234", new ColumnarBookCatalog());
+    Book first = null;
+    for (int i = 0; i < 100; i++) {
+      Book book = library2.addBook("Title" + (i % 10), "Author");
+      if (first == null)
+        first = book;
+    }
+    if (library2.findBookByTitle("title3").size() != 10 || !first.equals(library2.findBook(
+        first.getID())) || !library2.findBook(first.getID()).getTitle().equals("Title0"))
+      return false;
+    try {
+      library2.addSubscriber("Ann", 1234, "Madison", "6081234567");
+      Subscriber subscriber = library2.getSubscribers().toList().get(0);
+      String[] command = {"3", "" + subscriber.getCARD_BAR_CODE(), "" + first.getID()};
+      library2.parseRunLibrarianCheckoutBookCommand(command);
+      if (library2.findBook(first.getID()).isAvailable()
+          || library2.removeBook(first.getID()) != null) // a checked out book cannot be removed
+        return false;
+      Collection<Book> view = library2.getBooks().snapshot();
+      command[0] = "4";
+      library2.parseRunLibrarianReturnBookCommand(command);
+      if (!library2.findBook(first.getID()).isAvailable()
+          || library2.removeBook(first.getID()) == null || library2.getBooks().size() != 99)
+        return false;
+      Book[] returned = subscriber.getBooksReturned();
+      return view.size() == 100 && view.iterator().next().getID() == first.getID()
+          && returned.length == 1 && returned[0].getTitle().equals("Title0")
+          && library2.findBookByTitle("title0").size() == 9;
+    } catch (InstantiationException | ParseException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Tests that the search cache answers repeated searches, follows the checkouts and returns in
+   * place, is invalidated by the books added and removed, and evicts its least recently used
+   * results when it is full
+   * 
+   * @return boolean true if the cached results are always the results of the index, false otherwise
+   */
+  public static boolean testSearchCache() {
+    ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+    Book dune = library2.addBook("Dune", "Frank Herbert");
+    library2.addBook("Emma", "Jane Austen");
+    SearchCache cache = library2.getSearchCache();
+    if (library2.findBookByTitle("dune").size() != 1 || library2.findBookByTitle("DUNE").size() != 1
+        || cache.getHitCount() != 1 || cache.getMissCount() != 1)
+      return false;
+    try {
+      library2.addSubscriber("Ann", 1234, "Madison", "6081234567");
+      Subscriber subscriber = library2.getSubscribers().toList().get(0);
+      String[] command = {"3", "" + subscriber.getCARD_BAR_CODE(), "" + dune.getID()};
+      library2.parseRunLibrarianCheckoutBookCommand(command);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      OutputSink previous = OutputSink.bind(new OutputSink(bytes, false));
+      try {
+        library2.parseRunSubscriberFindBooksByTitleCommand(new String[] {"3", "Dune"}, subscriber);
+      } finally {
+        OutputSink.current().flush();
+        OutputSink.bind(previous);
+      }
+      if (!new String(bytes.toByteArray(), StandardCharsets.UTF_8).contains("Available>: false")
+          || cache.getRefreshCount() != 1 || cache.getInvalidationCount() != 0)
+        return false; // refreshed in place, not evicted
+    } catch (InstantiationException | ParseException e) {
+      return false;
+    }
+    library2.findBookByAuthor("jane austen");
+    library2.addBook("Persuasion", "Jane Austen"); // invalidates "jane austen" only
+    if (library2.findBookByAuthor("Jane Austen").size() != 2 || cache.getInvalidationCount() != 1
+        || library2.removeBook(library2.findBookByTitle("emma").get(0).getID()) == null
+        || library2.findBookByAuthor("jane austen").size() != 1)
+      return false;
+    SearchCache small = new SearchCache(20); // two results of 2 books at most
+    ArrayList<Book> two = library2.findBookByTitle("dune");
+    two.add(library2.findBookByTitle("persuasion").get(0));
+    small.put("a", two, small.getGeneration());
+    small.put("b", two, small.getGeneration());
+    small.get("a"); // "b" is now the least recently used
+    small.put("c", two, small.getGeneration());
+    return small.size() == 2 && small.getEvictionCount() == 1 && small.get("b") == null
+        && small.get("a") != null && small.get("c").isAvailable(1);
+  }
+
+  /**
+   * Tests that a LatencyHistogram tells the percentiles within its precision, and that the commands
+   * of a session are recorded in the metrics of the library with their errors
+   * 
+   * @return boolean true if the latencies and the counters are correct, false otherwise
+   */
+  public static boolean testLibraryMetrics() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++)
+      histogram.record(i * 1000L); // from 1 us to 1 ms
+    if (histogram.getCount() != 1000 || histogram.getMax() != 1_000_000
+        || Math.abs(histogram.getMean() - 500_500) > 1
+        || Math.abs(histogram.getValueAtPercentile(50) - 500_000) > 500_000 * 0.04
+        || Math.abs(histogram.getValueAtPercentile(99) - 990_000) > 990_000 * 0.04
+        || histogram.getValueAtPercentile(100) != 1_000_000)
+      return false;
+    ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+    String script = "1 1234\n1 Dune \"Frank Herbert\"\n3 notACard\n8 notANumber\n"
+        + "8 2000000000\nM\n9\n";
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      new BatchSession(library2, bytes).run(new StringReader(script));
+    } catch (IOException e) {
+      return false;
+    }
+    String output = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    LibraryMetrics metrics = library2.getMetrics();
+    return output.contains("librarian 8") && output.contains("Search cache:")
+        && metrics.get("loginAsLibrarian").getSuccessCount() == 1
+        && metrics.get("librarian 1").getLatencies().getCount() == 1
+        && metrics.get("librarian 3").getErrorCount() == 1
+        && metrics.get("librarian 8").getErrorCount() == 1
+        && metrics.get("librarian 8").getSuccessCount() == 1
+        && metrics.get("findBook").getErrorCount() == 1; // book 2000000000 not found
+  }
+
+  /**
+   * Tests that the bitmap of the available books follows the checkouts, returns and removals of a
+   * library, and that the AVAILABLE searches and the circulation counters read it
+   * 
+   * @return boolean true if the searches and the counters only count the books on the shelf, false
+   *         otherwise
+   */
+  public static boolean testAvailabilityIndex() {
+    ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+    Book emma = library2.addBook("Emma", "Jane Austen");
+    Book persuasion = library2.addBook("Persuasion", "Jane Austen");
+    library2.addBook("Dune", "Frank Herbert");
+    AvailabilityIndex availability = library2.getAvailabilityIndex();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      library2.addSubscriber("Ann", 1234, "Madison", "6081234567");
+      Subscriber subscriber = library2.getSubscribers().toList().get(0);
+      library2.parseRunSubscriberCheckoutBookCommand(new String[] {"1", "" + emma.getID()},
+          subscriber);
+      if (availability.isAvailable(emma.getID()) || !availability.isAvailable(persuasion.getID())
+          || availability.getCheckedOutCount() != 1 || availability.getAvailableCount() != 2
+          || library2.findAvailableBooksByAuthor("jane austen").size() != 1
+          || library2.findAvailableBooksByTitle("EMMA").size() != 0)
+        return false;
+      OutputSink previous = OutputSink.bind(new OutputSink(bytes, false));
+      try {
+        library2.parseRunSubscriberFindBooksByTitleCommand(
+            new String[] {"3", "Emma", "available"}, subscriber);
+        library2.parseRunSubscriberFindBooksByAuthorCommand(
+            new String[] {"4", "Jane Austen", "AVAILABLE"}, subscriber);
+        library2.parseRunLibrarianCirculationCommand(new String[] {"C"});
+      } finally {
+        OutputSink.current().flush();
+        OutputSink.bind(previous);
+      }
+      library2.parseRunSubscriberReturnBookCommand(new String[] {"2", "" + emma.getID()},
+          subscriber);
+    } catch (InstantiationException | ParseException e) {
+      return false;
+    }
+    String output = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    if (!output.contains("No available books match your search.")
+        || !output.contains("<Title>: Persuasion") || output.contains("<Title>: Emma")
+        || !output.contains("Circulation: 3 books, 2 on the shelf, 1 checked out"))
+      return false;
+    library2.removeBook(persuasion.getID());
+    if (!availability.isAvailable(emma.getID()) || availability.isAvailable(persuasion.getID())
+        || availability.getBookCount() != 2 || availability.getAvailableCount() != 2
+        || availability.getCheckoutCount() != 1 || availability.getReturnCount() != 1)
+      return false;
+    // books added or removed twice are counted once, and a book removed stays off the shelf
+    if (availability.addAll(new Book[] {emma, persuasion, emma}, 3) != 1
+        || !availability.remove(persuasion) || availability.remove(persuasion))
+      return false;
+    availability.availabilityChanged(persuasion, false);
+    return availability.getBookCount() == 2 && availability.getAvailableCount() == 2
+        && !availability.isAvailable(persuasion.getID());
+  }
+
+  /**
+   * Tests that a sink with a small buffer writes long text, multi-byte chars and surrogate pairs
+   * split across writes as UTF-8, and that a sink never written to writes nothing
+   * 
+   * @return boolean true if the written bytes are the UTF-8 encoding of the text, false otherwise
+   */
+  public static boolean testOutputSinkSmallBuffer() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputSink idle = new OutputSink(bytes, true, 16);
+    idle.flush();
+    if (bytes.size() != 0)
+      return false;
+    OutputSink sink = new OutputSink(bytes, false, 16);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 50; i++)
+      text.append("Caf\u00e9 \ud83d\udcda ").append(i).append(' ');
+    sink.append(text.toString()).append(-42).newLine();
+    text.append(-42).append(System.lineSeparator());
+    sink.flush();
+    return sink.getError() == null
+        && new String(bytes.toByteArray(), StandardCharsets.UTF_8).equals(text.toString());
+  }
+
+  /**
+   * Tests the searches of a part of a title or an author, on a few books and on enough books to be
+   * scanned by several fork/join tasks, against a scan of the whole catalog
+   * 
+   * @return boolean true if the substring and prefix searches find the right books, false
+   *         otherwise
+   */
+  public static boolean testSubstringSearch() {
+    ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+    Book engineers = library2.addBook("Physics for Engineers", "Serway");
+    library2.addBook("Physics", "Halliday");
+    Book engineering = library2.addBook("Engineering Physics", "\u00c9mile Borel");
+    library2.addBook("Dune", "Frank Herbert");
+    if (library2.findBookByTitle("Physics").size() != 1
+        || library2.findBooksByTitleContaining("physics", 10).size() != 3
+        || library2.findBooksByTitleStartingWith("PHYS", 10).size() != 2
+        || library2.findBooksByTitleContaining("physics", 1).get(0) != engineers
+        || library2.findBooksByTitleStartingWith("physics for engineers and more", 10).size() != 0
+        || library2.findBooksByAuthorContaining("\u00e9mile", 10).get(0) != engineering
+        || library2.findBooksByAuthorStartingWith("herbert", 10).size() != 0)
+      return false;
+    library2.removeBook(engineers.getID());
+    Book reused = library2.addBook("Quantum Physics", "Feynman"); // takes the free position
+    if (library2.findBooksByTitleContaining("PHYSICS", 10).size() != 3
+        || library2.findBooksByTitleContaining("engineers", 10).size() != 0
+        || !library2.findBooksByTitleContaining("quantum", 10).contains(reused))
+      return false;
+
+    int count = 20_000; // several leaves of the fork/join scans
+    String[] titles = new String[count];
+    String[] authors = new String[count];
+    for (int i = 0; i < count; i++) {
+      titles[i] = "Volume " + i;
+      authors[i] = "Author " + (i % 50);
+    }
+    library2.addBooks(titles, authors, count);
+    int expected = 0;
+    for (Book book : library2.getBooks())
+      if (book.getTitle().toLowerCase().contains("me 1"))
+        expected++; // "Volume 1", "Volume 10" to "Volume 19" and so on
+    if (library2.findBooksByTitleContaining("ME 1", count).size() != expected
+        || library2.findBooksByTitleContaining("ME 1", 5).size() != 5
+        || library2.findBooksByAuthorStartingWith("author 4", count).size() != count / 50 * 11)
+      return false;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputSink previous = OutputSink.bind(new OutputSink(bytes, false));
+    try {
+      library2.parseRunSubscriberFindBooksByTitleCommand(new String[] {"3", "volume", "CONTAINS"},
+          null);
+      library2.parseRunSubscriberFindBooksByAuthorCommand(new String[] {"4", "xyz", "PREFIX"},
+          null);
+    } catch (ParseException e) {
+      return false;
+    } finally {
+      OutputSink.current().flush();
+      OutputSink.bind(previous);
+    }
+    String output = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    return output.contains("More than 100 books match your search")
+        && output.contains("No books match your search.");
+  }
+
+  /**
+   * Tests the ranked searches by words: the order of the books found, the incremental maintenance
+   * of the index when books are added and removed, the top k of a large library against its full
+   * ranking, and the subscriber command F
+   * 
+   * @return boolean true if the searches find the best matches first, false otherwise
+   */
+  public static boolean testFullTextSearch() {
+    if (!FullTextIndex.tokenize("The Lord of the RINGS: the Return").equals(
+        Arrays.asList("the", "lord", "of", "rings", "return")))
+      return false;
+    ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+    Book dune = library2.addBook("Dune", "Frank Herbert");
+    Book messiah = library2.addBook("Dune Messiah, a Sequel to the Novel", "Frank Herbert");
+    Book frank = library2.addBook("Frankenstein", "Mary Shelley");
+    library2.addBook("Emma", "Jane Austen");
+    ArrayList<FullTextIndex.Hit> hits = library2.searchBooks("dune herbert", 10);
+    if (hits.size() != 2 || hits.get(0).getBook() != dune || hits.get(1).getBook() != messiah
+        || hits.get(0).getScore() <= hits.get(1).getScore() // shorter title, same words
+        || library2.searchBooks("DUNE", 1).get(0).getBook() != dune
+        || library2.searchBooks("frankenstein frank", 10).get(0).getBook() != frank // title word
+        || !library2.searchBooks("zzz", 10).isEmpty())
+      return false;
+    library2.removeBook(dune.getID());
+    Book children = library2.addBook("Children of Dune", "Frank Herbert");
+    hits = library2.searchBooks("dune", 10);
+    if (hits.size() != 2 || hits.get(0).getBook() != children || hits.get(1).getBook() != messiah)
+      return false;
+
+    int count = 20_000; // words of very different frequencies
+    String[] titles = new String[count];
+    String[] authors = new String[count];
+    for (int i = 0; i < count; i++) {
+      titles[i] = "Volume " + (i % 7) + " part " + (i % 101) + (i % 3 == 0 ? " of the tales" : "");
+      authors[i] = "Author " + (i % 50);
+    }
+    library2.addBooks(titles, authors, count);
+    for (String query : new String[] {"volume 3 part 17", "tales part 5 author 7", "the 1 2 3"}) {
+      ArrayList<FullTextIndex.Hit> all = library2.searchBooks(query, count + 10); // no pruning
+      ArrayList<FullTextIndex.Hit> top = library2.searchBooks(query, 10);
+      if (top.size() != 10)
+        return false;
+      for (int i = 0; i < top.size(); i++)
+        if (top.get(i).getBook() != all.get(i).getBook())
+          return false;
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputSink previous = OutputSink.bind(new OutputSink(bytes, false));
+    try {
+      library2.parseRunSubscriberSearchBooksCommand(new String[] {"F", "children", "dune"}, null);
+      library2.parseRunSubscriberSearchBooksCommand(new String[] {"F", "xyz"}, null);
+      library2.parseRunSubscriberSearchBooksCommand(new String[] {"F"}, null);
+      return false; // no word
+    } catch (ParseException e) {
+      // expected
+    } finally {
+      OutputSink.current().flush();
+      OutputSink.bind(previous);
+    }
+    String output = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    return output.startsWith("<Book ID>: " + children.getID() + " <Title>: Children of Dune")
+        && output.contains("No books match your search.");
+  }
+
+  /**
+   * Tests the pages of the searches and of the listing of the books: all the books are read once,
+   * page after page, with either catalog, even if the last book of a page is removed before the
+   * next page is read
+   * 
+   * @return boolean true if the pages are complete and bounded, false otherwise
+   */
+  public static boolean testPagedListings() {
+    for (boolean columnar : new boolean[] {false, true}) {
+      ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234",
+          columnar ? new ColumnarBookCatalog() : new BookCatalog());
+      int count = 250;
+      String[] titles = new String[count];
+      String[] authors = new String[count];
+      for (int i = 0; i < count; i++) {
+        titles[i] = i % 5 == 0 ? "Emma" : "Dune";
+        authors[i] = "Author " + i;
+      }
+      library2.addBooks(titles, authors, count);
+      ArrayList<Book> all = new ArrayList<Book>();
+      BookPage page = library2.findBookByTitle("DUNE", BookPage.FIRST, 30);
+      for (int pages = 1; true; pages++) {
+        if (page.getBooks().size() > 30 || pages > 7)
+          return false;
+        all.addAll(page.getBooks());
+        if (!page.hasNext())
+          break;
+        page = library2.findBookByTitle("dune", page.getNext(), 30);
+      }
+      if (!all.equals(library2.findBookByTitle("dune")))
+        return false;
+      long misses = library2.getSearchCache().getMissCount();
+      if (library2.findBookByTitle("emma", BookPage.FIRST, 100).getBooks().size() != count / 5
+          || library2.findBookByTitle("Emma", BookPage.FIRST, 10).getBooks().size() != 10
+          || library2.getSearchCache().getMissCount() != misses + 1) // cached by the first page
+        return false;
+
+      BookPage first = library2.listBooks(BookPage.FIRST, 100);
+      int removed = first.getNext();
+      library2.removeBook(removed); // the token of the next page is no longer in the catalog
+      BookPage second = library2.listBooks(removed, 100);
+      BookPage third = library2.listBooks(second.getNext(), 100);
+      if (first.getBooks().size() != 100 || second.getBooks().size() != 100
+          || third.getBooks().size() != count - 200 || third.hasNext()
+          || second.getBooks().get(0).getID() <= removed)
+        return false;
+    }
+
+    ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+    String[] titles = new String[150];
+    String[] authors = new String[150];
+    Arrays.fill(titles, "Dune");
+    Arrays.fill(authors, "Frank Herbert");
+    library2.addBooks(titles, authors, titles.length);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputSink previous = OutputSink.bind(new OutputSink(bytes, false));
+    try {
+      library2.parseRunSubscriberFindBooksByTitleCommand(new String[] {"3", "Dune"}, null);
+      library2.parseRunLibrarianDisplayBooksCommand(new String[] {"7"});
+      library2.parseRunSubscriberFindBooksByTitleCommand(new String[] {"3", "Dune", "AFTER", "1"},
+          null);
+      return false; // AFTER is not an option
+    } catch (ParseException e) {
+      // expected
+    } finally {
+      OutputSink.current().flush();
+      OutputSink.bind(previous);
+    }
+    String output = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    int token = library2.findBookByTitle("Dune").get(99).getID();
+    return output.contains("More books match your search, enter 3 \"Dune\" NEXT " + token)
+        && output.contains("More books in the library, enter 7 NEXT " + token)
+        && output.split("<Book ID>").length == 201;
+  }
+
+  /**
+   * Checks that the holds of a book are served first come first served when it is returned, that
+   * cancelled holds are skipped, and that a subscriber who cannot check out more books loses its
+   * hold
+   * 
+   * @return true if the test passes, false otherwise
+   */
+  public static boolean testHoldQueues() {
+    ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+    Book dune = library2.addBook("Dune", "Frank Herbert");
+    Book emma = library2.addBook("Emma", "Jane Austen");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputSink previous = OutputSink.bind(new OutputSink(bytes, false));
+    Subscriber[] subscribers = new Subscriber[4];
+    try {
+      for (int i = 0; i < subscribers.length; i++) {
+        library2.addSubscriber("Sub" + i, 1234, "Madison", "6081234567");
+        for (Subscriber subscriber : library2.getSubscribers().toList())
+          if (subscriber.getName().equals("Sub" + i))
+            subscribers[i] = subscriber;
+      }
+      String a = "" + subscribers[0].getCARD_BAR_CODE();
+      String[] hold = {"H", "" + dune.getID()};
+      library2.parseRunSubscriberHoldCommand(hold, subscribers[1]); // available: refused
+      library2.parseRunLibrarianCheckoutBookCommand(new String[] {"3", a, "" + dune.getID()});
+      for (int i = 1; i < subscribers.length; i++)
+        library2.parseRunSubscriberHoldCommand(hold, subscribers[i]);
+      library2.parseRunSubscriberHoldCommand(hold, subscribers[1]); // already waiting
+      library2.parseRunSubscriberHoldCommand(new String[] {"H"}, subscribers[2]);
+      library2.parseRunSubscriberHoldCommand(new String[] {"H", "" + dune.getID(), "CANCEL"},
+          subscribers[1]);
+      for (int i = 0; i < 10; i++) // subscriber 2 cannot check out more books
+        subscribers[2].checkoutBook(library2.addBook("Book " + i, "Author"));
+      if (library2.getHoldQueues().getWaitingCount() != 2)
+        return false;
+      library2.parseRunLibrarianReturnBookCommand(new String[] {"4", a, "" + dune.getID()});
+      library2.parseRunSubscriberHoldCommand(new String[] {"H", "" + emma.getID(), "X"}, null);
+      return false; // X is not an option
+    } catch (InstantiationException e) {
+      return false;
+    } catch (ParseException e) {
+      // expected
+    } finally {
+      OutputSink.current().flush();
+      OutputSink.bind(previous);
+    }
+    String output = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    HoldQueues holds = library2.getHoldQueues();
+    return output.contains("Dune is available, check it out instead.")
+        && output.contains("You are waiting for Dune (position 3).")
+        && output.contains("<Title>: Dune <Position>: 2") && output.contains("Hold cancelled.")
+        && subscribers[3].isBookInBooksCheckedOut(dune) && !dune.isAvailable()
+        && !subscribers[2].isBookInBooksCheckedOut(dune) && subscribers[2].getHolds().length == 0
+        && holds.getWaitingCount() == 0 && holds.getServedCount() == 1
+        && holds.peek(dune.getID()) == null;
+  }
+
+  /**
+   * A clock whose time is moved forward by the tests
+   */
+  private static class SimulatedClock extends Clock {
+    private volatile long millis; // current time
+
+    SimulatedClock(long millis) {
+      this.millis = millis;
+    }
+
+    void advance(long duration) {
+      millis += duration;
+    }
+
+    @Override
+    public long millis() {
+      return millis;
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(millis);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Checks with a simulated clock that the loans are found overdue once, when their due date is
+   * past, and not after they are returned, in a library and in a schedule of 10 million loans. A
+   * clerk scheduling loans meanwhile never waits for the wheel more than 50 ms (the pauses of the
+   * garbage collector excluded), though a slot holding about a million loans moves down.
+   * 
+   * @return true if the test passes, false otherwise
+   */
+  public static boolean testOverdueLoans() {
+    final long day = 24 * 60 * 60 * 1000;
+    SimulatedClock clock = new SimulatedClock(Instant.parse("2026-01-05T09:00:00Z").toEpochMilli());
+    ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+    library2.setClock(clock);
+    final AtomicInteger notified = new AtomicInteger();
+    library2.addOverdueListener(new OverdueListener() {
+      @Override
+      public void loanOverdue(Book book, int cardBarCode, long dueDate) {
+        notified.incrementAndGet();
+      }
+    });
+    Book dune = library2.addBook("Dune", "Frank Herbert");
+    Book emma = library2.addBook("Emma", "Jane Austen");
+    Book persuasion = library2.addBook("Persuasion", "Jane Austen");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputSink previous = OutputSink.bind(new OutputSink(bytes, false));
+    try {
+      library2.addSubscriber("Ann", 1234, "Madison", "6081234567");
+      Subscriber subscriber = library2.getSubscribers().toList().get(0);
+      String ann = "" + subscriber.getCARD_BAR_CODE();
+      for (Book book : new Book[] {dune, emma, persuasion})
+        library2.parseRunLibrarianCheckoutBookCommand(new String[] {"3", ann, "" + book.getID()});
+      library2.parseRunLibrarianReturnBookCommand(new String[] {"4", ann, "" + emma.getID()});
+      clock.advance(13 * day);
+      if (library2.checkOverdueLoans() != 0)
+        return false;
+      clock.advance(day); // dune and persuasion are due now
+      if (library2.checkOverdueLoans() != 2 || library2.checkOverdueLoans() != 0
+          || notified.get() != 2)
+        return false;
+      library2.parseRunLibrarianReturnBookCommand(new String[] {"4", ann, "" + dune.getID()});
+      library2.parseRunLibrarianOverdueCommand(new String[] {"O"});
+      library2.parseLoginAsSubscriber(new String[] {"2", ann, "1234"});
+      library2.parseRunLibrarianCheckoutBookCommand(new String[] {"3", ann, "" + dune.getID()});
+      clock.advance(day); // checked out again: not overdue
+      if (library2.checkOverdueLoans() != 0 || notified.get() != 2)
+        return false;
+    } catch (InstantiationException | ParseException e) {
+      return false;
+    } finally {
+      OutputSink.current().flush();
+      OutputSink.bind(previous);
+    }
+    String output = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    if (!output.contains("<Book ID>: " + persuasion.getID() + " <Title>: Persuasion")
+        || !output.contains("<Due>: 2026-01-19 09:00") || output.contains("<Title>: Dune <Card")
+        || !output.contains("1 overdue book.")
+        || !output.contains("Overdue: Persuasion was due on 2026-01-19 09:00"))
+      return false;
+
+    int loans = 10_000_000; // due at any minute of 30 days, half of them returned
+    LoanSchedule schedule = new LoanSchedule(60 * 1000, 0);
+    for (int id = 1; id <= loans; id++)
+      schedule.schedule(id, 14 * day + (id * 7919L % (30 * 24 * 60)) * 60 * 1000);
+    for (int id = 2; id <= loans; id += 2)
+      schedule.cancel(id);
+    final LoanSchedule wheel = schedule;
+    final AtomicBoolean stop = new AtomicBoolean();
+    final AtomicLong worstWait = new AtomicLong(); // in nanoseconds
+    Thread clerk = new Thread() {
+      @Override
+      public void run() {
+        for (int id = loans + 1; !stop.get(); id++) { // loans due after the end of the test
+          long collection = collectionMillis();
+          long start = System.nanoTime();
+          wheel.schedule(id, 400 * day);
+          long wait = System.nanoTime() - start - (collectionMillis() - collection) * 1_000_000;
+          worstWait.accumulateAndGet(wait, Math::max);
+          wheel.cancel(id);
+          Thread.yield();
+        }
+      }
+    };
+    clerk.start();
+    long found = 0;
+    try {
+      for (long now = 0; now <= 45 * day; now += day / 4) {
+        for (int id : schedule.advance(now)) {
+          if (id % 2 == 0 || schedule.getDueDate(id) > now
+              || schedule.getDueDate(id) <= now - day / 4)
+            return false; // returned, not yet due, or found late
+          found++;
+        }
+      }
+    } finally {
+      stop.set(true);
+      try {
+        clerk.join();
+      } catch (InterruptedException e) {
+        return false;
+      }
+    }
+    return found == loans / 2 && schedule.getOverdue().length == loans / 2
+        && schedule.advance(46 * day).length == 0 && worstWait.get() < 50_000_000;
+  }
+
+  /**
+   * Returns the time spent by the garbage collectors since the start of the JVM
+   * 
+   * @return the time of the collections in milliseconds
+   */
+  private static long collectionMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+      millis += Math.max(collector.getCollectionTime(), 0); // -1 if not available
+    return millis;
+  }
+
+  /**
+   * Checks that the fines of the books returned late are charged at return, and that the nightly
+   * job computes the same fines on several threads as on one
+   * 
+   * @return true if the test passes, false otherwise
+   */
+  public static boolean testFineAccrual() {
+    final long day = 24 * 60 * 60 * 1000;
+    SimulatedClock clock = new SimulatedClock(Instant.parse("2026-01-05T09:00:00Z").toEpochMilli());
+    ExceptionalLibrary library2 = new ExceptionalLibrary("Poop", "Barb", "1234");
+    library2.setClock(clock);
+    int count = 3000; // three pages of the table of the subscribers
+    String[] titles = new String[count];
+    String[] authors = new String[count];
+    Arrays.fill(titles, "Dune");
+    Arrays.fill(authors, "Frank Herbert");
+    library2.addBooks(titles, authors, count);
+    ArrayList<Book> books = library2.findBookByTitle("dune");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputSink previous = OutputSink.bind(new OutputSink(bytes, false));
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (int i = 0; i < count; i++)
+        library2.addSubscriber("Sub" + i, 1234, "Madison", "6081234567");
+      ArrayList<Subscriber> subscribers = library2.getSubscribers().toList();
+      for (int i = 0; i < count; i++) {
+        clock.advance(day / 1000);
+        library2.parseRunLibrarianCheckoutBookCommand(new String[] {"3",
+            "" + subscribers.get(i).getCARD_BAR_CODE(), "" + books.get(i).getID()});
+      }
+      clock.advance(15 * day); // the first books are 4 days late, the last ones 1
+      String first = "" + subscribers.get(0).getCARD_BAR_CODE();
+      library2.parseRunLibrarianReturnBookCommand(
+          new String[] {"4", first, "" + books.get(0).getID()});
+      if (subscribers.get(0).getFines() != 4 * FineAccrual.FINE_PER_DAY)
+        return false;
+      long expected = 4 * FineAccrual.FINE_PER_DAY; // the book returned
+      for (int i = 1; i < count; i++)
+        expected += FineAccrual.fineFor(
+            library2.getLoanSchedule().getDueDate(books.get(i).getID()), clock.millis());
+      FineAccrual parallel = library2.accrueFines(pool);
+      FineAccrual sequential = library2.accrueFines(new ForkJoinPool(1));
+      library2.parseLoginAsSubscriber(new String[] {"2", first, "1234"});
+      library2.parseRunLibrarianFinesCommand(new String[] {"N"});
+      if (parallel.getTotal() != expected || sequential.getTotal() != expected
+          || parallel.getOwingCount() != count || parallel.getSubscriberCount() != count
+          || parallel.getFine(subscribers.get(count - 1).getCARD_BAR_CODE()) != sequential
+              .getFine(subscribers.get(count - 1).getCARD_BAR_CODE())
+          || FineAccrual.fineFor(0, 100 * day) != 0
+          || FineAccrual.fineFor(day, 100 * day) != FineAccrual.MAX_FINE)
+        return false;
+    } catch (InstantiationException | ParseException e) {
+      return false;
+    } finally {
+      pool.shutdown();
+      OutputSink.current().flush();
+      OutputSink.bind(previous);
+    }
+    String output = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    return output.contains("Dune was returned late: a fine of $1.00 is charged.")
+        && output.contains("You owe $1.00 in fines.")
+        && output.contains("Fines: " + count + " of " + count + " subscribers owe");
+  }
+
   /**
    * Main method that tests the methods of ExceptionalLibrary
    * 
@@ -145,7 +1617,43 @@ public class ExceptionalBookLibraryTests {
         + testLibraryParseRunSubscriberReturnBookCommand());
     System.out.println("testLibraryParseRunLibrarianLoadBooksCommand(): "
         + testLibraryParseRunLibrarianLoadBooksCommand());
+    System.out.println("testBulkBookLoader(): " + testBulkBookLoader());
     System.out.println("testLibraryParseRunLibrarianSaveBooksCommand(): "
         + testLibraryParseRunLibrarianSaveBooksCommand());
+    System.out.println("testLibraryFindRemoveBook(): " + testLibraryFindRemoveBook());
+    System.out.println(
+        "testLibraryFindBookByTitleAuthor(): " + testLibraryFindBookByTitleAuthor());
+    System.out.println(
+        "testConcurrentCheckoutNoDoubleLending(): " + testConcurrentCheckoutNoDoubleLending());
+    System.out.println("testLibraryServerSessions(): " + testLibraryServerSessions());
+    System.out.println(
+        "testLibrarySnapshotSaveRestore(): " + testLibrarySnapshotSaveRestore());
+    System.out.println(
+        "testLibrarySnapshotConcurrentSave(): " + testLibrarySnapshotConcurrentSave());
+    System.out.println("testLibraryJournalReplay(): " + testLibraryJournalReplay());
+    System.out.println(
+        "testLibraryJournalSubscriberOrder(): " + testLibraryJournalSubscriberOrder());
+    System.out.println(
+        "testCheckoutFailureDisplayedUnlocked(): " + testCheckoutFailureDisplayedUnlocked());
+    System.out.println(
+        "testLibrarySnapshotJournalReplay(): " + testLibrarySnapshotJournalReplay());
+    System.out.println(
+        "testLibraryAddBooksSkipsDuplicates(): " + testLibraryAddBooksSkipsDuplicates());
+    System.out.println(
+        "testLibrarySaveBooksBackground(): " + testLibrarySaveBooksBackground());
+    System.out.println("testCommandTokenizer(): " + testCommandTokenizer());
+    System.out.println("testBatchSession(): " + testBatchSession());
+    System.out.println("testReturnHistorySpill(): " + testReturnHistorySpill());
+    System.out.println("testColumnarBookCatalog(): " + testColumnarBookCatalog());
+    System.out.println("testSearchCache(): " + testSearchCache());
+    System.out.println("testLibraryMetrics(): " + testLibraryMetrics());
+    System.out.println("testAvailabilityIndex(): " + testAvailabilityIndex());
+    System.out.println("testOutputSinkSmallBuffer(): " + testOutputSinkSmallBuffer());
+    System.out.println("testSubstringSearch(): " + testSubstringSearch());
+    System.out.println("testFullTextSearch(): " + testFullTextSearch());
+    System.out.println("testPagedListings(): " + testPagedListings());
+    System.out.println("testHoldQueues(): " + testHoldQueues());
+    System.out.println("testOverdueLoans(): " + testOverdueLoans());
+    System.out.println("testFineAccrual(): " + testFineAccrual());
   }
 }
@@ -32,29 +32,244 @@
 //
 /////////////////////////////// 80 COLUMNS WIDE ///////////////////////////////
 // File header comes here
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.ParseException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Scanner;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
 import java.io.BufferedReader;
 
 /**
  * This class models a simple book library. The main method of this class implements the management
  * system for this library.
  *
+ * A library can be shared by several sessions running in their own threads: the catalog, the
+ * search index and the table of subscribers are thread-safe, and each subscriber serializes the
+ * operations on its own lists of books.
+ *
  */
 public class ExceptionalLibrary {
+  // class/static fields
+  private static final int SAVE_PROGRESS_STEP = 1_000_000; // books written between two progress
+                                                           // messages of a background save
+  private static final int LOOKUP_SAMPLE_RATE = 8; // one latency of a lookup out of 8 is recorded
+  private static final int SEARCH_LIMIT = 100; // books displayed by a search of a part of a title
+                                               // or an author
+  private static final int RANKED_RESULTS = 20; // books displayed by a search of words
+  private static final int PAGE_SIZE = 100; // books displayed by a page of a listing or a search
+  static final long LOAN_PERIOD = 14L * 24 * 60 * 60 * 1000; // a book is due 14 days after its
+                                                             // checkout, in milliseconds
+  private static final long OVERDUE_TICK = 60 * 1000; // loans due in the same minute share a slot
+                                                      // of the timer wheel of the due dates
+  private static final DateTimeFormatter DUE_DATE_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm"); // due dates displayed
+  private static final ThreadLocal<long[]> DEFERRED_COMMIT = new ThreadLocal<long[]>(); // last
+  // sequence number logged by a thread that defers its waits for the journal, unset otherwise
+
+  // text of the menus
+  private static final String MAIN_MENU = menu("     Welcome to our Book Library Management System",
+      "[1 <password>] Login as a librarian",
+      "[2 <card bar code> <4-digits pin>] Login as a Subscriber",
+      "[3] Exit"); // Exit the application
+
+  private static final String SUBSCRIBER_MENU = menu("    Welcome to Subscriber's Space",
+      "[1 <book ID>] Check out a book",
+      "[2 <book ID>] Return a book",
+      "[3 <title>] Search a Book by title",
+      "[4 <author>] Search a Book by author",
+      "[3 <title> NEXT <book ID>] Display the next Books having title after book ID",
+      "[4 <author> NEXT <book ID>] Display the next Books having author after book ID",
+      "[3 <title> AVAILABLE] Search the available Books by title",
+      "[4 <author> AVAILABLE] Search the available Books by author",
+      "[3 <text> CONTAINS] Search the Books whose title contains text",
+      "[3 <text> PREFIX] Search the Books whose title starts with text",
+      "[4 <text> CONTAINS] Search the Books whose author contains text",
+      "[4 <text> PREFIX] Search the Books whose author starts with text",
+      "[F <words>] Search the Books by words of their title and author, best matches first",
+      "[5] Print list of books checked out",
+      "[6] Print history of returned books",
+      "[H <book ID>] Wait for a checked out book: you get it when it is returned",
+      "[H <book ID> CANCEL] Stop waiting for a book",
+      "[H] Print list of books you wait for",
+      "[7 <address>] Update address",
+      "[8 <phone number>] Update phone number",
+      "[9] Logout",
+      "Write \"arguments with spaces\" between double quotes");
+
+  private static final String LIBRARIAN_MENU = menu("    Welcome to Librarian's Space",
+      "[1 <title> <author>] Add new Book",
+      "[2 <name> <pin> <address> <phone number>] Add new subscriber",
+      "[3 <card bar code> <book ID>] Check out a Book for a subscriber",
+      "[4 <card bar code> <book ID>] Return a Book for a subscriber",
+      "[5 <card bar code>] Display Personal Info of a Subscriber",
+      "[6 <card bar code>] Display Books Checked out by a Subscriber",
+      "[7] Display the first Books",
+      "[7 NEXT <book ID>] Display the next Books after book ID",
+      "[8 <book ID>] Remove a Book",
+      "[L <filename.data>] Load list of Books from filename.data",
+      "[L <filename.data> BULK] Bulk load Books from filename.data",
+      "[S <filename.data>] Save list of Books to filename.data",
+      "[S <filename.data> BACKGROUND] Save list of Books in the background",
+      "[S <filename.snap> SNAPSHOT] Save the whole library to filename.snap",
+      "[L <filename.snap> SNAPSHOT] Restore the library from filename.snap",
+      "[M] Display the latencies and the errors of the commands",
+      "[C] Display the number of Books on the shelf, checked out and waited for",
+      "[O] Display the overdue Books",
+      "[N] Compute the fines of all the subscribers (nightly job)",
+      "[9] Logout",
+      "Write \"arguments with spaces\" between double quotes");
+
+  // commands of the main menu (the tables are also run by the batch sessions)
+  static final CommandTable MAIN_COMMANDS =
+      new CommandTable("main", "3", ExceptionalLibrary::displayMainMenu, true)
+          // [1 <password>] login as librarian
+          .register("1", (library, commands, scanner, subscriber) -> library
+              .parseRunLoginAsLibrarian(commands, scanner))
+          // [2 <card bar code> <4-digit PIN>] login as subscriber
+          .register("2", (library, commands, scanner, subscriber) -> library
+              .parseRunLoginAsSubscriber(commands, scanner));
+
+  // commands of the librarian's space
+  static final CommandTable LIBRARIAN_COMMANDS =
+      new CommandTable("librarian", "9", ExceptionalLibrary::displayLibrarianMenu, false)
+          // [1 <title> <author>] add a new book
+          .register("1", (library, commands, scanner, subscriber) -> library
+              .parseRunLibrarianAddBookCommand(commands))
+          // [2 <name> <pin> <address> <phone number>] add a new subscriber
+          .register("2", (library, commands, scanner, subscriber) -> library
+              .parseRunLibrarianAddSubscriberCommand(commands))
+          // [3 <card bar code> <book ID>] check out a book for a subscriber
+          .register("3", (library, commands, scanner, subscriber) -> library
+              .parseRunLibrarianCheckoutBookCommand(commands))
+          // [4 <card bar code> <book ID>] return a book for a subscriber
+          .register("4", (library, commands, scanner, subscriber) -> library
+              .parseRunLibrarianReturnBookCommand(commands))
+          // [5 <card bar code>] display personal info of a subscriber
+          .register("5", (library, commands, scanner, subscriber) -> library
+              .parseRunLibrarianDisplayPersonalInfoOfSubscriberCommand(commands))
+          // [6 <card bar code>] display books checked out by a subscriber
+          .register("6", (library, commands, scanner, subscriber) -> library
+              .parseRunLibrarianDisplayBooksCheckedOutBySubscriberCommand(commands))
+          // [7 (NEXT <book ID>)] display a page of the books list
+          .register("7", (library, commands, scanner, subscriber) -> library
+              .parseRunLibrarianDisplayBooksCommand(commands))
+          // [8 <book ID>] remove a book
+          .register("8", (library, commands, scanner, subscriber) -> library
+              .parseRunLibrarianRemoveBookCommand(commands))
+          // [L <filename>] load list of books from a data file named filename
+          .register("L", (library, commands, scanner, subscriber) -> library
+              .parseRunLibrarianLoadBooksCommand(commands))
+          // [S <filename>] save list of books to a data file named filename
+          .register("S", (library, commands, scanner, subscriber) -> library
+              .parseRunLibrarianSaveBooksCommand(commands))
+          // [M] display the latencies and the errors of the commands
+          .register("M", (library, commands, scanner, subscriber) -> library
+              .parseRunLibrarianMetricsCommand(commands))
+          // [C] display the circulation counters
+          .register("C", (library, commands, scanner, subscriber) -> library
+              .parseRunLibrarianCirculationCommand(commands))
+          // [O] display the overdue books
+          .register("O", (library, commands, scanner, subscriber) -> library
+              .parseRunLibrarianOverdueCommand(commands))
+          // [N] compute the fines of all the subscribers
+          .register("N", (library, commands, scanner, subscriber) -> library
+              .parseRunLibrarianFinesCommand(commands));
+
+  // commands of the subscriber's space
+  static final CommandTable SUBSCRIBER_COMMANDS =
+      new CommandTable("subscriber", "9", ExceptionalLibrary::displaySubscriberMenu, false)
+          // [1 <book ID>] check out a book
+          .register("1", (library, commands, scanner, subscriber) -> library
+              .parseRunSubscriberCheckoutBookCommand(commands, subscriber))
+          // [2 <book ID>] return a book
+          .register("2", (library, commands, scanner, subscriber) -> library
+              .parseRunSubscriberReturnBookCommand(commands, subscriber))
+          // [3 <title> (AVAILABLE|CONTAINS|PREFIX|NEXT <book ID>)] search a book by title
+          .register("3", (library, commands, scanner, subscriber) -> library
+              .parseRunSubscriberFindBooksByTitleCommand(commands, subscriber))
+          // [4 <author> (AVAILABLE|CONTAINS|PREFIX|NEXT <book ID>)] search a book by author
+          .register("4", (library, commands, scanner, subscriber) -> library
+              .parseRunSubscriberFindBooksByAuthorCommand(commands, subscriber))
+          // [5] print list of books checked out
+          .register("5", (library, commands, scanner, subscriber) -> subscriber
+              .displayBooksCheckedOut())
+          // [6] print history of books returned
+          .register("6", (library, commands, scanner, subscriber) -> subscriber
+              .displayHistoryBooksReturned())
+          // [7 <address>] update address
+          .register("7", (library, commands, scanner, subscriber) -> library
+              .parseRunSubscriberUpdateAddressCommand(commands, subscriber))
+          // [8 <phone number>] update phone number
+          .register("8", (library, commands, scanner, subscriber) -> library
+              .parseRunSubscriberUpdatePhoneNumberCommand(commands, subscriber))
+          // [H (<book ID> (CANCEL))] place, cancel or list holds
+          .register("H", (library, commands, scanner, subscriber) -> library
+              .parseRunSubscriberHoldCommand(commands, subscriber))
+          // [F <words>] search books by words, best matches first
+          .register("F", (library, commands, scanner, subscriber) -> library
+              .parseRunSubscriberSearchBooksCommand(commands, subscriber));
+
   // instance fields
   private String address; // Street address of this library
   private Librarian librarian; // this library's librarian. This library must have only ONE
                                // librarian
-  private ArrayList<Book> books; // list of the books in this library
-  private ArrayList<Subscriber> subscribers; // list of this library's subscribers
+  private BookCatalog books; // catalog of the books in this library indexed by book identifier
+  private SearchIndex searchIndex; // index of the books of this library by title and by author
+  private SubstringIndex substringIndex; // titles and authors scanned by the searches of a part
+                                         // of a title or an author
+  private FullTextIndex fullTextIndex; // books by word of their title and author, for the ranked
+                                       // searches
+  private SearchCache searchCache; // recent results of the searches by title and by author
+  private AvailabilityIndex availability; // books on the shelf by book identifier, and the
+                                          // circulation counters
+  private final HoldQueues holds = new HoldQueues(); // subscribers waiting for the books checked
+                                                     // out
+  private volatile Clock clock = Clock.systemDefaultZone(); // time of the checkouts and due dates
+  private volatile LoanSchedule loans = new LoanSchedule(OVERDUE_TICK, clock.millis()); // due
+  // dates of the books checked out, and the timer wheel that finds the overdue ones
+  private final CopyOnWriteArrayList<OverdueListener> overdueListeners =
+      new CopyOnWriteArrayList<OverdueListener>(); // told about the loans that become overdue
+  private volatile FineAccrual fines; // fines computed by the last nightly job, null if none ran
+  private final LibraryMetrics metrics = new LibraryMetrics(); // latencies and errors of the
+                                                               // commands and the lookups
+  private final LibraryMetrics.Metric findBookMetric =
+      metrics.getSampled("findBook", LOOKUP_SAMPLE_RATE);
+  private final LibraryMetrics.Metric findSubscriberMetric =
+      metrics.getSampled("findSubscriber", LOOKUP_SAMPLE_RATE);
+  private final LibraryMetrics.Metric findByTitleMetric =
+      metrics.getSampled("findBookByTitle", LOOKUP_SAMPLE_RATE);
+  private final LibraryMetrics.Metric findByAuthorMetric =
+      metrics.getSampled("findBookByAuthor", LOOKUP_SAMPLE_RATE);
+  private final CopyOnWriteArrayList<BookAvailabilityListener> availabilityListeners =
+      new CopyOnWriteArrayList<BookAvailabilityListener>(); // told about checkouts and returns
+  private SubscriberTable subscribers; // table of this library's subscribers indexed by card bar
+                                       // code
+  private volatile LibraryJournal journal; // journal of the mutations of this library, null if
+                                           // they are only kept in memory
+  private long journalSequence; // last record of the journal in the restored snapshot, 0 if none
+  private ExecutorService backgroundSaves; // thread of the background saves, created by the first
+                                           // one
 
   /**
    * Creates a new Library and initializes all its instance fields. Initially both books and
@@ -65,11 +280,33 @@ public class ExceptionalLibrary {
    * @param librarianPassword password of the librarian of this book library
    */
   public ExceptionalLibrary(String address, String librarianUsername, String librarianPassword) {
+    this(address, librarianUsername, librarianPassword, new BookCatalog());
+  }
+
+  /**
+   * Creates a new empty library that stores its books in a given catalog, for instance a
+   * ColumnarBookCatalog for a very large collection
+   * 
+   * @param address           Address of this Library
+   * @param librarianUsername username of the librarian of this book library
+   * @param librarianPassword password of the librarian of this book library
+   * @param catalog           empty catalog of the books of this library
+   */
+  public ExceptionalLibrary(String address, String librarianUsername, String librarianPassword,
+      BookCatalog catalog) {
     this.address = address;
     this.librarian = new Librarian(librarianUsername, librarianPassword); // creates the librarian
                                                                           // of this library
-    books = new ArrayList<Book>(); // creates an empty arraylist of books
-    subscribers = new ArrayList<Subscriber>(); // creates an empty arraylist of subscribers
+    books = catalog; // empty catalog of books
+    searchIndex = new SearchIndex(); // creates an empty index of titles and authors
+    substringIndex = new SubstringIndex(searchIndex); // creates an empty dictionary of the titles
+                                                      // and the authors
+    fullTextIndex = new FullTextIndex(); // creates an empty index of the words
+    searchCache = new SearchCache(); // creates an empty cache of search results
+    availabilityListeners.add(searchCache); // keeps the availability of the cached books exact
+    availability = new AvailabilityIndex(); // creates an empty bitmap of the available books
+    availabilityListeners.add(availability);
+    subscribers = new SubscriberTable(); // creates an empty table of subscribers
   }
 
   /**
@@ -99,12 +336,15 @@ public class ExceptionalLibrary {
    * @return reference to the Book if found and null otherwise
    */
   public Book findBook(int bookId) {
-    // traverse the list of books and look for a match with bookId
-    for (int i = 0; i < books.size(); i++)
-      if (books.get(i).getID() == bookId) // match found
-        return books.get(i);
+    // look for bookId in the index of the catalog
+    long start = findBookMetric.start();
+    Book book = books.get(bookId);
+    findBookMetric.record(start, book != null);
+    if (book != null) // match found
+      return book;
     // book not found: display an error message and return null
-    System.out.println("Error: this book identifier didn't match any of our books identifiers.");
+    OutputSink.current()
+        .println("Error: this book identifier didn't match any of our books identifiers.");
     return null;
   }
 
@@ -119,13 +359,8 @@ public class ExceptionalLibrary {
    *         found)
    */
   public ArrayList<Book> findBookByTitle(String title) {
-    ArrayList<Book> foundBooks = new ArrayList<>(); // create an empty ArrayList to store found
-                                                    // books
-    // traverse the ArrayList books looking for books matching with the provided title
-    for (int i = 0; i < books.size(); i++)
-      if (books.get(i).getTitle().equalsIgnoreCase(title))
-        foundBooks.add(books.get(i));
-    return foundBooks; // return found books ArrayList. It may be empty
+    // look up the case folded title in the cache, then in the index of titles
+    return search(true, title).toList(); // found books ArrayList. It may be empty
   }
 
   /**
@@ -136,12 +371,363 @@ public class ExceptionalLibrary {
    * @return ArrayList of the books having a given author (0 or more books can be found)
    */
   public ArrayList<Book> findBookByAuthor(String author) {
-    ArrayList<Book> foundBooks = new ArrayList<>();// create an empty ArrayList to store found books
-    // traverse the ArrayList books looking for books matching with the provided author
-    for (int i = 0; i < books.size(); i++)
-      if (books.get(i).getAuthor().equalsIgnoreCase(author))
-        foundBooks.add(books.get(i));
-    return foundBooks; // return found books ArrayList. It may be empty
+    // look up the case folded author in the cache, then in the index of authors
+    return search(false, author).toList(); // found books ArrayList. It may be empty
+  }
+
+  /**
+   * Returns a page of the books having a given title in this library, ordered by book identifier.
+   * The comparison used by this method is case insensitive. A search that matches many books only
+   * reads the books of the page.
+   * 
+   * @param title title of the book(s) to find
+   * @param after continuation token: BookPage.FIRST for the first page, getNext() of the previous
+   *              page for the next ones
+   * @param limit number of books of the page at most (at least 1)
+   * @return the page of the books found
+   */
+  public BookPage findBookByTitle(String title, int after, int limit) {
+    return page(true, title, after, limit);
+  }
+
+  /**
+   * Returns a page of the books having a given author, ordered by book identifier. The comparison
+   * used by this method is case insensitive.
+   * 
+   * @param author author of the book(s) to find
+   * @param after  continuation token: BookPage.FIRST for the first page, getNext() of the previous
+   *               page for the next ones
+   * @param limit  number of books of the page at most (at least 1)
+   * @return the page of the books found
+   */
+  public BookPage findBookByAuthor(String author, int after, int limit) {
+    return page(false, author, after, limit);
+  }
+
+  /**
+   * Returns a page of the books of this library, in the order they were added
+   * 
+   * @param after continuation token: BookPage.FIRST for the first page, getNext() of the previous
+   *              page for the next ones
+   * @param limit number of books of the page at most (at least 1)
+   * @return the page of the books
+   */
+  public BookPage listBooks(int after, int limit) {
+    return BookPage.read(books.iteratorAfter(after), limit);
+  }
+
+  /**
+   * Returns the list of the available books having a given title in this library. The comparison
+   * used by this method is case insensitive
+   * 
+   * @param title title of the book(s) to find
+   * @return ArrayList of the books on the shelf having a given title (0 or more books can be found)
+   */
+  public ArrayList<Book> findAvailableBooksByTitle(String title) {
+    return availableOnly(search(true, title));
+  }
+
+  /**
+   * Returns the list of the available books having a given author. The comparison used by this
+   * method is case insensitive
+   * 
+   * @param author author of the book(s) to find
+   * @return ArrayList of the books on the shelf having a given author (0 or more books can be
+   *         found)
+   */
+  public ArrayList<Book> findAvailableBooksByAuthor(String author) {
+    return availableOnly(search(false, author));
+  }
+
+  /**
+   * Returns the books whose title contains a given text. The comparison used by this method is
+   * case insensitive
+   * 
+   * @param text  part of the title of the book(s) to find
+   * @param limit number of books to find at most
+   * @return ArrayList of at most limit books, ordered by book identifier
+   */
+  public ArrayList<Book> findBooksByTitleContaining(String text, int limit) {
+    return scan(true, text, false, limit);
+  }
+
+  /**
+   * Returns the books whose title starts with a given text. The comparison used by this method is
+   * case insensitive
+   * 
+   * @param text  beginning of the title of the book(s) to find
+   * @param limit number of books to find at most
+   * @return ArrayList of at most limit books, ordered by book identifier
+   */
+  public ArrayList<Book> findBooksByTitleStartingWith(String text, int limit) {
+    return scan(true, text, true, limit);
+  }
+
+  /**
+   * Returns the books whose author contains a given text. The comparison used by this method is
+   * case insensitive
+   * 
+   * @param text  part of the author of the book(s) to find
+   * @param limit number of books to find at most
+   * @return ArrayList of at most limit books, ordered by book identifier
+   */
+  public ArrayList<Book> findBooksByAuthorContaining(String text, int limit) {
+    return scan(false, text, false, limit);
+  }
+
+  /**
+   * Returns the books whose author starts with a given text. The comparison used by this method is
+   * case insensitive
+   * 
+   * @param text  beginning of the author of the book(s) to find
+   * @param limit number of books to find at most
+   * @return ArrayList of at most limit books, ordered by book identifier
+   */
+  public ArrayList<Book> findBooksByAuthorStartingWith(String text, int limit) {
+    return scan(false, text, true, limit);
+  }
+
+  /**
+   * Scans the titles or the authors of all the books for a text, in parallel
+   * 
+   * @param byTitle true to scan the titles, false to scan the authors
+   * @param text    text to find, case insensitive
+   * @param prefix  true if the title or author must start with the text, false if it must contain
+   *                it
+   * @param limit   number of books to find at most
+   * @return the books found, ordered by identifier
+   */
+  private ArrayList<Book> scan(boolean byTitle, String text, boolean prefix, int limit) {
+    long start = System.nanoTime();
+    ArrayList<Book> found = substringIndex.find(books, byTitle, text, prefix, limit);
+    metrics.get(prefix ? "findBooksStartingWith" : "findBooksContaining").record(start,
+        !found.isEmpty());
+    return found;
+  }
+
+  /**
+   * Returns the books that best match some words: the books having at least one of the words in
+   * their title or author, ranked by relevance (see FullTextIndex). The comparison used by this
+   * method is case insensitive
+   * 
+   * @param query words to find, in any order
+   * @param k     number of books to return at most
+   * @return ArrayList of at most k hits, the best match first
+   */
+  public ArrayList<FullTextIndex.Hit> searchBooks(String query, int k) {
+    long start = System.nanoTime();
+    ArrayList<FullTextIndex.Hit> hits = fullTextIndex.search(books, query, k);
+    metrics.get("searchBooks").record(start, !hits.isEmpty());
+    return hits;
+  }
+
+  /**
+   * Intersects the books found by a search with the bitmap of the available books
+   * 
+   * @param result books found, ordered by identifier
+   * @return the books of the result that are on the shelf, ordered by identifier
+   */
+  private ArrayList<Book> availableOnly(SearchCache.Result result) {
+    ArrayList<Book> found = new ArrayList<Book>(result.size());
+    for (int i = 0; i < result.size(); i++)
+      if (availability.isAvailable(result.getID(i))) // the books out are not read
+        found.add(result.get(i));
+    return found;
+  }
+
+  /**
+   * Returns the books having a given title or author with their availability, from the search
+   * cache if the same search was made recently, from the search index otherwise
+   * 
+   * @param byTitle true to search by title, false to search by author
+   * @param s       title or author of the books to find, case insensitive
+   * @return the result of the search (0 or more books)
+   */
+  private SearchCache.Result search(boolean byTitle, String s) {
+    LibraryMetrics.Metric metric = byTitle ? findByTitleMetric : findByAuthorMetric;
+    long start = metric.start();
+    String key = byTitle ? SearchCache.titleKey(s) : SearchCache.authorKey(s);
+    SearchCache.Result result = searchCache.get(key);
+    if (result == null) { // miss: look up the index and cache the books found
+      long generation = searchCache.getGeneration();
+      ArrayList<Book> found =
+          byTitle ? searchIndex.findByTitle(books, s) : searchIndex.findByAuthor(books, s);
+      result = searchCache.put(key, found, generation);
+    }
+    metric.record(start, result.size() > 0);
+    return result;
+  }
+
+  /**
+   * Returns a page of the books having a given title or author, from the search cache if the whole
+   * result was cached, from the search index otherwise. A first page that holds the whole result
+   * is cached, so the cache never holds more than a page of a search.
+   * 
+   * @param byTitle true to search by title, false to search by author
+   * @param s       title or author of the books to find, case insensitive
+   * @param after   continuation token of the page
+   * @param limit   number of books of the page at most
+   * @return the page of the books found
+   */
+  private BookPage page(boolean byTitle, String s, int after, int limit) {
+    LibraryMetrics.Metric metric = byTitle ? findByTitleMetric : findByAuthorMetric;
+    long start = metric.start();
+    String key = byTitle ? SearchCache.titleKey(s) : SearchCache.authorKey(s);
+    SearchCache.Result result = searchCache.get(key);
+    BookPage page;
+    if (result != null) {
+      page = result.page(after, limit);
+    } else {
+      long generation = searchCache.getGeneration();
+      page = byTitle ? searchIndex.pageByTitle(books, s, after, limit)
+          : searchIndex.pageByAuthor(books, s, after, limit);
+      if (after == BookPage.FIRST && !page.hasNext())
+        searchCache.put(key, page.getBooks(), generation); // the whole result
+    }
+    metric.record(start, !page.getBooks().isEmpty());
+    return page;
+  }
+
+  /**
+   * Returns the metrics of this library: the latencies and the errors of its commands, lookups,
+   * loads and saves
+   * 
+   * @return the metrics
+   */
+  public LibraryMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Returns the cache of the results of the searches by title and by author of this library
+   * 
+   * @return the search cache, with its hit rate statistics
+   */
+  public SearchCache getSearchCache() {
+    return searchCache;
+  }
+
+  /**
+   * Returns the hold queues of the books of this library
+   * 
+   * @return the hold queues, with the number of holds waiting and served
+   */
+  public HoldQueues getHoldQueues() {
+    return holds;
+  }
+
+  /**
+   * Returns the due dates of the books checked out in this library
+   * 
+   * @return the loan schedule, with the overdue books found so far
+   */
+  public LoanSchedule getLoanSchedule() {
+    return loans;
+  }
+
+  /**
+   * Returns the clock giving the time of the checkouts and of the due dates of this library
+   * 
+   * @return the clock of this library
+   */
+  public Clock getClock() {
+    return clock;
+  }
+
+  /**
+   * Replaces the clock of this library, for instance by a simulated clock. The due dates already
+   * recorded are forgotten, so the clock is set before the first checkout.
+   * 
+   * @param clock new clock of this library
+   */
+  void setClock(Clock clock) {
+    this.clock = clock;
+    loans = new LoanSchedule(OVERDUE_TICK, clock.millis());
+  }
+
+  /**
+   * Registers a listener told about every loan of this library that becomes overdue
+   * 
+   * @param listener listener to register
+   */
+  public void addOverdueListener(OverdueListener listener) {
+    overdueListeners.add(listener);
+  }
+
+  /**
+   * Finds the loans that became overdue since the last call, and tells the overdue listeners about
+   * them. Called before each command, this method costs a read of the clock when no loan is due:
+   * the timer wheel of the due dates is advanced, the loans are never scanned. It returns at once
+   * while another command advances the wheel: that command tells the listeners.
+   * 
+   * @return the number of loans that became overdue
+   */
+  public int checkOverdueLoans() {
+    LoanSchedule loans = this.loans;
+    int count = 0;
+    for (int id : loans.advance(clock.millis())) {
+      Book book = books.get(id);
+      Integer borrower = book == null ? null : book.getBorrowerCardBarCode();
+      if (borrower == null)
+        continue; // returned meanwhile
+      count++;
+      for (OverdueListener listener : overdueListeners)
+        listener.loanOverdue(book, borrower, loans.getDueDate(id));
+    }
+    return count;
+  }
+
+  /**
+   * Computes the fines of all the subscribers of this library, in parallel with the threads of a
+   * pool, and keeps them until the next run
+   * 
+   * @param pool fork/join pool running the job
+   * @return the job run, with the fine of each subscriber and the timing of its phases
+   */
+  public FineAccrual accrueFines(ForkJoinPool pool) {
+    FineAccrual job = new FineAccrual(this, clock.millis());
+    job.run(pool);
+    fines = job;
+    return job;
+  }
+
+  /**
+   * Returns the fines computed by the last nightly job
+   * 
+   * @return the last job run, null if the job never ran
+   */
+  public FineAccrual getFines() {
+    return fines;
+  }
+
+  /**
+   * Returns the bitmap of the available books of this library
+   * 
+   * @return the availability index, with the circulation counters
+   */
+  public AvailabilityIndex getAvailabilityIndex() {
+    return availability;
+  }
+
+  /**
+   * Registers a listener told about every book checked out or returned in this library
+   * 
+   * @param listener listener to register
+   */
+  public void addAvailabilityListener(BookAvailabilityListener listener) {
+    availabilityListeners.add(listener);
+  }
+
+  /**
+   * Tells the availability listeners that a book was checked out or returned. Also called by the
+   * replay of a journal.
+   * 
+   * @param book       book checked out or returned
+   * @param checkedOut true if the book was checked out, false if it was returned
+   */
+  void fireAvailabilityChanged(Book book, boolean checkedOut) {
+    for (BookAvailabilityListener listener : availabilityListeners)
+      listener.availabilityChanged(book, checkedOut);
   }
 
   /**
@@ -150,10 +736,302 @@ public class ExceptionalLibrary {
    * 
    * @param title  title of the new book
    * @param author author of the new book
+   * @return a reference to the new book
    */
-  public void addBook(String title, String author) {
-    books.add(new Book(title, author));
-    System.out.println("Book with Title " + title + " is successfully added to the library.");
+  public Book addBook(String title, String author) {
+    Book book = new Book(title, author);
+    LibraryJournal journal = this.journal;
+    long sequence = journal == null ? 0 : journal.logAddBook(book); // before anyone can see it
+    books.add(book);
+    searchIndex.add(book); // index the title and the author of the new book
+    substringIndex.add(book);
+    fullTextIndex.add(book);
+    searchCache.invalidate(book); // the cached searches of its title and author miss it
+    availability.add(book); // on the shelf
+    if (journal != null)
+      commit(journal, sequence);
+    OutputSink.current()
+        .println("Book with Title " + title + " is successfully added to the library.");
+    return books.get(book.getID()); // the book stored by the catalog, which may be a copy
+  }
+
+  /**
+   * Adds a batch of new books to the library without displaying a message per book
+   * 
+   * @param titles  titles of the new books
+   * @param authors authors of the new books
+   * @param count   number of books to add, from titles[0] and authors[0]
+   */
+  void addBooks(String[] titles, String[] authors, int count) {
+    Book[] batch = new Book[count];
+    for (int i = 0; i < count; i++)
+      batch[i] = new Book(titles[i], authors[i]);
+    LibraryJournal journal = this.journal;
+    long sequence = 0;
+    if (journal != null)
+      for (int i = 0; i < count; i++)
+        sequence = journal.logAddBook(batch[i]);
+    addBooks(batch, count);
+    if (journal != null)
+      commit(journal, sequence); // one wait for the whole batch
+  }
+
+  /**
+   * Adds a batch of existing books (restored from a snapshot for instance) to the library without
+   * displaying a message per book. The books are not recorded in the journal. The books already in
+   * the library (replayed again for instance) are skipped: only the books the catalog adds are
+   * indexed.
+   * 
+   * @param batch books to add, reordered so that the books added come first
+   * @param count number of books to add, from batch[0]
+   */
+  void addBooks(Book[] batch, int count) {
+    count = books.addAll(batch, count); // lock the catalog and the index once per batch
+    searchIndex.addAll(batch, count);
+    substringIndex.addAll(batch, count);
+    fullTextIndex.addAll(batch, count);
+    searchCache.invalidate(batch, count);
+    availability.addAll(batch, count); // restored books may be checked out
+  }
+
+  /**
+   * Returns the catalog of the books of this library
+   * 
+   * @return the catalog, indexed by book identifier
+   */
+  BookCatalog getBooks() {
+    return books;
+  }
+
+  /**
+   * Returns the table of the subscribers of this library
+   * 
+   * @return the table, indexed by card bar code
+   */
+  SubscriberTable getSubscribers() {
+    return subscribers;
+  }
+
+  /**
+   * Attaches a journal to this library: from now on, every mutation of the library is recorded in
+   * the journal before the command that made it returns
+   * 
+   * @param journal journal of the mutations, already replayed. null to keep them only in memory
+   */
+  public void setJournal(LibraryJournal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Returns the journal of the mutations of this library
+   * 
+   * @return the journal, null if the mutations are only kept in memory
+   */
+  public LibraryJournal getJournal() {
+    return journal;
+  }
+
+  /**
+   * Waits until a record of the journal is durable, and displays an error message if the journal
+   * cannot be written. The mutation is kept in memory anyway. The wait is deferred if the current
+   * thread defers its commits.
+   * 
+   * @param journal  journal of the record
+   * @param sequence sequence number of the record
+   */
+  private static void commit(LibraryJournal journal, long sequence) {
+    long[] deferred = DEFERRED_COMMIT.get();
+    if (deferred != null) { // batch session: one wait for a whole group of commands
+      deferred[0] = sequence;
+      return;
+    }
+    awaitCommit(journal, sequence);
+  }
+
+  /**
+   * Makes the current thread defer the waits for the journal: the mutations are still recorded in
+   * the journal, but a command returns before they are durable, and commitDeferred() waits for all
+   * of them at once. This lets a batch session group the disk writes of many commands.
+   * 
+   * @param deferred true to defer the waits of the current thread, false to wait for the deferred
+   *                 mutations and go back to one wait per command
+   */
+  void deferCommits(boolean deferred) {
+    if (deferred) {
+      DEFERRED_COMMIT.set(new long[1]);
+    } else {
+      commitDeferred();
+      DEFERRED_COMMIT.remove();
+    }
+  }
+
+  /**
+   * Waits until the mutations deferred by the current thread are durable, and displays an error
+   * message if the journal cannot be written
+   */
+  void commitDeferred() {
+    long[] deferred = DEFERRED_COMMIT.get();
+    LibraryJournal journal = this.journal;
+    if (deferred == null || deferred[0] == 0 || journal == null)
+      return;
+    long sequence = deferred[0];
+    deferred[0] = 0;
+    awaitCommit(journal, sequence); // the records of a thread are durable in their order
+  }
+
+  private static void awaitCommit(LibraryJournal journal, long sequence) {
+    if (!journal.awaitDurable(sequence)) {
+      IOException error = journal.getError();
+      OutputSink.current().println("ERROR: the change is not saved in the journal: "
+          + (error == null ? "the journal is closed." : error.getMessage()));
+    }
+  }
+
+  /**
+   * Checks out a book for a subscriber and records the checkout in the journal
+   * 
+   * @param subscriber subscriber checking out the book
+   * @param book       book to check out
+   * @return true if the book is checked out, false otherwise
+   */
+  private boolean checkoutBook(Subscriber subscriber, Book book) {
+    return checkoutBook(subscriber, book, null);
+  }
+
+  /**
+   * Checks out a book for a subscriber, directly or because the subscriber waits for it, and
+   * records the checkout in the journal
+   * 
+   * @param subscriber subscriber checking out the book
+   * @param book       book to check out
+   * @param hold       hold of the subscriber served by the checkout, null for a direct checkout
+   * @return true if the book is checked out, false otherwise
+   */
+  private boolean checkoutBook(Subscriber subscriber, Book book, HoldQueues.Hold hold) {
+    LibraryJournal journal = this.journal;
+    long sequence;
+    long dueDate = clock.millis() + LOAN_PERIOD;
+    if (journal == null) {
+      sequence = checkout(subscriber, book, hold, dueDate, null);
+    } else {
+      synchronized (journal.lockFor(book.getID())) { // records of a book in the order of changes
+        sequence = checkout(subscriber, book, hold, dueDate, journal);
+      }
+    }
+    if (sequence < 0) {
+      if (hold == null) // displayed once the locks are released, the sink may block
+        OutputSink.current().println(Subscriber.checkoutFailure((int) -sequence, book));
+      return false;
+    }
+    fireAvailabilityChanged(book, true);
+    if (journal != null)
+      commit(journal, sequence);
+    return true;
+  }
+
+  /**
+   * Checks out a book for a subscriber and records the checkout in the journal under the lock of
+   * the subscriber, so that the records of a subscriber are in the order of its changes (a
+   * checkout replayed before a return could exceed the books a subscriber can have). Nothing is
+   * displayed: the caller may hold the lock of the book in the journal.
+   * 
+   * @param journal journal of the checkout, null if none
+   * @return the sequence number of the record (0 without journal), minus the outcome of the
+   *         checkout (see Subscriber.checkout()) if the book is not checked out
+   */
+  private long checkout(Subscriber subscriber, Book book, HoldQueues.Hold hold, long dueDate,
+      LibraryJournal journal) {
+    synchronized (subscriber) { // the due date is recorded before the book can be returned
+      int status = hold == null ? subscriber.checkout(book)
+          : subscriber.receiveHold(hold, book, holds) ? Subscriber.CHECKED_OUT
+              : Subscriber.NOT_AVAILABLE;
+      if (status != Subscriber.CHECKED_OUT)
+        return -status;
+      loans.schedule(book.getID(), dueDate);
+      return journal == null ? 0
+          : journal.logCheckout(subscriber.getCARD_BAR_CODE(), book.getID(), dueDate);
+    }
+  }
+
+  /**
+   * Returns a book for a subscriber, charges the fine of a late return and records the return in
+   * the journal under the lock of the subscriber (see checkout()). Nothing is displayed: the
+   * caller may hold the lock of the book in the journal.
+   * 
+   * @param subscriber subscriber returning the book
+   * @param book       book to return
+   * @param journal    journal of the return, null if none
+   * @return {fine charged in cents, sequence number of the record (0 without journal)}, null if the
+   *         book is not returned
+   */
+  private long[] giveBack(Subscriber subscriber, Book book, LibraryJournal journal) {
+    synchronized (subscriber) { // the due date is cleared before the book can be checked out again
+      long dueDate = LoanSchedule.NOT_DUE;
+      if (subscriber.isBookInBooksCheckedOut(book))
+        dueDate = loans.cancel(book.getID());
+      if (!subscriber.giveBack(book))
+        return null;
+      long fine = FineAccrual.fineFor(dueDate, clock.millis());
+      if (fine > 0)
+        subscriber.chargeFine(fine);
+      return new long[] {fine, journal == null ? 0
+          : journal.logReturn(subscriber.getCARD_BAR_CODE(), book.getID(), fine)};
+    }
+  }
+
+  /**
+   * Hands an available book over to the first subscriber waiting for it: the book is checked out
+   * for this subscriber, as if it had asked for it at the desk. The subscribers who cannot check
+   * out more books lose their hold and the next one is served. Called after each return and after
+   * each hold placed, so that a hold placed while the book is returned is never forgotten.
+   * 
+   * @param book book that may be available
+   * @return the subscriber served, null if the book is not available or no one waits for it
+   */
+  private Subscriber serveHolds(Book book) {
+    while (book.isAvailable()) {
+      HoldQueues.Hold hold = holds.peek(book.getID()); // constant time: the head of the queue
+      if (hold == null)
+        return null;
+      Subscriber next = hold.getSubscriber();
+      if (checkoutBook(next, book, hold))
+        return next;
+      if (book.isAvailable()) // the subscriber cannot check out more books
+        next.cancelHold(book.getID(), holds);
+    }
+    return null; // checked out by someone else, who will serve the holds on return
+  }
+
+  /**
+   * Returns a book for a subscriber and records the return in the journal
+   * 
+   * @param subscriber subscriber returning the book
+   * @param book       book to return
+   * @return true if the book is returned, false otherwise
+   */
+  private boolean returnBook(Subscriber subscriber, Book book) {
+    LibraryJournal journal = this.journal;
+    long[] returned; // {fine, sequence}
+    if (journal == null) {
+      returned = giveBack(subscriber, book, null);
+    } else {
+      synchronized (journal.lockFor(book.getID())) {
+        returned = giveBack(subscriber, book, journal);
+      }
+    }
+    if (returned == null) { // displayed once the locks are released, as the fine below
+      OutputSink.current().println(Subscriber.RETURN_FAILED);
+      return false;
+    }
+    long fine = returned[0];
+    if (fine > 0) // displayed once the locks are released, the sink may block
+      OutputSink.current().println(book.getTitle() + " was returned late: a fine of "
+          + FineAccrual.formatCents(fine) + " is charged.");
+    fireAvailabilityChanged(book, false);
+    if (journal != null)
+      commit(journal, returned[1]);
+    serveHolds(book); // hand the book over to the next subscriber waiting for it, if any
+    return true;
   }
 
   /**
@@ -167,10 +1045,32 @@ public class ExceptionalLibrary {
     // find the book
     Book book = findBook(bookId); // findBook displays an error message if book not found
     if (book != null) { // book found --> remove the book
-      if (book.isAvailable()) // check if the book is available
-        books.remove(book);
-      else { // display error message, book not available
-        System.out.println("You cannot remove a non available book. This book has been "
+      LibraryJournal journal = this.journal;
+      boolean withdrawn;
+      long sequence = 0;
+      // check if the book is available and make sure no one borrows it
+      if (journal == null) {
+        withdrawn = book.withdraw();
+      } else {
+        synchronized (journal.lockFor(bookId)) {
+          withdrawn = book.withdraw();
+          if (withdrawn)
+            sequence = journal.logRemoveBook(bookId);
+        }
+      }
+      if (withdrawn) {
+        books.remove(bookId); // constant time, no shift of the following books
+        searchIndex.remove(book);
+        substringIndex.remove(book); // after the catalog: its position may be reused at once
+        fullTextIndex.remove(book);
+        searchCache.invalidate(book);
+        availability.remove(book);
+        if (journal != null)
+          commit(journal, sequence);
+      } else if (book.isWithdrawn()) { // removed by another session meanwhile
+        return null;
+      } else { // display error message, book not available
+        OutputSink.current().println("You cannot remove a non available book. This book has been "
             + "checked out by the subscriber n° " + book.getBorrowerCardBarCode() + " and is not "
             + "yet returned.");
         return null;
@@ -195,8 +1095,12 @@ public class ExceptionalLibrary {
     // create a new subscriber
     Subscriber newSubscriber = new Subscriber(name, pin, address, phoneNumber); // may throw
     // an InstantiationException
+    LibraryJournal journal = this.journal;
+    long sequence = journal == null ? 0 : journal.logAddSubscriber(newSubscriber);
     subscribers.add(newSubscriber); // add new subscriber
-    System.out.println("Library card with bar code " + newSubscriber.getCARD_BAR_CODE()
+    if (journal != null)
+      commit(journal, sequence);
+    OutputSink.current().println("Library card with bar code " + newSubscriber.getCARD_BAR_CODE()
         + " is successfully issued to the new subscriber " + name + ".");
   }
 
@@ -209,31 +1113,34 @@ public class ExceptionalLibrary {
    * @return a reference to the subscriber if found, otherwise null
    */
   public Subscriber findSubscriber(int cardBarCode) {
-    // traverse the list of subscribers looking for a subscriber having the provided cardBarCode
-    for (int i = 0; i < subscribers.size(); i++)
-      if (subscribers.get(i).getCARD_BAR_CODE() == cardBarCode)
-        return subscribers.get(i);
-    System.out.println("Error: this card bar code didn't match any of our records.");
+    // look up the slot of the provided cardBarCode in the table of subscribers
+    long start = findSubscriberMetric.start();
+    Subscriber subscriber = subscribers.get(cardBarCode);
+    findSubscriberMetric.record(start, subscriber != null);
+    if (subscriber != null)
+      return subscriber;
+    OutputSink.current().println("Error: this card bar code didn't match any of our records.");
     return null;
   }
 
   /**
    * Displays a list of books
    * 
-   * @param books ArrayList of books
+   * @param books collection of books (ArrayList or BookCatalog)
    */
-  public static void displayBooks(ArrayList<Book> books) {
+  public static void displayBooks(Collection<Book> books) {
+    OutputSink out = OutputSink.current(); // the lines are buffered and written in large blocks
     // if the list books is empty display "No books found"
     if (books.isEmpty())
-      System.out.println("No books found.");
+      out.append("No books found.").newLine();
     // books list not empty
     // Traverse the list of books and display book id, title, author, and availability of each book
-    for (int i = 0; i < books.size(); i++) {
-      System.out.print("<Book ID>: " + books.get(i).getID() + " ");
-      System.out.print("<Title>: " + books.get(i).getTitle() + " ");
-      System.out.print("<Author>: " + books.get(i).getAuthor() + " ");
-      System.out.println("<Is Available>: " + books.get(i).isAvailable());
+    for (Book book : books) {
+      out.append("<Book ID>: ").append(book.getID()).append(" <Title>: ").append(book.getTitle())
+          .append(" <Author>: ").append(book.getAuthor()).append(" <Is Available>: ")
+          .append(book.isAvailable()).newLine();
     }
+    out.flush();
   }
 
   /**
@@ -312,7 +1219,7 @@ public class ExceptionalLibrary {
     Book book = this.findBook(parseBookId(commands[2], 2));
     Subscriber subscriber = this.findSubscriber(parseCardBarCode(commands[1], 1));
     if (book != null && subscriber != null) { // book ID correct - book found && subscriber found
-      subscriber.checkoutBook(book); // helps the subscriber to check out the book
+      checkoutBook(subscriber, book); // helps the subscriber to check out the book
     }
   }
 
@@ -331,7 +1238,7 @@ public class ExceptionalLibrary {
 
     if (book != null && (subscriber != null)) { // book ID correct - book found
                                                 // subscriber found - correct card bar code
-      subscriber.returnBook(book);// helps the subscriber to return a book
+      returnBook(subscriber, book);// helps the subscriber to return a book
     }
   }
 
@@ -371,6 +1278,25 @@ public class ExceptionalLibrary {
     }
   }
 
+  /**
+   * Parses and runs a command line provided by a librarian to display the books of the library,
+   * PAGE_SIZE at a time in the order they were added: [7] displays the first page and
+   * [7 NEXT <book ID>] the page after book ID. A page is followed by the command that displays
+   * the next one, if any.
+   * 
+   * @param commands an array of Strings that stores the arguments extracted from a command line
+   *                 provided by the librarian to display the books
+   * @throws ParseException if commands include any syntax error or invalid argument (arguments
+   *                        count, book id)
+   */
+  public void parseRunLibrarianDisplayBooksCommand(String[] commands) throws ParseException {
+    BookPage page = listBooks(parsePageToken(commands, 1), PAGE_SIZE);
+    displayBooks(page.getBooks()); // "No books found." if the page is empty
+    if (page.hasNext())
+      OutputSink.current().println("More books in the library, enter " + commands[0] + " NEXT "
+          + page.getNext() + " to display the next ones.");
+  }
+
   /**
    * Parses and runs a command line provided by a librarian to remove a book
    * 
@@ -399,7 +1325,7 @@ public class ExceptionalLibrary {
                                             // exception
     Book book = this.findBook(parseBookId(commands[1], 1));
     if (book != null)
-      subscriber.checkoutBook(book);
+      checkoutBook(subscriber, book);
   }
 
   /**
@@ -417,7 +1343,64 @@ public class ExceptionalLibrary {
     // look for the book and return it if it is already checked out by the subscriber
     Book book = this.findBook(parseBookId(commands[1], 1));
     if (book != null)
-      subscriber.returnBook(book);
+      returnBook(subscriber, book);
+  }
+
+  /**
+   * Parses and runs a command line provided by a subscriber to wait for a book, to stop waiting
+   * for it, or to display the books it waits for. [H <book ID>] places a hold on a book checked
+   * out by another subscriber: the book is checked out for the subscriber as soon as it is
+   * returned, first come first served. [H <book ID> CANCEL] cancels the hold. [H] displays the
+   * books waited for with the position of the subscriber in their queues.
+   * 
+   * @param commands   an array of Strings that stores the arguments extracted from a command line
+   *                   provided by a subscriber to place, cancel or list holds
+   * @param subscriber reference to the subscriber who waits for books
+   * @throws ParseException if commands include any syntax error or invalid argument
+   */
+  public void parseRunSubscriberHoldCommand(String[] commands, Subscriber subscriber)
+      throws ParseException {
+    OutputSink out = OutputSink.current();
+    if (commands.length == 1) { // [H] list the holds
+      HoldQueues.Hold[] waiting = subscriber.getHolds();
+      if (waiting.length == 0)
+        out.println("No books waited for by this subscriber");
+      for (HoldQueues.Hold hold : waiting) {
+        Book book = books.get(hold.getBookId());
+        out.append("<Book ID>: ").append(hold.getBookId()).append(" <Title>: ")
+            .append(book == null ? "" : book.getTitle()).append(" <Position>: ")
+            .append(holds.position(hold)).newLine();
+      }
+      out.flush();
+      return;
+    }
+    if (commands.length == 3 && !commands[2].equalsIgnoreCase("CANCEL"))
+      throw new ParseException(getSyntaxErrorMsg(), 2);
+    if (commands.length > 3)
+      throw new ParseException(getSyntaxErrorMsg(), 0);
+    int bookId = parseBookId(commands[1], 1);
+    if (commands.length == 3) { // [H <book ID> CANCEL]
+      if (subscriber.cancelHold(bookId, holds))
+        out.println("Hold cancelled.");
+      else
+        out.println("You are not waiting for this book.");
+      return;
+    }
+    Book book = findBook(bookId); // [H <book ID>]
+    if (book == null)
+      return;
+    if (book.isAvailable()) {
+      out.println(book.getTitle() + " is available, check it out instead.");
+      return;
+    }
+    HoldQueues.Hold hold = subscriber.placeHold(book, holds);
+    if (hold == null)
+      return;
+    if (serveHolds(book) == subscriber) // returned meanwhile
+      out.println(book.getTitle() + " was just returned and is now checked out for you.");
+    else
+      out.println("You are waiting for " + book.getTitle() + " (position "
+          + holds.position(hold) + ").");
   }
 
   /**
@@ -436,10 +1419,20 @@ public class ExceptionalLibrary {
     try // try to change the phoneNumber of a subscriber
     {
       parsePhoneNumber(commands[1], 1);
-      subscriber.setPhoneNumber(commands[1]);
-      System.out.println("Phone number successfully updated.");
+      LibraryJournal journal = this.journal;
+      if (journal == null) {
+        subscriber.setPhoneNumber(commands[1]);
+      } else {
+        long sequence;
+        synchronized (subscriber) { // records of a subscriber in the order of its changes
+          subscriber.setPhoneNumber(commands[1]);
+          sequence = journal.logUpdatePhoneNumber(subscriber.getCARD_BAR_CODE(), commands[1]);
+        }
+        commit(journal, sequence);
+      }
+      OutputSink.current().println("Phone number successfully updated.");
     } catch (ParseException e) {
-      System.out.println(e.getMessage());
+      OutputSink.current().println(e.getMessage());
     }
   }
 
@@ -447,7 +1440,11 @@ public class ExceptionalLibrary {
    * Parses and runs a command line provided by a subscriber to find a list of books by title. This
    * method calls findBookByTitle() method and displays the content of the returned ArrayList of
    * Books if it is not empty. If no books match the search criteria (findBookByTitle() returned an
-   * empty list), this method displays the following message: "No books match your search."
+   * empty list), this method displays the following message: "No books match your search." With
+   * the AVAILABLE option [3 <title> AVAILABLE], only the books on the shelf are displayed. With the
+   * CONTAINS [3 <text> CONTAINS] and PREFIX [3 <text> PREFIX] options, the books whose title
+   * contains or starts with the text are displayed instead. The books having the title are
+   * displayed PAGE_SIZE at a time: [3 <title> NEXT <book ID>] displays the page after book ID.
    * 
    * @param commands   commands an array of Strings that stores the arguments extracted from a
    *                   command line provided by a subscriber to find a list of books by title
@@ -457,12 +1454,11 @@ public class ExceptionalLibrary {
   public void parseRunSubscriberFindBooksByTitleCommand(String[] commands, Subscriber subscriber)
       throws ParseException {
     // Search a book by title commands[1]: title
-    checkCommandArgumentsCount(commands, 2);
-    ArrayList<Book> bookList = this.findBookByTitle(commands[1]);
-    if (!bookList.isEmpty())
-      displayBooks(bookList);
-    else
-      System.out.println("No books match your search.");
+    if (commands.length == 3) { // [3 <title> AVAILABLE], [3 <text> CONTAINS] or [3 <text> PREFIX]
+      runSearchWithOption(true, commands);
+      return;
+    }
+    runPagedSearch(true, commands);
   }
 
   /**
@@ -470,7 +1466,11 @@ public class ExceptionalLibrary {
    * method makes call of findBookByAuthor() method and displays the content of the returned
    * ArrayList of Books if it is not empty. If no books match the search criteria
    * (findBookByAuthor() returned an empty list), this method displays the following message: "No
-   * books match your search."
+   * books match your search." With the AVAILABLE option [4 <author> AVAILABLE], only the books on
+   * the shelf are displayed. With the CONTAINS [4 <text> CONTAINS] and PREFIX [4 <text> PREFIX]
+   * options, the books whose author contains or starts with the text are displayed instead. The
+   * books having the author are displayed PAGE_SIZE at a time: [4 <author> NEXT <book ID>] displays
+   * the page after book ID.
    * 
    * @param commands   commands an array of Strings that stores the arguments extracted from a
    *                   command line provided by a subscriber to a list of books by author
@@ -480,12 +1480,116 @@ public class ExceptionalLibrary {
   public void parseRunSubscriberFindBooksByAuthorCommand(String[] commands, Subscriber subscriber)
       throws ParseException {
     // Search a book by author commands[1]: author
-    this.checkCommandArgumentsCount(commands, 2);
-    ArrayList<Book> bookList = this.findBookByAuthor(commands[1]);
-    if (!bookList.isEmpty())
-      displayBooks(bookList);
-    else
-      System.out.println("No books match your search.");
+    if (commands.length == 3) { // [4 <author> AVAILABLE], [4 <text> CONTAINS] or [4 <text> PREFIX]
+      runSearchWithOption(false, commands);
+      return;
+    }
+    runPagedSearch(false, commands);
+  }
+
+  /**
+   * Runs a search by title or by author and displays a page of PAGE_SIZE books, followed by the
+   * command that displays the next page if there is one, or "No books match your search."
+   * 
+   * @param byTitle  true to search by title, false to search by author
+   * @param commands arguments of the command line: the opcode and the title or author, then NEXT
+   *                 and the continuation token for the pages after the first one
+   * @throws ParseException if the command has neither 2 nor 4 arguments, or an invalid token
+   */
+  private void runPagedSearch(boolean byTitle, String[] commands) throws ParseException {
+    int after = parsePageToken(commands, 2);
+    BookPage page = page(byTitle, commands[1], after, PAGE_SIZE);
+    if (page.getBooks().isEmpty()) {
+      OutputSink.current().println("No books match your search.");
+      return;
+    }
+    displayBooks(page.getBooks());
+    if (page.hasNext())
+      OutputSink.current().println("More books match your search, enter " + commands[0] + " \""
+          + commands[1] + "\" NEXT " + page.getNext() + " to display the next ones.");
+  }
+
+  /**
+   * Parses the continuation token of a command that displays a page: the command has no token
+   * (first page), or NEXT and the token at the end of its arguments
+   * 
+   * @param commands arguments of the command line
+   * @param first    number of arguments of the command without the token
+   * @return the token, BookPage.FIRST for the first page
+   * @throws ParseException if the command has neither first nor first + 2 arguments, or if the
+   *                        token is not a book identifier
+   */
+  private int parsePageToken(String[] commands, int first) throws ParseException {
+    if (commands.length == first)
+      return BookPage.FIRST;
+    if (commands.length != first + 2 || !commands[first].equalsIgnoreCase("NEXT"))
+      throw new ParseException(getSyntaxErrorMsg(), 0);
+    return parseBookId(commands[first + 1], first + 1);
+  }
+
+  /**
+   * Runs a search by title or by author with an option: AVAILABLE displays the available books
+   * having the title or author, or "No available books match your search." if none is on the
+   * shelf; CONTAINS and PREFIX display the first SEARCH_LIMIT books whose title or author contains
+   * or starts with the text, or "No books match your search."
+   * 
+   * @param byTitle  true to search by title, false to search by author
+   * @param commands arguments of the command line: the opcode, the title, author or text, and the
+   *                 option
+   * @throws ParseException if the option is not AVAILABLE, CONTAINS nor PREFIX
+   */
+  private void runSearchWithOption(boolean byTitle, String[] commands) throws ParseException {
+    String option = commands[2];
+    if (option.equalsIgnoreCase("AVAILABLE")) {
+      ArrayList<Book> found = availableOnly(search(byTitle, commands[1]));
+      if (found.isEmpty())
+        OutputSink.current().println("No available books match your search.");
+      else
+        displayBooks(found);
+      return;
+    }
+    boolean prefix = option.equalsIgnoreCase("PREFIX");
+    if (!prefix && !option.equalsIgnoreCase("CONTAINS"))
+      throw new ParseException(getSyntaxErrorMsg(), 2);
+    ArrayList<Book> found = scan(byTitle, commands[1], prefix, SEARCH_LIMIT + 1);
+    if (found.isEmpty()) {
+      OutputSink.current().println("No books match your search.");
+    } else if (found.size() <= SEARCH_LIMIT) {
+      displayBooks(found);
+    } else { // one more book than displayed tells that the list is cut
+      displayBooks(found.subList(0, SEARCH_LIMIT));
+      OutputSink.current().println("More than " + SEARCH_LIMIT
+          + " books match your search, only the first ones are displayed.");
+    }
+  }
+
+  /**
+   * Parses and runs a command line provided by a subscriber to search books by words [F <words>].
+   * This method calls searchBooks() and displays the RANKED_RESULTS books that best match the
+   * words, the best match first, or "No books match your search." if no book has any of the words.
+   * The words can be given as one argument between double quotes or as several arguments.
+   * 
+   * @param commands   commands an array of Strings that stores the arguments extracted from a
+   *                   command line provided by a subscriber to search books by words
+   * @param subscriber reference to the subscriber who is going to search for books
+   * @throws ParseException if commands include no word
+   */
+  public void parseRunSubscriberSearchBooksCommand(String[] commands, Subscriber subscriber)
+      throws ParseException {
+    if (commands.length < 2)
+      throw new ParseException(getSyntaxErrorMsg(), 0);
+    StringBuilder query = new StringBuilder(commands[1]);
+    for (int i = 2; i < commands.length; i++)
+      query.append(' ').append(commands[i]);
+    ArrayList<FullTextIndex.Hit> hits = searchBooks(query.toString(), RANKED_RESULTS);
+    if (hits.isEmpty()) {
+      OutputSink.current().println("No books match your search.");
+      return;
+    }
+    ArrayList<Book> found = new ArrayList<Book>(hits.size());
+    for (FullTextIndex.Hit hit : hits)
+      found.add(hit.getBook());
+    displayBooks(found);
   }
 
   /**
@@ -501,44 +1605,273 @@ public class ExceptionalLibrary {
       throws ParseException {
     // Update address commands[1]: address
     this.checkCommandArgumentsCount(commands, 2);
-    subscriber.setAddress(commands[1]);
-    System.out.println("Address successfully updated.");
+    LibraryJournal journal = this.journal;
+    if (journal == null) {
+      subscriber.setAddress(commands[1]);
+    } else {
+      long sequence;
+      synchronized (subscriber) { // records of a subscriber in the order of its changes
+        subscriber.setAddress(commands[1]);
+        sequence = journal.logUpdateAddress(subscriber.getCARD_BAR_CODE(), commands[1]);
+      }
+      commit(journal, sequence);
+    }
+    OutputSink.current().println("Address successfully updated.");
   }
 
 
   /**
    * Parses and runs a command line provided by a librarian to save the titles and authors of the
-   * current list of books
+   * current list of books. The books are written to a temporary file which then replaces the file
+   * in a single step, so a crash never leaves a partly written file. With the BACKGROUND option
+   * [S <filename> BACKGROUND], the list of books is captured as it is when the command is run and
+   * written by a background thread, so the command returns at once; a message is displayed when
+   * the save is completed. With the SNAPSHOT option [S <filename> SNAPSHOT], the whole state of the
+   * library (books, subscribers, loans and histories) is saved to a binary snapshot file instead.
    * 
    * @param commands commands an array of Strings that stores the arguments extracted from a command
    *                 line provided by a librarian to save the current list of books
    * @throws ParseException if commands include any syntax error or invalid argument
    */
   public void parseRunLibrarianSaveBooksCommand(String[] commands) throws ParseException {
+    if (commands.length == 3) { // [S <filename> SNAPSHOT] or [S <filename> BACKGROUND]
+      if (commands[2].equalsIgnoreCase("SNAPSHOT")) {
+        LibrarySnapshot snapshot = new LibrarySnapshot(this);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+          snapshot.save(Paths.get(commands[1]));
+          success = true;
+          OutputSink.current().println(snapshot.getSummary());
+        } catch (IOException e) {
+          OutputSink.current()
+              .println("ERROR: the snapshot could not be saved: " + e.getMessage());
+        } finally {
+          metrics.get("saveSnapshot").record(start, success);
+        }
+      } else if (commands[2].equalsIgnoreCase("BACKGROUND")) {
+        saveBooksInBackground(commands[1]);
+      } else {
+        throw new ParseException(this.getSyntaxErrorMsg(), 2);
+      }
+      return;
+    }
     checkCommandArgumentsCount(commands, 2);
-    PrintWriter writer = null;// creates a new PrintWriter object
     try {
-      writer = new PrintWriter(commands[1], "UTF-8");// prints specified lines onto a new file of
-                                                     // specified name
-      for (int i = 0; i < books.size(); i++) {
-        writer.println(books.get(i).getTitle() + ":" + books.get(i).getAuthor());
+      saveBooks(books, Paths.get(commands[1]), null);
+    } catch (IOException | InvalidPathException e) {
+      OutputSink.current().println("ERROR: the file " + commands[1] + " could not be created");
+    }
+  }
+
+  /**
+   * Parses and runs a command line provided by a librarian to display the metrics of this library:
+   * the number of runs, the errors and the latencies of each command, lookup, load and save, then
+   * the statistics of the search cache
+   * 
+   * @param commands arguments of the command line: the opcode only
+   * @throws ParseException if commands include any syntax error or invalid argument
+   */
+  public void parseRunLibrarianMetricsCommand(String[] commands) throws ParseException {
+    checkCommandArgumentsCount(commands, 1);
+    OutputSink.current().append(metrics.getReport()).append(searchCache.getSummary()).newLine()
+        .flush();
+  }
+
+  /**
+   * Parses and runs a command line provided by a librarian to display the circulation counters of
+   * this library: the number of books, of books on the shelf and of books checked out, the number
+   * of checkouts and returns so far, and the number of holds waiting and served
+   * 
+   * @param commands arguments of the command line: the opcode only
+   * @throws ParseException if commands include any syntax error or invalid argument
+   */
+  public void parseRunLibrarianCirculationCommand(String[] commands) throws ParseException {
+    checkCommandArgumentsCount(commands, 1);
+    OutputSink.current().println(availability.getSummary());
+    OutputSink.current().println("Holds: " + holds.getWaitingCount() + " waiting, "
+        + holds.getServedCount() + " served so far.");
+  }
+
+  /**
+   * Parses and runs a command line provided by a librarian to display the books checked out and
+   * not returned by their due date, in the order they became overdue, with their borrower and
+   * their due date. The books are the ones found by the timer wheel of the due dates: the loans
+   * are not scanned.
+   * 
+   * @param commands arguments of the command line: the opcode only
+   * @throws ParseException if commands include any syntax error or invalid argument
+   */
+  public void parseRunLibrarianOverdueCommand(String[] commands) throws ParseException {
+    checkCommandArgumentsCount(commands, 1);
+    checkOverdueLoans();
+    OutputSink out = OutputSink.current();
+    int count = 0;
+    for (int id : loans.getOverdue()) {
+      Book book = books.get(id);
+      Integer borrower = book == null ? null : book.getBorrowerCardBarCode();
+      if (borrower == null)
+        continue; // returned meanwhile
+      out.append("<Book ID>: ").append(id).append(" <Title>: ").append(book.getTitle())
+          .append(" <Card bar code>: ").append(borrower).append(" <Due>: ")
+          .append(formatDueDate(loans.getDueDate(id))).newLine();
+      count++;
+    }
+    out.println(count == 0 ? "No overdue books."
+        : count + (count == 1 ? " overdue book." : " overdue books."));
+  }
+
+  /**
+   * Parses and runs a command line provided by a librarian to run the nightly job computing the
+   * fines of all the subscribers, with the threads of the common fork/join pool. The totals and
+   * the duration of each phase of the job are displayed.
+   * 
+   * @param commands arguments of the command line: the opcode only
+   * @throws ParseException if commands include any syntax error or invalid argument
+   */
+  public void parseRunLibrarianFinesCommand(String[] commands) throws ParseException {
+    checkCommandArgumentsCount(commands, 1);
+    OutputSink.current().println(accrueFines(ForkJoinPool.commonPool()).getSummary());
+  }
+
+  /**
+   * Displays the books checked out by a subscriber and not returned by their due date, and the
+   * fine computed by the last nightly job. Called when the subscriber logs in.
+   * 
+   * @param subscriber subscriber logged in
+   */
+  private void displayOverdueNotices(Subscriber subscriber) {
+    FineAccrual fines = this.fines;
+    long fine = fines == null ? 0 : fines.getFine(subscriber.getCARD_BAR_CODE());
+    if (fine > 0)
+      OutputSink.current().println("You owe " + FineAccrual.formatCents(fine) + " in fines.");
+    long now = clock.millis();
+    for (Book book : subscriber.getBooksCheckedOut()) { // at most MAX_BOOKS_CHECKED_OUT books
+      long dueDate = loans.getDueDate(book.getID());
+      if (dueDate != LoanSchedule.NOT_DUE && dueDate <= now)
+        OutputSink.current().println("Overdue: " + book.getTitle() + " was due on "
+            + formatDueDate(dueDate) + ", please return it.");
+    }
+  }
+
+  private String formatDueDate(long dueDate) {
+    return DUE_DATE_FORMAT.format(Instant.ofEpochMilli(dueDate).atZone(clock.getZone()));
+  }
+
+  /**
+   * Saves a point-in-time view of the books of this library to a file in a background thread. The
+   * sessions can keep adding, removing and checking out books while the file is written. The
+   * progress and the completion of the save are displayed to the current sink.
+   * 
+   * @param filename name of the file
+   */
+  private void saveBooksInBackground(final String filename) {
+    final OutputSink out = OutputSink.current(); // sink of the librarian who asked for the save
+    final Path file;
+    try {
+      file = Paths.get(filename);
+    } catch (InvalidPathException e) {
+      out.println("ERROR: the file " + filename + " could not be created");
+      return;
+    }
+    final Collection<Book> view = books.snapshot(); // constant time, copy-on-write
+    out.println("Saving " + view.size() + " books to " + filename + " in the background.");
+    backgroundSaves().execute(new Runnable() {
+      @Override
+      public void run() {
+        OutputSink.bind(out);
+        long start = System.nanoTime();
+        try {
+          saveBooks(view, file, out);
+          out.println(String.format("Background save completed: %d books saved to %s in %.3f s.",
+              view.size(), filename, (System.nanoTime() - start) / 1e9));
+        } catch (IOException e) {
+          out.println("ERROR: the background save to " + filename + " failed: " + e.getMessage());
+        }
       }
-    } catch (FileNotFoundException e) {
-      System.out.println("ERROR: the file savedBooks.txt could not be created");
-    } catch (UnsupportedEncodingException f) {
-      System.out.println("ERROR: UTF-8 is unknown");// this never happens. if this happens you
-                                                    // should go buy a lottery ticket
-    } finally {// closes the writer
-      if (writer != null) {
-        writer.close();
+    });
+  }
+
+  /**
+   * Returns the thread that runs the background saves of this library, one after the other
+   * 
+   * @return the executor of the background saves
+   */
+  private synchronized ExecutorService backgroundSaves() {
+    if (backgroundSaves == null)
+      backgroundSaves = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+          Thread thread = new Thread(task, "library-background-save");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    return backgroundSaves;
+  }
+
+  /**
+   * Waits until the background saves requested so far are completed
+   * 
+   * @throws InterruptedException if the current thread is interrupted while waiting
+   */
+  void awaitBackgroundSaves() throws InterruptedException {
+    try {
+      backgroundSaves().submit(new Runnable() {
+        @Override
+        public void run() {}
+      }).get();
+    } catch (ExecutionException e) {
+      // an empty task never fails
+    }
+  }
+
+  /**
+   * Writes the titles and authors of books (title:author lines) to a temporary file in the
+   * directory of a file, and then replaces the file with the temporary file
+   * 
+   * @param books books to save
+   * @param file  path of the file
+   * @param out   sink the progress is displayed to, null to display nothing
+   * @throws IOException if the file cannot be written
+   */
+  private void saveBooks(Collection<Book> books, Path file, OutputSink out) throws IOException {
+    long start = System.nanoTime();
+    boolean success = false;
+    Path directory = file.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+        int total = books.size();
+        int count = 0;
+        for (Book book : books) {
+          writer.write(book.getTitle());
+          writer.write(':');
+          writer.write(book.getAuthor());
+          writer.newLine();
+          if (out != null && ++count % SAVE_PROGRESS_STEP == 0)
+            out.println("Saving " + file + ": " + count + " of " + total + " books written.");
+        }
+      }
+      try {
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
       }
+      success = true;
+    } finally {
+      Files.deleteIfExists(temp); // if the file was not replaced
+      metrics.get("saveBooks").record(start, success);
     }
   }
 
   /**
    * Parses and runs a command line provided by a librarian to load a list of books (title:author)
    * from a file given its filename and new books with these pairs of title/author to the current
-   * list of books
+   * list of books. With the BULK option [L <filename> BULK], the file is streamed and parsed in
+   * parallel by a BulkBookLoader and a single summary line is displayed instead of one message per
+   * book. With the SNAPSHOT option [L <filename> SNAPSHOT], a snapshot saved by [S <filename>
+   * SNAPSHOT] is restored into this library, which must be empty.
    * 
    * @param commands commands an array of Strings that stores the arguments extracted from a command
    *                 line provided by a librarian to load a list of books from a file and add it to
@@ -546,10 +1879,21 @@ public class ExceptionalLibrary {
    * @throws ParseException if commands include any syntax error or invalid argument
    */
   public void parseRunLibrarianLoadBooksCommand(String[] commands) throws ParseException {
+    if (commands.length == 3) { // [L <filename> BULK] or [L <filename> SNAPSHOT]
+      if (commands[2].equalsIgnoreCase("BULK"))
+        bulkLoadBooks(commands[1]);
+      else if (commands[2].equalsIgnoreCase("SNAPSHOT"))
+        restoreSnapshot(commands[1]);
+      else
+        throw new ParseException(this.getSyntaxErrorMsg(), 2);
+      return;
+    }
     checkCommandArgumentsCount(commands, 2);// checks to see if the number of commands input is
                                             // correct
     File file = new File(commands[1]);
     BufferedReader br = null;
+    long start = System.nanoTime();
+    boolean success = false;
     try {// creates a new buffered reader to read through the file
       br = new BufferedReader(new FileReader(file));
       ArrayList<String> inputs = new ArrayList<String>();// new array list of strings to extract the
@@ -570,10 +1914,11 @@ public class ExceptionalLibrary {
         book = inputs.get(i).split(":");
         addBook(book[0].trim(), book[1].trim());
       }
+      success = true;
     } catch (FileNotFoundException e) {
-      System.out.println("ERROR: File " + commands[1] + " not found.");
+      OutputSink.current().println("ERROR: File " + commands[1] + " not found.");
     } catch (IOException f) {
-      System.out.println("ERROR: Incorrectly formatted line");
+      OutputSink.current().println("ERROR: Incorrectly formatted line");
     } finally {
       try {
         if (br != null)// checks if the buffer reader is not null, then closes it
@@ -581,8 +1926,57 @@ public class ExceptionalLibrary {
           br.close();
         }
       } catch (IOException g) {
-        System.out.println(g.getMessage());
+        OutputSink.current().println(g.getMessage());
       }
+      metrics.get("loadBooks").record(start, success);
+    }
+  }
+
+
+  /**
+   * Loads a large file of books with a BulkBookLoader and displays a summary of the load
+   * 
+   * @param filename name of the file to load
+   */
+  private void bulkLoadBooks(String filename) {
+    BulkBookLoader loader = new BulkBookLoader(this);
+    long start = System.nanoTime();
+    boolean success = false;
+    try {
+      loader.load(Paths.get(filename));
+      success = true;
+      OutputSink.current().println(loader.getSummary());
+    } catch (NoSuchFileException e) {
+      OutputSink.current().println("ERROR: File " + filename + " not found.");
+    } catch (IOException e) {
+      OutputSink.current()
+          .println("ERROR: " + loader.getSummary() + " Load stopped: " + e.getMessage());
+    } finally {
+      metrics.get("bulkLoadBooks").record(start, success);
+    }
+  }
+
+
+  /**
+   * Restores a snapshot file into this library and displays a summary of the restore
+   * 
+   * @param filename name of the snapshot file
+   */
+  private void restoreSnapshot(String filename) {
+    LibrarySnapshot snapshot = new LibrarySnapshot(this);
+    long start = System.nanoTime();
+    boolean success = false;
+    try {
+      snapshot.restore(Paths.get(filename));
+      journalSequence = snapshot.getJournalSequence();
+      success = true;
+      OutputSink.current().println(snapshot.getSummary());
+    } catch (NoSuchFileException e) {
+      OutputSink.current().println("ERROR: File " + filename + " not found.");
+    } catch (IOException e) {
+      OutputSink.current().println("ERROR: the snapshot could not be restored: " + e.getMessage());
+    } finally {
+      metrics.get("restoreSnapshot").record(start, success);
     }
   }
 
@@ -598,12 +1992,30 @@ public class ExceptionalLibrary {
    *                        is invalid or contains a syntax error
    */
   public void parseRunLoginAsLibrarian(String[] commands, Scanner scanner) throws ParseException {
-    this.checkCommandArgumentsCount(commands, 2);
-    if (this.librarian.checkPassword(commands[1])) { // check if the password is correct
-      // read and process librarian commands
-      readProcessLibrarianCommand(scanner);
-    } else { // wrong password
-      System.out.println("ERROR: Password incorrect!");
+    if (parseLoginAsLibrarian(commands)) // check if the password is correct
+      readProcessLibrarianCommand(scanner); // read and process librarian commands
+  }
+
+  /**
+   * Parses and checks a command line provided by a user to login as a librarian, without running
+   * the librarian commands. This method displays "ERROR: Password incorrect!" if the password is
+   * wrong.
+   * 
+   * @param commands arguments of the command line: the opcode and the password
+   * @return true if the password is correct, false otherwise
+   * @throws ParseException if the command line is invalid
+   */
+  boolean parseLoginAsLibrarian(String[] commands) throws ParseException {
+    long start = System.nanoTime();
+    boolean success = false;
+    try {
+      this.checkCommandArgumentsCount(commands, 2);
+      success = this.librarian.checkPassword(commands[1]);
+      if (!success)
+        OutputSink.current().println("ERROR: Password incorrect!"); // wrong password
+      return success;
+    } finally {
+      metrics.get("loginAsLibrarian").record(start, success);
     }
   }
 
@@ -618,16 +2030,36 @@ public class ExceptionalLibrary {
    *                        is invalid or contains a syntax error
    */
   public void parseRunLoginAsSubscriber(String[] commands, Scanner scanner) throws ParseException {
-    this.checkCommandArgumentsCount(commands, 3);
-    Subscriber subscriber = this.findSubscriber(parseCardBarCode(commands[1], 1));
-    if (subscriber != null) {
-      if (subscriber.getPin() == parsePinCode(commands[2], 2)) // correct PIN
-        // read and process subscriber commands
-        readProcessSubscriberCommand(subscriber, scanner);
-      else
-        System.out.println("Error: Incorrect PIN.");
-    }
+    Subscriber subscriber = parseLoginAsSubscriber(commands);
+    if (subscriber != null) // correct card bar code and PIN
+      readProcessSubscriberCommand(subscriber, scanner); // read and process subscriber commands
+  }
 
+  /**
+   * Parses and checks a command line provided by a user to login as a subscriber, without running
+   * the subscriber commands. This method displays an error message if the card bar code or the PIN
+   * is wrong.
+   * 
+   * @param commands arguments of the command line: the opcode, the card bar code and the PIN
+   * @return the subscriber logged in, null if the card bar code or the PIN is wrong
+   * @throws ParseException if the command line is invalid
+   */
+  Subscriber parseLoginAsSubscriber(String[] commands) throws ParseException {
+    long start = System.nanoTime();
+    Subscriber subscriber = null;
+    try {
+      this.checkCommandArgumentsCount(commands, 3);
+      subscriber = this.findSubscriber(parseCardBarCode(commands[1], 1));
+      if (subscriber != null && subscriber.getPin() != parsePinCode(commands[2], 2)) {
+        OutputSink.current().println("Error: Incorrect PIN.");
+        subscriber = null;
+      }
+      if (subscriber != null)
+        displayOverdueNotices(subscriber);
+      return subscriber;
+    } finally {
+      metrics.get("loginAsSubscriber").record(start, subscriber != null);
+    }
   }
 
 
@@ -637,42 +2069,7 @@ public class ExceptionalLibrary {
    * @param scanner Scanner object used to read the user command lines
    */
   public void readProcessUserCommand(Scanner scanner) {
-    String promptCommandLine = "ENTER COMMAND: ";
-    displayMainMenu(); // display the library management system main menu
-    System.out.print(promptCommandLine);
-    String command = scanner.nextLine(); // read user command line
-    String[] commands = command.trim().split(" "); // split user command
-    while (!(commands[0].equals("3") && commands.length == 1)) { // 3: Exit the application
-      try {
-        switch (commands[0]) {
-          case "1": // login as librarian commands[1]: password
-            this.parseRunLoginAsLibrarian(commands, scanner);
-            break;
-          case "2": // login as subscriber commands[1]: card bar code commands[2]: 4-digit PIN
-            this.parseRunLoginAsSubscriber(commands, scanner);
-            break;
-          default:
-            System.out.println(this.getSyntaxErrorMsg());
-        }
-      } catch (ParseException e) { // This catch block catches only ParseException exceptions thrown
-        // if the syntax of the user command line from the main menu is incorrect
-        // All exceptions thrown from readProcessLibrarianCommand() or
-        // readProcessSubscriberCommand()
-        // methods must be handled using try catch blocks within those methods.
-        String error;
-        if (e.getErrorOffset() == 0) {
-          error = " Arguments count is incorrect.";
-        } else
-          error =
-              " Argument number " + e.getErrorOffset() + " within your command line is invalid.";
-        System.out.println(e.getMessage() + error); // display the exception's error message
-      }
-      // read and split next user command line
-      displayMainMenu(); // display the library management system main menu
-      System.out.print(promptCommandLine);
-      command = scanner.nextLine(); // read user command line
-      commands = command.trim().split(" "); // split user command line
-    }
+    runCommandLoop(MAIN_COMMANDS, scanner, null); // [3]: Exit the application
   }
 
 
@@ -683,97 +2080,7 @@ public class ExceptionalLibrary {
    * @param scanner Scanner object used to read the librarian command lines
    */
   public void readProcessLibrarianCommand(Scanner scanner) {
-    // from any called method to parse and run the librarian command line
-    String promptCommandLine = "ENTER COMMAND: ";
-    ExceptionalLibrary.displayLibrarianMenu(); // display the library management system main menu
-    System.out.print(promptCommandLine);
-    String command = scanner.nextLine(); // read user command line
-    String[] commands = command.trim().split(" "); // split user command
-    while (!(commands[0].toUpperCase().equals("9") && commands.length == 1)) { // "9": Exit the
-                                                                               // application
-
-      switch (commands[0].toUpperCase()) {
-        case "1": // add a new book commands[1] title; commands[2] author
-          try {
-            parseRunLibrarianAddBookCommand(commands);
-          } catch (ParseException e) {
-            System.out.println(e.getMessage());
-          }
-
-          break;
-        case "2": // add a new subscriber: commands[1] name; commands[2] pin; commands[3] address;
-                  // commands[4] phone number
-          try {
-            parseRunLibrarianAddSubscriberCommand(commands);
-          } catch (InstantiationException e) {
-            System.out.println(e.getMessage());
-          } catch (ParseException e) {
-            System.out.println(e.getMessage());
-          }
-          break;
-        case "3": // Check out a Book for a subscriber [3 <card bar code> <book ID>]
-          try {
-            parseRunLibrarianCheckoutBookCommand(commands);
-          } catch (ParseException e) {
-            System.out.println(e.getMessage());
-          }
-          break;
-        case "4": // Return a Book for a subscriber [4 <card bar code> <book ID>]
-          try {
-            parseRunLibrarianReturnBookCommand(commands);
-          } catch (ParseException e) {
-            System.out.println(e.getMessage());
-          }
-          break;
-        case "5": // Display Personal Info of a Subscriber [5 <card bar code>]
-          try {
-            parseRunLibrarianDisplayPersonalInfoOfSubscriberCommand(commands);
-          } catch (ParseException e) {
-            System.out.println(e.getMessage());
-          }
-          break;
-        case "6": // [6 <card bar code>] Display Books Checked out by a Subscriber");
-          try {
-            parseRunLibrarianDisplayBooksCheckedOutBySubscriberCommand(commands);
-          } catch (ParseException e) {
-            System.out.println(e.getMessage());
-          }
-          break;
-        case "7": // [7] Display Books List
-          ExceptionalLibrary.displayBooks(this.books);
-          break;
-        case "8": // [8 <book ID>] Remove a Book
-          try {
-            parseRunLibrarianRemoveBookCommand(commands);
-          } catch (ParseException e) {
-            System.out.println(e.getMessage());
-          }
-          break;
-        case "L": // [L <filename>] Load list of Books from a data file named filename
-          try {
-            parseRunLibrarianLoadBooksCommand(commands);
-          } catch (ParseException e) {
-            System.out.println(e.getMessage());
-          }
-          break;
-        case "S": // [S <filename>] Save list of Books to a data file named filename
-          try {
-            parseRunLibrarianSaveBooksCommand(commands);
-          } catch (ParseException e) {
-            System.out.println(e.getMessage());
-          }
-          break;
-        default:
-          System.out.println(this.getSyntaxErrorMsg()); // Syntax Error
-
-      }
-
-
-      displayLibrarianMenu(); // display the library management system main menu
-      System.out.print(promptCommandLine);
-      command = scanner.nextLine(); // read user command line
-      commands = command.trim().split(" "); // split user command line
-    }
+    runCommandLoop(LIBRARIAN_COMMANDS, scanner, null); // [9]: Logout
   }
 
 
@@ -784,73 +2091,38 @@ public class ExceptionalLibrary {
    * @param scanner    Scanner object used to read the librarian command lines
    */
   public void readProcessSubscriberCommand(Subscriber subscriber, Scanner scanner) {
-    // from any called method to parse and run the librarian command line
-    String promptCommandLine = "ENTER COMMAND: ";
-    ExceptionalLibrary.displaySubscriberMenu(); // display the library management system main menu
-    System.out.print(promptCommandLine);
-    String command = scanner.nextLine(); // read user command line
-    String[] commands = command.trim().split(" "); // split user command
-    while (!(commands[0].toUpperCase().equals("9") && commands.length == 1)) { // "9": Exit the
-                                                                               // Subscriber space
-
-      switch (commands[0]) {
-        case "1": // check out a book commands[1]: book id
-          try {
-            parseRunSubscriberCheckoutBookCommand(commands, subscriber);
-          } catch (ParseException e) {
-            System.out.println(e.getMessage());
-          }
-          break;
-        case "2": // return a book commands[1]: book id
-          try {
-            parseRunSubscriberReturnBookCommand(commands, subscriber);
-          } catch (ParseException e) {
-            System.out.println(e.getMessage());
-          }
-          break;
-        case "3": // Search a book by title commands[1]: title
-          try {
-            parseRunSubscriberFindBooksByAuthorCommand(commands, subscriber);
-          } catch (ParseException e) {
-            System.out.println(e.getMessage());
-          }
-          break;
-        case "4": // Search a book by author commands[1]: author
-          try {
-            parseRunSubscriberFindBooksByTitleCommand(commands, subscriber);
-          } catch (ParseException e) {
-            System.out.println(e.getMessage());
-          }
-          break;
-        case "5": // print lists of books checked out
-          subscriber.displayBooksCheckedOut();
-          break;
-        case "6": // print history of books returned
-          subscriber.displayHistoryBooksReturned();
-          break;
-        case "7": // Update address commands[1]: address
-          try {
-            parseRunSubscriberUpdateAddressCommand(commands, subscriber);
-          } catch (ParseException e) {
-            System.out.println(e.getMessage());
-          }
-          break;
-        case "8": // Update phone number commands[1]: phone number
-          try {
-            parseRunSubscriberUpdatePhoneNumberCommand(commands, subscriber);
-          } catch (ParseException e) {
-            System.out.println(e.getMessage());
-          }
-          break;
+    runCommandLoop(SUBSCRIBER_COMMANDS, scanner, subscriber); // [9]: Logout
+  }
 
+  /**
+   * Displays the menu of a table of commands, then reads and runs command lines until the exit
+   * command of the menu. The errors of a command are displayed and do not stop the loop.
+   * 
+   * @param table      commands of the menu
+   * @param scanner    Scanner object used to read the command lines
+   * @param subscriber current logged in subscriber, null outside the subscriber's space
+   */
+  private void runCommandLoop(CommandTable table, Scanner scanner, Subscriber subscriber) {
+    CommandTokenizer tokenizer = new CommandTokenizer(); // reused for all the lines
+    while (true) {
+      table.displayMenu();
+      OutputSink.current().append("ENTER COMMAND: ").flush();
+      String[] commands = tokenizer.tokenize(scanner.nextLine()); // read and split user command
+      if (table.isExit(commands))
+        return;
+      CommandTable.Command command = table.lookup(commands[0]);
+      try {
+        if (command == null)
+          OutputSink.current().println(this.getSyntaxErrorMsg()); // Syntax Error
+        else if (table == MAIN_COMMANDS) // a login runs a whole session: timed by the login methods
+          command.run(this, commands, scanner, subscriber);
+        else
+          table.run(command, this, commands, scanner, subscriber); // timed in the metrics
+      } catch (ParseException e) { // syntax error or invalid argument
+        OutputSink.current().println(table.getErrorMessage(e));
+      } catch (InstantiationException e) { // no more card can be issued
+        OutputSink.current().println(e.getMessage());
       }
-
-
-      // read and split next user command line
-      displaySubscriberMenu(); // display the library management system main menu
-      System.out.print(promptCommandLine);
-      command = scanner.nextLine(); // read user command line
-      commands = command.trim().split(" "); // split user command line
     }
   }
 
@@ -862,84 +2134,200 @@ public class ExceptionalLibrary {
   }
 
 
+  /**
+   * Builds the text of a menu: a title between two lines, the options of the menu and a closing
+   * line. The menus are built once since they are displayed before every command line.
+   * 
+   * @param title   title of the menu
+   * @param options lines of the options of the menu
+   * @return the text of the menu
+   */
+  private static String menu(String title, String... options) {
+    String separator = System.lineSeparator();
+    String line = "--------------------------------------------------------" + separator;
+    StringBuilder menu = new StringBuilder(separator).append(line).append(title).append(separator);
+    menu.append(line).append("Enter one of the following options:").append(separator);
+    for (String option : options)
+      menu.append(option).append(separator);
+    return menu.append(line).toString();
+  }
+
   /**
    * Displays the main menu for this book library application
    */
   private static void displayMainMenu() {
-    System.out.println("\n--------------------------------------------------------");
-    System.out.println("     Welcome to our Book Library Management System");
-    System.out.println("--------------------------------------------------------");
-    System.out.println("Enter one of the following options:");
-    System.out.println("[1 <password>] Login as a librarian");
-    System.out.println("[2 <card bar code> <4-digits pin>] Login as a Subscriber");
-    System.out.println("[3] Exit"); // Exit the application
-    System.out.println("--------------------------------------------------------");
+    OutputSink.current().append(MAIN_MENU).flush();
   }
 
   /**
    * Displays the menu for a Subscriber
    */
   private static void displaySubscriberMenu() {
-    System.out.println("\n--------------------------------------------------------");
-    System.out.println("    Welcome to Subscriber's Space");
-    System.out.println("--------------------------------------------------------");
-    System.out.println("Enter one of the following options:");
-    System.out.println("[1 <book ID>] Check out a book");
-    System.out.println("[2 <book ID>] Return a book");
-    System.out.println("[3 <title>] Search a Book by title");
-    System.out.println("[4 <author>] Search a Book by author");
-    System.out.println("[5] Print list of books checked out");
-    System.out.println("[6] Print history of returned books");
-    System.out.println("[7 <address>] Update address");
-    System.out.println("[8 <phone number>] Update phone number");
-    System.out.println("[9] Logout");
-    System.out.println("--------------------------------------------------------");
+    OutputSink.current().append(SUBSCRIBER_MENU).flush();
   }
 
   /**
    * Displays the menu for the Librarian
    */
   private static void displayLibrarianMenu() {
-    System.out.println("\n--------------------------------------------------------");
-    System.out.println("    Welcome to Librarian's Space");
-    System.out.println("--------------------------------------------------------");
-    System.out.println("Enter one of the following options:");
-    System.out.println("[1 <title> <author>] Add new Book");
-    System.out.println("[2 <name> <pin> <address> <phone number>] Add new subscriber");
-    System.out.println("[3 <card bar code> <book ID>] Check out a Book for a subscriber");
-    System.out.println("[4 <card bar code> <book ID>] Return a Book for a subscriber");
-    System.out.println("[5 <card bar code>] Display Personal Info of a Subscriber");
-    System.out.println("[6 <card bar code>] Display Books Checked out by a Subscriber");
-    System.out.println("[7] Display All Books");
-    System.out.println("[8 <book ID>] Remove a Book");
-    System.out.println("[L <filename.data>] Load list of Books from filename.data");
-    System.out.println("[S <filename.data>] Save list of Books to filename.data");
-    System.out.println("[9] Logout");
-    System.out.println("--------------------------------------------------------");
+    OutputSink.current().append(LIBRARIAN_MENU).flush();
   }
 
   /**
    * Display the Application GoodBye and logout message.
    */
   private static void displayGoodByeLogoutMessage() {
-    System.out.println("\n--------------------------------------------------------");
-    System.out.println("       Thanks for Using our Book Library App!!!!");
-    System.out.println("--------------------------------------------------------");
+    OutputSink out = OutputSink.current();
+    out.newLine().append("--------------------------------------------------------").newLine();
+    out.append("       Thanks for Using our Book Library App!!!!").newLine();
+    out.append("--------------------------------------------------------").newLine();
+    out.flush();
+  }
+
+  /**
+   * Runs a whole user session: reads and processes the user command lines until the user exits, and
+   * then displays the good bye message
+   * 
+   * @param scanner Scanner object used to read the user command lines
+   */
+  public void runSession(Scanner scanner) {
+    readProcessUserCommand(scanner); // read and process user command lines
+    displayGoodByeLogoutMessage(); // display good bye message
   }
 
   /**
-   * Main method that represents the driver for this application
+   * Opens a journal file, replays its records into this library and attaches it to this library.
+   * This method displays the number of replayed records, or an error message.
+   * 
+   * @param filename     name of the journal file, created if it does not exist
+   * @param windowMillis durability window of the journal in milliseconds
+   * @return true if the journal is attached, false otherwise
+   */
+  private boolean openJournal(String filename, long windowMillis) {
+    LibraryJournal journal = null;
+    try {
+      journal = new LibraryJournal(Paths.get(filename), windowMillis);
+      int count = journal.replay(this, journalSequence); // changes made after the snapshot
+      if (count > 0)
+        OutputSink.current().println("Replayed " + count + " changes from the journal " + filename);
+      setJournal(journal);
+      return true;
+    } catch (IOException e) {
+      OutputSink.current().println("ERROR: the journal cannot be opened: " + e.getMessage());
+      if (journal != null)
+        try {
+          journal.close();
+        } catch (IOException f) {
+          // already reported
+        }
+      return false;
+    }
+  }
+
+  /**
+   * Main method that represents the driver for this application. With the arguments --snapshot
+   * <filename>, the library is restored from a snapshot file (if it exists) before it starts. With
+   * the arguments --journal <filename>, the changes of the library are recorded in a journal file
+   * and the changes recorded by the previous runs are replayed at start (after the snapshot, only
+   * the changes the snapshot does not have); --journal-window <ms> lets the journal be forced to
+   * the disk every ms milliseconds instead of after every change. With the arguments --server
+   * <port>, the library is served to TCP connections on the loopback address instead of the
+   * console. With the arguments --batch <filename>, the command lines of a script file are run
+   * without menus nor prompts, and a summary of the run is displayed. With the arguments --catalog
+   * columnar, the books are stored in a ColumnarBookCatalog. With the arguments --metrics
+   * <filename>, the metrics of the commands are written to a file every minute, or every
+   * --metrics-period <seconds>, and when the application stops.
    * 
    * @param args
    */
   public static void main(String[] args) {
-    Scanner scanner = new Scanner(System.in); // create a scanner object to read user inputs
+    String port = null; // TCP port of the server, null to use the console
+    String batch = null; // script run without menus instead of the console, null if none
+    String snapshot = null; // snapshot to restore at start
+    String journal = null; // journal of the changes of the library
+    long journalWindow = 0; // durability window of the journal in milliseconds
+    boolean columnar = false; // true to store the books in columns
+    String metricsFile = null; // file of the periodic dumps of the metrics, null if none
+    long metricsPeriod = 60; // seconds between two dumps of the metrics
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (args[i].equals("--snapshot")) { // restart from a snapshot
+        snapshot = args[i + 1];
+      } else if (args[i].equals("--journal")) {
+        journal = args[i + 1];
+      } else if (args[i].equals("--journal-window")) {
+        try {
+          journalWindow = Long.parseLong(args[i + 1]);
+        } catch (NumberFormatException e) {
+          System.out.println("ERROR: the journal window MUST be a NUMBER.");
+          return;
+        }
+      } else if (args[i].equals("--server")) {
+        port = args[i + 1];
+      } else if (args[i].equals("--batch")) {
+        batch = args[i + 1];
+      } else if (args[i].equals("--catalog")) {
+        columnar = args[i + 1].equalsIgnoreCase("columnar");
+      } else if (args[i].equals("--metrics")) {
+        metricsFile = args[i + 1];
+      } else if (args[i].equals("--metrics-period")) {
+        try {
+          metricsPeriod = Long.parseLong(args[i + 1]);
+        } catch (NumberFormatException e) {
+          System.out.println("ERROR: the metrics period MUST be a NUMBER.");
+          return;
+        }
+      }
+    }
     // create a new library object
-    ExceptionalLibrary madisonLibrary = new ExceptionalLibrary("Madison, WI", "april", "abc");
-    // read and process user command lines
-    madisonLibrary.readProcessUserCommand(scanner);
-    displayGoodByeLogoutMessage(); // display good bye message
-    scanner.close();// close this scanner
+    ExceptionalLibrary madisonLibrary = new ExceptionalLibrary("Madison, WI", "april", "abc",
+        columnar ? new ColumnarBookCatalog() : new BookCatalog());
+    if (snapshot != null && new File(snapshot).exists())
+      madisonLibrary.restoreSnapshot(snapshot);
+    if (journal != null && !madisonLibrary.openJournal(journal, journalWindow))
+      return;
+    if (metricsFile != null)
+      madisonLibrary.metrics.startDumps(Paths.get(metricsFile), Math.max(1, metricsPeriod));
+    try {
+      if (batch != null) { // run a script without menus nor prompts
+        BatchSession session = new BatchSession(madisonLibrary, System.out);
+        try {
+          session.run(Paths.get(batch));
+          System.out.println(session.getSummary());
+          System.out.println(madisonLibrary.getSearchCache().getSummary());
+        } catch (NoSuchFileException e) {
+          System.out.println("ERROR: File " + batch + " not found.");
+        } catch (IOException e) {
+          System.out.println("ERROR: the script " + batch + " cannot be read: " + e.getMessage());
+        }
+        return;
+      }
+      if (port != null) { // serve many kiosks on a TCP port
+        try {
+          LibraryServer server = new LibraryServer(madisonLibrary, Integer.parseInt(port));
+          server.start();
+          System.out.println("Library server listening on port " + server.getPort());
+          server.join();
+        } catch (NumberFormatException e) {
+          System.out.println("ERROR: the port MUST be a NUMBER.");
+        } catch (IOException e) {
+          System.out.println("ERROR: the server cannot start: " + e.getMessage());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return;
+      }
+      Scanner scanner = new Scanner(System.in); // create a scanner object to read user inputs
+      madisonLibrary.runSession(scanner); // read and process user command lines
+      scanner.close();// close this scanner
+    } finally {
+      madisonLibrary.metrics.stopDumps(); // last dump of the metrics, if any
+      if (madisonLibrary.journal != null)
+        try {
+          madisonLibrary.journal.close(); // write the last changes
+        } catch (IOException e) {
+          System.out.println("ERROR: the journal cannot be written: " + e.getMessage());
+        }
+    }
   }
 
   /**
@@ -0,0 +1,919 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * A benchmark suite for the ExceptionalLibrary operations, to track performance regressions and
+ * measure the gains of indexing work. Each benchmark is run for every combination of catalog size,
+ * subscriber count and thread count, with warm up iterations followed by measured iterations of a
+ * fixed duration, in the spirit of JMH (average time per operation and throughput).
+ *
+ * Usage: java ExceptionalLibraryBenchmark [-bench name,...] [-books n,...] [-subscribers n,...]
+ * [-threads n,...] [-warmup n] [-iterations n] [-time ms]
+ *
+ * or: java ExceptionalLibraryBenchmark -heap n,... to compare the heap used per book by a
+ * BookCatalog and by a ColumnarBookCatalog of n books.
+ *
+ * or: java ExceptionalLibraryBenchmark -fulltext n,... to measure the latencies of the ranked
+ * searches by words on a catalog of n books whose titles and authors are drawn from a vocabulary
+ * with a Zipf distribution (10 million books need a heap of about 3 GB: -Xmx3g).
+ *
+ * or: java ExceptionalLibraryBenchmark -fines n,... [-threads n,...] to measure the nightly job
+ * computing the fines of n subscribers (at most the number of card bar codes, about one million)
+ * on pools of the given numbers of threads.
+ *
+ * For instance: java ExceptionalLibraryBenchmark -bench findBook -books 10000,1000000,10000000
+ *
+ * The same benchmarks also run under JMH: the jmh module of the Maven build (mvn package, then
+ * java -jar jmh/target/benchmarks.jar) runs each benchmark of the suite through harness().
+ *
+ */
+public class ExceptionalLibraryBenchmark {
+  private static final int TITLE_COUNT = 1000; // number of distinct titles of a fixture catalog
+  private static final int AUTHOR_COUNT = 100; // number of distinct authors of a fixture catalog
+  private static final int LOADED_BOOKS = 10_000; // number of lines of the file of the L benchmarks
+  private static final int RANDOM_MASK = (1 << 20) - 1; // size - 1 of the random arguments arrays
+  private static final int SCRIPT_LINES = 300; // number of commands of a scripted session
+  private static final int VOCABULARY_SIZE = 50_000; // words of the titles of -fulltext
+  private static final int FULL_TEXT_QUERIES = 2_000; // measured searches of -fulltext
+  private static final int TOP_K = 10; // books returned by a ranked search
+  private static final int PAGE_SIZE = 100; // books of a page of a search or a listing
+  private static final int LOANS_PER_SUBSCRIBER = 3; // books checked out by each subscriber of
+                                                     // -fines
+
+  // configuration of the suite
+  private static List<String> benchmarkNames = new ArrayList<String>();
+  private static int[] bookCounts = {10_000, 100_000, 1_000_000};
+  private static int[] subscriberCounts = {1_000, 10_000};
+  private static int[] threadCounts = {1};
+  private static int warmupIterations = 3;
+  private static int measuredIterations = 5;
+  private static long iterationMillis = 1000;
+
+  private static volatile long blackhole; // consumes the results so they are not optimized away
+
+  /**
+   * One benchmarked operation
+   */
+  interface Operation {
+    /**
+     * Runs the operation once
+     *
+     * @param thread index of the thread running the operation
+     * @param i      index of the operation within the thread, to pick its arguments
+     * @return a value depending on the result of the operation
+     */
+    long run(int thread, int i) throws Exception;
+  }
+
+  /**
+   * A benchmark prepares its operation on a fixture, and cleans up after its iterations
+   */
+  abstract static class Benchmark {
+    final String name;
+
+    Benchmark(String name) {
+      this.name = name;
+    }
+
+    abstract Operation setUp(Fixture fixture) throws Exception;
+
+    void tearDown() throws IOException {}
+  }
+
+  /**
+   * A library with a given number of books and subscribers, and random arguments for the
+   * operations
+   */
+  static class Fixture {
+    final int bookCount;
+    final int subscriberCount;
+    final ExceptionalLibrary library;
+    final int firstBookId; // identifier of the first book of the catalog
+    final int[] bookIds; // random identifiers of books of the catalog
+    final int[] cardBarCodes; // random card bar codes of subscribers of the library
+
+    Fixture(int bookCount, int subscriberCount) throws InstantiationException {
+      this.bookCount = bookCount;
+      this.subscriberCount = subscriberCount;
+      library = new ExceptionalLibrary("Madison, WI", "april", "abc");
+      firstBookId = library.addBook("Title 0", "Author 0").getID();
+      for (int i = 1; i < bookCount; i++)
+        library.addBook("Title " + (i % TITLE_COUNT), "Author " + (i % AUTHOR_COUNT));
+      // the card issued to the first subscriber of the library follows the card of this probe
+      int firstCode = new Subscriber("Probe", 1234, "Madison", "6081234567").getCARD_BAR_CODE() + 1;
+      for (int i = 0; i < subscriberCount; i++)
+        library.addSubscriber("Subscriber " + i, 1234, "Madison", "6081234567");
+      Random random = new Random(42);
+      bookIds = new int[RANDOM_MASK + 1];
+      cardBarCodes = new int[RANDOM_MASK + 1];
+      for (int i = 0; i <= RANDOM_MASK; i++) {
+        bookIds[i] = firstBookId + random.nextInt(bookCount);
+        cardBarCodes[i] = firstCode + random.nextInt(subscriberCount);
+      }
+    }
+  }
+
+  /**
+   * Returns all the benchmarks of the suite
+   */
+  static List<Benchmark> allBenchmarks() {
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    benchmarks.add(new Benchmark("findBook") {
+      @Override
+      Operation setUp(final Fixture f) {
+        return new Operation() {
+          @Override
+          public long run(int thread, int i) {
+            return f.library.findBook(f.bookIds[(i + thread * 7919) & RANDOM_MASK]).getID();
+          }
+        };
+      }
+    });
+    benchmarks.add(new Benchmark("findBookByTitle") {
+      @Override
+      Operation setUp(final Fixture f) {
+        return new Operation() {
+          @Override
+          public long run(int thread, int i) {
+            return f.library.findBookByTitle("TITLE " + (i % TITLE_COUNT)).size();
+          }
+        };
+      }
+    });
+    benchmarks.add(new Benchmark("findBookByAuthor") {
+      @Override
+      Operation setUp(final Fixture f) {
+        return new Operation() {
+          @Override
+          public long run(int thread, int i) {
+            return f.library.findBookByAuthor("author " + (i % AUTHOR_COUNT)).size();
+          }
+        };
+      }
+    });
+    benchmarks.add(new Benchmark("findBookByAuthorPage") {
+      @Override
+      Operation setUp(final Fixture f) {
+        return new Operation() {
+          @Override
+          public long run(int thread, int i) {
+            return f.library.findBookByAuthor("author " + (i % AUTHOR_COUNT), BookPage.FIRST,
+                PAGE_SIZE).getNext();
+          }
+        };
+      }
+    });
+    // the same searches missing the search cache, which holds every title and author of a fixture:
+    // the cache is cleared before each search, which looks up the index and caches its result
+    benchmarks.add(new Benchmark("findBookByTitleUncached") {
+      @Override
+      Operation setUp(final Fixture f) {
+        return new Operation() {
+          @Override
+          public long run(int thread, int i) {
+            f.library.getSearchCache().clear();
+            return f.library.findBookByTitle("TITLE " + (i % TITLE_COUNT)).size();
+          }
+        };
+      }
+    });
+    benchmarks.add(new Benchmark("findBookByAuthorUncached") {
+      @Override
+      Operation setUp(final Fixture f) {
+        return new Operation() {
+          @Override
+          public long run(int thread, int i) {
+            f.library.getSearchCache().clear();
+            return f.library.findBookByAuthor("author " + (i % AUTHOR_COUNT)).size();
+          }
+        };
+      }
+    });
+    benchmarks.add(new Benchmark("findBookByAuthorPageUncached") {
+      @Override
+      Operation setUp(final Fixture f) {
+        return new Operation() {
+          @Override
+          public long run(int thread, int i) {
+            f.library.getSearchCache().clear();
+            return f.library.findBookByAuthor("author " + (i % AUTHOR_COUNT), BookPage.FIRST,
+                PAGE_SIZE).getNext();
+          }
+        };
+      }
+    });
+    benchmarks.add(new Benchmark("listBooksPage") {
+      @Override
+      Operation setUp(final Fixture f) {
+        return new Operation() {
+          private int next = BookPage.FIRST; // the pages of a thread follow each other
+
+          @Override
+          public long run(int thread, int i) {
+            BookPage page = f.library.listBooks(thread == 0 ? next : BookPage.FIRST, PAGE_SIZE);
+            if (thread == 0)
+              next = page.getNext(); // back to the first page after the last one
+            return page.getBooks().size();
+          }
+        };
+      }
+    });
+    benchmarks.add(new Benchmark("findAvailableBooksByAuthor") {
+      @Override
+      Operation setUp(final Fixture f) {
+        return new Operation() {
+          @Override
+          public long run(int thread, int i) {
+            return f.library.findAvailableBooksByAuthor("author " + (i % AUTHOR_COUNT)).size();
+          }
+        };
+      }
+    });
+    benchmarks.add(new Benchmark("findBooksByTitleContaining") {
+      @Override
+      Operation setUp(final Fixture f) {
+        return new Operation() {
+          @Override
+          public long run(int thread, int i) {
+            return f.library.findBooksByTitleContaining("itle " + (i % TITLE_COUNT), 100).size();
+          }
+        };
+      }
+    });
+    benchmarks.add(new Benchmark("searchBooks") {
+      @Override
+      Operation setUp(final Fixture f) {
+        return new Operation() {
+          @Override
+          public long run(int thread, int i) {
+            return f.library.searchBooks("title " + (i % TITLE_COUNT) + " author "
+                + (i % AUTHOR_COUNT), TOP_K).size();
+          }
+        };
+      }
+    });
+    benchmarks.add(new Benchmark("findSubscriber") {
+      @Override
+      Operation setUp(final Fixture f) {
+        return new Operation() {
+          @Override
+          public long run(int thread, int i) {
+            return f.library.findSubscriber(f.cardBarCodes[(i + thread * 7919) & RANDOM_MASK])
+                .getPin();
+          }
+        };
+      }
+    });
+    benchmarks.add(new Benchmark("addRemoveBook") {
+      @Override
+      Operation setUp(final Fixture f) {
+        return new Operation() {
+          @Override
+          public long run(int thread, int i) {
+            Book book = f.library.addBook("Title " + (i % TITLE_COUNT), "Author");
+            return f.library.removeBook(book.getID()).getID();
+          }
+        };
+      }
+    });
+    benchmarks.add(new CheckoutReturnBenchmark("checkoutReturn", -1));
+    benchmarks.add(new CheckoutReturnBenchmark("checkoutReturnJournaled", 0));
+    benchmarks.add(new CheckoutReturnBenchmark("checkoutReturnJournaled10ms", 10));
+    benchmarks.add(new Benchmark("holdHandoff") {
+      @Override
+      Operation setUp(final Fixture f) {
+        return new Operation() {
+          @Override
+          public long run(int thread, int i) throws Exception {
+            int k = (i + thread * 7919) & RANDOM_MASK;
+            String book = "" + f.bookIds[k];
+            String owner = "" + f.cardBarCodes[k];
+            String waiting = "" + f.cardBarCodes[(k + 1) & RANDOM_MASK];
+            // the owner checks the book out, the other subscriber waits for it and gets it on
+            // return (librarian commands 3 and 4, subscriber command H)
+            f.library.parseRunLibrarianCheckoutBookCommand(new String[] {"3", owner, book});
+            f.library.parseRunSubscriberHoldCommand(new String[] {"H", book},
+                f.library.findSubscriber(Integer.parseInt(waiting)));
+            f.library.parseRunLibrarianReturnBookCommand(new String[] {"4", owner, book});
+            f.library.parseRunLibrarianReturnBookCommand(new String[] {"4", waiting, book});
+            return k;
+          }
+        };
+      }
+    });
+    benchmarks.add(new ScriptBenchmark("scriptedSession", false));
+    benchmarks.add(new ScriptBenchmark("batchSession", true));
+    benchmarks.add(new LoadBenchmark("loadBooks", false));
+    benchmarks.add(new LoadBenchmark("loadBooksBulk", true));
+    benchmarks.add(new Benchmark("saveBooks") {
+      private Path file;
+
+      @Override
+      Operation setUp(final Fixture f) throws IOException {
+        file = Files.createTempFile("saved", ".txt");
+        final String[] commands = {"S", file.toString()};
+        return new Operation() {
+          @Override
+          public long run(int thread, int i) throws Exception {
+            f.library.parseRunLibrarianSaveBooksCommand(commands); // librarian command S
+            return i;
+          }
+        };
+      }
+
+      @Override
+      void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+      }
+    });
+    benchmarks.add(new ListingBenchmark("listBooksPrintStream", false));
+    benchmarks.add(new ListingBenchmark("listBooksSink", true));
+    benchmarks.add(new Benchmark("contendedBorrowReturn") {
+      @Override
+      Operation setUp(Fixture f) {
+        final Book[] books = new Book[64]; // few books, so the threads compete for them
+        for (int i = 0; i < books.length; i++)
+          books[i] = new Book("Title " + i, "Author");
+        final int cardBarCode = f.cardBarCodes[0];
+        return new Operation() {
+          @Override
+          public long run(int thread, int i) {
+            Book book = books[(thread + i) & (books.length - 1)];
+            if (!book.borrowBook(cardBarCode + thread))
+              return 0;
+            book.returnBook(cardBarCode + thread);
+            return 1;
+          }
+        };
+      }
+    });
+    return benchmarks;
+  }
+
+  /**
+   * Measures librarian commands 3 and 4 checking out and returning random books, with the changes
+   * kept in memory or recorded in a journal
+   */
+  static class CheckoutReturnBenchmark extends Benchmark {
+    private final long journalWindow; // durability window of the journal, -1 for no journal
+    private Path file;
+    private Fixture fixture;
+
+    CheckoutReturnBenchmark(String name, long journalWindow) {
+      super(name);
+      this.journalWindow = journalWindow;
+    }
+
+    @Override
+    Operation setUp(final Fixture f) throws IOException {
+      fixture = f;
+      if (journalWindow >= 0) {
+        file = Files.createTempFile("library", ".journal");
+        Files.delete(file);
+        f.library.setJournal(new LibraryJournal(file, journalWindow));
+      }
+      final String[][] checkouts = new String[RANDOM_MASK + 1][];
+      final String[][] returns = new String[RANDOM_MASK + 1][];
+      for (int i = 0; i <= RANDOM_MASK; i++) {
+        checkouts[i] = new String[] {"3", "" + f.cardBarCodes[i], "" + f.bookIds[i]};
+        returns[i] = new String[] {"4", checkouts[i][1], checkouts[i][2]};
+      }
+      return new Operation() {
+        @Override
+        public long run(int thread, int i) throws Exception {
+          int k = (i + thread * 7919) & RANDOM_MASK; // librarian commands 3 and 4
+          f.library.parseRunLibrarianCheckoutBookCommand(checkouts[k]);
+          f.library.parseRunLibrarianReturnBookCommand(returns[k]);
+          return k;
+        }
+      };
+    }
+
+    @Override
+    void tearDown() throws IOException {
+      LibraryJournal journal = fixture.library.getJournal();
+      if (journal != null) {
+        fixture.library.setJournal(null);
+        long[] counts = journal.getCounts();
+        journal.close();
+        Files.deleteIfExists(file);
+        System.out.printf("  (%,d records, %,d fsyncs, %.1f records per fsync)%n", counts[0],
+            counts[2], (double) counts[0] / Math.max(1, counts[2]));
+      }
+    }
+  }
+
+  /**
+   * Measures librarian sessions of SCRIPT_LINES check out, return and display commands, either
+   * typed in the interactive librarian's space or run by a BatchSession without menus nor prompts
+   */
+  static class ScriptBenchmark extends Benchmark {
+    private final boolean batch;
+
+    ScriptBenchmark(String name, boolean batch) {
+      super(name);
+      this.batch = batch;
+    }
+
+    @Override
+    Operation setUp(final Fixture f) {
+      final String[] scripts = new String[16];
+      for (int i = 0; i < scripts.length; i++) {
+        StringBuilder script = new StringBuilder(batch ? "1 abc\n" : ""); // login as librarian
+        for (int line = 0; line < SCRIPT_LINES; line += 3) {
+          int k = (i * SCRIPT_LINES + line) & RANDOM_MASK;
+          script.append("3 ").append(f.cardBarCodes[k]).append(' ').append(f.bookIds[k]);
+          script.append("\n4 ").append(f.cardBarCodes[k]).append(' ').append(f.bookIds[k]);
+          script.append("\n5 ").append(f.cardBarCodes[k]).append('\n');
+        }
+        scripts[i] = script.append("9\n").toString();
+      }
+      final ThreadLocal<BatchSession> sessions = new ThreadLocal<BatchSession>() {
+        @Override
+        protected BatchSession initialValue() {
+          return new BatchSession(f.library, new OutputStream() {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+          });
+        }
+      };
+      return new Operation() {
+        @Override
+        public long run(int thread, int i) throws Exception {
+          String script = scripts[(thread + i) & 15];
+          if (!batch) {
+            f.library.readProcessLibrarianCommand(new Scanner(script));
+            return i;
+          }
+          BatchSession session = sessions.get();
+          session.run(new StringReader(script));
+          return session.getCommandCount();
+        }
+      };
+    }
+  }
+
+  /**
+   * Measures librarian command L loading a file of LOADED_BOOKS lines into an empty library
+   */
+  static class LoadBenchmark extends Benchmark {
+    private final boolean bulk;
+    private Path file;
+
+    LoadBenchmark(String name, boolean bulk) {
+      super(name);
+      this.bulk = bulk;
+    }
+
+    @Override
+    Operation setUp(Fixture f) throws IOException {
+      file = Files.createTempFile("books", ".txt");
+      try (PrintWriter writer = new PrintWriter(file.toFile(), "UTF-8")) {
+        for (int i = 0; i < LOADED_BOOKS; i++)
+          writer.println("Title " + (i % TITLE_COUNT) + ":Author " + (i % AUTHOR_COUNT));
+      }
+      final String[] commands =
+          bulk ? new String[] {"L", file.toString(), "BULK"} : new String[] {"L", file.toString()};
+      return new Operation() {
+        @Override
+        public long run(int thread, int i) throws Exception {
+          ExceptionalLibrary library = new ExceptionalLibrary("Madison, WI", "april", "abc");
+          library.parseRunLibrarianLoadBooksCommand(commands);
+          return library.findBookByAuthor("Author 0").size();
+        }
+      };
+    }
+
+    @Override
+    void tearDown() throws IOException {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /**
+   * Measures the listing of the whole catalog to a file, either with one PrintStream call per field
+   * (as displayBooks() did before using an OutputSink) or with displayBooks() and an OutputSink
+   */
+  static class ListingBenchmark extends Benchmark {
+    private final boolean sink;
+    private Path file;
+
+    ListingBenchmark(String name, boolean sink) {
+      super(name);
+      this.sink = sink;
+    }
+
+    @Override
+    Operation setUp(final Fixture f) throws IOException {
+      file = Files.createTempFile("listing", ".txt");
+      final ArrayList<Book> books = new ArrayList<Book>(f.bookCount);
+      for (int i = 0; i < TITLE_COUNT; i++)
+        books.addAll(f.library.findBookByTitle("Title " + i));
+      return new Operation() {
+        @Override
+        public long run(int thread, int i) throws IOException {
+          if (sink) {
+            OutputSink out = OutputSink.toFile(file.toString());
+            OutputSink previous = OutputSink.bind(out);
+            try {
+              ExceptionalLibrary.displayBooks(books);
+            } finally {
+              OutputSink.bind(previous);
+              out.close();
+            }
+          } else { // System.out is an auto flushed PrintStream over a buffered stream
+            try (PrintStream out = new PrintStream(
+                new BufferedOutputStream(new FileOutputStream(file.toFile())), true)) {
+              for (Book book : books) {
+                out.print("<Book ID>: " + book.getID() + " ");
+                out.print("<Title>: " + book.getTitle() + " ");
+                out.print("<Author>: " + book.getAuthor() + " ");
+                out.println("<Is Available>: " + book.isAvailable());
+              }
+            }
+          }
+          return books.size();
+        }
+      };
+    }
+
+    @Override
+    void tearDown() throws IOException {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /**
+   * A benchmark of the suite set up on a fixture, for a harness running it on threads of its own.
+   * apply(thread) prepares the calling thread (the library messages are discarded) and returns the
+   * operation of this thread, which takes the index of the operation; close() tears the benchmark
+   * down. The harness only sees these standard interfaces: the JMH benchmarks are in a package,
+   * and a class of a package cannot name the classes of the default package.
+   */
+  static class Harness implements IntFunction<LongUnaryOperator>, AutoCloseable {
+    private final Benchmark benchmark;
+    private final Operation operation;
+
+    Harness(Benchmark benchmark, Fixture fixture) throws Exception {
+      this.benchmark = benchmark;
+      operation = benchmark.setUp(fixture);
+    }
+
+    @Override
+    public LongUnaryOperator apply(final int thread) {
+      OutputSink.bind(OutputSink.discarding());
+      return new LongUnaryOperator() {
+        @Override
+        public long applyAsLong(long i) {
+          try {
+            return operation.run(thread, (int) i);
+          } catch (Exception e) {
+            throw new IllegalStateException(benchmark.name + " failed", e);
+          }
+        }
+      };
+    }
+
+    @Override
+    public void close() throws IOException {
+      benchmark.tearDown();
+    }
+  }
+
+  /**
+   * Sets up a benchmark of the suite on a new fixture, to be run by an external harness such as
+   * JMH (see the jmh module of the Maven build)
+   *
+   * @param name        name of the benchmark
+   * @param books       number of books of the fixture
+   * @param subscribers number of subscribers of the fixture
+   * @return the benchmark set up, as a Harness
+   * @throws IllegalArgumentException if the suite has no benchmark of this name
+   */
+  public static Object harness(String name, int books, int subscribers) throws Exception {
+    for (Benchmark benchmark : allBenchmarks())
+      if (benchmark.name.equals(name))
+        return new Harness(benchmark, new Fixture(books, subscribers));
+    throw new IllegalArgumentException("no benchmark " + name);
+  }
+
+  /**
+   * Runs the iterations of a benchmark on a fixture with a given number of threads and displays
+   * the result
+   */
+  static void run(Benchmark benchmark, Fixture fixture, int threads) throws Exception {
+    Operation operation = benchmark.setUp(fixture);
+    try {
+      for (int i = 0; i < warmupIterations; i++)
+        iteration(operation, threads);
+      double[] nanosPerOp = new double[measuredIterations];
+      double opsPerSecond = 0;
+      for (int i = 0; i < measuredIterations; i++) {
+        long[] result = iteration(operation, threads); // {operations, elapsed nanos}
+        nanosPerOp[i] = (double) result[1] * threads / result[0];
+        opsPerSecond += result[0] * 1e9 / result[1] / measuredIterations;
+      }
+      double mean = 0;
+      for (double value : nanosPerOp)
+        mean += value / nanosPerOp.length;
+      double variance = 0;
+      for (double value : nanosPerOp)
+        variance += (value - mean) * (value - mean) / Math.max(1, nanosPerOp.length - 1);
+      System.out.printf("%-28s %,12d %,12d %8d %,16.1f %,12.1f %,16.0f%n", benchmark.name,
+          fixture.bookCount, fixture.subscriberCount, threads, mean, Math.sqrt(variance),
+          opsPerSecond);
+    } finally {
+      benchmark.tearDown();
+    }
+  }
+
+  /**
+   * Runs an operation in a given number of threads during iterationMillis
+   *
+   * @return {number of operations of all the threads, elapsed nanoseconds}
+   */
+  static long[] iteration(final Operation operation, int threads) throws Exception {
+    final long deadline = System.nanoTime() + iterationMillis * 1_000_000L;
+    final AtomicLong operations = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+    final Exception[] failure = new Exception[1];
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      workers[t] = new Thread() {
+        @Override
+        public void run() {
+          OutputSink.bind(OutputSink.discarding()); // the library messages are not measured
+          long count = 0;
+          long result = 0;
+          try {
+            start.await();
+            do {
+              result += operation.run(thread, (int) count++);
+            } while (System.nanoTime() < deadline);
+          } catch (Exception e) {
+            failure[0] = e;
+          }
+          blackhole += result;
+          operations.addAndGet(count);
+        }
+      };
+      workers[t].start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    for (Thread worker : workers)
+      worker.join();
+    long elapsed = System.nanoTime() - begin;
+    if (failure[0] != null)
+      throw failure[0];
+    return new long[] {operations.get(), elapsed};
+  }
+
+  /**
+   * Measures the heap used per book by a catalog of a given number of books, for a BookCatalog and
+   * for a ColumnarBookCatalog. The books share TITLE_COUNT titles and AUTHOR_COUNT authors, which
+   * is the best case of a BookCatalog (no String per book).
+   *
+   * @param bookCount number of books of the catalogs
+   */
+  private static void measureHeap(int bookCount) throws InterruptedException {
+    String[] titles = new String[TITLE_COUNT];
+    String[] authors = new String[AUTHOR_COUNT];
+    for (int i = 0; i < TITLE_COUNT; i++)
+      titles[i] = "Title " + i;
+    for (int i = 0; i < AUTHOR_COUNT; i++)
+      authors[i] = "Author " + i;
+    System.out.printf("%-28s %12s %16s %16s%n", "Catalog", "books", "heap (MB)", "bytes/book");
+    for (boolean columnar : new boolean[] {false, true}) {
+      long before = usedHeap();
+      long start = System.nanoTime();
+      BookCatalog catalog = columnar ? new ColumnarBookCatalog() : new BookCatalog();
+      for (int i = 0; i < bookCount; i++)
+        catalog.add(new Book(titles[i % TITLE_COUNT], authors[i % AUTHOR_COUNT]));
+      long elapsed = System.nanoTime() - start;
+      long used = usedHeap() - before;
+      System.out.printf("%-28s %,12d %,16.1f %,16.1f   (filled in %.1f s)%n",
+          catalog.getClass().getName(), catalog.size(), used / 1e6, (double) used / bookCount,
+          elapsed / 1e9);
+      blackhole += catalog.size();
+    }
+  }
+
+  /**
+   * Measures the nightly job computing the fines of a library of a given number of subscribers,
+   * each of them having LOANS_PER_SUBSCRIBER books checked out (due from 30 days ago to 14 days
+   * from now) and fines charged for books returned late, on pools of each thread count
+   */
+  private static void measureFines(int subscriberCount) {
+    int limit = Subscriber.CARD_BAR_CODE_LAST - Subscriber.CARD_BAR_CODE_INIT;
+    if (subscriberCount > limit) {
+      System.out.printf("%,d subscribers: a library has %,d card bar codes at most%n",
+          subscriberCount, limit);
+      subscriberCount = limit;
+    }
+    long start = System.nanoTime();
+    ExceptionalLibrary library = new ExceptionalLibrary("Madison, WI", "april", "abc");
+    LoanSchedule loans = library.getLoanSchedule();
+    long now = library.getClock().millis();
+    long day = 24L * 60 * 60 * 1000;
+    Random random = new Random(42);
+    List<Book> none = new ArrayList<Book>();
+    for (int i = 0; i < subscriberCount; i++) {
+      Subscriber subscriber = new Subscriber(Subscriber.CARD_BAR_CODE_INIT + i, "Subscriber " + i,
+          1234, "Madison", "6081234567", none, none);
+      for (int j = 0; j < LOANS_PER_SUBSCRIBER; j++) {
+        Book book = new Book("Title", "Author");
+        subscriber.checkoutBook(book);
+        loans.schedule(book.getID(), now - 30 * day + (long) (random.nextDouble() * 44 * day));
+      }
+      subscriber.chargeFine(random.nextInt(4) * FineAccrual.FINE_PER_DAY);
+      library.getSubscribers().add(subscriber);
+    }
+    System.out.printf("%,d subscribers and %,d loans created in %.1f s%n", subscriberCount,
+        subscriberCount * LOANS_PER_SUBSCRIBER, (System.nanoTime() - start) / 1e9);
+    for (int threads : threadCounts) {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        FineAccrual job = null;
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < warmupIterations + measuredIterations; run++) {
+          long begin = System.nanoTime();
+          job = library.accrueFines(pool);
+          if (run >= warmupIterations)
+            best = Math.min(best, System.nanoTime() - begin);
+        }
+        System.out.printf("%d threads: best of %d runs %.1f ms, %.0f ns per subscriber%n",
+            threads, measuredIterations, best / 1e6, (double) best / subscriberCount);
+        System.out.println(job.getSummary());
+      } finally {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Measures the latencies of the ranked searches by words on a catalog of a given number of books.
+   * The titles have 3 to 6 words and the authors 2 words, drawn from a vocabulary of
+   * VOCABULARY_SIZE words whose frequencies follow a Zipf distribution, as in natural language: a
+   * few words are in a large part of the titles, most words in a few ones. The queries have 1 to 3
+   * words drawn from the same distribution.
+   *
+   * @param bookCount number of books of the catalog
+   */
+  private static void measureFullText(int bookCount) {
+    String[] words = new String[VOCABULARY_SIZE];
+    double[] cumulative = new double[VOCABULARY_SIZE]; // Zipf distribution, exponent 1
+    String letters = "bcdfghjklmnprstvz";
+    String vowels = "aeiou";
+    for (int i = 0; i < VOCABULARY_SIZE; i++) {
+      StringBuilder word = new StringBuilder();
+      for (int n = i + 1; n > 0; n /= letters.length() * vowels.length()) // a syllable per digit
+        word.append(letters.charAt(n % letters.length()))
+            .append(vowels.charAt(n / letters.length() % vowels.length()));
+      words[i] = word.toString();
+      cumulative[i] = 1.0 / (i + 1) + (i == 0 ? 0 : cumulative[i - 1]);
+    }
+    Random random = new Random(42);
+    long start = System.nanoTime();
+    ColumnarBookCatalog catalog = new ColumnarBookCatalog();
+    FullTextIndex index = new FullTextIndex();
+    for (int i = 0; i < bookCount; i++) {
+      Book book = new Book(phrase(words, cumulative, 3 + random.nextInt(4), random),
+          phrase(words, cumulative, 2, random));
+      catalog.add(book);
+      index.add(book);
+    }
+    System.out.printf("%,d books indexed in %.1f s, %,d words%n", bookCount,
+        (System.nanoTime() - start) / 1e9, index.getWordCount());
+    LatencyHistogram latencies = new LatencyHistogram();
+    for (int run = 0; run < 2; run++) // the first run warms up
+      for (int i = 0; i < FULL_TEXT_QUERIES; i++) {
+        String query = phrase(words, cumulative, 1 + random.nextInt(3), random);
+        long begin = System.nanoTime();
+        blackhole += index.search(catalog, query, TOP_K).size();
+        if (run == 1)
+          latencies.record(System.nanoTime() - begin);
+      }
+    System.out.printf("top %d of %,d queries: mean %.1f us, p50 %.1f us, p90 %.1f us, "
+        + "p99 %.1f us, max %.1f us%n", TOP_K, FULL_TEXT_QUERIES, latencies.getMean() / 1e3,
+        latencies.getValueAtPercentile(50) / 1e3, latencies.getValueAtPercentile(90) / 1e3,
+        latencies.getValueAtPercentile(99) / 1e3, latencies.getMax() / 1e3);
+  }
+
+  /**
+   * Returns a phrase of words drawn from a Zipf distribution
+   */
+  private static String phrase(String[] words, double[] cumulative, int length, Random random) {
+    StringBuilder phrase = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      int word = Arrays.binarySearch(cumulative,
+          random.nextDouble() * cumulative[cumulative.length - 1]);
+      phrase.append(i == 0 ? "" : " ").append(words[word >= 0 ? word : -word - 1]);
+    }
+    return phrase.toString();
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * Parses a comma separated list of ints
+   */
+  private static int[] parseInts(String list) {
+    String[] values = list.split(",");
+    int[] ints = new int[values.length];
+    for (int i = 0; i < values.length; i++)
+      ints[i] = Integer.parseInt(values[i].trim());
+    return ints;
+  }
+
+  /**
+   * Main method that runs the selected benchmarks for all the combinations of parameters
+   *
+   * @param args options of the suite (see the class comment)
+   */
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new LinkedHashMap<String, String>();
+    for (int i = 0; i + 1 < args.length; i += 2)
+      options.put(args[i], args[i + 1]);
+    if (options.containsKey("-bench"))
+      for (String name : options.get("-bench").split(","))
+        benchmarkNames.add(name.trim());
+    if (options.containsKey("-books"))
+      bookCounts = parseInts(options.get("-books"));
+    if (options.containsKey("-subscribers"))
+      subscriberCounts = parseInts(options.get("-subscribers"));
+    if (options.containsKey("-threads"))
+      threadCounts = parseInts(options.get("-threads"));
+    if (options.containsKey("-warmup"))
+      warmupIterations = Integer.parseInt(options.get("-warmup"));
+    if (options.containsKey("-iterations"))
+      measuredIterations = Integer.parseInt(options.get("-iterations"));
+    if (options.containsKey("-time"))
+      iterationMillis = Long.parseLong(options.get("-time"));
+    if (options.containsKey("-heap")) { // heap per book instead of the benchmarks
+      for (int books : parseInts(options.get("-heap")))
+        measureHeap(books);
+      return;
+    }
+    if (options.containsKey("-fulltext")) { // ranked searches on a large catalog
+      for (int books : parseInts(options.get("-fulltext")))
+        measureFullText(books);
+      return;
+    }
+    if (options.containsKey("-fines")) { // nightly fines job on many subscribers
+      for (int subscribers : parseInts(options.get("-fines")))
+        measureFines(subscribers);
+      return;
+    }
+
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    for (Benchmark benchmark : allBenchmarks())
+      if (benchmarkNames.isEmpty() || benchmarkNames.contains(benchmark.name))
+        benchmarks.add(benchmark);
+    System.out.printf("%-28s %12s %12s %8s %16s %12s %16s%n", "Benchmark", "books", "subscribers",
+        "threads", "ns/op", "stddev", "ops/s");
+    OutputSink previous = OutputSink.bind(OutputSink.discarding());
+    try {
+      for (int books : bookCounts)
+        for (int subscribers : subscriberCounts) {
+          // card bar codes are issued once per JVM: at most 999998 subscribers in all
+          Fixture fixture = new Fixture(books, subscribers);
+          for (Benchmark benchmark : benchmarks)
+            for (int threads : threadCounts)
+              run(benchmark, fixture, threads);
+        }
+    } finally {
+      OutputSink.bind(previous);
+    }
+  }
+}
@@ -0,0 +1,222 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class models the nightly batch job computing the fines of all the subscribers of a library:
+ * the fines charged for the books returned late (see ExceptionalLibrary.returnBook()) plus the
+ * fines of the books checked out and overdue at the time of the job.
+ *
+ * The job partitions the table of the subscribers by page (SubscriberTable.PAGE_SIZE card bar
+ * codes per page) and computes the pages in parallel with fork/join tasks. Each page is computed
+ * by one task, which writes the fines of its subscribers and the totals of the page in arrays of
+ * its own, so the tasks never share a counter. The totals of the pages are added once all the pages
+ * are computed. The fines of a subscriber are read under its lock, one subscriber at a time, so
+ * the sessions keep running while the job runs.
+ *
+ */
+public class FineAccrual {
+  // class/static fields
+  public static final long FINE_PER_DAY = 25; // fine of a book per day late, in cents
+  public static final long MAX_FINE = 1000; // fine of a book at most, in cents
+  private static final long DAY = 24L * 60 * 60 * 1000; // in milliseconds
+  private static final int LEAF_PAGES = 4; // pages computed by a task without forking
+  private static final int ACTIVE = 0; // totals of a page: fines of the books checked out,
+  private static final int RETURNED = 1; // fines of the books returned late,
+  private static final int SUBSCRIBERS = 2; // subscribers of the page,
+  private static final int OWING = 3; // and subscribers who owe a fine
+
+  // Instance fields
+  private final SubscriberTable subscribers; // subscribers of the library
+  private final LoanSchedule loans; // due dates of the books checked out
+  private final long now; // time of the job in milliseconds
+  private long[][] fines; // fines[p][s]: fine of the subscriber of slot s of page p in cents,
+                          // fines[p] is null if page p has no subscriber
+  private final long[] totals = new long[4]; // ACTIVE, RETURNED, SUBSCRIBERS and OWING
+  private int parallelism; // threads of the pool of the last run
+  private long partitionNanos; // duration of the phases of the last run
+  private long computeNanos;
+  private long aggregateNanos;
+
+  /**
+   * Creates a new job computing the fines of the subscribers of a library at a given time
+   *
+   * @param library library whose subscribers are fined
+   * @param now     time of the job in milliseconds
+   */
+  public FineAccrual(ExceptionalLibrary library, long now) {
+    this.subscribers = library.getSubscribers();
+    this.loans = library.getLoanSchedule();
+    this.now = now;
+  }
+
+  /**
+   * Returns the fine of a book given its due date
+   *
+   * @param dueDate time in milliseconds at which the book was due, LoanSchedule.NOT_DUE if none
+   * @param at      time in milliseconds at which the book is returned or the fine is computed
+   * @return FINE_PER_DAY for each day or part of a day late, at most MAX_FINE, in cents
+   */
+  public static long fineFor(long dueDate, long at) {
+    if (dueDate == LoanSchedule.NOT_DUE || at <= dueDate)
+      return 0;
+    long days = (at - dueDate + DAY - 1) / DAY;
+    return Math.min(days * FINE_PER_DAY, MAX_FINE);
+  }
+
+  /**
+   * Computes the fines of all the subscribers with the threads of a pool
+   *
+   * @param pool fork/join pool running the tasks
+   */
+  public void run(ForkJoinPool pool) {
+    long start = System.nanoTime();
+    int[] pages = new int[SubscriberTable.PAGE_COUNT]; // pages holding subscribers
+    int count = 0;
+    for (int p = 0; p < SubscriberTable.PAGE_COUNT; p++)
+      if (subscribers.getPage(p) != null)
+        pages[count++] = p;
+    fines = new long[SubscriberTable.PAGE_COUNT][];
+    long[][] pageTotals = new long[count][];
+    long computed = System.nanoTime();
+    pool.invoke(new PageTask(pages, pageTotals, 0, count));
+    long aggregated = System.nanoTime();
+    Arrays.fill(totals, 0);
+    for (long[] page : pageTotals)
+      for (int i = 0; i < totals.length; i++)
+        totals[i] += page[i];
+    parallelism = pool.getParallelism();
+    partitionNanos = computed - start;
+    computeNanos = aggregated - computed;
+    aggregateNanos = System.nanoTime() - aggregated;
+  }
+
+  /**
+   * A task computing a range of pages, split in two halves until it has LEAF_PAGES pages at most
+   */
+  private class PageTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final int[] pages; // indexes of the pages holding subscribers
+    private final long[][] pageTotals; // totals of each page of pages, set by the task computing it
+    private final int from; // range of pages of this task
+    private final int to;
+
+    PageTask(int[] pages, long[][] pageTotals, int from, int to) {
+      this.pages = pages;
+      this.pageTotals = pageTotals;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > LEAF_PAGES) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new PageTask(pages, pageTotals, from, middle),
+            new PageTask(pages, pageTotals, middle, to));
+        return;
+      }
+      for (int i = from; i < to; i++)
+        pageTotals[i] = computePage(pages[i]);
+    }
+  }
+
+  /**
+   * Computes the fines of the subscribers of a page
+   *
+   * @param p index of the page
+   * @return the totals of the page: ACTIVE, RETURNED, SUBSCRIBERS and OWING
+   */
+  private long[] computePage(int p) {
+    long[] page = new long[4];
+    AtomicReferenceArray<Subscriber> slots = subscribers.getPage(p);
+    long[] pageFines = new long[SubscriberTable.PAGE_SIZE];
+    for (int s = 0; s < SubscriberTable.PAGE_SIZE; s++) {
+      Subscriber subscriber = slots.get(s);
+      if (subscriber == null)
+        continue;
+      long active = 0;
+      long returned;
+      synchronized (subscriber) { // the books checked out and the fines at the same time
+        returned = subscriber.getFines();
+        for (Book book : subscriber.getBooksCheckedOut())
+          active += fineFor(loans.getDueDate(book.getID()), now);
+      }
+      pageFines[s] = active + returned;
+      page[ACTIVE] += active;
+      page[RETURNED] += returned;
+      page[SUBSCRIBERS]++;
+      if (pageFines[s] > 0)
+        page[OWING]++;
+    }
+    fines[p] = pageFines; // published to the caller of run() by the join of the task
+    return page;
+  }
+
+  /**
+   * Returns the fine of a subscriber computed by the last run
+   *
+   * @param cardBarCode card bar code of the subscriber
+   * @return the fine in cents, 0 if the subscriber owes nothing or was not computed
+   */
+  public long getFine(int cardBarCode) {
+    if (fines == null || !Subscriber.checkCardBarCode(cardBarCode))
+      return 0;
+    int slot = cardBarCode - Subscriber.CARD_BAR_CODE_INIT;
+    long[] page = fines[slot / SubscriberTable.PAGE_SIZE];
+    return page == null ? 0 : page[slot % SubscriberTable.PAGE_SIZE];
+  }
+
+  /**
+   * Returns the total of the fines computed by the last run
+   *
+   * @return the fines of all the subscribers in cents
+   */
+  public long getTotal() {
+    return totals[ACTIVE] + totals[RETURNED];
+  }
+
+  /**
+   * Returns the number of subscribers who owe a fine after the last run
+   *
+   * @return the number of subscribers whose fine is not 0
+   */
+  public long getOwingCount() {
+    return totals[OWING];
+  }
+
+  /**
+   * Returns the number of subscribers computed by the last run
+   *
+   * @return the number of subscribers of the library at the time of the run
+   */
+  public long getSubscriberCount() {
+    return totals[SUBSCRIBERS];
+  }
+
+  /**
+   * Returns a summary of the last run: the fines and the duration of each phase
+   *
+   * @return the totals and the timing breakdown
+   */
+  public String getSummary() {
+    return String.format(
+        "Fines: %d of %d subscribers owe %s (%s for books checked out, %s for books returned)."
+            + "%nComputed in %.3f s: partition %.3f s, compute %.3f s on %d threads, aggregate"
+            + " %.3f s.",
+        totals[OWING], totals[SUBSCRIBERS], formatCents(getTotal()), formatCents(totals[ACTIVE]),
+        formatCents(totals[RETURNED]), (partitionNanos + computeNanos + aggregateNanos) / 1e9,
+        partitionNanos / 1e9, computeNanos / 1e9, parallelism, aggregateNanos / 1e9);
+  }
+
+  /**
+   * Formats an amount in cents as dollars
+   *
+   * @param cents amount in cents
+   * @return the amount as $d.cc
+   */
+  public static String formatCents(long cents) {
+    return String.format("$%d.%02d", cents / 100, cents % 100);
+  }
+}
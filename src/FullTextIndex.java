@@ -0,0 +1,414 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class models a full-text index of the books of a library: it maps each word of the titles
+ * and of the authors to the books having it, so that a search of a few words finds the books
+ * having any of them, best matches first, even if the patron does not know the whole title.
+ *
+ * The words are the runs of letters and digits of the case folded title and author (see
+ * SearchIndex.foldCase()). The books are ranked with BM25: a word counts more when it is rarer in
+ * the library (its inverse document frequency) and when the title and the author of the book are
+ * shorter; a word of the title counts TITLE_WEIGHT times a word of the author. The number of words
+ * of each book (its norm) is kept in one byte per book. The weights of the words are summed as
+ * fixed point integers, so the score of a book does not depend on the order the words are found.
+ *
+ * A search only scores the books that can enter its top k: the posting lists of the words are
+ * merged book after book (document at a time) with the MaxScore algorithm, which skips the books
+ * that only have words whose upper bounds cannot beat the k-th best score found so far. The
+ * posting lists of the rare words are read in full, the ones of the frequent words are only probed.
+ *
+ * An index can be shared by several threads. Searches run under its read lock, so they never block
+ * each other; adding or removing a book takes the write lock.
+ *
+ */
+public class FullTextIndex {
+  // class/static fields
+  private static final double TITLE_WEIGHT = 2.0; // weight of a word of the title
+  private static final double AUTHOR_WEIGHT = 1.0; // weight of a word of the author
+  private static final double K1 = 1.2; // BM25 saturation of the term frequency
+  private static final double B = 0.75; // BM25 normalization by the number of words
+  private static final int MAX_QUERY_WORDS = 32; // words of a query taken into account
+  private static final int BLOCK_BITS = 12; // identifiers per block of the norms: 2^12
+  private static final double WEIGHT_UNIT = 1L << 32; // weights are summed in units of 2^-32
+
+  /**
+   * A book found by a search, with its relevance
+   */
+  public static final class Hit {
+    private final Book book; // book found
+    private final double score; // BM25 score of the book for the query
+
+    private Hit(Book book, double score) {
+      this.book = book;
+      this.score = score;
+    }
+
+    /**
+     * Returns the book found
+     *
+     * @return the book
+     */
+    public Book getBook() {
+      return book;
+    }
+
+    /**
+     * Returns the relevance of the book for the query
+     *
+     * @return the score of the book, higher for better matches
+     */
+    public double getScore() {
+      return score;
+    }
+  }
+
+  /**
+   * The position of a search in the posting list of a word of the title or of the author
+   */
+  private static final class Cursor {
+    private final PostingList postings; // books having the word
+    private final long weight; // inverse document frequency times the weight of the field, in
+                               // WEIGHT_UNIT: the sums of weights do not depend on their order
+    private final double maxScore; // highest score the word can give to a book
+    private int position; // position of the current book in the postings
+
+    private Cursor(PostingList postings, double weight, double maxLengthFactor) {
+      this.postings = postings;
+      this.weight = Math.round(weight * WEIGHT_UNIT);
+      this.maxScore = weight * maxLengthFactor * (1 + 1e-9); // above the rounding of the sums
+    }
+
+    private int current() {
+      return position < postings.size() ? postings.get(position) : Integer.MAX_VALUE;
+    }
+  }
+
+  // Instance fields
+  private final ReentrantReadWriteLock lock; // guards all the fields below
+  private final HashMap<String, PostingList> titleWords; // word -> books whose title has it
+  private final HashMap<String, PostingList> authorWords; // word -> books whose author has it
+  private byte[][] norms; // norms[id >>> BLOCK_BITS][id & mask] is the number of words of the
+                          // book id (at most 255), 0 if the book is not indexed
+  private int bookCount; // number of books indexed
+  private long wordCount; // sum of the norms of the books indexed
+  private int minNorm; // lowest norm of the books indexed so far (not raised by the removals, so
+                       // that it always bounds the length factor of the books from above)
+
+  /**
+   * Creates a new empty index
+   */
+  public FullTextIndex() {
+    lock = new ReentrantReadWriteLock();
+    titleWords = new HashMap<String, PostingList>();
+    authorWords = new HashMap<String, PostingList>();
+    norms = new byte[1][];
+    minNorm = 255;
+  }
+
+  /**
+   * Splits a text into its words: the runs of letters and digits of the case folded text
+   *
+   * @param text text to split, may be null
+   * @return the distinct words of the text, in the order they first appear
+   */
+  public static ArrayList<String> tokenize(String text) {
+    ArrayList<String> words = new ArrayList<String>();
+    if (text == null)
+      return words;
+    String folded = SearchIndex.foldCase(text);
+    int start = -1; // start of the current word, -1 between two words
+    for (int i = 0; i <= folded.length(); i++) {
+      boolean inWord = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+      if (inWord && start < 0) {
+        start = i;
+      } else if (!inWord && start >= 0) {
+        String word = folded.substring(start, i);
+        if (!words.contains(word)) // a title has a few words
+          words.add(word);
+        start = -1;
+      }
+    }
+    return words;
+  }
+
+  /**
+   * Indexes the words of the title and of the author of a book
+   *
+   * @param book book to index
+   */
+  public void add(Book book) {
+    ArrayList<String> title = tokenize(book.getTitle()); // outside of the lock
+    ArrayList<String> author = tokenize(book.getAuthor());
+    lock.writeLock().lock();
+    try {
+      insert(book.getID(), title, author);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Indexes the words of a batch of books, taking the lock only once
+   *
+   * @param batch books to index
+   * @param count number of books to index, from batch[0]
+   */
+  public void addAll(Book[] batch, int count) {
+    ArrayList<ArrayList<String>> words = new ArrayList<ArrayList<String>>(2 * count);
+    for (int i = 0; i < count; i++) {
+      words.add(tokenize(batch[i].getTitle()));
+      words.add(tokenize(batch[i].getAuthor()));
+    }
+    lock.writeLock().lock();
+    try {
+      for (int i = 0; i < count; i++)
+        insert(batch[i].getID(), words.get(2 * i), words.get(2 * i + 1));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes a book from this index
+   *
+   * @param book book to remove
+   */
+  public void remove(Book book) {
+    ArrayList<String> title = tokenize(book.getTitle());
+    ArrayList<String> author = tokenize(book.getAuthor());
+    int id = book.getID();
+    lock.writeLock().lock();
+    try {
+      int norm = norm(id);
+      if (norm == 0) // not indexed
+        return;
+      for (String word : title)
+        remove(titleWords, word, id);
+      for (String word : author)
+        remove(authorWords, word, id);
+      norms[id >>> BLOCK_BITS][id & (1 << BLOCK_BITS) - 1] = 0;
+      bookCount--;
+      wordCount -= norm;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the number of words indexed
+   *
+   * @return the number of distinct words of the titles plus the number of distinct words of the
+   *         authors
+   */
+  public int getWordCount() {
+    lock.readLock().lock();
+    try {
+      return titleWords.size() + authorWords.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void insert(int id, ArrayList<String> title, ArrayList<String> author) {
+    if (norm(id) != 0) // already indexed
+      return;
+    for (String word : title)
+      add(titleWords, word, id);
+    for (String word : author)
+      add(authorWords, word, id);
+    int norm = Math.max(1, Math.min(255, title.size() + author.size())); // 0 means not indexed
+    if (id >>> BLOCK_BITS >= norms.length)
+      norms = Arrays.copyOf(norms, Math.max(2 * norms.length, (id >>> BLOCK_BITS) + 1));
+    if (norms[id >>> BLOCK_BITS] == null)
+      norms[id >>> BLOCK_BITS] = new byte[1 << BLOCK_BITS];
+    norms[id >>> BLOCK_BITS][id & (1 << BLOCK_BITS) - 1] = (byte) norm;
+    bookCount++;
+    wordCount += norm;
+    minNorm = Math.min(minNorm, norm);
+  }
+
+  private static void add(HashMap<String, PostingList> words, String word, int id) {
+    PostingList postings = words.get(word);
+    if (postings == null) {
+      postings = new PostingList();
+      words.put(word, postings);
+    }
+    postings.add(id);
+  }
+
+  private static void remove(HashMap<String, PostingList> words, String word, int id) {
+    PostingList postings = words.get(word);
+    if (postings != null && postings.remove(id) && postings.isEmpty())
+      words.remove(word); // no more books with this word
+  }
+
+  /**
+   * Returns the norm of a book, 0 if it is not indexed. The caller holds the lock.
+   */
+  private int norm(int id) {
+    byte[] block = id >= 0 && id >>> BLOCK_BITS < norms.length ? norms[id >>> BLOCK_BITS] : null;
+    return block == null ? 0 : block[id & (1 << BLOCK_BITS) - 1] & 0xff;
+  }
+
+  /**
+   * Returns the books of a catalog that best match a query: the books having at least one word of
+   * the query in their title or author, ranked by relevance
+   *
+   * @param catalog catalog of the indexed books
+   * @param query   words to find, in any order and case
+   * @param k       number of books to return at most
+   * @return ArrayList of at most k hits, the best match first (the lower identifier first for
+   *         equal scores)
+   */
+  public ArrayList<Hit> search(BookCatalog catalog, String query, int k) {
+    ArrayList<String> words = tokenize(query);
+    if (words.size() > MAX_QUERY_WORDS)
+      words = new ArrayList<String>(words.subList(0, MAX_QUERY_WORDS));
+    int[] ids = new int[Math.max(0, k)]; // min-heap of the best books found, by score then id
+    double[] scores = new double[ids.length];
+    int found = 0;
+    lock.readLock().lock();
+    try {
+      if (bookCount == 0 || k <= 0)
+        return new ArrayList<Hit>();
+      double averageNorm = (double) wordCount / bookCount;
+      double maxLengthFactor = (K1 + 1) / (1 + K1 * (1 - B + B * minNorm / averageNorm));
+      ArrayList<Cursor> list = new ArrayList<Cursor>(2 * words.size());
+      for (String word : words) {
+        addCursor(list, titleWords.get(word), TITLE_WEIGHT, maxLengthFactor);
+        addCursor(list, authorWords.get(word), AUTHOR_WEIGHT, maxLengthFactor);
+      }
+      Cursor[] cursors = list.toArray(new Cursor[list.size()]);
+      Arrays.sort(cursors, (a, b) -> Double.compare(a.maxScore, b.maxScore));
+      double[] bounds = new double[cursors.length]; // bounds[i]: max score of cursors 0 to i
+      for (int i = 0; i < cursors.length; i++)
+        bounds[i] = cursors[i].maxScore + (i == 0 ? 0 : bounds[i - 1]);
+
+      // the cursors from essential on can bring a book into the top k on their own; the ones
+      // before are only probed for the books found by the essential ones
+      int essential = 0;
+      double threshold = 0; // k-th best score once k books are found
+      while (essential < cursors.length) {
+        int id = Integer.MAX_VALUE; // next book of the essential cursors
+        for (int i = essential; i < cursors.length; i++)
+          id = Math.min(id, cursors[i].current());
+        if (id == Integer.MAX_VALUE)
+          break;
+        double lengthFactor = (K1 + 1) / (1 + K1 * (1 - B + B * norm(id) / averageNorm))
+            / WEIGHT_UNIT;
+        long weights = 0; // sum of the weights of the words of the book
+        for (int i = essential; i < cursors.length; i++) {
+          if (cursors[i].current() == id) {
+            weights += cursors[i].weight;
+            cursors[i].position++;
+          }
+        }
+        boolean pruned = false;
+        for (int i = essential - 1; i >= 0 && !pruned; i--) {
+          pruned = found == ids.length && weights * lengthFactor + bounds[i] <= threshold;
+          if (!pruned) { // else the other words cannot bring the book into the top k
+            Cursor cursor = cursors[i];
+            cursor.position = cursor.postings.advance(cursor.position, id);
+            if (cursor.current() == id)
+              weights += cursor.weight;
+          }
+        }
+        double score = weights * lengthFactor;
+        if (pruned || found == ids.length && score <= threshold)
+          continue; // most books once the top k is full
+        if (found < ids.length) {
+          found = push(ids, scores, found, id, score);
+        } else {
+          ids[0] = id; // replaces the worst of the top k
+          scores[0] = score;
+          siftDown(ids, scores, 0, found);
+        }
+        if (found == ids.length) {
+          threshold = scores[0];
+          while (essential < cursors.length && bounds[essential] <= threshold)
+            essential++;
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    // sort the top k, best first, and map them to the books
+    Integer[] order = new Integer[found];
+    for (int i = 0; i < found; i++)
+      order[i] = i;
+    Arrays.sort(order, (a, b) -> scores[a] != scores[b] ? Double.compare(scores[b], scores[a])
+        : Integer.compare(ids[a], ids[b]));
+    ArrayList<Hit> hits = new ArrayList<Hit>(found);
+    for (int i : order) {
+      Book book = catalog.get(ids[i]);
+      if (book != null) // not removed meanwhile
+        hits.add(new Hit(book, scores[i]));
+    }
+    return hits;
+  }
+
+  /**
+   * Adds a cursor on the books having a word, weighted by the inverse document frequency of the
+   * word, whose score is bounded by the length factor of the shortest book. The caller holds the
+   * read lock.
+   */
+  private void addCursor(ArrayList<Cursor> cursors, PostingList postings, double fieldWeight,
+      double maxLengthFactor) {
+    if (postings == null)
+      return;
+    int frequency = postings.size();
+    double idf = Math.log(1 + (bookCount - frequency + 0.5) / (frequency + 0.5));
+    cursors.add(new Cursor(postings, idf * fieldWeight, maxLengthFactor));
+  }
+
+  /**
+   * Adds a book to a min-heap of found books
+   *
+   * @return the new number of books in the heap
+   */
+  private static int push(int[] ids, double[] scores, int size, int id, double score) {
+    int i = size;
+    while (i > 0) { // sift up
+      int parent = (i - 1) >>> 1;
+      if (!worse(id, score, ids[parent], scores[parent]))
+        break;
+      ids[i] = ids[parent];
+      scores[i] = scores[parent];
+      i = parent;
+    }
+    ids[i] = id;
+    scores[i] = score;
+    return size + 1;
+  }
+
+  private static void siftDown(int[] ids, double[] scores, int i, int size) {
+    int id = ids[i];
+    double score = scores[i];
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= size)
+        break;
+      if (child + 1 < size && worse(ids[child + 1], scores[child + 1], ids[child], scores[child]))
+        child++;
+      if (!worse(ids[child], scores[child], id, score))
+        break;
+      ids[i] = ids[child];
+      scores[i] = scores[child];
+      i = child;
+    }
+    ids[i] = id;
+    scores[i] = score;
+  }
+
+  /**
+   * Checks if a book ranks below another one: a lower score, or the same score and a higher
+   * identifier
+   */
+  private static boolean worse(int id, double score, int otherId, double otherScore) {
+    return score < otherScore || score == otherScore && id > otherId;
+  }
+}
@@ -0,0 +1,222 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class models the hold queues of the books of a library: for each book checked out, the
+ * subscribers waiting for it, first come first served. When the book is returned, the library
+ * checks it out for the first subscriber of its queue (see ExceptionalLibrary.serveHolds()).
+ *
+ * Each queue is a ConcurrentLinkedQueue, so placing a hold is a lock-free enqueue: subscribers
+ * waiting for the same book never block each other. A hold cancelled or served is only marked as
+ * such, and dropped from its queue when it reaches the head, so cancelling a hold and finding the
+ * next subscriber to serve both take constant time, however long the queue is. The queues are
+ * found from the book identifier in chunks of CHUNK_SIZE identifiers, allocated when the first
+ * hold of the chunk is placed.
+ *
+ * The holds are kept in memory only: they are neither journaled nor saved in the snapshots.
+ *
+ */
+public class HoldQueues {
+  // class/static fields
+  private static final int CHUNK_SHIFT = 16;
+  private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT; // queues per chunk
+
+  /**
+   * A subscriber waiting for a book
+   */
+  public static final class Hold {
+    private static final int WAITING = 0; // in the queue of the book
+    private static final int SERVED = 1; // the book was checked out for the subscriber
+    private static final int CANCELLED = 2; // cancelled by the subscriber or dropped
+    private static final AtomicIntegerFieldUpdater<Hold> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(Hold.class, "state");
+
+    private final Subscriber subscriber; // subscriber waiting
+    private final int bookId; // identifier of the book waited for
+    private volatile int state; // WAITING, SERVED or CANCELLED
+
+    private Hold(Subscriber subscriber, int bookId) {
+      this.subscriber = subscriber;
+      this.bookId = bookId;
+    }
+
+    /**
+     * Returns the subscriber waiting for the book
+     *
+     * @return the subscriber who placed this hold
+     */
+    public Subscriber getSubscriber() {
+      return subscriber;
+    }
+
+    /**
+     * Returns the identifier of the book waited for
+     *
+     * @return the book identifier
+     */
+    public int getBookId() {
+      return bookId;
+    }
+
+    /**
+     * Checks if the subscriber is still waiting for the book
+     *
+     * @return true if this hold is neither served nor cancelled
+     */
+    public boolean isWaiting() {
+      return state == WAITING;
+    }
+  }
+
+  // Instance fields
+  private volatile AtomicReferenceArray<ConcurrentLinkedQueue<Hold>>[] chunks; // chunk i holds
+      // the queues of identifiers i * CHUNK_SIZE and up, null if it has no queue yet
+  private final LongAdder waiting = new LongAdder(); // holds neither served nor cancelled
+  private final LongAdder served = new LongAdder(); // holds served so far
+
+  /**
+   * Creates new empty hold queues
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public HoldQueues() {
+    chunks = new AtomicReferenceArray[1];
+  }
+
+  /**
+   * Places a hold at the end of the queue of a book
+   *
+   * @param subscriber subscriber waiting for the book
+   * @param book       book checked out by another subscriber
+   * @return the new hold
+   */
+  public Hold place(Subscriber subscriber, Book book) {
+    Hold hold = new Hold(subscriber, book.getID());
+    waiting.increment();
+    queue(book.getID(), true).offer(hold); // lock-free
+    return hold;
+  }
+
+  /**
+   * Returns the first subscriber waiting for a book, dropping the holds served or cancelled that
+   * are ahead of it
+   *
+   * @param bookId identifier of the book
+   * @return the first hold still waiting, null if no one waits for the book
+   */
+  public Hold peek(int bookId) {
+    ConcurrentLinkedQueue<Hold> queue = queue(bookId, false);
+    if (queue == null)
+      return null;
+    for (Hold hold = queue.peek(); hold != null; hold = queue.peek()) {
+      if (hold.isWaiting())
+        return hold;
+      queue.remove(hold); // at the head: constant time, unless another thread dropped it first
+    }
+    return null;
+  }
+
+  /**
+   * Marks a hold as served: the book was checked out for its subscriber
+   *
+   * @param hold hold served
+   * @return true if the hold was waiting, false if it was already served or cancelled
+   */
+  public boolean serve(Hold hold) {
+    if (!Hold.STATE.compareAndSet(hold, Hold.WAITING, Hold.SERVED))
+      return false;
+    waiting.decrement();
+    served.increment();
+    return true;
+  }
+
+  /**
+   * Marks a hold as cancelled. It leaves its queue when it reaches the head.
+   *
+   * @param hold hold cancelled
+   * @return true if the hold was waiting, false if it was already served or cancelled
+   */
+  public boolean cancel(Hold hold) {
+    if (!Hold.STATE.compareAndSet(hold, Hold.WAITING, Hold.CANCELLED))
+      return false;
+    waiting.decrement();
+    return true;
+  }
+
+  /**
+   * Returns the position of a hold in the queue of its book. This method walks the queue.
+   *
+   * @param hold hold waiting
+   * @return the number of holds waiting ahead of it plus one, 0 if it is not waiting anymore
+   */
+  public int position(Hold hold) {
+    ConcurrentLinkedQueue<Hold> queue = queue(hold.getBookId(), false);
+    if (queue == null || !hold.isWaiting())
+      return 0;
+    int position = 1;
+    for (Hold other : queue) {
+      if (other == hold)
+        return position;
+      if (other.isWaiting())
+        position++;
+    }
+    return 0; // served or cancelled meanwhile
+  }
+
+  /**
+   * Returns the number of holds waiting
+   *
+   * @return the number of holds neither served nor cancelled, in all the queues
+   */
+  public long getWaitingCount() {
+    return waiting.sum();
+  }
+
+  /**
+   * Returns the number of holds served
+   *
+   * @return the number of books checked out for a subscriber waiting for them so far
+   */
+  public long getServedCount() {
+    return served.sum();
+  }
+
+  /**
+   * Returns the queue of a book, creating it (and its chunk) if needed
+   *
+   * @param bookId identifier of the book
+   * @param create true to create the queue if the book has none
+   * @return the queue of the book, null if it has none and create is false
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private ConcurrentLinkedQueue<Hold> queue(int bookId, boolean create) {
+    AtomicReferenceArray<ConcurrentLinkedQueue<Hold>>[] chunks = this.chunks;
+    int i = bookId >>> CHUNK_SHIFT;
+    AtomicReferenceArray<ConcurrentLinkedQueue<Hold>> chunk =
+        bookId >= 0 && i < chunks.length ? chunks[i] : null;
+    if (chunk == null) {
+      if (!create || bookId < 0)
+        return null;
+      synchronized (this) {
+        chunks = this.chunks;
+        if (i >= chunks.length) {
+          AtomicReferenceArray<ConcurrentLinkedQueue<Hold>>[] grown =
+              new AtomicReferenceArray[Math.max(i + 1, 2 * chunks.length)];
+          System.arraycopy(chunks, 0, grown, 0, chunks.length);
+          chunks = grown;
+        }
+        if (chunks[i] == null)
+          chunks[i] = new AtomicReferenceArray<ConcurrentLinkedQueue<Hold>>(CHUNK_SIZE);
+        this.chunks = chunks; // publishes the new chunk
+        chunk = chunks[i];
+      }
+    }
+    ConcurrentLinkedQueue<Hold> queue = chunk.get(bookId & CHUNK_SIZE - 1);
+    if (queue == null && create) {
+      chunk.compareAndSet(bookId & CHUNK_SIZE - 1, null, new ConcurrentLinkedQueue<Hold>());
+      queue = chunk.get(bookId & CHUNK_SIZE - 1); // ours or the one of a concurrent hold
+    }
+    return queue;
+  }
+}
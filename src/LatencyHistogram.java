@@ -0,0 +1,114 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class models a histogram of latencies in nanoseconds, with buckets whose width grows with
+ * the latency as in an HDR histogram: the values below 64 have their own bucket, and each power of
+ * two above is split in 32 buckets. A percentile is thus known within 3%, whatever the latency, and
+ * the histogram has a fixed size (1888 buckets, about 15 KB).
+ *
+ * Recording a latency only increments counters, without locking nor allocating, so a histogram can
+ * be shared by all the threads of a library. The statistics read while latencies are recorded are
+ * approximate.
+ *
+ */
+public class LatencyHistogram {
+  // class/static fields
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS; // buckets per power of two
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  // Instance fields
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT); // latencies per bucket
+  private final LongAdder total = new LongAdder(); // sum of the latencies recorded
+  private final AtomicLong max = new AtomicLong(); // highest latency recorded
+
+  /**
+   * Records a latency
+   *
+   * @param nanos latency in nanoseconds, negative values are recorded as 0
+   */
+  public void record(long nanos) {
+    if (nanos < 0)
+      nanos = 0;
+    counts.incrementAndGet(bucket(nanos));
+    total.add(nanos);
+    long highest = max.get(); // rarely updated once the histogram is warm
+    while (nanos > highest && !max.compareAndSet(highest, nanos))
+      highest = max.get();
+  }
+
+  /**
+   * Returns the number of latencies recorded
+   *
+   * @return the count of this histogram
+   */
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++)
+      count += counts.get(i);
+    return count;
+  }
+
+  /**
+   * Returns the mean latency
+   *
+   * @return the mean in nanoseconds, 0 if no latency was recorded
+   */
+  public double getMean() {
+    long count = getCount();
+    return count == 0 ? 0.0 : (double) total.sum() / count;
+  }
+
+  /**
+   * Returns the highest latency recorded
+   *
+   * @return the maximum in nanoseconds, 0 if no latency was recorded
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Returns a percentile of the latencies recorded
+   *
+   * @param percentile percentile to return, from 0 to 100
+   * @return the highest latency of the bucket of the percentile in nanoseconds (never above the
+   *         maximum), 0 if no latency was recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    long count = getCount();
+    if (count == 0)
+      return 0;
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count)); // 1-based rank
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts.get(i);
+      if (seen >= rank)
+        return Math.min(highestValue(i), max.get());
+    }
+    return max.get(); // latencies recorded meanwhile
+  }
+
+  /**
+   * Returns the bucket of a latency
+   */
+  private static int bucket(long nanos) {
+    if (nanos < 2 * SUB_BUCKET_COUNT)
+      return (int) nanos; // exact buckets
+    int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKET_COUNT + (int) (nanos >>> shift) - SUB_BUCKET_COUNT;
+  }
+
+  /**
+   * Returns the highest latency of a bucket
+   */
+  private static long highestValue(int bucket) {
+    if (bucket < 2 * SUB_BUCKET_COUNT)
+      return bucket;
+    int shift = bucket / SUB_BUCKET_COUNT - 1;
+    long subBucket = bucket % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
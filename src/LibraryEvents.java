@@ -0,0 +1,109 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class emits a JDK Flight Recorder event "library.Operation" for each command and each
+ * instrumented method of the library, with the name of the operation, its latency and whether it
+ * succeeded, so that a recording (java -XX:StartFlightRecording ...) shows the slow commands next
+ * to the garbage collections and the I/O of the JVM.
+ *
+ * The library is compiled for Java 8, which has no JFR API, so the event type is defined at run
+ * time with jdk.jfr.EventFactory (Java 12 and later) and called through method handles. On older
+ * JVMs no event is emitted. When no recording enables the event, commit() only reads a flag.
+ *
+ */
+public class LibraryEvents {
+  // class/static fields
+  private static final String EVENT_NAME = "library.Operation";
+  private static final Object EVENT_TYPE; // jdk.jfr.EventType of the event, null if unavailable
+  private static final MethodHandle IS_ENABLED; // (EventType) -> boolean
+  private static final MethodHandle NEW_EVENT; // () -> Event of the event type
+  private static final MethodHandle SET; // (Event, int, Object) -> void
+  private static final MethodHandle COMMIT; // (Event) -> void
+
+  static {
+    Object eventType = null;
+    MethodHandle isEnabled = null;
+    MethodHandle newEvent = null;
+    MethodHandle set = null;
+    MethodHandle commit = null;
+    try {
+      Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+      Constructor<?> annotation = annotationClass.getConstructor(Class.class, Object.class);
+      Class<?> descriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+      Constructor<?> descriptor =
+          descriptorClass.getConstructor(Class.class, String.class, List.class);
+      Class<?> label = Class.forName("jdk.jfr.Label");
+      List<Object> annotations = Arrays.asList(
+          annotation.newInstance(Class.forName("jdk.jfr.Name"), EVENT_NAME),
+          annotation.newInstance(label, "Library Operation"),
+          annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] {"Library"}));
+      List<Object> fields = Arrays.asList( // indexes used by commit()
+          descriptor.newInstance(String.class, "operation",
+              Collections.singletonList(annotation.newInstance(label, "Operation"))),
+          descriptor.newInstance(long.class, "latency",
+              Arrays.asList(annotation.newInstance(label, "Latency"), annotation
+                  .newInstance(Class.forName("jdk.jfr.Timespan"), "NANOSECONDS"))),
+          descriptor.newInstance(boolean.class, "success",
+              Collections.singletonList(annotation.newInstance(label, "Success"))));
+      Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+      Object factory = factoryClass.getMethod("create", List.class, List.class).invoke(null,
+          annotations, fields);
+      Class<?> eventClass = Class.forName("jdk.jfr.Event");
+      MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+      eventType = factoryClass.getMethod("getEventType").invoke(factory);
+      isEnabled = lookup.unreflect(Class.forName("jdk.jfr.EventType").getMethod("isEnabled"))
+          .asType(MethodType.methodType(boolean.class, Object.class));
+      newEvent = lookup.unreflect(factoryClass.getMethod("newEvent")).bindTo(factory)
+          .asType(MethodType.methodType(Object.class));
+      set = lookup.unreflect(eventClass.getMethod("set", int.class, Object.class))
+          .asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+      commit = lookup.unreflect(eventClass.getMethod("commit"))
+          .asType(MethodType.methodType(void.class, Object.class));
+    } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+      eventType = null; // no JFR API in this JVM
+    }
+    EVENT_TYPE = eventType;
+    IS_ENABLED = isEnabled;
+    NEW_EVENT = newEvent;
+    SET = set;
+    COMMIT = commit;
+  }
+
+  /**
+   * Checks if the events can be emitted by this JVM
+   *
+   * @return true if the JFR API was found, false otherwise
+   */
+  public static boolean isAvailable() {
+    return EVENT_TYPE != null;
+  }
+
+  /**
+   * Emits an event for an operation, if a recording enables the event
+   *
+   * @param operation name of the operation (command or method)
+   * @param nanos     latency of the operation in nanoseconds
+   * @param success   true if the operation succeeded
+   */
+  public static void commit(String operation, long nanos, boolean success) {
+    if (EVENT_TYPE == null)
+      return;
+    try {
+      if (!(boolean) IS_ENABLED.invokeExact(EVENT_TYPE))
+        return;
+      Object event = (Object) NEW_EVENT.invokeExact();
+      SET.invokeExact(event, 0, (Object) operation);
+      SET.invokeExact(event, 1, (Object) nanos);
+      SET.invokeExact(event, 2, (Object) success);
+      COMMIT.invokeExact(event);
+    } catch (Throwable e) {
+      // an event that cannot be emitted is dropped, the operation itself succeeded
+    }
+  }
+}
@@ -0,0 +1,509 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.zip.CRC32;
+
+/**
+ * This class models the write-ahead journal of a library: an append-only file of the mutations of
+ * the library (books added and removed, subscribers added, checkouts, returns, address and phone
+ * number updates), replayed when the library starts again so that a crash loses nothing that was
+ * committed.
+ *
+ * Records are appended to a memory buffer, and a background thread writes and forces the buffer to
+ * the disk (group commit): all the records appended while the previous write was forced go to the
+ * disk with a single fsync. With a durability window of 0, awaitDurable() waits until the record is
+ * on the disk, so a command is durable when it returns. With a window of w milliseconds, the buffer
+ * is forced every w milliseconds and awaitDurable() returns at once: a crash may lose the last w
+ * milliseconds of mutations, but the sessions never wait for the disk.
+ *
+ * A record is made of an int length, the payload (type, int count, ints, String count, Strings as
+ * UTF-8 byte count and bytes, -1 for null) and the CRC32 of the payload. A record cut by a crash
+ * or damaged is detected by replay(), which drops it and the following ones.
+ *
+ * The sequence number of a record is its position in the journal file (1 for the first record),
+ * across the runs of the library: a snapshot saved while the journal is attached records the
+ * sequence number of the last record appended, and the records up to it are skipped when the
+ * journal is replayed after the snapshot.
+ *
+ */
+public class LibraryJournal implements Closeable {
+  // class/static fields
+  private static final int MAGIC = 0x584A4E4C; // "XJNL", first int of every journal file
+  private static final int VERSION = 1; // version of the format written by this class
+  private static final int HEADER_SIZE = 8; // MAGIC and VERSION
+  private static final int LOCK_COUNT = 64; // number of locks ordering the records of the books
+
+  // types of records
+  static final byte ADD_BOOK = 1; // ints: book id, Strings: title, author
+  static final byte REMOVE_BOOK = 2; // ints: book id
+  static final byte ADD_SUBSCRIBER = 3; // ints: card bar code, pin, Strings: name, address, phone
+  static final byte CHECKOUT = 4; // ints: card bar code, book id, due date (high and low ints)
+  static final byte RETURN = 5; // ints: card bar code, book id, fine charged in cents
+  static final byte UPDATE_ADDRESS = 6; // ints: card bar code, Strings: address
+  static final byte UPDATE_PHONE = 7; // ints: card bar code, Strings: phone number
+
+  // Instance fields
+  private final FileChannel channel; // journal file, opened for appending
+  private final long windowMillis; // durability window, 0 to wait for the disk at each commit
+  private final Object[] locks; // locks ordering the mutations of the books and their records
+  private final Thread flusher; // thread writing and forcing the appended records
+  private final CRC32 crc = new CRC32(); // guarded by this
+
+  private ByteBuffer pending; // records appended and not yet written. Guarded by this
+  private ByteBuffer writing; // records being written by the flusher (swapped with pending)
+  private long appended; // number of records in the journal, replayed or appended. Guarded by this
+  private long durable; // number of records on the disk. Guarded by this
+  private long commits; // number of fsyncs done by the flusher. Guarded by this
+  private boolean replayed; // true once replay() is done or not needed. Guarded by this
+  private boolean closed; // guarded by this
+  private IOException error; // first error of the flusher. Guarded by this
+
+  /**
+   * Opens or creates a journal file and starts its background flusher
+   *
+   * @param file         path of the journal file
+   * @param windowMillis durability window in milliseconds, 0 to make every commit wait for the
+   *                     disk
+   * @throws IOException if the file cannot be opened or is not a journal
+   */
+  public LibraryJournal(Path file, long windowMillis) throws IOException {
+    this.windowMillis = Math.max(0, windowMillis);
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      if (channel.size() == 0) { // new journal
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+        header.flip();
+        while (header.hasRemaining())
+          channel.write(header, HEADER_SIZE - header.remaining());
+        channel.force(true);
+        replayed = true;
+      } else {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0)
+          continue;
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+          throw new IOException(file + " is not a library journal");
+        int version = header.getInt();
+        if (version != VERSION)
+          throw new IOException("unsupported journal version " + version);
+      }
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    locks = new Object[LOCK_COUNT];
+    for (int i = 0; i < LOCK_COUNT; i++)
+      locks[i] = new Object();
+    pending = ByteBuffer.allocate(64 * 1024);
+    writing = ByteBuffer.allocate(64 * 1024);
+    flusher = new Thread("library-journal") {
+      @Override
+      public void run() {
+        flushLoop();
+      }
+    };
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Replays the records of the journal into a library, and prepares the journal for new records.
+   * A record cut by a crash, and the following ones, are removed from the journal. Replay must be
+   * done before any record is appended, and before the journal is attached to the library. A new
+   * journal has nothing to replay.
+   *
+   * @param library library the mutations are applied to (empty, or restored from the snapshot the
+   *                journal was started after)
+   * @return the number of records replayed
+   * @throws IOException if the journal cannot be read or contains an unknown record
+   */
+  public int replay(ExceptionalLibrary library) throws IOException {
+    return replay(library, 0);
+  }
+
+  /**
+   * Replays the records of the journal that follow a snapshot into the library restored from the
+   * snapshot, and prepares the journal for new records. The records up to the sequence number
+   * saved in the snapshot are already in the library: they are checked but not applied again.
+   *
+   * @param library library the mutations are applied to
+   * @param skipped sequence number of the last record already in the library, 0 if none
+   * @return the number of records replayed
+   * @throws IOException if the journal cannot be read or contains an unknown record
+   */
+  public synchronized int replay(ExceptionalLibrary library, long skipped) throws IOException {
+    if (replayed) // new journal, or already replayed
+      return 0;
+    int count = 0;
+    long records = 0; // valid records read
+    long end = HEADER_SIZE; // end of the last valid record
+    OutputSink previous = OutputSink.bind(OutputSink.discarding()); // no messages from the library
+    try {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE)
+        throw new IOException("journal larger than 2 GB");
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      buffer.position(HEADER_SIZE);
+      byte[] bytes = new byte[256];
+      while (buffer.remaining() >= 4) {
+        int length = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining() - 4)
+          break; // record cut by a crash
+        if (length > bytes.length)
+          bytes = new byte[Math.max(length, bytes.length * 2)];
+        buffer.get(bytes, 0, length);
+        crc.reset();
+        crc.update(bytes, 0, length);
+        if ((int) crc.getValue() != buffer.getInt())
+          break; // damaged record
+        if (++records > skipped) { // not in the snapshot
+          apply(library, ByteBuffer.wrap(bytes, 0, length));
+          count++;
+        }
+        end = buffer.position();
+      }
+    } catch (BufferUnderflowException e) {
+      throw new IOException("malformed record in journal after " + count + " records");
+    } finally {
+      OutputSink.bind(previous);
+    }
+    channel.truncate(end); // drop a cut record so that new records follow the last valid one
+    channel.force(true);
+    appended = records; // the new records follow the replayed ones
+    durable = records;
+    replayed = true;
+    return count;
+  }
+
+  /**
+   * Returns the lock that orders the mutations of a book with their records. A mutation of a book
+   * and the append of its record are done while holding this lock, so the records of a book are in
+   * the order of its mutations.
+   *
+   * @param bookId identifier of the book
+   * @return the lock of the book
+   */
+  public Object lockFor(int bookId) {
+    return locks[bookId & (LOCK_COUNT - 1)];
+  }
+
+  /**
+   * Appends the record of a new book
+   *
+   * @param book book added to the library
+   * @return the sequence number of the record, to be passed to awaitDurable()
+   */
+  public long logAddBook(Book book) {
+    return append(ADD_BOOK, new int[] {book.getID()}, book.getTitle(), book.getAuthor());
+  }
+
+  /**
+   * Appends the record of a removed book
+   *
+   * @param bookId identifier of the book removed from the library
+   * @return the sequence number of the record
+   */
+  public long logRemoveBook(int bookId) {
+    return append(REMOVE_BOOK, new int[] {bookId});
+  }
+
+  /**
+   * Appends the record of a new subscriber
+   *
+   * @param subscriber subscriber added to the library
+   * @return the sequence number of the record
+   */
+  public long logAddSubscriber(Subscriber subscriber) {
+    return append(ADD_SUBSCRIBER, new int[] {subscriber.getCARD_BAR_CODE(), subscriber.getPin()},
+        subscriber.getName(), subscriber.getAddress(), subscriber.getPhoneNumber());
+  }
+
+  /**
+   * Appends the record of a checkout
+   *
+   * @param cardBarCode card bar code of the subscriber who checked out the book
+   * @param bookId      identifier of the book
+   * @param dueDate     time in milliseconds at which the book is due
+   * @return the sequence number of the record
+   */
+  public long logCheckout(int cardBarCode, int bookId, long dueDate) {
+    return append(CHECKOUT, new int[] {cardBarCode, bookId, (int) (dueDate >>> 32), (int) dueDate});
+  }
+
+  /**
+   * Appends the record of a returned book
+   *
+   * @param cardBarCode card bar code of the subscriber who returned the book
+   * @param bookId      identifier of the book
+   * @param fine        fine charged for a late return in cents, 0 if none
+   * @return the sequence number of the record
+   */
+  public long logReturn(int cardBarCode, int bookId, long fine) {
+    return append(RETURN, new int[] {cardBarCode, bookId, (int) fine});
+  }
+
+  /**
+   * Appends the record of an address update
+   *
+   * @param cardBarCode card bar code of the subscriber
+   * @param address     new address of the subscriber
+   * @return the sequence number of the record
+   */
+  public long logUpdateAddress(int cardBarCode, String address) {
+    return append(UPDATE_ADDRESS, new int[] {cardBarCode}, address);
+  }
+
+  /**
+   * Appends the record of a phone number update
+   *
+   * @param cardBarCode card bar code of the subscriber
+   * @param phoneNumber new phone number of the subscriber
+   * @return the sequence number of the record
+   */
+  public long logUpdatePhoneNumber(int cardBarCode, String phoneNumber) {
+    return append(UPDATE_PHONE, new int[] {cardBarCode}, phoneNumber);
+  }
+
+  /**
+   * Waits until a record is forced to the disk, unless the journal has a durability window
+   *
+   * @param sequence sequence number of the record
+   * @return true if the record is durable (or will be within the durability window), false if the
+   *         journal is closed or cannot be written (see getError())
+   */
+  public synchronized boolean awaitDurable(long sequence) {
+    if (windowMillis > 0)
+      return sequence <= appended && error == null;
+    boolean interrupted = false;
+    while (durable < sequence && error == null && !closed) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+    return durable >= sequence && error == null;
+  }
+
+  /**
+   * Returns the first error that stopped the journal
+   *
+   * @return the first IOException of the writes, null if none
+   */
+  public synchronized IOException getError() {
+    return error;
+  }
+
+  /**
+   * Returns the sequence number of the last record appended, to be saved with a snapshot of the
+   * library
+   *
+   * @return the number of records of the journal, replayed or appended
+   */
+  public synchronized long getSequence() {
+    return appended;
+  }
+
+  /**
+   * Returns the number of records appended and the number of fsyncs done to make them durable
+   *
+   * @return {records appended, records durable, fsyncs}
+   */
+  public synchronized long[] getCounts() {
+    return new long[] {appended, durable, commits};
+  }
+
+  /**
+   * Writes the pending records, forces them to the disk and closes the journal file
+   *
+   * @throws IOException if the pending records cannot be written
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed)
+        return;
+      closed = true;
+      notifyAll();
+    }
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    channel.close();
+    IOException error = getError();
+    if (error != null)
+      throw error;
+  }
+
+  /**
+   * Encodes a record at the end of the pending buffer
+   */
+  private long append(byte type, int[] ints, String... strings) {
+    byte[][] encoded = new byte[strings.length][];
+    int length = 1 + 4 + 4 * ints.length + 4; // type, ints and their counts
+    for (int i = 0; i < strings.length; i++) {
+      if (strings[i] != null) {
+        encoded[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+        length += encoded[i].length;
+      }
+      length += 4;
+    }
+    synchronized (this) {
+      if (!replayed)
+        throw new IllegalStateException("journal not replayed");
+      if (closed) // closed or failed: the record never becomes durable
+        return appended + 1;
+      if (pending.remaining() < length + 8) // grow the buffer
+        pending = grow(pending, length + 8);
+      int start = pending.position();
+      pending.putInt(length).put(type).putInt(ints.length);
+      for (int i : ints)
+        pending.putInt(i);
+      pending.putInt(encoded.length);
+      for (byte[] bytes : encoded)
+        if (bytes == null) {
+          pending.putInt(-1);
+        } else {
+          pending.putInt(bytes.length);
+          pending.put(bytes);
+        }
+      crc.reset();
+      crc.update(pending.array(), start + 4, length);
+      pending.putInt((int) crc.getValue());
+      appended++;
+      if (windowMillis == 0)
+        notifyAll(); // a session waits for this record
+      return appended;
+    }
+  }
+
+  private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+    ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position()
+        + needed));
+    buffer.flip();
+    grown.put(buffer);
+    return grown;
+  }
+
+  /**
+   * Writes and forces the pending records until the journal is closed
+   */
+  private void flushLoop() {
+    while (true) {
+      long sequence;
+      ByteBuffer batch;
+      synchronized (this) {
+        try {
+          if (windowMillis > 0 && !closed)
+            wait(windowMillis);
+          while (pending.position() == 0 && !closed)
+            wait(windowMillis);
+        } catch (InterruptedException e) {
+          closed = true;
+        }
+        if (pending.position() == 0 && closed)
+          return;
+        batch = pending; // swap the buffers so sessions keep appending while we write
+        pending = writing;
+        writing = batch;
+        sequence = appended;
+      }
+      try {
+        batch.flip();
+        while (batch.hasRemaining())
+          channel.write(batch, channel.size());
+        channel.force(false); // one fsync for all the records of the batch
+        batch.clear();
+        synchronized (this) {
+          durable = sequence;
+          commits++;
+          notifyAll();
+        }
+      } catch (IOException e) {
+        synchronized (this) {
+          if (error == null)
+            error = e;
+          closed = true;
+          notifyAll();
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Applies a record to a library
+   */
+  private static void apply(ExceptionalLibrary library, ByteBuffer record) throws IOException {
+    byte type = record.get();
+    int[] ints = new int[record.getInt()];
+    for (int i = 0; i < ints.length; i++)
+      ints[i] = record.getInt();
+    String[] strings = new String[record.getInt()];
+    for (int i = 0; i < strings.length; i++) {
+      int length = record.getInt();
+      if (length >= 0) {
+        strings[i] = new String(record.array(), record.arrayOffset() + record.position(), length,
+            StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+      }
+    }
+    switch (type) {
+      case ADD_BOOK:
+        library.addBooks(new Book[] {new Book(ints[0], strings[0], strings[1], 0)}, 1);
+        break;
+      case REMOVE_BOOK:
+        library.removeBook(ints[0]);
+        break;
+      case ADD_SUBSCRIBER:
+        if (Subscriber.checkCardBarCode(ints[0]))
+          library.getSubscribers().add(new Subscriber(ints[0], strings[0], ints[1], strings[1],
+              strings[2], Collections.<Book>emptyList(), Collections.<Book>emptyList()));
+        break;
+      case CHECKOUT:
+      case RETURN:
+        Subscriber subscriber = library.getSubscribers().get(ints[0]);
+        Book book = library.getBooks().get(ints[1]);
+        if (subscriber == null || book == null)
+          break;
+        if (type == CHECKOUT ? !subscriber.checkoutBook(book) : !subscriber.returnBook(book))
+          break;
+        LoanSchedule loans = library.getLoanSchedule();
+        if (type == RETURN) {
+          loans.cancel(book.getID());
+          if (ints.length >= 3) // fine recorded
+            subscriber.chargeFine(ints[2]);
+        } else if (ints.length >= 4) // due date recorded
+          loans.schedule(book.getID(), (long) ints[2] << 32 | ints[3] & 0xFFFFFFFFL);
+        else // checkout recorded before the due dates: due a loan period after the replay
+          loans.schedule(book.getID(),
+              library.getClock().millis() + ExceptionalLibrary.LOAN_PERIOD);
+        library.fireAvailabilityChanged(book, type == CHECKOUT); // bitmap of the library
+        break;
+      case UPDATE_ADDRESS:
+      case UPDATE_PHONE:
+        subscriber = library.getSubscribers().get(ints[0]);
+        if (subscriber != null)
+          if (type == UPDATE_ADDRESS)
+            subscriber.setAddress(strings[0]);
+          else
+            subscriber.setPhoneNumber(strings[0]);
+        break;
+      default:
+        throw new IOException("unknown record type " + type + " in journal");
+    }
+  }
+}
@@ -0,0 +1,306 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class models the metrics of a library: for each command of the menus and each instrumented
+ * method (findBook, findSubscriber, searches, loads and saves), a histogram of its latencies and
+ * the number of its successes and errors. A command fails when it throws a ParseException or an
+ * InstantiationException; a method fails when it does not find what it looks for or cannot read or
+ * write its file. Each operation timed is also emitted as a JFR event (see LibraryEvents).
+ *
+ * Timing an operation costs two reads of the clock. The lookups (findBook, findSubscriber and the
+ * searches) are short and also run inside the commands, so only a sample of their latencies is
+ * recorded; their operations and errors are all counted.
+ *
+ * The metrics are displayed by the librarian command M, and can be written to a file periodically
+ * by startDumps().
+ *
+ */
+public class LibraryMetrics {
+  /**
+   * The latencies and the outcomes of one command or method
+   */
+  public static class Metric {
+    private final String name; // name of the command or method
+    private final int sampleMask; // the latency of one operation of sampleMask + 1 is recorded
+    private final LatencyHistogram latencies = new LatencyHistogram(); // sampled latencies
+    private final LongAdder operations = new LongAdder(); // number of operations recorded
+    private final LongAdder errors = new LongAdder(); // number of failed operations
+    private int sequence; // operations started, only used to pick the sampled ones (racy)
+
+    private Metric(String name, int sampleMask) {
+      this.name = name;
+      this.sampleMask = sampleMask;
+    }
+
+    /**
+     * Starts an operation
+     *
+     * @return the value of System.nanoTime() to give to record(), or NOT_TIMED if the latency of
+     *         this operation is not sampled
+     */
+    public long start() {
+      if (sampleMask != 0 && (++sequence & sampleMask) != 0)
+        return NOT_TIMED; // saves the two reads of the clock
+      return System.nanoTime();
+    }
+
+    /**
+     * Records an operation that started at a given time and ends now
+     *
+     * @param startNanos value returned by start(), or of System.nanoTime() if this metric is not
+     *                   sampled
+     * @param success    true if the operation succeeded
+     */
+    public void record(long startNanos, boolean success) {
+      if (startNanos == NOT_TIMED) {
+        operations.increment();
+        if (!success)
+          errors.increment();
+      } else {
+        recordLatency(System.nanoTime() - startNanos, success);
+      }
+    }
+
+    /**
+     * Records an operation
+     *
+     * @param nanos   latency of the operation in nanoseconds
+     * @param success true if the operation succeeded
+     */
+    public void recordLatency(long nanos, boolean success) {
+      operations.increment();
+      latencies.record(nanos);
+      if (!success)
+        errors.increment();
+      LibraryEvents.commit(name, nanos, success);
+    }
+
+    /**
+     * Returns the number of operations recorded
+     *
+     * @return the number of successes and errors
+     */
+    public long getCount() {
+      return operations.sum();
+    }
+
+    /**
+     * Checks if the latencies of this metric are sampled
+     *
+     * @return true if only a part of the latencies are recorded in the histogram
+     */
+    public boolean isSampled() {
+      return sampleMask != 0;
+    }
+
+    /**
+     * Returns the name of the command or method
+     *
+     * @return the name of this metric
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Returns the histogram of the latencies
+     *
+     * @return the latencies of the operations recorded (of the sampled ones if this metric is
+     *         sampled), successful or not
+     */
+    public LatencyHistogram getLatencies() {
+      return latencies;
+    }
+
+    /**
+     * Returns the number of failed operations
+     *
+     * @return the number of errors
+     */
+    public long getErrorCount() {
+      return errors.sum();
+    }
+
+    /**
+     * Returns the number of successful operations
+     *
+     * @return the number of successes
+     */
+    public long getSuccessCount() {
+      return operations.sum() - errors.sum();
+    }
+  }
+
+  // class/static fields
+  public static final long NOT_TIMED = Long.MIN_VALUE; // start of an operation not sampled
+
+  // Instance fields
+  private final ConcurrentHashMap<String, Metric> metrics; // metrics by name
+  private final ConcurrentHashMap<CommandTable.Command, Metric> commands; // by command
+  private ScheduledExecutorService dumps; // thread of the periodic dumps, null if none
+  private Path dumpFile; // file of the periodic dumps
+
+  /**
+   * Creates a new set of metrics without any metric
+   */
+  public LibraryMetrics() {
+    metrics = new ConcurrentHashMap<String, Metric>();
+    commands = new ConcurrentHashMap<CommandTable.Command, Metric>();
+  }
+
+  /**
+   * Returns the metric of a method, creating it the first time
+   *
+   * @param name name of the method
+   * @return the metric
+   */
+  public Metric get(String name) {
+    return getSampled(name, 1);
+  }
+
+  /**
+   * Returns the metric of a method whose latency is only sampled, creating it the first time. The
+   * operations and the errors are all counted, but only one latency out of sampleRate is recorded,
+   * for the methods so short that reading the clock twice would slow them down noticeably.
+   *
+   * @param name       name of the method
+   * @param sampleRate one latency out of sampleRate is recorded (a power of two)
+   * @return the metric
+   */
+  public Metric getSampled(String name, int sampleRate) {
+    Metric metric = metrics.get(name);
+    if (metric == null) {
+      metrics.putIfAbsent(name, new Metric(name, sampleRate - 1));
+      metric = metrics.get(name);
+    }
+    return metric;
+  }
+
+  /**
+   * Returns the metric of a command, creating it the first time. The metric is named after the
+   * table and the opcode of the command, for instance "librarian L".
+   *
+   * @param table   table of the command
+   * @param command command
+   * @param opcode  opcode of the command
+   * @return the metric
+   */
+  public Metric forCommand(CommandTable table, CommandTable.Command command, String opcode) {
+    Metric metric = commands.get(command);
+    if (metric == null) {
+      metric = get(table.getName() + " " + opcode.toUpperCase(Locale.ROOT));
+      commands.putIfAbsent(command, metric);
+    }
+    return metric;
+  }
+
+  /**
+   * Returns a table of the metrics, one line per command or method, sorted by name. The latencies
+   * are in microseconds; the names of the metrics whose latencies are sampled end with *.
+   *
+   * @return the text of the table
+   */
+  public String getReport() {
+    StringBuilder report = new StringBuilder(String.format("%-22s %10s %8s %10s %10s %10s %10s"
+        + " %10s%n", "Operation", "count", "errors", "mean us", "p50 us", "p90 us", "p99 us",
+        "max us"));
+    for (Metric metric : new TreeMap<String, Metric>(metrics).values()) {
+      LatencyHistogram latencies = metric.getLatencies();
+      if (metric.getCount() == 0)
+        continue;
+      report.append(String.format("%-22s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+          metric.isSampled() ? metric.getName() + " *" : metric.getName(), metric.getCount(),
+          metric.getErrorCount(),
+          latencies.getMean() / 1e3, latencies.getValueAtPercentile(50) / 1e3,
+          latencies.getValueAtPercentile(90) / 1e3, latencies.getValueAtPercentile(99) / 1e3,
+          latencies.getMax() / 1e3));
+    }
+    return report.toString();
+  }
+
+  /**
+   * Writes the report of the metrics to a temporary file in the directory of a file, and then
+   * replaces the file with the temporary file, so that the file is never read half written
+   *
+   * @param file path of the file
+   * @throws IOException if the file cannot be written
+   */
+  public void writeReport(Path file) throws IOException {
+    Path directory = file.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+        writer.write("Metrics of the library at " + new Date());
+        writer.newLine();
+        writer.write(getReport());
+      }
+      try {
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp); // if the file was not replaced
+    }
+  }
+
+  /**
+   * Writes the report of the metrics to a file every period, in a background thread, until
+   * stopDumps() is called
+   *
+   * @param file          path of the file, replaced by each dump
+   * @param periodSeconds time between two dumps in seconds
+   */
+  public synchronized void startDumps(final Path file, long periodSeconds) {
+    stopDumps();
+    dumpFile = file;
+    dumps = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable task) {
+        Thread thread = new Thread(task, "library-metrics-dump");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    dumps.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        dump(file);
+      }
+    }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stops the periodic dumps and writes a last dump, so that the file tells the whole run
+   */
+  public synchronized void stopDumps() {
+    if (dumps == null)
+      return;
+    dumps.shutdownNow();
+    dumps = null;
+    dump(dumpFile);
+  }
+
+  private void dump(Path file) {
+    try {
+      writeReport(file);
+    } catch (IOException e) {
+      System.err.println("ERROR: the metrics could not be written to " + file + ": " + e);
+    }
+  }
+}
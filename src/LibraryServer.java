@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class models a TCP server that lets many kiosks use the same library at the same time. Each
+ * connection runs the main, librarian and subscriber command loops of the library in its own
+ * session thread, with the text of the session displayed to the connection.
+ *
+ * Session threads are virtual threads when the JVM supports them (Java 21 or later), so idle
+ * sessions cost almost nothing. On older JVMs they are daemon platform threads with a small stack.
+ *
+ */
+public class LibraryServer {
+  // class/static fields
+  private static final long PLATFORM_STACK_SIZE = 256 * 1024; // stack of a platform session thread
+
+  // Instance fields
+  private final ExceptionalLibrary library; // library shared by all the sessions
+  private final ServerSocket serverSocket; // socket accepting the connections of the kiosks
+  private final ThreadFactory sessionThreads; // creates one thread per session
+  private final Set<Socket> connections; // connections of the running sessions
+  private final AtomicInteger sessionCount; // number of sessions started since the server started
+  private Thread acceptor; // thread accepting the connections
+  private volatile boolean stopped;
+
+  /**
+   * Creates a new server of a library listening on a port of the loopback address
+   *
+   * @param library library shared by all the sessions
+   * @param port    TCP port to listen to, 0 for any free port
+   * @throws IOException if the port cannot be bound
+   */
+  public LibraryServer(ExceptionalLibrary library, int port) throws IOException {
+    this(library, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+  }
+
+  /**
+   * Creates a new server of a library listening on a given address
+   *
+   * @param library library shared by all the sessions
+   * @param address address and port to listen to
+   * @throws IOException if the address cannot be bound
+   */
+  public LibraryServer(ExceptionalLibrary library, InetSocketAddress address) throws IOException {
+    this.library = library;
+    serverSocket = new ServerSocket();
+    serverSocket.setReuseAddress(true);
+    serverSocket.bind(address, 1024);
+    sessionThreads = newSessionThreadFactory();
+    connections = ConcurrentHashMap.newKeySet();
+    sessionCount = new AtomicInteger();
+  }
+
+  /**
+   * Starts accepting connections in a background thread
+   */
+  public synchronized void start() {
+    if (acceptor != null)
+      return;
+    acceptor = new Thread("library-server-acceptor") {
+      @Override
+      public void run() {
+        acceptConnections();
+      }
+    };
+    acceptor.start();
+  }
+
+  /**
+   * Stops accepting connections and closes the connections of the running sessions
+   */
+  public void stop() {
+    stopped = true;
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      // the server socket is closed anyway
+    }
+    for (Socket socket : connections)
+      closeQuietly(socket);
+  }
+
+  /**
+   * Waits until the server is stopped
+   *
+   * @throws InterruptedException if the current thread is interrupted while waiting
+   */
+  public void join() throws InterruptedException {
+    Thread acceptor;
+    synchronized (this) {
+      acceptor = this.acceptor;
+    }
+    if (acceptor != null)
+      acceptor.join();
+  }
+
+  /**
+   * Returns the port this server listens to
+   *
+   * @return the local port of the server socket
+   */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Returns the number of sessions currently running
+   *
+   * @return the number of open connections
+   */
+  public int getActiveSessionCount() {
+    return connections.size();
+  }
+
+  /**
+   * Returns the number of sessions started since this server started
+   *
+   * @return the number of accepted connections
+   */
+  public int getSessionCount() {
+    return sessionCount.get();
+  }
+
+  /**
+   * Accepts connections and starts a session for each of them until the server is stopped
+   */
+  private void acceptConnections() {
+    while (!stopped) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        if (!stopped)
+          System.out.println("ERROR: the server stopped accepting connections: " + e.getMessage());
+        return;
+      }
+      connections.add(socket);
+      sessionCount.incrementAndGet();
+      Thread session = sessionThreads.newThread(new Runnable() {
+        @Override
+        public void run() {
+          runSession(socket);
+        }
+      });
+      session.start();
+    }
+  }
+
+  /**
+   * Runs the command loops of the library for a connection, until the user exits or disconnects
+   *
+   * @param socket connection of the session
+   */
+  private void runSession(Socket socket) {
+    OutputSink previous = null;
+    try {
+      socket.setTcpNoDelay(true);
+      OutputSink sink = OutputSink.toSocket(socket);
+      previous = OutputSink.bind(sink);
+      Scanner scanner = new Scanner(socket.getInputStream(), "UTF-8");
+      library.runSession(scanner);
+      sink.close();
+    } catch (NoSuchElementException e) {
+      // the kiosk disconnected in the middle of a session
+    } catch (SocketException e) {
+      // the connection was reset or the server stopped
+    } catch (IOException e) {
+      System.out
+          .println("ERROR: session " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+    } finally {
+      if (previous != null)
+        OutputSink.bind(previous);
+      connections.remove(socket);
+      closeQuietly(socket);
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // nothing else to do
+    }
+  }
+
+  /**
+   * Returns a factory of virtual threads if the JVM supports them, of small daemon platform threads
+   * otherwise. Virtual threads are looked up by reflection because this project targets Java 8.
+   */
+  private static ThreadFactory newSessionThreadFactory() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder,
+          "library-session-", 1L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // no virtual threads on this JVM
+    }
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable task) {
+        Thread thread = new Thread(null, task, "library-session-" + count.incrementAndGet(),
+            PLATFORM_STACK_SIZE);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+}
@@ -0,0 +1,370 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * This class saves the whole state of a library (books with their identifiers and borrowers,
+ * subscribers with their lists of checked out and returned books) to a binary snapshot file, and
+ * restores it into an empty library. Unlike the title:author text files of the S and L commands,
+ * a snapshot keeps the book identifiers and card bar codes, so a restarted library is identical to
+ * the saved one.
+ *
+ * A snapshot file is made of big-endian ints:
+ *
+ * <pre>
+ * header:      MAGIC VERSION nextBookId nextCardBarCode journalSequence high int,
+ *              journalSequence low int, stringCount bookCount subscriberCount
+ * strings:     stringCount times (byteCount, UTF-8 bytes)
+ * books:       bookCount times (id, title, author, borrower, dueDate high int, dueDate low int)
+ * subscribers: subscriberCount times (cardBarCode, pin, name, address, phoneNumber,
+ *              fines high int, fines low int, checkedOutCount, checkedOutCount book ids,
+ *              returnedCount, returnedCount book ids)
+ * </pre>
+ *
+ * Titles, authors, names, addresses and phone numbers are dictionary encoded: each distinct String
+ * is stored once and referenced by its index (-1 for null). Books removed from the catalog are
+ * saved too (with the WITHDRAWN borrower) when they are still in a history of returned books. The
+ * file is memory-mapped to be restored, so a large library is read without any copy through a
+ * stream.
+ *
+ * The journal sequence is the sequence number of the last record of the journal of the library
+ * when the snapshot was started (0 if the library had no journal): a journal replayed after the
+ * snapshot is restored skips the records up to it, which are already in the snapshot. The
+ * changes made while the snapshot is written are after this number, and are replayed even if the
+ * snapshot has them.
+ *
+ * Version 1 snapshots have no due dates: the books checked out that they restore are due a loan
+ * period after the restore. Version 1 and 2 snapshots have no fines: the subscribers they restore
+ * owe nothing for the books they returned. Version 1 to 3 snapshots have no journal sequence:
+ * the whole journal is replayed after them.
+ *
+ */
+public class LibrarySnapshot {
+  // class/static fields
+  private static final int MAGIC = 0x584C4942; // "XLIB", first int of every snapshot file
+  private static final int VERSION = 4; // version of the format written by this class
+
+  // Instance fields
+  private final ExceptionalLibrary library; // library saved or restored
+  private int bookCount; // number of books saved or restored by the last operation
+  private int subscriberCount; // number of subscribers saved or restored by the last operation
+  private long journalSequence; // last record of the journal in the snapshot, 0 if none
+  private long elapsedNanos; // duration of the last operation
+  private String operation = "Saved"; // "Saved" or "Restored"
+
+  /**
+   * Creates a new snapshot of a given library
+   *
+   * @param library library to save or to restore
+   */
+  public LibrarySnapshot(ExceptionalLibrary library) {
+    this.library = library;
+  }
+
+  /**
+   * Saves the state of the library to a snapshot file. The snapshot is written to a temporary file
+   * in the same directory, which then replaces the file, so a crash during the save leaves the
+   * previous snapshot whole. The lists of books of each subscriber are saved as one consistent
+   * step, but books checked out or returned by other sessions while the snapshot is written may be
+   * saved before or after the change.
+   *
+   * @param file path of the snapshot file
+   * @throws IOException if the file cannot be written
+   */
+  public void save(Path file) throws IOException {
+    long start = System.nanoTime();
+    LibraryJournal journal = library.getJournal();
+    long sequence = journal == null ? 0 : journal.getSequence(); // before reading the library
+    BookCatalog catalog = library.getBooks();
+    LoanSchedule loans = library.getLoanSchedule();
+    ArrayList<Book> books = new ArrayList<Book>(catalog);
+    ArrayList<Subscriber> subscribers = library.getSubscribers().toList();
+    Book[][] checkedOut = new Book[subscribers.size()][];
+    Book[][] returned = new Book[subscribers.size()][];
+    long[] fines = new long[subscribers.size()];
+    BookCatalog withdrawn = new BookCatalog(); // books that are only in lists of subscribers
+    for (int i = 0; i < subscribers.size(); i++) {
+      Subscriber subscriber = subscribers.get(i);
+      synchronized (subscriber) { // both lists at the same time
+        checkedOut[i] = subscriber.getBooksCheckedOut();
+        returned[i] = subscriber.getBooksReturned();
+        fines[i] = subscriber.getFines();
+      }
+      for (Book book : returned[i])
+        if (catalog.get(book.getID()) == null && withdrawn.add(book))
+          books.add(book);
+      for (Book book : checkedOut[i])
+        if (catalog.get(book.getID()) == null && withdrawn.add(book))
+          books.add(book);
+    }
+    HashMap<Integer, Integer> borrowers = borrowers(subscribers, checkedOut);
+
+    // build the dictionary of the Strings of the books and subscribers
+    HashMap<String, Integer> codes = new HashMap<String, Integer>();
+    ArrayList<String> strings = new ArrayList<String>();
+    for (Book book : books) {
+      encode(book.getTitle(), codes, strings);
+      encode(book.getAuthor(), codes, strings);
+    }
+    for (Subscriber subscriber : subscribers) {
+      encode(subscriber.getName(), codes, strings);
+      encode(subscriber.getAddress(), codes, strings);
+      encode(subscriber.getPhoneNumber(), codes, strings);
+    }
+
+    Path directory = file.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(Book.getNextId());
+        out.writeInt(Subscriber.getNextCardBarCode());
+        out.writeLong(sequence);
+        out.writeInt(strings.size());
+        out.writeInt(books.size());
+        out.writeInt(subscribers.size());
+        for (String s : strings) {
+          byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+        for (Book book : books) {
+          out.writeInt(book.getID());
+          out.writeInt(encode(book.getTitle(), codes, strings));
+          out.writeInt(encode(book.getAuthor(), codes, strings));
+          Integer borrower = borrowers.get(book.getID()); // as in the lists of the subscribers
+          out.writeInt(borrower != null ? borrower
+              : book.isWithdrawn() || withdrawn.get(book.getID()) != null ? Book.WITHDRAWN
+                  : Book.AVAILABLE);
+          out.writeLong(loans.getDueDate(book.getID()));
+        }
+        for (int i = 0; i < subscribers.size(); i++) {
+          Subscriber subscriber = subscribers.get(i);
+          out.writeInt(subscriber.getCARD_BAR_CODE());
+          out.writeInt(subscriber.getPin());
+          out.writeInt(encode(subscriber.getName(), codes, strings));
+          out.writeInt(encode(subscriber.getAddress(), codes, strings));
+          out.writeInt(encode(subscriber.getPhoneNumber(), codes, strings));
+          out.writeLong(fines[i]);
+          out.writeInt(checkedOut[i].length);
+          for (Book book : checkedOut[i])
+            out.writeInt(book.getID());
+          out.writeInt(returned[i].length);
+          for (Book book : returned[i])
+            out.writeInt(book.getID());
+        }
+      }
+      try {
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp); // if the file was not replaced
+    }
+    operation = "Saved";
+    journalSequence = sequence;
+    bookCount = books.size();
+    subscriberCount = subscribers.size();
+    elapsedNanos = System.nanoTime() - start;
+  }
+
+  /**
+   * Restores the state saved in a snapshot file into the library, which must be empty. The
+   * identifiers of the next new books and card bar codes are moved after the restored ones.
+   *
+   * @param file path of the snapshot file
+   * @throws IOException if the file cannot be read, is not a valid snapshot, or if the library is
+   *                     not empty
+   */
+  public void restore(Path file) throws IOException {
+    long start = System.nanoTime();
+    BookCatalog catalog = library.getBooks();
+    SubscriberTable table = library.getSubscribers();
+    if (catalog.size() > 0 || table.size() > 0)
+      throw new IOException("a snapshot can only be restored into an empty library");
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE)
+        throw new IOException("snapshot larger than 2 GB");
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < 8 || buffer.getInt() != MAGIC)
+        throw new IOException(file + " is not a library snapshot");
+      int version = buffer.getInt();
+      if (version < 1 || version > VERSION)
+        throw new IOException("unsupported snapshot version " + version);
+      int nextBookId = buffer.getInt();
+      int nextCardBarCode = buffer.getInt();
+      long sequence = version >= 4 ? buffer.getLong() : 0;
+      String[] strings = new String[checkCount(buffer.getInt())];
+      int books = checkCount(buffer.getInt());
+      int subscribers = checkCount(buffer.getInt());
+
+      byte[] bytes = new byte[64];
+      for (int i = 0; i < strings.length; i++) {
+        int length = checkCount(buffer.getInt());
+        if (length > bytes.length)
+          bytes = new byte[Math.max(length, bytes.length * 2)];
+        buffer.get(bytes, 0, length);
+        strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+      }
+
+      Book[] batch = new Book[books]; // books of the catalog, in their saved order
+      LoanSchedule loans = library.getLoanSchedule();
+      long loanDueDate = library.getClock().millis() + ExceptionalLibrary.LOAN_PERIOD;
+      int count = 0;
+      BookCatalog withdrawn = new BookCatalog(); // books that are only in lists of subscribers
+      for (int i = 0; i < books; i++) {
+        int id = buffer.getInt();
+        String title = decode(strings, buffer.getInt());
+        String author = decode(strings, buffer.getInt());
+        Book book = new Book(id, title, author, buffer.getInt());
+        long dueDate = version == 1 ? loanDueDate : buffer.getLong();
+        if (book.isWithdrawn()) {
+          withdrawn.add(book);
+        } else {
+          batch[count++] = book;
+          if (book.getBorrowerCardBarCode() != null)
+            loans.schedule(id, dueDate == LoanSchedule.NOT_DUE ? loanDueDate : dueDate);
+        }
+      }
+      library.addBooks(batch, count);
+
+      ArrayList<Book> checkedOut = new ArrayList<Book>();
+      ArrayList<Book> returned = new ArrayList<Book>();
+      for (int i = 0; i < subscribers; i++) {
+        int cardBarCode = buffer.getInt();
+        int pin = buffer.getInt();
+        String name = decode(strings, buffer.getInt());
+        String address = decode(strings, buffer.getInt());
+        String phoneNumber = decode(strings, buffer.getInt());
+        long fines = version >= 3 ? buffer.getLong() : 0;
+        readBooks(buffer, catalog, withdrawn, checkedOut);
+        readBooks(buffer, catalog, withdrawn, returned);
+        if (!Subscriber.checkCardBarCode(cardBarCode))
+          throw new IOException("invalid card bar code " + cardBarCode + " in snapshot");
+        Subscriber subscriber =
+            new Subscriber(cardBarCode, name, pin, address, phoneNumber, checkedOut, returned);
+        subscriber.chargeFine(fines);
+        table.add(subscriber);
+      }
+      Book.reserveIds(nextBookId);
+      Subscriber.reserveCardBarCodes(nextCardBarCode);
+      operation = "Restored";
+      journalSequence = sequence;
+      bookCount = books;
+      subscriberCount = subscribers;
+    } catch (BufferUnderflowException e) {
+      throw new IOException(file + " is a truncated library snapshot");
+    }
+    elapsedNanos = System.nanoTime() - start;
+  }
+
+  /**
+   * Returns the journal sequence of the last snapshot saved or restored
+   *
+   * @return the sequence number of the last record of the journal that is in the snapshot, 0 if
+   *         none
+   */
+  public long getJournalSequence() {
+    return journalSequence;
+  }
+
+  /**
+   * Returns a one line summary of the last save or restore
+   *
+   * @return the number of books and subscribers saved or restored, and the duration
+   */
+  public String getSummary() {
+    return String.format("%s %d books and %d subscribers in %.3f s.", operation, bookCount,
+        subscriberCount, elapsedNanos / 1e9);
+  }
+
+  /**
+   * Returns the borrower of each book of the lists of checked out books read from the subscribers.
+   * The lists are read one subscriber at a time: a book returned by a subscriber and checked out by
+   * another one between the two reads is in both lists, and it is removed from the list read first,
+   * which is older for this book. The borrower of the books saved is taken from these lists rather
+   * than from the books, which may have changed since, so that a restored book is always in the
+   * list of its borrower.
+   *
+   * @param subscribers subscribers in the order their lists were read
+   * @param checkedOut  books checked out by each subscriber, cleared of the books duplicated
+   * @return the card bar code of the borrower by book identifier
+   */
+  private static HashMap<Integer, Integer> borrowers(ArrayList<Subscriber> subscribers,
+      Book[][] checkedOut) {
+    HashMap<Integer, Integer> borrowers = new HashMap<Integer, Integer>();
+    HashMap<Integer, Integer> readers = new HashMap<Integer, Integer>(); // list of each book
+    for (int i = 0; i < checkedOut.length; i++)
+      for (Book book : checkedOut[i]) {
+        Integer previous = readers.put(book.getID(), i);
+        if (previous != null) { // checked out again after the first list was read
+          ArrayList<Book> list = new ArrayList<Book>(Arrays.asList(checkedOut[previous]));
+          list.remove(book);
+          checkedOut[previous] = list.toArray(new Book[list.size()]);
+        }
+        borrowers.put(book.getID(), subscribers.get(i).getCARD_BAR_CODE());
+      }
+    return borrowers;
+  }
+
+  /**
+   * Returns the dictionary index of a String, adding the String to the dictionary if needed
+   */
+  private static int encode(String s, HashMap<String, Integer> codes, ArrayList<String> strings) {
+    if (s == null)
+      return -1;
+    Integer code = codes.get(s);
+    if (code == null) {
+      code = strings.size();
+      codes.put(s, code);
+      strings.add(s);
+    }
+    return code;
+  }
+
+  private static String decode(String[] strings, int code) throws IOException {
+    if (code == -1)
+      return null;
+    if (code < 0 || code >= strings.length)
+      throw new IOException("invalid string index " + code + " in snapshot");
+    return strings[code];
+  }
+
+  private static int checkCount(int count) throws IOException {
+    if (count < 0)
+      throw new IOException("invalid count " + count + " in snapshot");
+    return count;
+  }
+
+  /**
+   * Reads a count followed by that many book identifiers into a list of books
+   */
+  private static void readBooks(MappedByteBuffer buffer, BookCatalog catalog,
+      BookCatalog withdrawn, ArrayList<Book> list) throws IOException {
+    list.clear();
+    for (int count = checkCount(buffer.getInt()); count > 0; count--) {
+      int id = buffer.getInt();
+      Book book = catalog.get(id);
+      if (book == null)
+        book = withdrawn.get(id);
+      if (book == null)
+        throw new IOException("unknown book " + id + " in snapshot");
+      list.add(book);
+    }
+  }
+}
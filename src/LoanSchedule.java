@@ -0,0 +1,350 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class models the due dates of the loans of a library, and finds the loans that become
+ * overdue without ever scanning the loans. The due date of each book checked out is kept in an
+ * array keyed by book identifier (split in chunks of CHUNK_SIZE identifiers, like the bitmap of
+ * AvailabilityIndex), and the book is scheduled in a hierarchical timer wheel: LEVELS wheels of
+ * SLOTS slots, the slots of level l spanning SLOTS^l ticks. A loan goes to the level of the highest
+ * tick digit in which its due date differs from the current tick, and moves down one level each
+ * time its slot is reached, so scheduling a loan takes constant time and each loan is moved at most
+ * LEVELS times before it is found overdue: advancing the clock costs the number of loans found
+ * overdue plus the number of ticks elapsed, whatever the number of loans.
+ *
+ * A loan returned or renewed is not removed from the wheel: its due date is only cleared or
+ * changed, and the entry is dropped when it is moved or reached and its due date no longer
+ * matches its slot. Each loan is reported overdue once: its due date is flagged when it is found.
+ *
+ * The due dates are read and cleared without locking. The wheel is guarded by the lock of this
+ * object, which advance() releases after every MAX_MOVES loans moved or reached: a slot of the
+ * higher levels can hold most of the loans, and the checkouts scheduling their loans meanwhile
+ * would wait for all of them to move. The loans of the slot being emptied wait in a backlog, which
+ * is emptied before the wheel advances further.
+ *
+ */
+public class LoanSchedule {
+  // class/static fields
+  public static final long NOT_DUE = 0; // due date of a book not checked out
+  private static final long OVERDUE = 1L << 62; // flag of a due date found overdue
+  private static final int CHUNK_SHIFT = 16;
+  private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT; // due dates per chunk
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS; // slots per level
+  private static final int LEVELS = 4; // the wheel spans SLOTS^LEVELS ticks
+  private static final int INITIAL_SLOT_SIZE = 16; // entries of a slot when first used
+  private static final int MAX_MOVES = 4096; // loans moved or reached per hold of the lock
+  private static final int[] EMPTY = new int[0];
+
+  // Instance fields
+  private final long tickMillis; // duration of a tick of the wheel, in milliseconds
+  private volatile AtomicLongArray[] chunks; // chunk i holds the due dates of identifiers
+                                             // i * CHUNK_SIZE and up, null if none was recorded
+  private final int[][][] slots = new int[LEVELS][SLOTS][]; // book identifiers of each slot
+  private final int[][] sizes = new int[LEVELS][SLOTS]; // number of identifiers of each slot
+  private final long[] occupied = new long[LEVELS]; // bit s set if slot s of the level is not empty
+  private long current; // last tick reached by advance()
+  private int nextLevel = -1; // level of the next slot of the current tick to empty, -1 if none
+  private int[] backlog = EMPTY; // loans of the slot emptied last, not yet moved or reached
+  private int backlogLevel; // level of the slot of backlog: its loans are reached at level 0
+  private int backlogNext; // index of the next loan of backlog
+  private int backlogSize; // number of loans of backlog
+  private int[] pending = EMPTY; // books due in the current tick or before, not yet overdue
+  private int pendingSize;
+  private int[] overdue = new int[16]; // books found overdue, in the order they were found
+  private long[] overdueDates = new long[16]; // due date of each book of overdue
+  private int overdueSize;
+  private int compactedSize; // size of overdue after its last compaction
+  private int compacting = -1; // next entry of overdue checked by the compaction, -1 if none
+  private int kept; // entries of overdue kept so far by the compaction
+  private volatile long nextCheck; // time in milliseconds before which advance() has nothing to do
+  private final AtomicBoolean advancing = new AtomicBoolean(); // true while a thread advances
+
+  /**
+   * Creates a new schedule without any loan
+   *
+   * @param tickMillis duration of a tick of the wheel in milliseconds: the due dates in the same
+   *                   tick share a slot
+   * @param now        current time in milliseconds
+   */
+  public LoanSchedule(long tickMillis, long now) {
+    if (tickMillis <= 0)
+      throw new IllegalArgumentException("tick of " + tickMillis + " ms");
+    this.tickMillis = tickMillis;
+    chunks = new AtomicLongArray[1];
+    current = Math.floorDiv(now, tickMillis);
+    nextCheck = (current + 1) * tickMillis;
+  }
+
+  /**
+   * Records the due date of a book checked out and schedules it in the wheel
+   *
+   * @param bookId  identifier of the book checked out
+   * @param dueDate time in milliseconds at which the book is due
+   */
+  public void schedule(int bookId, long dueDate) {
+    dueDate = Math.max(dueDate, 1); // never NOT_DUE
+    chunk(bookId, true).set(bookId & CHUNK_SIZE - 1, dueDate);
+    synchronized (this) {
+      insert(bookId, dueDate);
+    }
+  }
+
+  /**
+   * Clears the due date of a book returned. The book stays in the wheel until its slot is reached.
+   *
+   * @param bookId identifier of the book returned
+   * @return the due date of the book, NOT_DUE if it had none
+   */
+  public long cancel(int bookId) {
+    AtomicLongArray chunk = chunk(bookId, false);
+    return chunk == null ? NOT_DUE : chunk.getAndSet(bookId & CHUNK_SIZE - 1, NOT_DUE) & ~OVERDUE;
+  }
+
+  /**
+   * Returns the due date of a book
+   *
+   * @param bookId identifier of the book
+   * @return the time in milliseconds at which the book is due, NOT_DUE if it is not checked out
+   */
+  public long getDueDate(int bookId) {
+    return dueDate(bookId) & ~OVERDUE;
+  }
+
+  /**
+   * Advances the wheel to the current time and returns the books that became overdue since the
+   * last call. This method returns at once when no tick was reached since the last call, or when
+   * another thread is advancing the wheel: that thread returns the books found overdue.
+   *
+   * @param now current time in milliseconds
+   * @return the identifiers of the books whose due date is now past, each book being returned once
+   *         per loan (possibly none)
+   */
+  public int[] advance(long now) {
+    if (now < nextCheck || !advancing.compareAndSet(false, true))
+      return EMPTY;
+    try {
+      int[] found = EMPTY;
+      int foundSize = 0;
+      boolean done = false;
+      while (!done) { // the lock is released between the steps for the checkouts and returns
+        synchronized (this) {
+          if (compacting >= 0 || overdueSize > 2 * compactedSize + 1024)
+            compact(2 * MAX_MOVES); // amortized: the list at most doubles between two compactions
+          int from = overdueSize;
+          done = step(now);
+          if (foundSize + overdueSize - from > found.length)
+            found = Arrays.copyOf(found, Math.max(foundSize + overdueSize - from, 2 * foundSize));
+          System.arraycopy(overdue, from, found, foundSize, overdueSize - from);
+          foundSize += overdueSize - from;
+        }
+        if (!done)
+          Thread.yield(); // lets a thread waiting for the lock take it before the next step
+      }
+      return foundSize == found.length ? found : Arrays.copyOf(found, foundSize);
+    } finally {
+      advancing.set(false);
+    }
+  }
+
+  /**
+   * Advances the wheel toward the current time, moving or reaching at most MAX_MOVES loans. The
+   * caller holds the lock of this object.
+   *
+   * @param now current time in milliseconds
+   * @return true if the wheel reached the current time, false if loans are left to move
+   */
+  private boolean step(long now) {
+    long target = Math.floorDiv(now, tickMillis);
+    int moves = 0;
+    while (true) {
+      for (; backlogNext < backlogSize; backlogNext++) {
+        if (moves++ == MAX_MOVES)
+          return false;
+        int id = backlog[backlogNext];
+        if (backlogLevel == 0) {
+          reach(id, now);
+        } else { // moves the loan down
+          long dueDate = dueDate(id);
+          if (dueDate != NOT_DUE && (dueDate & OVERDUE) == 0) // dropped if returned
+            insert(id, dueDate);
+        }
+      }
+      backlog = EMPTY;
+      if (nextLevel >= 0) { // the slots of the higher levels first, then the one of the loans due
+        take(nextLevel, (int) (current >>> SLOT_BITS * nextLevel & SLOTS - 1));
+        nextLevel--;
+        continue;
+      }
+      if (current >= target)
+        break;
+      int slot = (int) (current & SLOTS - 1);
+      long last = current | SLOTS - 1; // last tick of this turn of the first level
+      if (slot < SLOTS - 1 && (occupied[0] & -1L << slot + 1) == 0 && target > last)
+        current = last; // no loan due in the rest of this turn
+      current++;
+      nextLevel = 0;
+      while (nextLevel < LEVELS - 1 // the loans of the next slots of the higher levels move down
+          && (current & (1L << SLOT_BITS * (nextLevel + 1)) - 1) == 0)
+        nextLevel++;
+    }
+    int[] reached = Arrays.copyOf(pending, pendingSize);
+    pendingSize = 0;
+    for (int id : reached)
+      reach(id, now);
+    long next = (current + 1) * tickMillis;
+    for (int i = 0; i < pendingSize; i++)
+      next = Math.min(next, dueDate(pending[i]));
+    nextCheck = next;
+    return true;
+  }
+
+  /**
+   * Returns the books overdue when advance() was last called and not returned since, and forgets
+   * the books returned
+   *
+   * @return the identifiers of the overdue books, in the order they were found overdue
+   */
+  public synchronized int[] getOverdue() {
+    compact(Integer.MAX_VALUE);
+    return Arrays.copyOf(overdue, overdueSize);
+  }
+
+  /**
+   * Drops the books returned or checked out again from the list of the overdue books. The books
+   * found overdue meanwhile are added after the ones checked, so the compaction can go on at the
+   * next call.
+   *
+   * @param limit maximum number of books checked
+   * @return true if the compaction is over, false if books are left to check
+   */
+  private boolean compact(int limit) {
+    if (compacting < 0) {
+      compacting = 0;
+      kept = 0;
+    }
+    int end = (int) Math.min(overdueSize, (long) compacting + limit);
+    for (; compacting < end; compacting++) {
+      if (dueDate(overdue[compacting]) == (overdueDates[compacting] | OVERDUE)) { // same loan
+        overdue[kept] = overdue[compacting];
+        overdueDates[kept++] = overdueDates[compacting];
+      }
+    }
+    if (compacting < overdueSize)
+      return false;
+    overdueSize = kept;
+    compactedSize = kept;
+    compacting = -1;
+    return true;
+  }
+
+  /**
+   * Handles a book whose slot is reached: the book is overdue if its due date is past, it waits
+   * in pending if it is due later in the current tick, and it is dropped if it was returned or
+   * checked out again (the new loan has its own entry)
+   */
+  private void reach(int id, long now) {
+    long dueDate = dueDate(id);
+    if (dueDate == NOT_DUE || (dueDate & OVERDUE) != 0)
+      return;
+    if (dueDate <= now) {
+      if (!chunk(id, false).compareAndSet(id & CHUNK_SIZE - 1, dueDate, dueDate | OVERDUE))
+        return; // returned meanwhile
+      if (overdueSize == overdue.length) {
+        overdue = Arrays.copyOf(overdue, overdueSize * 2);
+        overdueDates = Arrays.copyOf(overdueDates, overdueSize * 2);
+      }
+      overdue[overdueSize] = id;
+      overdueDates[overdueSize++] = dueDate;
+    } else if (Math.floorDiv(dueDate, tickMillis) <= current) {
+      addPending(id);
+    }
+  }
+
+  /**
+   * Puts a book in the slot of its due date, or in pending if the due date is in the current tick
+   * or before
+   */
+  private void insert(int id, long dueDate) {
+    long tick = Math.floorDiv(dueDate, tickMillis);
+    if (tick <= current) {
+      addPending(id);
+      if (dueDate < nextCheck)
+        nextCheck = dueDate;
+      return;
+    }
+    int level = (63 - Long.numberOfLeadingZeros(tick ^ current)) / SLOT_BITS;
+    int slot;
+    if (level < LEVELS) {
+      slot = (int) (tick >>> SLOT_BITS * level & SLOTS - 1);
+    } else { // beyond the wheel: waits in the last slot of the last level to be reached
+      level = LEVELS - 1;
+      slot = (int) ((current >>> SLOT_BITS * level) - 1 & SLOTS - 1);
+    }
+    int size = sizes[level][slot];
+    int[] ids = slots[level][slot];
+    if (ids == null || size == ids.length)
+      ids = slots[level][slot] =
+          Arrays.copyOf(ids == null ? EMPTY : ids, Math.max(INITIAL_SLOT_SIZE, size * 2));
+    ids[size] = id;
+    sizes[level][slot] = size + 1;
+    occupied[level] |= 1L << slot;
+  }
+
+  /**
+   * Empties a slot into the backlog (the array of a first level slot is reused by the next turn:
+   * the backlog is emptied before)
+   */
+  private void take(int level, int slot) {
+    int size = sizes[level][slot];
+    int[] ids = slots[level][slot];
+    sizes[level][slot] = 0;
+    occupied[level] &= ~(1L << slot);
+    backlogLevel = level;
+    backlogNext = 0;
+    backlogSize = size;
+    if (size == 0)
+      return;
+    backlog = ids;
+    if (level > 0 || ids.length > 4096)
+      slots[level][slot] = null;
+  }
+
+  private void addPending(int id) {
+    if (pendingSize == pending.length)
+      pending = Arrays.copyOf(pending, Math.max(INITIAL_SLOT_SIZE, pendingSize * 2));
+    pending[pendingSize++] = id;
+  }
+
+  private long dueDate(int bookId) {
+    AtomicLongArray chunk = chunk(bookId, false);
+    return chunk == null ? NOT_DUE : chunk.get(bookId & CHUNK_SIZE - 1);
+  }
+
+  /**
+   * Returns the chunk of the due date of a book, creating it if needed
+   *
+   * @param bookId identifier of the book
+   * @param create true to create the chunk if it does not exist
+   * @return the chunk, null if it does not exist and create is false
+   */
+  private AtomicLongArray chunk(int bookId, boolean create) {
+    AtomicLongArray[] chunks = this.chunks;
+    int i = bookId >>> CHUNK_SHIFT;
+    AtomicLongArray chunk = bookId >= 0 && i < chunks.length ? chunks[i] : null;
+    if (chunk != null || !create)
+      return chunk;
+    if (bookId < 0)
+      throw new IllegalArgumentException("book identifier " + bookId);
+    synchronized (this) {
+      chunks = this.chunks;
+      if (i >= chunks.length)
+        chunks = Arrays.copyOf(chunks, Math.max(i + 1, 2 * chunks.length));
+      if (chunks[i] == null)
+        chunks[i] = new AtomicLongArray(CHUNK_SIZE);
+      this.chunks = chunks; // publishes the new chunk
+      return chunks[i];
+    }
+  }
+}
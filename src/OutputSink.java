@@ -0,0 +1,328 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class models the destination of the text displayed by the library (console, file or
+ * socket). Text is formatted into a reusable buffer and written to the destination in large blocks
+ * instead of one synchronized System.out call per field.
+ *
+ * Each thread displays its text through its current sink, which is the console unless another sink
+ * is bound to the thread with bind(). This way the static display methods of the library and the
+ * Subscriber class do not need a reference to the sink.
+ *
+ * The buffers of a sink are allocated when it is first written to, so an idle session or a
+ * discarding sink that is never written to costs no buffer. A socket sink is auto flushed at each
+ * line, so its buffers are only SOCKET_BUFFER_SIZE chars: a server keeps one sink per connection.
+ *
+ */
+public class OutputSink {
+  // class/static fields
+  private static final int BUFFER_SIZE = 32 * 1024; // number of chars buffered before a write
+  private static final int SOCKET_BUFFER_SIZE = 2 * 1024; // for the auto flushed socket sinks
+  private static final char[] NO_CHARS = new char[0]; // buffer of a sink never written to
+  private static final String LINE_SEPARATOR = System.lineSeparator();
+
+  private static final OutputSink CONSOLE = new OutputSink(new OutputStream() {
+    // the console is looked up at each write so that System.setOut() is taken into account
+    @Override
+    public void write(int b) {
+      System.out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      System.out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() {
+      System.out.flush();
+    }
+  }, true);
+
+  private static final ThreadLocal<OutputSink> CURRENT = new ThreadLocal<OutputSink>() {
+    @Override
+    protected OutputSink initialValue() {
+      return CONSOLE;
+    }
+  };
+
+  // Instance fields
+  private final OutputStream out; // destination of the text
+  private final boolean autoFlush; // if true, print() and println() write the text immediately
+  private final int bufferSize; // number of chars buffered before a write
+  private char[] chars = NO_CHARS; // formatted text not yet written, allocated by the first append
+  private int count; // number of chars in the buffer
+  private ByteBuffer bytes; // encoded text, allocated by the first write
+  private final CharsetEncoder encoder;
+  private IOException error; // first error thrown by the destination
+
+  /**
+   * Creates a new sink writing UTF-8 text to an output stream
+   *
+   * @param out       destination of the text
+   * @param autoFlush true if every print() and println() must be written immediately (console,
+   *                  interactive socket), false if text can be written only when the buffer is full
+   *                  or when flush() is called
+   */
+  public OutputSink(OutputStream out, boolean autoFlush) {
+    this(out, autoFlush, BUFFER_SIZE);
+  }
+
+  /**
+   * Creates a new sink writing UTF-8 text to an output stream through buffers of a given size
+   *
+   * @param out        destination of the text
+   * @param autoFlush  true if every print() and println() must be written immediately
+   * @param bufferSize number of chars buffered before a write (at least 16)
+   */
+  OutputSink(OutputStream out, boolean autoFlush, int bufferSize) {
+    this.out = out;
+    this.autoFlush = autoFlush;
+    this.bufferSize = Math.max(16, bufferSize);
+    encoder = StandardCharsets.UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  /**
+   * Returns the sink that writes to the console (System.out)
+   *
+   * @return the console sink
+   */
+  public static OutputSink console() {
+    return CONSOLE;
+  }
+
+  /**
+   * Creates a sink that discards all the text displayed to it
+   *
+   * @return the new sink
+   */
+  public static OutputSink discarding() {
+    return new OutputSink(new OutputStream() {
+      @Override
+      public void write(int b) {}
+
+      @Override
+      public void write(byte[] b, int off, int len) {}
+    }, false);
+  }
+
+  /**
+   * Creates a sink that writes to a file. The file is created or truncated.
+   *
+   * @param filename name of the file
+   * @return the new sink
+   * @throws IOException if the file cannot be opened
+   */
+  public static OutputSink toFile(String filename) throws IOException {
+    return new OutputSink(new FileOutputStream(filename), false);
+  }
+
+  /**
+   * Creates a sink that writes to a socket
+   *
+   * @param socket connected socket
+   * @return the new sink
+   * @throws IOException if the output stream of the socket cannot be obtained
+   */
+  public static OutputSink toSocket(Socket socket) throws IOException {
+    return new OutputSink(socket.getOutputStream(), true, SOCKET_BUFFER_SIZE);
+  }
+
+  /**
+   * Returns the sink of the current thread
+   *
+   * @return the sink the current thread displays its text to
+   */
+  public static OutputSink current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Binds a sink to the current thread
+   *
+   * @param sink sink the current thread must display its text to, null for the console
+   * @return the sink previously bound to the current thread
+   */
+  public static OutputSink bind(OutputSink sink) {
+    OutputSink previous = CURRENT.get();
+    CURRENT.set(sink == null ? CONSOLE : sink);
+    return previous;
+  }
+
+  /**
+   * Appends a String to the buffer of this sink
+   *
+   * @param s String to append
+   * @return this sink
+   */
+  public synchronized OutputSink append(String s) {
+    if (s == null)
+      s = "null";
+    if (chars == NO_CHARS)
+      chars = new char[bufferSize];
+    int from = 0;
+    while (from < s.length()) {
+      if (count == chars.length)
+        writeBuffer();
+      int length = Math.min(s.length() - from, chars.length - count);
+      s.getChars(from, from + length, chars, count);
+      count += length;
+      from += length;
+    }
+    return this;
+  }
+
+  /**
+   * Appends the decimal representation of an int to the buffer of this sink
+   *
+   * @param i int to append
+   * @return this sink
+   */
+  public synchronized OutputSink append(int i) {
+    if (i == Integer.MIN_VALUE)
+      return append("-2147483648");
+    if (chars == NO_CHARS)
+      chars = new char[bufferSize];
+    if (chars.length - count < 11)
+      writeBuffer();
+    if (i < 0) {
+      chars[count++] = '-';
+      i = -i;
+    }
+    int digits = 1;
+    for (int n = i; n >= 10; n /= 10)
+      digits++;
+    for (int position = count + digits - 1; position >= count; position--) {
+      chars[position] = (char) ('0' + i % 10);
+      i /= 10;
+    }
+    count += digits;
+    return this;
+  }
+
+  /**
+   * Appends "true" or "false" to the buffer of this sink
+   *
+   * @param b boolean to append
+   * @return this sink
+   */
+  public OutputSink append(boolean b) {
+    return append(b ? "true" : "false");
+  }
+
+  /**
+   * Appends a line separator to the buffer of this sink
+   *
+   * @return this sink
+   */
+  public OutputSink newLine() {
+    return append(LINE_SEPARATOR);
+  }
+
+  /**
+   * Displays a String. The String is written immediately if this sink is auto flushed.
+   *
+   * @param s String to display
+   */
+  public synchronized void print(String s) {
+    append(s);
+    if (autoFlush)
+      flush();
+  }
+
+  /**
+   * Displays a String followed by a line separator. The line is written immediately if this sink
+   * is auto flushed.
+   *
+   * @param s String to display
+   */
+  public synchronized void println(String s) {
+    append(s).newLine();
+    if (autoFlush)
+      flush();
+  }
+
+  /**
+   * Writes all the buffered text to the destination of this sink
+   */
+  public synchronized void flush() {
+    writeBuffer();
+    try {
+      out.flush();
+    } catch (IOException e) {
+      if (error == null)
+        error = e;
+    }
+  }
+
+  /**
+   * Writes the buffered text and closes the destination of this sink. The console is only flushed.
+   */
+  public synchronized void close() {
+    flush();
+    if (this != CONSOLE)
+      try {
+        out.close();
+      } catch (IOException e) {
+        if (error == null)
+          error = e;
+      }
+  }
+
+  /**
+   * Returns the first error thrown by the destination of this sink. Like PrintStream, a sink never
+   * throws an IOException while text is displayed.
+   *
+   * @return the first IOException thrown by the destination, null if none
+   */
+  public synchronized IOException getError() {
+    return error;
+  }
+
+  /**
+   * Encodes the buffered chars and writes them to the destination
+   */
+  private void writeBuffer() {
+    int end = count;
+    if (end > 1 && Character.isHighSurrogate(chars[end - 1]))
+      end--; // keep the first half of a surrogate pair with its second half
+    if (end == 0)
+      return;
+    if (bytes == null) // a char is encoded in 1 byte most of the time, a full buffer is drained
+      bytes = ByteBuffer.allocate(bufferSize);
+    CharBuffer input = CharBuffer.wrap(chars, 0, end);
+    encoder.reset();
+    try {
+      CoderResult result;
+      do {
+        result = encoder.encode(input, bytes, true);
+        if (result.isOverflow() || !input.hasRemaining())
+          drainBytes();
+      } while (result.isOverflow());
+      encoder.flush(bytes);
+      drainBytes();
+    } catch (IOException e) {
+      if (error == null)
+        error = e;
+      bytes.clear();
+    }
+    System.arraycopy(chars, end, chars, 0, count - end);
+    count -= end;
+  }
+
+  private void drainBytes() throws IOException {
+    if (bytes.position() > 0)
+      out.write(bytes.array(), 0, bytes.position());
+    bytes.clear();
+  }
+}
@@ -0,0 +1,16 @@
+/**
+ * This interface models an object told about the loans of a library that become overdue, for
+ * instance to send a reminder to the borrower. Each loan is notified once, when the library finds
+ * that its due date is past (see ExceptionalLibrary.checkOverdueLoans()).
+ *
+ */
+public interface OverdueListener {
+  /**
+   * Called after a book checked out became overdue
+   *
+   * @param book        book overdue
+   * @param cardBarCode card bar code of the borrower of the book
+   * @param dueDate     time in milliseconds at which the book was due
+   */
+  void loanOverdue(Book book, int cardBarCode, long dueDate);
+}
@@ -0,0 +1,139 @@
+import java.util.Arrays;
+
+/**
+ * This class models a sorted list of book identifiers without duplicates. Book identifiers are
+ * given in increasing order, so adding a new book is usually an append at the end of the list.
+ *
+ */
+public class PostingList {
+  // Instance fields
+  private int[] ids; // book identifiers sorted in increasing order
+  private int size; // number of identifiers in this list
+
+  /**
+   * Creates a new empty posting list
+   */
+  public PostingList() {
+    ids = new int[2];
+  }
+
+  /**
+   * Adds a book identifier to this list
+   *
+   * @param id book identifier to add
+   * @return true if the identifier is added, false if it was already in this list
+   */
+  public boolean add(int id) {
+    int position = size;
+    if (size > 0 && ids[size - 1] >= id) { // not an append, look for the insertion point
+      position = Arrays.binarySearch(ids, 0, size, id);
+      if (position >= 0) // already in this list
+        return false;
+      position = -position - 1;
+    }
+    if (size == ids.length)
+      ids = Arrays.copyOf(ids, size * 2);
+    System.arraycopy(ids, position, ids, position + 1, size - position);
+    ids[position] = id;
+    size++;
+    return true;
+  }
+
+  /**
+   * Removes a book identifier from this list
+   *
+   * @param id book identifier to remove
+   * @return true if the identifier is removed, false if it was not in this list
+   */
+  public boolean remove(int id) {
+    int position = Arrays.binarySearch(ids, 0, size, id);
+    if (position < 0)
+      return false;
+    System.arraycopy(ids, position + 1, ids, position, size - position - 1);
+    size--;
+    return true;
+  }
+
+  /**
+   * Checks if this list contains a book identifier
+   *
+   * @param id book identifier to look for
+   * @return true if the identifier is in this list, false otherwise
+   */
+  public boolean contains(int id) {
+    return Arrays.binarySearch(ids, 0, size, id) >= 0;
+  }
+
+  /**
+   * Returns the position of the first identifier greater than or equal to a given identifier,
+   * from a given position on. The search gallops from the position, so it costs the logarithm of
+   * the distance moved rather than the logarithm of the size of this list.
+   *
+   * @param from position to search from, from 0 to size()
+   * @param id   book identifier to look for
+   * @return the first position from from whose identifier is at least id, size() if there is
+   *         none
+   */
+  public int advance(int from, int id) {
+    int lo = from; // the identifiers before lo are lower than id
+    int hi = from;
+    for (int step = 1; hi < size && ids[hi] < id; step <<= 1) {
+      lo = hi + 1;
+      hi += step;
+    }
+    int position = Arrays.binarySearch(ids, lo, Math.min(hi, size), id);
+    return position >= 0 ? position : -position - 1;
+  }
+
+  /**
+   * Returns the identifier stored at a given position of this list
+   *
+   * @param index position of the identifier, from 0 to size() - 1
+   * @return the book identifier
+   */
+  public int get(int index) {
+    if (index >= size)
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    return ids[index];
+  }
+
+  /**
+   * Returns a copy of the identifiers of this list
+   *
+   * @return an array of the identifiers sorted in increasing order
+   */
+  public int[] toArray() {
+    return Arrays.copyOf(ids, size);
+  }
+
+  /**
+   * Returns a copy of a range of the identifiers of this list
+   *
+   * @param from  first position of the range
+   * @param count number of identifiers to copy at most
+   * @return an array of the identifiers of the positions from from to from + count - 1 (or to the
+   *         end of this list)
+   */
+  public int[] toArray(int from, int count) {
+    from = Math.min(from, size);
+    return Arrays.copyOfRange(ids, from, from + Math.min(count, size - from));
+  }
+
+  /**
+   * Returns the number of identifiers of this list
+   *
+   * @return the size of this list
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Checks if this list is empty
+   *
+   * @return true if this list contains no identifiers
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+}
@@ -0,0 +1,353 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This class models the history of the books returned by a subscriber. The most recent returns are
+ * kept in a small ring of books. When the ring is full, its oldest half is written to the spill
+ * file as one compressed block (identifier, title and author of each book), so an old history
+ * costs a few bytes of heap per book instead of pinning every returned Book. The identifiers of
+ * all the returned books are also kept in a hash set of ints, so contains() never reads the disk.
+ *
+ * The history is iterated from the oldest return to the most recent one, one block at a time.
+ * Books read back from the spill file are copies with a WITHDRAWN borrower: they only tell the
+ * identifier, title and author of the returned book.
+ *
+ * The spill file is a temporary file shared by all the histories and deleted when the JVM exits.
+ * It is a cache of the heap, not a durable record: the journal and the snapshots keep the
+ * histories across restarts. A history is not thread-safe; the Subscriber class synchronizes it.
+ *
+ */
+public class ReturnHistory implements Iterable<Book> {
+  // class/static fields
+  private static final int RING_CAPACITY = 64; // recent returns kept as books
+  private static final int SPILL_BLOCK = RING_CAPACITY / 2; // books written to one block
+  private static final Book[] EMPTY_RING = new Book[0];
+  private static volatile SpillFile spillFile; // shared by all the histories, created by the
+                                               // first spill
+
+  // Instance fields
+  private Book[] ring = EMPTY_RING; // recent returns, from head, oldest first
+  private int head; // index of the oldest book of the ring
+  private int ringSize; // number of books in the ring
+  private long[] blocks; // offsets of the spilled blocks in the spill file, oldest first
+  private int[] blockLengths; // compressed lengths of the spilled blocks
+  private int blockCount; // number of spilled blocks
+  private int[] ids = new int[8]; // open addressing set of the returned book identifiers, 0 = free
+  private int idCount; // number of identifiers in the set
+
+  /**
+   * Adds a returned book to the end of this history
+   *
+   * @param book returned book
+   */
+  public void add(Book book) {
+    if (ringSize == ring.length && (ringSize < RING_CAPACITY || !spill()))
+      growRing();
+    ring[(head + ringSize++) % ring.length] = book;
+    addId(book.getID());
+  }
+
+  /**
+   * Checks if a book was returned
+   *
+   * @param bookId identifier of the book
+   * @return true if this history contains a book with this identifier
+   */
+  public boolean contains(int bookId) {
+    int mask = ids.length - 1;
+    for (int i = mix(bookId) & mask; ids[i] != 0; i = (i + 1) & mask)
+      if (ids[i] == bookId)
+        return true;
+    return false;
+  }
+
+  /**
+   * Returns the number of returns in this history
+   *
+   * @return the number of books returned, including the books returned more than once
+   */
+  public int size() {
+    return blockCount * SPILL_BLOCK + ringSize;
+  }
+
+  /**
+   * Returns an iterator over this history, from the oldest return to the most recent one. The
+   * spilled blocks are read one at a time.
+   *
+   * @return the iterator. Its next() method throws an UncheckedIOException if a spilled block
+   *         cannot be read
+   */
+  @Override
+  public Iterator<Book> iterator() {
+    return new Iterator<Book>() {
+      private int block; // index of the next spilled block to read
+      private Book[] page = EMPTY_RING; // books of the last block read
+      private int next; // index in page of the next book
+      private int ringIndex; // index in the ring of the next book, once the blocks are read
+
+      @Override
+      public boolean hasNext() {
+        return next < page.length || block < blockCount || ringIndex < ringSize;
+      }
+
+      @Override
+      public Book next() {
+        if (next < page.length)
+          return page[next++];
+        if (block < blockCount) {
+          try {
+            page = spillFile.read(blocks[block], blockLengths[block]);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+          block++;
+          next = 1;
+          return page[0];
+        }
+        if (ringIndex == ringSize)
+          throw new NoSuchElementException();
+        return ring[(head + ringIndex++) % ring.length];
+      }
+    };
+  }
+
+  /**
+   * Writes the oldest half of the full ring to the spill file
+   *
+   * @return true if the books are spilled, false if the spill file cannot be written
+   */
+  private boolean spill() {
+    Book[] oldest = new Book[SPILL_BLOCK];
+    for (int i = 0; i < SPILL_BLOCK; i++)
+      oldest[i] = ring[(head + i) % ring.length];
+    long offset;
+    int length;
+    try {
+      SpillFile file = spillFile();
+      byte[] block = file.encode(oldest);
+      offset = file.append(block);
+      length = block.length;
+    } catch (IOException e) {
+      return false; // the books stay in the heap
+    }
+    if (blocks == null || blockCount == blocks.length) {
+      int capacity = blocks == null ? 4 : blockCount * 2;
+      blocks = blocks == null ? new long[capacity] : Arrays.copyOf(blocks, capacity);
+      blockLengths =
+          blockLengths == null ? new int[capacity] : Arrays.copyOf(blockLengths, capacity);
+    }
+    blocks[blockCount] = offset;
+    blockLengths[blockCount++] = length;
+    for (int i = 0; i < SPILL_BLOCK; i++)
+      ring[(head + i) % ring.length] = null;
+    head = (head + SPILL_BLOCK) % ring.length;
+    ringSize -= SPILL_BLOCK;
+    return true;
+  }
+
+  /**
+   * Doubles the capacity of the ring, keeping its books in order from index 0
+   */
+  private void growRing() {
+    Book[] grown = new Book[Math.max(4, ring.length * 2)];
+    for (int i = 0; i < ringSize; i++)
+      grown[i] = ring[(head + i) % ring.length];
+    ring = grown;
+    head = 0;
+  }
+
+  private void addId(int id) {
+    if (id == 0 || contains(id))
+      return;
+    if ((idCount + 1) * 4 > ids.length * 3) { // keep the set at most 3/4 full
+      int[] old = ids;
+      ids = new int[old.length * 2];
+      for (int oldId : old)
+        if (oldId != 0)
+          insertId(oldId);
+    }
+    insertId(id);
+    idCount++;
+  }
+
+  private void insertId(int id) {
+    int mask = ids.length - 1;
+    int i = mix(id) & mask;
+    while (ids[i] != 0)
+      i = (i + 1) & mask;
+    ids[i] = id;
+  }
+
+  private static int mix(int id) {
+    int h = id * 0x9E3779B9; // book identifiers are consecutive: spread them
+    return h ^ (h >>> 16);
+  }
+
+  private static synchronized SpillFile spillFile() throws IOException {
+    if (spillFile == null)
+      spillFile = new SpillFile();
+    return spillFile;
+  }
+
+  /**
+   * Temporary file of the spilled blocks of all the histories. Blocks are appended to a write
+   * buffer that goes to the file when it is full, and the written blocks are read with positional
+   * reads, so the histories of different subscribers can use the file at the same time.
+   *
+   * A block is compressed with a dictionary local to the block: a title or an author is written
+   * the first time it appears in the block and referenced by its index afterwards, and the book
+   * identifiers are written as variable length differences. Spilling costs much less than a
+   * general purpose compressor, whose set up dominates on blocks of a few kilobytes.
+   */
+  private static class SpillFile {
+    private final FileChannel channel;
+    private final byte[] tail = new byte[64 * 1024]; // blocks not yet written. Guarded by this
+    private int tailLength; // number of bytes in tail. Guarded by this
+    private long written; // number of bytes written to the file. Guarded by this
+    private final ByteArrayOutputStream raw = new ByteArrayOutputStream(); // block being encoded
+    private final DataOutputStream rawData = new DataOutputStream(raw);
+    private final HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+
+    SpillFile() throws IOException {
+      Path file = Files.createTempFile("library-history", ".spill");
+      file.toFile().deleteOnExit();
+      channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Compresses a block of books: count, then identifier, title and author of each book
+     */
+    synchronized byte[] encode(Book[] books) throws IOException {
+      raw.reset();
+      dictionary.clear();
+      writeVarInt(books.length);
+      int previousId = 0;
+      for (Book book : books) {
+        int delta = book.getID() - previousId;
+        writeVarInt((delta << 1) ^ (delta >> 31)); // zigzag: small negative deltas stay short
+        previousId = book.getID();
+        writeString(book.getTitle());
+        writeString(book.getAuthor());
+      }
+      return raw.toByteArray();
+    }
+
+    private void writeString(String s) throws IOException {
+      Integer code = dictionary.get(s);
+      if (code != null) {
+        writeVarInt(code + 1);
+      } else {
+        dictionary.put(s, dictionary.size());
+        writeVarInt(0); // new String
+        rawData.writeUTF(s);
+      }
+    }
+
+    private void writeVarInt(int value) {
+      while ((value & ~0x7F) != 0) {
+        raw.write((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      raw.write(value);
+    }
+
+    /**
+     * Appends a block and returns its offset in the file
+     */
+    synchronized long append(byte[] block) throws IOException {
+      if (tailLength + block.length > tail.length)
+        writeTail();
+      long offset = written + tailLength;
+      if (block.length > tail.length) { // larger than the buffer: written directly
+        write(ByteBuffer.wrap(block), offset);
+        written += block.length;
+      } else {
+        System.arraycopy(block, 0, tail, tailLength, block.length);
+        tailLength += block.length;
+      }
+      return offset;
+    }
+
+    private void writeTail() throws IOException {
+      write(ByteBuffer.wrap(tail, 0, tailLength), written);
+      written += tailLength;
+      tailLength = 0;
+    }
+
+    private void write(ByteBuffer buffer, long offset) throws IOException {
+      long start = offset - buffer.position();
+      while (buffer.hasRemaining())
+        channel.write(buffer, start + buffer.position());
+    }
+
+    /**
+     * Reads and decodes a block
+     */
+    Book[] read(long offset, int length) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      synchronized (this) {
+        if (offset >= written) { // still in the write buffer
+          buffer.put(tail, (int) (offset - written), length).flip();
+          return decode(buffer);
+        }
+      }
+      while (buffer.hasRemaining())
+        if (channel.read(buffer, offset + buffer.position()) < 0)
+          throw new IOException("truncated history spill file");
+      buffer.flip();
+      return decode(buffer);
+    }
+
+    private static Book[] decode(ByteBuffer buffer) throws IOException {
+      DataInputStream in = new DataInputStream(
+          new ByteArrayInputStream(buffer.array(), buffer.position(), buffer.remaining()));
+      Book[] books = new Book[readVarInt(in)];
+      ArrayList<String> strings = new ArrayList<String>();
+      int id = 0;
+      for (int i = 0; i < books.length; i++) {
+        int zigzag = readVarInt(in);
+        id += (zigzag >>> 1) ^ -(zigzag & 1);
+        String title = readString(in, strings);
+        books[i] = new Book(id, title, readString(in, strings), Book.WITHDRAWN);
+      }
+      return books;
+    }
+
+    private static String readString(DataInputStream in, ArrayList<String> strings)
+        throws IOException {
+      int code = readVarInt(in);
+      if (code > strings.size())
+        throw new IOException("invalid history spill block");
+      if (code > 0)
+        return strings.get(code - 1);
+      String s = in.readUTF();
+      strings.add(s);
+      return s;
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+      int value = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        int b = in.readUnsignedByte();
+        value |= (b & 0x7F) << shift;
+        if (b < 0x80)
+          return value;
+      }
+      throw new IOException("invalid history spill block");
+    }
+  }
+}
@@ -0,0 +1,385 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class models a cache of the results of the searches by title and by author of a library.
+ * Subscribers repeat the same searches, so the books found and their availability are kept for
+ * the next search of the same key, and displaying them again costs nothing but the output.
+ *
+ * The cache is bounded by the number of books of its results: when it is full, the least
+ * recently used results are evicted first. An empty result ("No books match") is cached too and
+ * costs ENTRY_WEIGHT books.
+ *
+ * The cache is kept exact by the library. Adding or removing a book invalidates the results of its
+ * title and of its author only. Checking out or returning a book does not invalidate anything: the
+ * cache listens to the availability of the books and refreshes the availability flag of the book
+ * in the cached results in place.
+ *
+ * A cache can be shared by several threads. A result computed while a book is added or removed is
+ * returned to its caller but not cached, since it may miss the change.
+ *
+ */
+public class SearchCache implements BookAvailabilityListener {
+  // class/static fields
+  public static final int DEFAULT_CAPACITY = 1 << 18; // books of the cached results at most
+  private static final int ENTRY_WEIGHT = 8; // weight of a result besides its books, so that the
+                                             // number of empty results is bounded too
+
+  /**
+   * The books found by a search, ordered by book identifier, with their availability
+   */
+  public static final class Result {
+    private final Book[] books; // books found, ordered by identifier
+    private final int[] ids; // identifiers of the books, searched without reading the books
+    private final AtomicLongArray available; // bit i is set if books[i] is available. Written
+                                             // under the lock of the cache
+
+    private Result(ArrayList<Book> found) {
+      books = found.toArray(new Book[found.size()]);
+      ids = new int[books.length];
+      for (int i = 0; i < books.length; i++)
+        ids[i] = books[i].getID();
+      available = new AtomicLongArray((books.length + 63) >>> 6);
+      for (int i = 0; i < books.length; i++)
+        if (books[i].isAvailable())
+          available.set(i >>> 6, available.get(i >>> 6) | 1L << i);
+    }
+
+    /**
+     * Returns the number of books found
+     *
+     * @return the number of books of this result
+     */
+    public int size() {
+      return books.length;
+    }
+
+    /**
+     * Returns a book of this result
+     *
+     * @param index index of the book, from 0 to size() - 1
+     * @return the book
+     */
+    public Book get(int index) {
+      return books[index];
+    }
+
+    /**
+     * Returns the identifier of a book of this result, without reading the book
+     *
+     * @param index index of the book, from 0 to size() - 1
+     * @return the identifier of the book
+     */
+    public int getID(int index) {
+      return ids[index];
+    }
+
+    /**
+     * Checks if a book of this result is available
+     *
+     * @param index index of the book, from 0 to size() - 1
+     * @return true if the book is available
+     */
+    public boolean isAvailable(int index) {
+      return (available.get(index >>> 6) & 1L << index) != 0;
+    }
+
+    /**
+     * Returns a page of the books of this result
+     *
+     * @param after continuation token of the page: identifier of the last book of the previous
+     *              page, BookPage.FIRST for the first page
+     * @param limit number of books of the page at most (at least 1)
+     * @return the page of the books found after the book after
+     */
+    public BookPage page(int after, int limit) {
+      int from = Arrays.binarySearch(ids, after);
+      from = from >= 0 ? from + 1 : -from - 1; // first book whose identifier is greater than after
+      int to = from + Math.min(limit, books.length - from);
+      ArrayList<Book> page = new ArrayList<Book>(Arrays.asList(books).subList(from, to));
+      return new BookPage(page, to < books.length && to > from ? ids[to - 1] : BookPage.NONE);
+    }
+
+    /**
+     * Returns the books of this result
+     *
+     * @return a new ArrayList of the books, ordered by identifier
+     */
+    public ArrayList<Book> toList() {
+      return new ArrayList<Book>(Arrays.asList(books));
+    }
+
+    /**
+     * Copies the current availability of a book into its flag. The caller holds the lock of the
+     * cache.
+     *
+     * @return true if the book is in this result
+     */
+    private boolean refresh(Book book) {
+      int index = Arrays.binarySearch(ids, book.getID());
+      if (index < 0)
+        return false;
+      long word = available.get(index >>> 6);
+      long bit = 1L << index;
+      available.set(index >>> 6, book.isAvailable() ? word | bit : word & ~bit);
+      return true;
+    }
+
+    private int weight() {
+      return ENTRY_WEIGHT + books.length;
+    }
+  }
+
+  // Instance fields
+  private final int capacity; // books of the cached results at most
+  private final LinkedHashMap<String, Result> results; // key -> result, the least recently used
+                                                       // first. Guarded by this
+  private long weight; // books of the cached results, plus ENTRY_WEIGHT per result
+  private long generation; // number of invalidations: a result computed across one is not cached
+  private long hits; // searches answered by the cache
+  private long misses; // searches that had to look up the index
+  private long evictions; // results evicted to make room
+  private long invalidations; // results invalidated by a book added or removed
+  private long refreshes; // availability flags refreshed in place
+
+  /**
+   * Creates a new empty cache of DEFAULT_CAPACITY books
+   */
+  public SearchCache() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a new empty cache
+   *
+   * @param capacity number of books of the cached results at most
+   */
+  public SearchCache(int capacity) {
+    this.capacity = capacity;
+    results = new LinkedHashMap<String, Result>(64, 0.75f, true); // access order
+  }
+
+  /**
+   * Returns the key of a search by title
+   *
+   * @param title title searched
+   * @return the key of the search, the same for all the titles equal ignoring case
+   */
+  public static String titleKey(String title) {
+    return "t" + SearchIndex.foldCase(title);
+  }
+
+  /**
+   * Returns the key of a search by author
+   *
+   * @param author author searched
+   * @return the key of the search, the same for all the authors equal ignoring case
+   */
+  public static String authorKey(String author) {
+    return "a" + SearchIndex.foldCase(author);
+  }
+
+  /**
+   * Returns the cached result of a search and makes it the most recently used one
+   *
+   * @param key key of the search (titleKey() or authorKey())
+   * @return the result, null if it is not cached
+   */
+  public synchronized Result get(String key) {
+    Result result = results.get(key);
+    if (result == null)
+      misses++;
+    else
+      hits++;
+    return result;
+  }
+
+  /**
+   * Returns the number of invalidations so far. A search that misses the cache reads it before
+   * looking up the index, and gives it to put().
+   *
+   * @return the generation of the cache
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Caches the result of a search, evicting the least recently used results if the cache is full.
+   * The result is not cached if a book was added or removed since the search started, or if it
+   * alone is larger than the cache.
+   *
+   * @param key        key of the search (titleKey() or authorKey())
+   * @param found      books found by the search, ordered by identifier
+   * @param generation generation of the cache when the search started
+   * @return the result of the search
+   */
+  public synchronized Result put(String key, ArrayList<Book> found, long generation) {
+    Result result = new Result(found); // availability read under the lock, so no refresh is lost
+    if (generation != this.generation || result.weight() > capacity)
+      return result;
+    Result old = results.put(key, result);
+    if (old != null)
+      weight -= old.weight();
+    weight += result.weight();
+    Iterator<Result> eldest = results.values().iterator();
+    while (weight > capacity) {
+      weight -= eldest.next().weight();
+      eldest.remove();
+      evictions++;
+    }
+    return result;
+  }
+
+  /**
+   * Invalidates the results of the title and of the author of a book added or removed
+   *
+   * @param book book added or removed
+   */
+  public synchronized void invalidate(Book book) {
+    generation++;
+    if (!results.isEmpty()) {
+      remove(titleKey(book.getTitle()));
+      remove(authorKey(book.getAuthor()));
+    }
+  }
+
+  /**
+   * Invalidates the results of the titles and of the authors of a batch of books added. A title
+   * or author String shared by several books is case folded only once.
+   *
+   * @param batch books added
+   * @param count number of books added, from batch[0]
+   */
+  public synchronized void invalidate(Book[] batch, int count) {
+    generation++;
+    if (results.isEmpty())
+      return;
+    IdentityHashMap<String, String> titles = new IdentityHashMap<String, String>(); // seen
+    IdentityHashMap<String, String> authors = new IdentityHashMap<String, String>();
+    for (int i = 0; i < count; i++) {
+      String title = batch[i].getTitle();
+      if (titles.put(title, title) == null)
+        remove(titleKey(title));
+      String author = batch[i].getAuthor();
+      if (authors.put(author, author) == null)
+        remove(authorKey(author));
+    }
+  }
+
+  private void remove(String key) {
+    Result result = results.remove(key);
+    if (result != null) {
+      weight -= result.weight();
+      invalidations++;
+    }
+  }
+
+  /**
+   * Refreshes the availability flag of a book checked out or returned in the cached results of its
+   * title and of its author
+   *
+   * @param book       book checked out or returned
+   * @param checkedOut true if the book was checked out, false if it was returned
+   */
+  @Override
+  public synchronized void availabilityChanged(Book book, boolean checkedOut) {
+    if (results.isEmpty())
+      return;
+    Result result = results.get(titleKey(book.getTitle()));
+    if (result != null && result.refresh(book))
+      refreshes++;
+    result = results.get(authorKey(book.getAuthor()));
+    if (result != null && result.refresh(book))
+      refreshes++;
+  }
+
+  /**
+   * Removes all the results from this cache. The statistics are kept.
+   */
+  public synchronized void clear() {
+    generation++;
+    results.clear();
+    weight = 0;
+  }
+
+  /**
+   * Returns the number of searches answered by this cache
+   *
+   * @return the number of hits
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * Returns the number of searches not answered by this cache
+   *
+   * @return the number of misses
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * Returns the share of the searches answered by this cache
+   *
+   * @return hits / (hits + misses), 0 if there was no search
+   */
+  public synchronized double getHitRate() {
+    return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+  }
+
+  /**
+   * Returns the number of results evicted to make room for new ones
+   *
+   * @return the number of evictions
+   */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  /**
+   * Returns the number of results invalidated because a book was added or removed
+   *
+   * @return the number of invalidations
+   */
+  public synchronized long getInvalidationCount() {
+    return invalidations;
+  }
+
+  /**
+   * Returns the number of availability flags refreshed in place
+   *
+   * @return the number of refreshes
+   */
+  public synchronized long getRefreshCount() {
+    return refreshes;
+  }
+
+  /**
+   * Returns the number of results in this cache
+   *
+   * @return the number of cached results
+   */
+  public synchronized int size() {
+    return results.size();
+  }
+
+  /**
+   * Returns the statistics of this cache
+   *
+   * @return a one line summary
+   */
+  public synchronized String getSummary() {
+    return String.format(
+        "Search cache: %d hits, %d misses (%.1f%% hit rate), %d results of %d/%d books, "
+            + "%d evictions, %d invalidations, %d availability refreshes.",
+        hits, misses, 100 * getHitRate(), results.size(), weight, capacity, evictions,
+        invalidations, refreshes);
+  }
+}
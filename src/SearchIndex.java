@@ -0,0 +1,304 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class models an inverted index of the books of a library. It maps the case folded title and
+ * the case folded author of the books to the identifiers of the books having them, so that an exact
+ * search only costs the number of books found.
+ *
+ * An index can be shared by several threads. The keys are spread over stripes, each one having its
+ * own read/write lock, so searches never block each other and updates only block the searches of
+ * the keys of their stripe.
+ *
+ */
+public class SearchIndex {
+  // class/static fields
+  private static final int STRIPE_COUNT = 16; // number of stripes of each map (a power of 2)
+
+  // Instance fields
+  private final Stripe[] titles; // case folded title -> identifiers of the books
+  private final Stripe[] authors; // case folded author -> identifiers of the books
+
+  /**
+   * Creates a new empty index
+   */
+  public SearchIndex() {
+    titles = newStripes();
+    authors = newStripes();
+  }
+
+  /**
+   * Indexes the title and the author of a book
+   *
+   * @param book book to index
+   */
+  public void add(Book book) {
+    add(titles, foldCase(book.getTitle()), book.getID());
+    add(authors, foldCase(book.getAuthor()), book.getID());
+  }
+
+  /**
+   * Indexes the titles and the authors of a batch of books. The stripes are locked once per batch,
+   * and a title or author String shared by several books (as in a restored snapshot) is case
+   * folded and looked up only once.
+   *
+   * @param batch books to index
+   * @param count number of books to index, from batch[0]
+   */
+  public void addAll(Book[] batch, int count) {
+    addAll(titles, batch, count, true);
+    addAll(authors, batch, count, false);
+  }
+
+  /**
+   * Removes a book from this index
+   *
+   * @param book book to remove
+   */
+  public void remove(Book book) {
+    remove(titles, foldCase(book.getTitle()), book.getID());
+    remove(authors, foldCase(book.getAuthor()), book.getID());
+  }
+
+  /**
+   * Removes all the books from this index
+   */
+  public void clear() {
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      titles[i].clear();
+      authors[i].clear();
+    }
+  }
+
+  /**
+   * Returns the books of a catalog having a given title. The comparison is case insensitive.
+   *
+   * @param catalog catalog of the indexed books
+   * @param title   title of the books to find
+   * @return ArrayList of the books found, ordered by book identifier
+   */
+  public ArrayList<Book> findByTitle(BookCatalog catalog, String title) {
+    return toBooks(catalog, copy(titles, foldCase(title)));
+  }
+
+  /**
+   * Returns the books of a catalog having a given author. The comparison is case insensitive.
+   *
+   * @param catalog catalog of the indexed books
+   * @param author  author of the books to find
+   * @return ArrayList of the books found, ordered by book identifier
+   */
+  public ArrayList<Book> findByAuthor(BookCatalog catalog, String author) {
+    return toBooks(catalog, copy(authors, foldCase(author)));
+  }
+
+  /**
+   * Returns a page of the books of a catalog having a given title, ordered by book identifier.
+   * Only the identifiers of the page are copied, however many books have the title. The comparison
+   * is case insensitive.
+   *
+   * @param catalog catalog of the indexed books
+   * @param title   title of the books to find
+   * @param after   continuation token of the page: identifier of the last book of the previous
+   *                page, BookPage.FIRST for the first page
+   * @param limit   number of books of the page at most (at least 1)
+   * @return the page of the books found after the book after
+   */
+  public BookPage pageByTitle(BookCatalog catalog, String title, int after, int limit) {
+    return page(titles, foldCase(title), catalog, after, limit);
+  }
+
+  /**
+   * Returns a page of the books of a catalog having a given author, ordered by book identifier.
+   * The comparison is case insensitive.
+   *
+   * @param catalog catalog of the indexed books
+   * @param author  author of the books to find
+   * @param after   continuation token of the page: identifier of the last book of the previous
+   *                page, BookPage.FIRST for the first page
+   * @param limit   number of books of the page at most (at least 1)
+   * @return the page of the books found after the book after
+   */
+  public BookPage pageByAuthor(BookCatalog catalog, String author, int after, int limit) {
+    return page(authors, foldCase(author), catalog, after, limit);
+  }
+
+  /**
+   * Returns the identifiers of the books having a given title
+   *
+   * @param title title of the books to find
+   * @return a copy of the identifiers sorted in increasing order (possibly empty)
+   */
+  public int[] titlePostings(String title) {
+    return copy(titles, foldCase(title));
+  }
+
+  /**
+   * Returns the identifiers of the books having a given author
+   *
+   * @param author author of the books to find
+   * @return a copy of the identifiers sorted in increasing order (possibly empty)
+   */
+  public int[] authorPostings(String author) {
+    return copy(authors, foldCase(author));
+  }
+
+  /**
+   * Folds the case of a String so that two Strings are equal ignoring case (as defined by
+   * String.equalsIgnoreCase()) if and only if their folded forms are equal
+   *
+   * @param s String to fold
+   * @return the case folded String
+   */
+  public static String foldCase(String s) {
+    int i = 0;
+    while (i < s.length() && foldChar(s.charAt(i)) == s.charAt(i)) // nothing to fold
+      i++;
+    if (i == s.length())
+      return s;
+    char[] folded = s.toCharArray();
+    for (; i < folded.length; i++)
+      folded[i] = foldChar(folded[i]);
+    return new String(folded);
+  }
+
+  /**
+   * Folds the case of a char the same way String.equalsIgnoreCase() compares chars
+   */
+  private static char foldChar(char c) {
+    if (c < 128) // ASCII fast path
+      return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    return Character.toLowerCase(Character.toUpperCase(c));
+  }
+
+  private static Stripe[] newStripes() {
+    Stripe[] stripes = new Stripe[STRIPE_COUNT];
+    for (int i = 0; i < STRIPE_COUNT; i++)
+      stripes[i] = new Stripe();
+    return stripes;
+  }
+
+  private static Stripe stripe(Stripe[] stripes, String key) {
+    int h = key.hashCode();
+    return stripes[(h ^ (h >>> 16)) & (STRIPE_COUNT - 1)];
+  }
+
+  private static void add(Stripe[] stripes, String key, int id) {
+    Stripe stripe = stripe(stripes, key);
+    stripe.lock.writeLock().lock();
+    try {
+      PostingList postings = stripe.map.get(key);
+      if (postings == null) {
+        postings = new PostingList();
+        stripe.map.put(key, postings);
+      }
+      postings.add(id);
+    } finally {
+      stripe.lock.writeLock().unlock();
+    }
+  }
+
+  private static void addAll(Stripe[] stripes, Book[] batch, int count, boolean byTitle) {
+    // postings of the String instances already seen in this batch
+    IdentityHashMap<String, PostingList> seen = new IdentityHashMap<String, PostingList>();
+    for (Stripe stripe : stripes)
+      stripe.lock.writeLock().lock();
+    try {
+      for (int i = 0; i < count; i++) {
+        String s = byTitle ? batch[i].getTitle() : batch[i].getAuthor();
+        PostingList postings = seen.get(s);
+        if (postings == null) {
+          String key = foldCase(s);
+          Stripe stripe = stripe(stripes, key);
+          postings = stripe.map.get(key);
+          if (postings == null) {
+            postings = new PostingList();
+            stripe.map.put(key, postings);
+          }
+          seen.put(s, postings);
+        }
+        postings.add(batch[i].getID());
+      }
+    } finally {
+      for (int i = stripes.length - 1; i >= 0; i--)
+        stripes[i].lock.writeLock().unlock();
+    }
+  }
+
+  private static void remove(Stripe[] stripes, String key, int id) {
+    Stripe stripe = stripe(stripes, key);
+    stripe.lock.writeLock().lock();
+    try {
+      PostingList postings = stripe.map.get(key);
+      if (postings != null && postings.remove(id) && postings.isEmpty())
+        stripe.map.remove(key); // no more books with this key
+    } finally {
+      stripe.lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Copies the identifiers of a key while holding the read lock of its stripe
+   */
+  private static int[] copy(Stripe[] stripes, String key) {
+    Stripe stripe = stripe(stripes, key);
+    stripe.lock.readLock().lock();
+    try {
+      PostingList postings = stripe.map.get(key);
+      return postings == null ? new int[0] : postings.toArray();
+    } finally {
+      stripe.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Copies the identifiers of a page of a key while holding the read lock of its stripe, and maps
+   * them to the books of a catalog
+   */
+  private static BookPage page(Stripe[] stripes, String key, BookCatalog catalog, int after,
+      int limit) {
+    Stripe stripe = stripe(stripes, key);
+    int[] ids;
+    boolean more;
+    stripe.lock.readLock().lock();
+    try {
+      PostingList postings = stripe.map.get(key);
+      int from = postings == null || after == Integer.MAX_VALUE ? Integer.MAX_VALUE
+          : postings.advance(0, after + 1); // binary search of the first book of the page
+      ids = postings == null ? new int[0] : postings.toArray(from, limit);
+      more = postings != null && ids.length > 0 && from + ids.length < postings.size();
+    } finally {
+      stripe.lock.readLock().unlock();
+    }
+    return new BookPage(toBooks(catalog, ids), more ? ids[ids.length - 1] : BookPage.NONE);
+  }
+
+  private static ArrayList<Book> toBooks(BookCatalog catalog, int[] ids) {
+    ArrayList<Book> books = new ArrayList<Book>(ids.length);
+    for (int id : ids) {
+      Book book = catalog.get(id);
+      if (book != null) // not removed since the identifiers were copied
+        books.add(book);
+    }
+    return books;
+  }
+
+  /**
+   * A part of a map of the index with its own lock
+   */
+  private static class Stripe {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final HashMap<String, PostingList> map = new HashMap<String, PostingList>();
+
+    private void clear() {
+      lock.writeLock().lock();
+      try {
+        map.clear();
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+}
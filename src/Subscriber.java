@@ -1,36 +1,50 @@
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class models a public library subscriber. A subscriber is a card holder who can borrow
- * (checkout) and return library books
+ * (checkout) and return library books. The methods that use the lists of books of a subscriber are
+ * synchronized, so a subscriber can be served by several sessions at the same time.
  *
  */
 public class Subscriber {
   // static fields
-  private final static int CARD_BAR_CODE_INIT = 2019000001; // initial card bar code assigned
-  private final static int CARD_BAR_CODE_LAST = 2019999999; // last card bar code that can be
+  final static int CARD_BAR_CODE_INIT = 2019000001; // initial card bar code assigned
+  final static int CARD_BAR_CODE_LAST = 2019999999; // last card bar code that can be
                                                              // assigned
   private final static int MAX_BOOKS_CHECKED_OUT = 10; // maximum number of books to be checked out
                                                        // one subscriber
-  private static int nextCardBarCode = CARD_BAR_CODE_INIT; // class variable that represents the
-                                                           // card bar
-  // code of the next subscriber to be created
+  private final static int MAX_HOLDS = 10; // maximum number of books one subscriber waits for
+  final static int CHECKED_OUT = 0; // outcomes of a checkout: the book is checked out,
+  final static int LIMIT_REACHED = 1; // MAX_BOOKS_CHECKED_OUT books are already checked out,
+  final static int ALREADY_CHECKED_OUT = 2; // the subscriber already has the book,
+  final static int NOT_AVAILABLE = 3; // or the book is checked out by someone else or withdrawn
+  final static String RETURN_FAILED =
+      "Sorry, you cannot return this book. It is not in your booksCheckedOut list.";
+  private static final AtomicInteger nextCardBarCode = new AtomicInteger(CARD_BAR_CODE_INIT);
+  // class variable that represents the card bar code of the next subscriber to be created
 
   // Instance fields
   private int pin; // 4-digits Personal Identification Number to verify the identity of this
                    // subscriber. The most significant digit (the digit at the 4th position from 
                    // the right) MUST NOT be zero
-  private final Integer CARD_BAR_CODE; // card bar code of this subscriber
+  private final int CARD_BAR_CODE; // card bar code of this subscriber
 
   private String name; // name of this subscriber
-  private String address; // address of this subscriber
-  private String phoneNumber; // phone number of this subscriber
+  private volatile String address; // address of this subscriber
+  private volatile String phoneNumber; // phone number of this subscriber
 
   private ArrayList<Book> booksCheckedOut; // list of books checked out by this subscriber
                                            // and not yet
   // returned. A subscriber can have at most 10 checked out books
-  private ArrayList<Book> booksReturned; // history list of the books returned by this
-                                         // subscriber
+  private ReturnHistory booksReturned; // history of the books returned by this subscriber, the
+                                       // oldest ones spilled to the disk
+  private final ArrayList<HoldQueues.Hold> holds = new ArrayList<HoldQueues.Hold>(); // books this
+      // subscriber waits for, in the order the holds were placed. At most MAX_HOLDS
+  private long fines; // fines charged for the books returned late, in cents
 
   /**
    * Creates a new subscriber with given name, address, and phone number, and initializes its other
@@ -45,21 +59,85 @@ public class Subscriber {
    */
   public Subscriber(String name, int pin, String address, String phoneNumber)
       throws InstantiationException {
-    if (nextCardBarCode < CARD_BAR_CODE_LAST) { // create a new Subscriber
+    int cardBarCode = issueCardBarCode();
+    if (cardBarCode < CARD_BAR_CODE_LAST) { // create a new Subscriber
       this.name = name;
       this.pin = pin;
       this.address = address;
       this.phoneNumber = phoneNumber;
-      CARD_BAR_CODE = nextCardBarCode;
-      nextCardBarCode++;
+      CARD_BAR_CODE = cardBarCode;
       booksCheckedOut = new ArrayList<Book>(MAX_BOOKS_CHECKED_OUT);
-      booksReturned = new ArrayList<Book>();
+      booksReturned = new ReturnHistory();
     } else {
       throw new InstantiationException(
           "Error: CANNOT create a new subscriber. No more card can be issued.");
     }
   }
 
+  /**
+   * Re-creates a subscriber saved in a snapshot of a library, with its card bar code and its lists
+   * of books
+   * 
+   * @param cardBarCode     card bar code of the saved subscriber
+   * @param name            name of the saved subscriber
+   * @param pin             4-digits personal information number of the saved subscriber
+   * @param address         address of the saved subscriber
+   * @param phoneNumber     phone number of the saved subscriber
+   * @param booksCheckedOut books checked out by the saved subscriber
+   * @param booksReturned   history of the books returned by the saved subscriber
+   */
+  Subscriber(int cardBarCode, String name, int pin, String address, String phoneNumber,
+      List<Book> booksCheckedOut, List<Book> booksReturned) {
+    this.name = name;
+    this.pin = pin;
+    this.address = address;
+    this.phoneNumber = phoneNumber;
+    CARD_BAR_CODE = cardBarCode;
+    this.booksCheckedOut = new ArrayList<Book>(MAX_BOOKS_CHECKED_OUT);
+    this.booksCheckedOut.addAll(booksCheckedOut);
+    this.booksReturned = new ReturnHistory();
+    for (Book book : booksReturned)
+      this.booksReturned.add(book);
+    reserveCardBarCodes(cardBarCode + 1); // the next new subscriber never reuses this card
+  }
+
+  /**
+   * Returns the card bar code of the next subscriber to be created
+   * 
+   * @return the next card bar code
+   */
+  static int getNextCardBarCode() {
+    return nextCardBarCode.get();
+  }
+
+  /**
+   * Moves the card bar code of the next subscriber to be created forward to at least a given card
+   * bar code
+   * 
+   * @param next smallest card bar code that the next new subscriber may have
+   */
+  static void reserveCardBarCodes(int next) {
+    for (int current = nextCardBarCode.get(); current < next; current = nextCardBarCode.get())
+      if (nextCardBarCode.compareAndSet(current, next))
+        return;
+  }
+
+  /**
+   * Returns the next card bar code and moves nextCardBarCode forward, unless no more card can be
+   * issued. Several threads can create subscribers at the same time.
+   * 
+   * @return the issued card bar code, CARD_BAR_CODE_LAST if no more card can be issued
+   */
+  private static int issueCardBarCode() {
+    while (true) {
+      int cardBarCode = nextCardBarCode.get();
+      if (cardBarCode >= CARD_BAR_CODE_LAST)
+        return CARD_BAR_CODE_LAST;
+      if (nextCardBarCode.compareAndSet(cardBarCode, cardBarCode + 1))
+        return cardBarCode;
+    }
+  }
+
   /**
    * Returns this subscriber's address
    * 
@@ -110,7 +188,7 @@ public class Subscriber {
    * 
    * @return the CARD_BAR_CODE
    */
-  public Integer getCARD_BAR_CODE() {
+  public int getCARD_BAR_CODE() {
     return CARD_BAR_CODE;
   }
 
@@ -129,41 +207,213 @@ public class Subscriber {
    * books by this subscriber is already reached
    * 
    * @param book reference to the book to be checked out by this subscriber
+   * @return true if the book is checked out, false otherwise
+   */
+  public boolean checkoutBook(Book book) {
+    int status = checkout(book);
+    if (status != CHECKED_OUT) // displayed without the lock of this subscriber
+      OutputSink.current().println(checkoutFailure(status, book));
+    return status == CHECKED_OUT;
+  }
+
+  /**
+   * Checks out an available book without displaying anything, so that the library can display the
+   * failure once its locks are released
+   * 
+   * @param book book to be checked out by this subscriber
+   * @return CHECKED_OUT if the book is checked out, LIMIT_REACHED, ALREADY_CHECKED_OUT or
+   *         NOT_AVAILABLE otherwise
    */
-  public void checkoutBook(Book book) {
-    if (book.isAvailable()) // check if the book is available
-      if (booksCheckedOut.size() < MAX_BOOKS_CHECKED_OUT) { // check if the subscriber did not already
-                                                            // checked out MAX_BOOKS_CHECKED_OUT 
-        // check out/borrow the book
-        booksCheckedOut.add(book); 
-        book.borrowBook(this.CARD_BAR_CODE);
-      } else { // maximum number of books checked out reached
-        System.out.println(
-            "Checkout Failed: You cannot check out more than " + MAX_BOOKS_CHECKED_OUT + "books.");
+  synchronized int checkout(Book book) {
+    if (booksCheckedOut.size() < MAX_BOOKS_CHECKED_OUT) { // check if the subscriber did not already
+                                                          // checked out MAX_BOOKS_CHECKED_OUT
+      // check out/borrow the book if it is available, in a single atomic step
+      if (book.borrowBook(this.CARD_BAR_CODE)) {
+        booksCheckedOut.add(book);
+        return CHECKED_OUT;
       }
-    else { // book is not available
-      if (booksCheckedOut.contains(book)) // the subscriber has already checked out the book
-        System.out.println("You have already checked out " + book.getTitle() + " book.");
-      else // another subscriber has checked out the book
-        System.out.println("Sorry, " + book.getTitle() + " is not available.");
+    } else if (book.isAvailable()) { // maximum number of books checked out reached
+      return LIMIT_REACHED;
+    }
+    // book is not available
+    if (booksCheckedOut.contains(book)) // the subscriber has already checked out the book
+      return ALREADY_CHECKED_OUT;
+    return NOT_AVAILABLE; // another subscriber has checked out the book
+  }
+
+  /**
+   * Returns the message displayed when a checkout fails
+   * 
+   * @param status outcome of the checkout, other than CHECKED_OUT
+   * @param book   book that is not checked out
+   * @return the message explaining the failure
+   */
+  static String checkoutFailure(int status, Book book) {
+    switch (status) {
+      case LIMIT_REACHED:
+        return "Checkout Failed: You cannot check out more than " + MAX_BOOKS_CHECKED_OUT
+            + "books.";
+      case ALREADY_CHECKED_OUT:
+        return "You have already checked out " + book.getTitle() + " book.";
+      default:
+        return "Sorry, " + book.getTitle() + " is not available.";
     }
   }
 
+  /**
+   * Places a hold on a book checked out by another subscriber, at the end of its queue. The hold
+   * fails if this subscriber already has the book, already waits for it, or already waits for
+   * MAX_HOLDS books.
+   * 
+   * @param book  book to wait for
+   * @param queue hold queues of the library
+   * @return the hold placed, null if it failed
+   */
+  public synchronized HoldQueues.Hold placeHold(Book book, HoldQueues queue) {
+    if (booksCheckedOut.contains(book)) {
+      OutputSink.current().println("You have already checked out " + book.getTitle() + " book.");
+      return null;
+    }
+    if (findHold(book.getID()) != null) {
+      OutputSink.current().println("You are already waiting for " + book.getTitle() + ".");
+      return null;
+    }
+    if (holds.size() >= MAX_HOLDS) {
+      OutputSink.current()
+          .println("Hold Failed: You cannot wait for more than " + MAX_HOLDS + " books.");
+      return null;
+    }
+    HoldQueues.Hold hold = queue.place(this, book);
+    holds.add(hold);
+    return hold;
+  }
+
+  /**
+   * Cancels the hold of this subscriber on a book
+   * 
+   * @param bookId identifier of the book
+   * @param queue  hold queues of the library
+   * @return true if the hold is cancelled, false if this subscriber does not wait for the book
+   */
+  public synchronized boolean cancelHold(int bookId, HoldQueues queue) {
+    HoldQueues.Hold hold = findHold(bookId);
+    if (hold == null)
+      return false;
+    holds.remove(hold);
+    queue.cancel(hold);
+    return true;
+  }
+
+  /**
+   * Checks out a book for this subscriber because it is first in the queue of the book. Nothing is
+   * displayed: this subscriber is not the one returning the book.
+   * 
+   * @param hold  hold of this subscriber on the book
+   * @param book  book returned by its last borrower
+   * @param queue hold queues of the library
+   * @return true if the book is checked out, false if the hold is not waiting anymore, if this
+   *         subscriber cannot check out more books or if the book is not available
+   */
+  synchronized boolean receiveHold(HoldQueues.Hold hold, Book book, HoldQueues queue) {
+    if (!hold.isWaiting() || booksCheckedOut.size() >= MAX_BOOKS_CHECKED_OUT
+        || !book.borrowBook(CARD_BAR_CODE))
+      return false;
+    queue.serve(hold); // cannot be cancelled meanwhile: cancelHold() takes the same lock
+    holds.remove(hold);
+    booksCheckedOut.add(book);
+    return true;
+  }
+
+  /**
+   * Returns a copy of the holds of this subscriber
+   * 
+   * @return the holds waiting, in the order they were placed
+   */
+  synchronized HoldQueues.Hold[] getHolds() {
+    return holds.toArray(new HoldQueues.Hold[holds.size()]);
+  }
+
+  /**
+   * Returns the hold of this subscriber on a book, null if it does not wait for the book. The
+   * caller holds the lock of this subscriber.
+   */
+  private HoldQueues.Hold findHold(int bookId) {
+    for (HoldQueues.Hold hold : holds)
+      if (hold.getBookId() == bookId)
+        return hold;
+    return null;
+  }
+
   /**
    * Returns a library book
    * 
    * @param book reference to the book to return by this subscriber
+   * @return true if the book is returned, false otherwise
+   */
+  public boolean returnBook(Book book) {
+    if (giveBack(book))
+      return true;
+    // display an error message, without the lock of this subscriber
+    OutputSink.current().println(RETURN_FAILED);
+    return false;
+  }
+
+  /**
+   * Returns a library book without displaying anything, so that the library can display the
+   * failure once its locks are released
+   * 
+   * @param book book to return by this subscriber
+   * @return true if the book is returned, false if it is not checked out by this subscriber
    */
-  public void returnBook(Book book) {
+  synchronized boolean giveBack(Book book) {
     // check if the book is stored within this Subscriber's booksCheckedOut list
-    if (isBookInBooksCheckedOut(book)) {
+    if (isBookInBooksCheckedOut(book) && book.returnBook(this.CARD_BAR_CODE)) {
       // return the book
       booksReturned.add(book);
       booksCheckedOut.remove(book);
-      book.returnBook();
+      return true;
     }
-    else // display an error message
-      System.out.println("Sorry, you cannot return this book. It is not in your booksCheckedOut list.");
+    return false;
+  }
+
+  /**
+   * Charges this subscriber a fine for a book returned late
+   * 
+   * @param cents amount of the fine in cents
+   */
+  synchronized void chargeFine(long cents) {
+    fines += cents;
+  }
+
+  /**
+   * Returns the fines charged to this subscriber for the books returned late
+   * 
+   * @return the sum of the fines in cents
+   */
+  synchronized long getFines() {
+    return fines;
+  }
+
+  /**
+   * Returns a copy of the list of the books checked out by this subscriber
+   * 
+   * @return the books checked out and not yet returned
+   */
+  synchronized Book[] getBooksCheckedOut() {
+    return booksCheckedOut.toArray(new Book[booksCheckedOut.size()]);
+  }
+
+  /**
+   * Returns a copy of the history of the books returned by this subscriber
+   * 
+   * @return the books returned by this subscriber
+   */
+  synchronized Book[] getBooksReturned() {
+    Book[] books = new Book[booksReturned.size()];
+    int i = 0;
+    for (Book book : booksReturned) // the spilled books are read back from the disk
+      books[i++] = book;
+    return books;
   }
 
   /**
@@ -172,7 +422,7 @@ public class Subscriber {
    * @param book book to check if it is within this subscriber booksCheckedOut list
    * @return true if booksCheckedOut contains book, false otherwise
    */
-  public boolean isBookInBooksCheckedOut(Book book) {
+  public synchronized boolean isBookInBooksCheckedOut(Book book) {
     return booksCheckedOut.contains(book);
   }
 
@@ -182,38 +432,45 @@ public class Subscriber {
    * @param book book to check if it is within this subscriber booksReturned list
    * @return true if booksReturned contains book, false otherwise
    */
-  public boolean isBookInBooksReturned(Book book) {
-    return booksReturned.contains(book);
+  public synchronized boolean isBookInBooksReturned(Book book) {
+    return booksReturned.contains(book.getID()); // never reads the disk
   }
 
   /**
    * Helper method to display a list of books
-   * @param books ArrayList of books
-   * @param message message to display if the ArrayList books is empty
-   */
-  private void displayBooks(ArrayList<Book> books, String message) {
-    if (books.isEmpty()) // empty list
-      System.out.println(message);
-    else
-      // Traverse the list of books checked out by this subscriber and display its content
-      for (int i = 0; i < books.size(); i++) {
-        System.out.print("Book ID: " + books.get(i).getID() + " ");
-        System.out.print("Title: " + books.get(i).getTitle() + " ");
-        System.out.println("Author: " + books.get(i).getAuthor());
+   * @param books list of books
+   * @param message message to display if the list books is empty
+   */
+  private void displayBooks(Iterable<Book> books, String message) {
+    OutputSink out = OutputSink.current();
+    Iterator<Book> iterator = books.iterator();
+    if (!iterator.hasNext()) // empty list
+      out.append(message).newLine();
+    try {
+      // Traverse the list of books and display its content, one spilled block at a time
+      while (iterator.hasNext()) {
+        Book book = iterator.next();
+        out.append("Book ID: ").append(book.getID()).append(" Title: ").append(book.getTitle())
+            .append(" Author: ").append(book.getAuthor()).newLine();
       }
+    } catch (UncheckedIOException e) {
+      out.append("ERROR: the history of returned books cannot be read: ")
+          .append(e.getCause().getMessage()).newLine();
+    }
+    out.flush(); // write the whole list at once
   }
 
   /**
    * Displays the list of the books checked out and not yet returned
    */
-  public void displayBooksCheckedOut() {
+  public synchronized void displayBooksCheckedOut() {
     displayBooks(booksCheckedOut, "No books checked out by this subscriber");
   }
 
   /**
    * Displays the history of the returned books by this subscriber
    */
-  public void displayHistoryBooksReturned() {
+  public synchronized void displayHistoryBooksReturned() {
     displayBooks(booksReturned, "No books returned by this subscriber");
   }
 
@@ -222,10 +479,12 @@ public class Subscriber {
    * Displays this subscriber's personal information
    */
   public void displayPersonalInfo() {
-    System.out.println("Personal information of the subscriber: " + CARD_BAR_CODE);
-    System.out.println("  Name: " + name);
-    System.out.println("  Address: " + address);
-    System.out.println("  Phone number: " + phoneNumber);
+    OutputSink out = OutputSink.current();
+    out.append("Personal information of the subscriber: ").append(CARD_BAR_CODE).newLine();
+    out.append("  Name: ").append(name).newLine();
+    out.append("  Address: ").append(address).newLine();
+    out.append("  Phone number: ").append(phoneNumber).newLine();
+    out.flush();
   }
 
   /**
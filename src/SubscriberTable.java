@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class models the table of the subscribers of a library. A subscriber is stored at the slot
+ * (cardBarCode - CARD_BAR_CODE_INIT), so finding a subscriber given its card bar code is a direct
+ * array access. The slots are grouped into pages allocated only when a subscriber is stored in
+ * them, so the table stays small when only a few card bar codes are used.
+ *
+ * A table can be shared by several threads. Pages and slots are atomic references, so get() never
+ * locks and two subscribers are added at the same time unless they fall into a new page.
+ *
+ */
+public class SubscriberTable {
+  // class/static fields
+  private static final int PAGE_SHIFT = 10; // log2 of the number of slots of a page
+  static final int PAGE_SIZE = 1 << PAGE_SHIFT; // number of slots of a page
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+  static final int PAGE_COUNT = // number of pages needed to cover all the card bar codes
+      ((Subscriber.CARD_BAR_CODE_LAST - Subscriber.CARD_BAR_CODE_INIT) >> PAGE_SHIFT) + 1;
+
+  // Instance fields
+  // pages.get(p).get(s) is the subscriber of slot p * PAGE_SIZE + s
+  private final AtomicReferenceArray<AtomicReferenceArray<Subscriber>> pages;
+  private final AtomicInteger size; // number of subscribers stored in this table
+
+  /**
+   * Creates a new empty table of subscribers
+   */
+  public SubscriberTable() {
+    pages = new AtomicReferenceArray<AtomicReferenceArray<Subscriber>>(PAGE_COUNT);
+    size = new AtomicInteger();
+  }
+
+  /**
+   * Returns the subscriber having a given card bar code
+   *
+   * @param cardBarCode card bar code of the subscriber to find
+   * @return reference to the subscriber if found, null otherwise
+   */
+  public Subscriber get(int cardBarCode) {
+    if (!Subscriber.checkCardBarCode(cardBarCode))
+      return null;
+    int slot = cardBarCode - Subscriber.CARD_BAR_CODE_INIT;
+    AtomicReferenceArray<Subscriber> page = pages.get(slot >>> PAGE_SHIFT);
+    return page == null ? null : page.get(slot & PAGE_MASK);
+  }
+
+  /**
+   * Stores a subscriber at the slot of its card bar code
+   *
+   * @param subscriber subscriber to add
+   * @return true if the subscriber is added, false if its card bar code is already used
+   */
+  public boolean add(Subscriber subscriber) {
+    int slot = subscriber.getCARD_BAR_CODE() - Subscriber.CARD_BAR_CODE_INIT;
+    AtomicReferenceArray<Subscriber> page = pages.get(slot >>> PAGE_SHIFT);
+    if (page == null) { // first subscriber of this page, unless another thread adds it first
+      pages.compareAndSet(slot >>> PAGE_SHIFT, null,
+          new AtomicReferenceArray<Subscriber>(PAGE_SIZE));
+      page = pages.get(slot >>> PAGE_SHIFT);
+    }
+    if (!page.compareAndSet(slot & PAGE_MASK, null, subscriber))
+      return false;
+    size.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Removes the subscriber having a given card bar code
+   *
+   * @param cardBarCode card bar code of the subscriber to remove
+   * @return reference to the removed subscriber, null if not found
+   */
+  public Subscriber remove(int cardBarCode) {
+    if (!Subscriber.checkCardBarCode(cardBarCode))
+      return null;
+    int slot = cardBarCode - Subscriber.CARD_BAR_CODE_INIT;
+    AtomicReferenceArray<Subscriber> page = pages.get(slot >>> PAGE_SHIFT);
+    Subscriber subscriber = page == null ? null : page.getAndSet(slot & PAGE_MASK, null);
+    if (subscriber != null)
+      size.decrementAndGet();
+    return subscriber;
+  }
+
+  /**
+   * Returns the subscribers stored in this table in the order of their card bar codes. Subscribers
+   * added or removed while the list is built may or may not be in the list.
+   *
+   * @return a new list of the subscribers
+   */
+  public ArrayList<Subscriber> toList() {
+    ArrayList<Subscriber> list = new ArrayList<Subscriber>(size());
+    for (int p = 0; p < PAGE_COUNT; p++) {
+      AtomicReferenceArray<Subscriber> page = pages.get(p);
+      if (page != null)
+        for (int s = 0; s < PAGE_SIZE; s++) {
+          Subscriber subscriber = page.get(s);
+          if (subscriber != null)
+            list.add(subscriber);
+        }
+    }
+    return list;
+  }
+
+  /**
+   * Returns a page of the slots of this table, for the jobs that partition the table by page
+   *
+   * @param p index of the page, from 0 to PAGE_COUNT - 1
+   * @return the slots p * PAGE_SIZE to p * PAGE_SIZE + PAGE_SIZE - 1, null if no subscriber was
+   *         ever stored in them
+   */
+  AtomicReferenceArray<Subscriber> getPage(int p) {
+    return pages.get(p);
+  }
+
+  /**
+   * Returns the number of subscribers stored in this table
+   *
+   * @return the number of subscribers
+   */
+  public int size() {
+    return size.get();
+  }
+}
@@ -0,0 +1,497 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * This class models an index of the books of a library for the searches of a part of a title or an
+ * author: the books whose title (or author) contains a given text, or starts with it, ignoring
+ * case. Unlike the SearchIndex, which only finds whole titles and authors, these searches must
+ * read every title or author, so the index keeps them in the form cheapest to scan.
+ *
+ * Each distinct title and author is case folded (see SearchIndex.foldCase()) and copied once, in
+ * UTF-8, into large byte arrays (the pages of a dictionary), where it gets a code. UTF-8 is self
+ * synchronizing, so a text is in a title if and only if its bytes are in the bytes of the title.
+ * Each book takes one position in three columns: its identifier and the codes of its title and of
+ * its author. A search first scans the dictionary for the codes that match, then the columns for
+ * the books having one of these codes. Both scans are split in tasks of LEAF_SIZE codes or books
+ * run by the common fork/join pool, so they use all the cores.
+ *
+ * A search returns at most a given number of books: the scan of the columns stops as soon as
+ * enough books are found before the part being scanned, so a search of a frequent text reads only
+ * the first positions. When only a few titles or authors match, the columns are not scanned at
+ * all: their books are read from the SearchIndex of the library instead.
+ *
+ * An index can be shared by several threads. It is modified under its lock, and searched without
+ * locking: the columns and the dictionary only grow, and the position of a removed book is only
+ * reused by a later book. The titles and authors of the removed books stay in the dictionary.
+ *
+ */
+public class SubstringIndex {
+  // class/static fields
+  private static final int LEAF_SIZE = 1 << 12; // codes or positions scanned by one task
+  private static final int POLL_MASK = 255; // positions scanned between two checks of the limit
+  private static final int PAGE_BITS = 20;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS; // bytes of a full page of a dictionary
+  private static final int BLOCK_BITS = 12; // identifiers per block of the position map: 2^12
+  private static final int MIN_SKIP_LENGTH = 8; // shorter texts are found byte after byte
+  private static final int POSTINGS_CODES = 256; // matched codes at most whose books are read
+                                                 // from the search index instead of the columns
+
+  /**
+   * The distinct case folded titles (or authors) of the books, in UTF-8, with their codes
+   */
+  private static final class Dictionary {
+    private final HashMap<String, Integer> codes; // folded String -> code. Guarded by the lock
+                                                  // of the index
+    private volatile byte[][] pages = {new byte[256]}; // bytes of the Strings, page after page.
+                                                       // The last page doubles up to PAGE_SIZE
+    private volatile int[] starts = new int[64]; // code -> page << PAGE_BITS | offset of its bytes
+    private volatile int[] lengths = new int[64]; // code -> number of bytes
+    private int fill; // bytes used in the last page. Guarded by the lock of the index
+    private volatile int count; // number of codes, written after their bytes
+
+    private Dictionary() {
+      codes = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Returns the code of a String, adding its bytes to the dictionary the first time. The caller
+     * holds the lock of the index.
+     */
+    private int encode(String s) {
+      if (s == null)
+        return -1; // matches nothing
+      String folded = SearchIndex.foldCase(s);
+      Integer code = codes.get(folded);
+      if (code != null)
+        return code;
+      byte[] bytes = folded.getBytes(StandardCharsets.UTF_8);
+      int length = Math.min(bytes.length, PAGE_SIZE - 1); // a longer String is cut
+      byte[][] pages = this.pages;
+      byte[] page = pages[pages.length - 1];
+      if (fill + length > page.length) {
+        if (fill + length <= PAGE_SIZE) { // the last page grows
+          int capacity = Math.min(2 * page.length, PAGE_SIZE);
+          page = Arrays.copyOf(page, Math.max(fill + length, capacity));
+        } else { // the last page is full
+          pages = Arrays.copyOf(pages, pages.length + 1);
+          page = new byte[Math.max(length, 256)];
+          fill = 0;
+        }
+        pages[pages.length - 1] = page;
+      }
+      System.arraycopy(bytes, 0, page, fill, length);
+      int next = count;
+      if (next == starts.length) {
+        starts = Arrays.copyOf(starts, 2 * next);
+        lengths = Arrays.copyOf(lengths, 2 * next);
+      }
+      starts[next] = (pages.length - 1) << PAGE_BITS | fill;
+      lengths[next] = length;
+      fill += length;
+      this.pages = pages;
+      codes.put(folded, next);
+      count = next + 1; // publishes the bytes
+      return next;
+    }
+  }
+
+  /**
+   * The columns of the positions of the books
+   */
+  private static final class Columns {
+    private final AtomicIntegerArray ids; // book identifiers, 0 for a free position. Written after
+                                          // the codes, read before them
+    private final int[] titles; // codes of the titles
+    private final int[] authors; // codes of the authors
+
+    private Columns(int capacity) {
+      ids = new AtomicIntegerArray(capacity);
+      titles = new int[capacity];
+      authors = new int[capacity];
+    }
+  }
+
+  /**
+   * A task that runs a scan on a range of leaves, splitting it in two until one leaf is left
+   */
+  private static final class Split extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final LeafScan scan; // scan of one leaf
+    private final int lo; // first leaf of the range
+    private final int hi; // leaf after the range
+
+    private Split(LeafScan scan, int lo, int hi) {
+      this.scan = scan;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    @Override
+    protected void compute() {
+      if (hi - lo == 1) {
+        scan.scan(lo);
+      } else {
+        int mid = (lo + hi) >>> 1;
+        invokeAll(new Split(scan, lo, mid), new Split(scan, mid, hi));
+      }
+    }
+  }
+
+  /**
+   * The scan of one leaf: LEAF_SIZE codes or positions
+   */
+  private interface LeafScan {
+    void scan(int leaf);
+  }
+
+  // Instance fields
+  private final SearchIndex searchIndex; // index of the same books by title and by author
+  private final Dictionary titleDictionary = new Dictionary(); // distinct titles
+  private final Dictionary authorDictionary = new Dictionary(); // distinct authors
+  private volatile Columns columns = new Columns(64); // positions of the books
+  private volatile int end; // number of positions used, written after the columns
+  private int[] free = new int[16]; // positions of removed books, reused first. Guarded by this
+  private int freeCount; // number of free positions. Guarded by this
+  private int[][] positions = new int[1][]; // positions[id >>> BLOCK_BITS][id & mask] is the
+                                            // position of the book id plus one. Guarded by this
+
+  /**
+   * Creates a new empty index
+   *
+   * @param searchIndex index of the whole titles and authors of the same books, which gives the
+   *                    books of a title or an author found in the dictionary
+   */
+  public SubstringIndex(SearchIndex searchIndex) {
+    this.searchIndex = searchIndex;
+  }
+
+  /**
+   * Adds the title and the author of a book to this index
+   *
+   * @param book book to add
+   */
+  public synchronized void add(Book book) {
+    insert(book);
+  }
+
+  /**
+   * Adds the titles and the authors of a batch of books to this index, taking the lock only once
+   *
+   * @param batch books to add
+   * @param count number of books to add, from batch[0]
+   */
+  public synchronized void addAll(Book[] batch, int count) {
+    for (int i = 0; i < count; i++)
+      insert(batch[i]);
+  }
+
+  /**
+   * Removes a book from this index. Its position is reused by the next book added.
+   *
+   * @param book book to remove
+   */
+  public synchronized void remove(Book book) {
+    int id = book.getID();
+    int[] block = id >>> BLOCK_BITS < positions.length ? positions[id >>> BLOCK_BITS] : null;
+    int position = block == null ? -1 : block[id & (1 << BLOCK_BITS) - 1] - 1;
+    if (position < 0)
+      return;
+    block[id & (1 << BLOCK_BITS) - 1] = 0;
+    columns.ids.set(position, 0);
+    if (freeCount == free.length)
+      free = Arrays.copyOf(free, 2 * freeCount);
+    free[freeCount++] = position;
+  }
+
+  private void insert(Book book) {
+    int id = book.getID();
+    int titleCode = titleDictionary.encode(book.getTitle());
+    int authorCode = authorDictionary.encode(book.getAuthor());
+    int position = freeCount > 0 ? free[--freeCount] : end;
+    Columns columns = this.columns;
+    if (position == columns.titles.length) { // full: copy the columns to twice their capacity
+      Columns grown = new Columns(2 * position);
+      for (int i = 0; i < position; i++)
+        grown.ids.set(i, columns.ids.get(i));
+      System.arraycopy(columns.titles, 0, grown.titles, 0, position);
+      System.arraycopy(columns.authors, 0, grown.authors, 0, position);
+      this.columns = columns = grown;
+    }
+    columns.titles[position] = titleCode;
+    columns.authors[position] = authorCode;
+    columns.ids.set(position, id); // after the codes
+    if (position == end)
+      end = position + 1;
+    if (id >>> BLOCK_BITS >= positions.length)
+      positions = Arrays.copyOf(positions, Math.max(2 * positions.length, (id >>> BLOCK_BITS) + 1));
+    if (positions[id >>> BLOCK_BITS] == null)
+      positions[id >>> BLOCK_BITS] = new int[1 << BLOCK_BITS];
+    positions[id >>> BLOCK_BITS][id & (1 << BLOCK_BITS) - 1] = position + 1;
+  }
+
+  /**
+   * Returns the books of a catalog whose title or author contains a given text, or starts with it.
+   * The comparison is case insensitive.
+   *
+   * @param catalog catalog of the indexed books
+   * @param byTitle true to search the titles, false to search the authors
+   * @param text    text to find
+   * @param prefix  true to find the books whose title or author starts with the text, false to
+   *                find the books whose title or author contains it
+   * @param limit   number of books to find at most
+   * @return ArrayList of at most limit books found, ordered by book identifier. If more books
+   *         match, the books are the ones with the smallest identifiers when a few titles or
+   *         authors match, the first ones in the order of the columns (about the order in which
+   *         they were added) otherwise
+   */
+  public ArrayList<Book> find(final BookCatalog catalog, boolean byTitle, String text,
+      boolean prefix, final int limit) {
+    Dictionary dictionary = byTitle ? titleDictionary : authorDictionary;
+    final int count = dictionary.count; // read before the other fields of the dictionary
+    final int end = this.end; // read before the columns
+    final Columns columns = this.columns;
+    final int[] codes = byTitle ? columns.titles : columns.authors;
+    final long[] matched = match(dictionary, count, text, prefix);
+    ArrayList<Book> found = new ArrayList<Book>();
+    if (matched == null || limit <= 0 || end == 0)
+      return found;
+    int matchedCodes = 0;
+    for (long word : matched)
+      matchedCodes += Long.bitCount(word);
+    if (matchedCodes <= POSTINGS_CODES)
+      return findPostings(catalog, dictionary, byTitle, matched, limit);
+
+    // scan the columns for the books of the matched codes, leaf by leaf
+    int leaves = (end + LEAF_SIZE - 1) / LEAF_SIZE;
+    final Book[][] books = new Book[leaves][]; // books found by each leaf, null if it stopped
+    final AtomicInteger firstFull = new AtomicInteger(leaves); // first leaf that found enough
+    run(leaves, new LeafScan() {
+      @Override
+      public void scan(int leaf) {
+        if (leaf > firstFull.get())
+          return; // the books of an earlier leaf are enough
+        ArrayList<Book> leafBooks = new ArrayList<Book>();
+        int to = Math.min(end, (leaf + 1) * LEAF_SIZE);
+        for (int position = leaf * LEAF_SIZE; position < to; position++) {
+          if ((position & POLL_MASK) == 0 && leaf > firstFull.get())
+            return;
+          int id = columns.ids.get(position); // before the codes
+          int code = codes[position];
+          if (id == 0 || code < 0 || code >= count || (matched[code >>> 6] & 1L << code) == 0)
+            continue;
+          Book book = catalog.get(id);
+          if (book != null) // not removed since the scan started
+            leafBooks.add(book);
+          if (leafBooks.size() == limit) {
+            int first = firstFull.get();
+            while (leaf < first && !firstFull.compareAndSet(first, leaf))
+              first = firstFull.get();
+            break;
+          }
+        }
+        books[leaf] = leafBooks.toArray(new Book[leafBooks.size()]);
+      }
+    });
+    for (int leaf = 0; leaf < leaves && found.size() < limit; leaf++)
+      for (int i = 0; i < books[leaf].length && found.size() < limit; i++)
+        found.add(books[leaf][i]); // every leaf before the first full leaf is complete
+    Collections.sort(found, new Comparator<Book>() {
+      @Override
+      public int compare(Book a, Book b) {
+        return Integer.compare(a.getID(), b.getID());
+      }
+    });
+    return found;
+  }
+
+  /**
+   * Returns the books of the matched codes from the search index, ordered by identifier
+   */
+  private ArrayList<Book> findPostings(BookCatalog catalog, Dictionary dictionary,
+      boolean byTitle, long[] matched, int limit) {
+    byte[][] pages = dictionary.pages; // read after the count, so they hold the matched codes
+    int[] starts = dictionary.starts;
+    int[] lengths = dictionary.lengths;
+    int[] ids = new int[16];
+    int size = 0;
+    for (int i = 0; i < matched.length; i++) {
+      for (long word = matched[i]; word != 0; word &= word - 1) {
+        int code = i << 6 | Long.numberOfTrailingZeros(word);
+        String key = new String(pages[starts[code] >>> PAGE_BITS], starts[code] & PAGE_SIZE - 1,
+            lengths[code], StandardCharsets.UTF_8);
+        int[] postings =
+            byTitle ? searchIndex.titlePostings(key) : searchIndex.authorPostings(key);
+        if (size + postings.length > ids.length)
+          ids = Arrays.copyOf(ids, Math.max(2 * ids.length, size + postings.length));
+        System.arraycopy(postings, 0, ids, size, postings.length);
+        size += postings.length;
+      }
+    }
+    Arrays.sort(ids, 0, size);
+    ArrayList<Book> found = new ArrayList<Book>(Math.min(size, limit));
+    for (int i = 0; i < size && found.size() < limit; i++) {
+      Book book = catalog.get(ids[i]);
+      if (book != null) // not removed since the identifiers were copied
+        found.add(book);
+    }
+    return found;
+  }
+
+  /**
+   * Scans the first codes of a dictionary for a text
+   *
+   * @return the bitmap of the codes that match, null if none does
+   */
+  private static long[] match(Dictionary dictionary, final int count, String text,
+      final boolean prefix) {
+    final byte[] needle = SearchIndex.foldCase(text).getBytes(StandardCharsets.UTF_8);
+    final int[] skips = skips(needle);
+    final byte[][] pages = dictionary.pages;
+    final int[] starts = dictionary.starts;
+    final int[] lengths = dictionary.lengths;
+    final long[] matched = new long[(count + 63) >>> 6]; // a leaf writes its own words only
+    run((count + LEAF_SIZE - 1) / LEAF_SIZE, new LeafScan() {
+      @Override
+      public void scan(int leaf) {
+        int code = leaf * LEAF_SIZE;
+        int to = Math.min(count, code + LEAF_SIZE);
+        while (code < to) { // the codes of a page are consecutive, scan them at once
+          int page = starts[code] >>> PAGE_BITS;
+          int last = code;
+          while (last + 1 < to && starts[last + 1] >>> PAGE_BITS == page)
+            last++;
+          if (prefix)
+            matchPrefixes(pages[page], starts, lengths, code, last, needle, matched);
+          else
+            matchSubstrings(pages[page], starts, lengths, code, last, needle, skips, matched);
+          code = last + 1;
+        }
+      }
+    });
+    for (long word : matched)
+      if (word != 0)
+        return matched;
+    return null;
+  }
+
+  /**
+   * Marks the codes from first to last (all in the same page) that start with a needle
+   */
+  private static void matchPrefixes(byte[] page, int[] starts, int[] lengths, int first,
+      int last, byte[] needle, long[] matched) {
+    for (int code = first; code <= last; code++) {
+      if (lengths[code] < needle.length)
+        continue;
+      int offset = starts[code] & PAGE_SIZE - 1;
+      int i = 0;
+      while (i < needle.length && page[offset + i] == needle[i])
+        i++;
+      if (i == needle.length)
+        matched[code >>> 6] |= 1L << code;
+    }
+  }
+
+  /**
+   * Returns the table of the Boyer-Moore-Horspool search of a needle: how far the needle can move
+   * forward when its last byte is aligned with a given byte. null for a short needle, which is
+   * found faster by comparing every byte of the text with its first byte: each move of the
+   * Boyer-Moore-Horspool search waits for two reads, so moving less than MIN_SKIP_LENGTH bytes
+   * at a time does not pay.
+   */
+  private static int[] skips(byte[] needle) {
+    if (needle.length < MIN_SKIP_LENGTH)
+      return null;
+    int[] skips = new int[256];
+    Arrays.fill(skips, Math.max(1, needle.length));
+    for (int i = 0; i < needle.length - 1; i++)
+      skips[needle[i] & 0xff] = needle.length - 1 - i;
+    return skips;
+  }
+
+  /**
+   * Marks the codes from first to last (all in the same page) that contain a needle. The bytes of
+   * the codes are contiguous, so they are scanned as one array, with the Boyer-Moore-Horspool
+   * algorithm for a long needle (it reads about one byte out of the length of the needle), and a
+   * match is mapped back to its code; a match across two codes is ignored.
+   */
+  private static void matchSubstrings(byte[] page, int[] starts, int[] lengths, int first,
+      int last, byte[] needle, int[] skips, long[] matched) {
+    int from = starts[first] & PAGE_SIZE - 1;
+    int to = (starts[last] & PAGE_SIZE - 1) + lengths[last]; // after the bytes of the last code
+    if (needle.length == 0) {
+      for (int code = first; code <= last; code++)
+        matched[code >>> 6] |= 1L << code;
+      return;
+    }
+    int code = first;
+    int i = from;
+    while ((i = skips == null ? indexOf(page, i, to, needle)
+        : indexOf(page, i, to, needle, skips)) >= 0) {
+      while (code < last && (starts[code + 1] & PAGE_SIZE - 1) <= i) // code of the match
+        code++;
+      int codeEnd = (starts[code] & PAGE_SIZE - 1) + lengths[code];
+      if (i + needle.length <= codeEnd) {
+        matched[code >>> 6] |= 1L << code;
+        i = codeEnd; // next code
+      } else {
+        i++;
+      }
+    }
+  }
+
+  /**
+   * Returns the index of the first occurrence of a needle in the bytes from to to (excluded) of a
+   * page, -1 if there is none, comparing every byte with the first byte of the needle
+   */
+  private static int indexOf(byte[] page, int from, int to, byte[] needle) {
+    byte head = needle[0];
+    for (int i = from; i <= to - needle.length; i++) {
+      if (page[i] != head)
+        continue;
+      int j = 1;
+      while (j < needle.length && page[i + j] == needle[j])
+        j++;
+      if (j == needle.length)
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the index of the first occurrence of a needle in the bytes from to to (excluded) of a
+   * page, -1 if there is none, with the Boyer-Moore-Horspool algorithm
+   */
+  private static int indexOf(byte[] page, int from, int to, byte[] needle, int[] skips) {
+    int tail = needle.length - 1;
+    byte last = needle[tail];
+    for (int i = from; i <= to - needle.length; i += skips[page[i + tail] & 0xff]) {
+      if (page[i + tail] != last)
+        continue;
+      int j = 0;
+      while (j < tail && page[i + j] == needle[j])
+        j++;
+      if (j == tail)
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Runs a scan on a number of leaves: the first one in the calling thread, so that a search that
+   * finds enough books there does not wake up the threads of the pool, then the others in the
+   * common fork/join pool
+   */
+  private static void run(int leaves, LeafScan scan) {
+    if (leaves > 0)
+      scan.scan(0);
+    if (leaves > 1)
+      new Split(scan, 1, leaves).invoke();
+  }
+}